@@ -0,0 +1,162 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer;
+
+import java.io.Serializable;
+
+/**
+ * Data structure class representing an aggregate function applied to a
+ * property, e.g. the sum of all salaries. Once created, the instances of this
+ * class are immutable.
+ * 
+ * @see AggregatingEntityProvider#getAggregates(EntityContainer,
+ *      com.vaadin.data.Container.Filter, java.util.Collection)
+ * @since 3.1.1
+ */
+public final class Aggregate implements Serializable {
+
+    private static final long serialVersionUID = 2716399564937162593L;
+
+    /**
+     * Enumeration of the supported aggregate functions. As in SQL,
+     * <code>null</code> values are ignored by all of the functions.
+     */
+    public enum Function {
+        /**
+         * The sum of a numeric property, or null if there are no values.
+         */
+        SUM,
+        /**
+         * The average of a numeric property as a {@link Double}, or null if
+         * there are no values.
+         */
+        AVG,
+        /**
+         * The smallest value of a comparable property, or null if there are
+         * no values.
+         */
+        MIN,
+        /**
+         * The largest value of a comparable property, or null if there are no
+         * values.
+         */
+        MAX,
+        /**
+         * The number of non-null values of a property as a {@link Long}.
+         */
+        COUNT
+    }
+
+    /**
+     * The aggregate function to apply.
+     */
+    private final Function function;
+
+    /**
+     * The property ID to apply the function to.
+     */
+    private final Object propertyId;
+
+    /**
+     * Creates a new <code>Aggregate</code> instance.
+     * 
+     * @param function
+     *            the aggregate function to apply (must not be null).
+     * @param propertyId
+     *            the property ID to apply the function to (must not be null).
+     */
+    public Aggregate(Function function, Object propertyId) {
+        assert function != null : "function must not be null";
+        assert propertyId != null : "propertyId must not be null";
+        this.function = function;
+        this.propertyId = propertyId;
+    }
+
+    /**
+     * Gets the aggregate function to apply.
+     */
+    public Function getFunction() {
+        return function;
+    }
+
+    /**
+     * Gets the property ID to apply the function to.
+     */
+    public Object getPropertyId() {
+        return propertyId;
+    }
+
+    /**
+     * Creates an aggregate for the sum of <code>propertyId</code>.
+     */
+    public static Aggregate sum(Object propertyId) {
+        return new Aggregate(Function.SUM, propertyId);
+    }
+
+    /**
+     * Creates an aggregate for the average of <code>propertyId</code>.
+     */
+    public static Aggregate avg(Object propertyId) {
+        return new Aggregate(Function.AVG, propertyId);
+    }
+
+    /**
+     * Creates an aggregate for the smallest value of <code>propertyId</code>.
+     */
+    public static Aggregate min(Object propertyId) {
+        return new Aggregate(Function.MIN, propertyId);
+    }
+
+    /**
+     * Creates an aggregate for the largest value of <code>propertyId</code>.
+     */
+    public static Aggregate max(Object propertyId) {
+        return new Aggregate(Function.MAX, propertyId);
+    }
+
+    /**
+     * Creates an aggregate for the number of non-null values of
+     * <code>propertyId</code>.
+     */
+    public static Aggregate count(Object propertyId) {
+        return new Aggregate(Function.COUNT, propertyId);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null) {
+            return false;
+        }
+        if (obj.getClass() == getClass()) {
+            Aggregate o = (Aggregate) obj;
+            return o.function == function && o.propertyId.equals(propertyId);
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = propertyId.hashCode();
+        hash = hash * 7 + function.ordinal();
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return function + "(" + propertyId + ")";
+    }
+}
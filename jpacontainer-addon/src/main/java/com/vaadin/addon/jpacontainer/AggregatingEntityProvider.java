@@ -0,0 +1,81 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer;
+
+import java.util.Collection;
+import java.util.Map;
+
+import com.vaadin.data.Container.Filter;
+
+/**
+ * Interface to be implemented by all <code>EntityProvider</code>s that can
+ * compute summaries of the entities matching a filter directly in the
+ * persistence storage, without loading the entities themselves.
+ * 
+ * @see JPAContainer#getValueCounts(Object, int)
+ * @see JPAContainer#getAggregates(Aggregate...)
+ * @since 3.1.1
+ */
+public interface AggregatingEntityProvider<T> extends EntityProvider<T> {
+
+    /**
+     * Counts how many of the entities matching <code>filter</code> have each
+     * distinct value of the property <code>propertyId</code>. The values are
+     * returned in descending order of their counts, so the most common value
+     * comes first. A <code>null</code> value is counted like any other value.
+     * 
+     * @param entityContainer
+     *            the container using this provider.
+     * @param propertyId
+     *            the name of the (possibly nested) property to group by (must
+     *            not be null).
+     * @param filter
+     *            the filter that should be used to filter the entities before
+     *            counting, or null if no filter should be applied.
+     * @param limit
+     *            the maximum number of distinct values to return, or 0 to
+     *            return all of them.
+     * @return an ordered, unmodifiable map from property value to the number
+     *         of matching entities having that value (never null).
+     */
+    public Map<Object, Long> getValueCounts(
+            EntityContainer<T> entityContainer, Object propertyId,
+            Filter filter, int limit);
+
+    /**
+     * Computes <code>aggregates</code> over the entities matching
+     * <code>filter</code>. All of the aggregates are computed by the
+     * persistence storage in a single query.
+     * 
+     * @param entityContainer
+     *            the container using this provider.
+     * @param filter
+     *            the filter that should be used to filter the entities before
+     *            aggregating, or null if no filter should be applied.
+     * @param aggregates
+     *            the aggregates to compute (must not be null or empty).
+     * @return an unmodifiable map from aggregate to its value, in the order of
+     *         <code>aggregates</code> (never null). The values may be null, see
+     *         {@link Aggregate.Function}.
+     * @throws IllegalArgumentException
+     *             if a sum or an average is requested for a property that is
+     *             not numeric.
+     */
+    public Map<Aggregate, Object> getAggregates(
+            EntityContainer<T> entityContainer, Filter filter,
+            Collection<Aggregate> aggregates) throws IllegalArgumentException;
+}
@@ -21,10 +21,12 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import com.vaadin.data.Buffered.SourceException;
@@ -71,11 +73,19 @@ final class BufferedContainerDelegate<T> implements Serializable {
         final DeltaType type;
         final Object itemId;
         final T entity;
+        // The columns changed by an update, or null if not known
+        final Collection<String> changedColumns;
 
         Delta(DeltaType type, Object itemId, T entity) {
+            this(type, itemId, entity, null);
+        }
+
+        Delta(DeltaType type, Object itemId, T entity,
+                Collection<String> changedColumns) {
             this.type = type;
             this.itemId = itemId;
             this.entity = entity;
+            this.changedColumns = changedColumns;
         }
     }
 
@@ -232,8 +242,7 @@ final class BufferedContainerDelegate<T> implements Serializable {
 							addedItemIdsCache.remove(delta.itemId);
 							addedEntitiesCache.remove(delta.entity);
                         } else if (delta.type == DeltaType.UPDATE) {
-                            batchEnabledEntityProvider
-                                    .updateEntity(delta.entity);
+                            commitUpdate(batchEnabledEntityProvider, delta);
 							updatedEntitiesCache.remove(delta.itemId);
                         } else if (delta.type == DeltaType.DELETE) {
                             batchEnabledEntityProvider
@@ -256,6 +265,16 @@ final class BufferedContainerDelegate<T> implements Serializable {
         clear();
     }
 
+    private void commitUpdate(MutableEntityProvider<T> provider, Delta delta) {
+        if (delta.changedColumns != null
+                && provider instanceof PartialUpdateEntityProvider) {
+            ((PartialUpdateEntityProvider<T>) provider).updateEntityProperties(
+                    delta.entity, delta.changedColumns);
+        } else {
+            provider.updateEntity(delta.entity);
+        }
+    }
+
     /**
      * Clears all the buffered changes.
      * 
@@ -336,18 +355,60 @@ final class BufferedContainerDelegate<T> implements Serializable {
      *            the entity to save (must not be null).
      */
     public void updateEntity(Object itemId, T entity) {
+        updateEntity(itemId, entity, null);
+    }
+
+    /**
+     * Adds <code>entity</code> to the list of entities to be updated when the
+     * changes are committed. If the changed columns of all the buffered
+     * updates of the entity are known, only those columns are written when
+     * the changes are committed, provided that the entity provider is a
+     * {@link PartialUpdateEntityProvider}.
+     * 
+     * @param itemId
+     *            the item ID of the entity (must not be null).
+     * @param entity
+     *            the entity to save (must not be null).
+     * @param changedColumns
+     *            the names of the changed columns, or null if not known.
+     * @since 3.1.1
+     */
+    public void updateEntity(Object itemId, T entity,
+            Collection<String> changedColumns) {
         assert entity != null : "entity must not be null";
         assert itemId != null : "itemId must not be null";
 
         if (!isAdded(itemId)) {
+            if (isUpdated(itemId) && changedColumns != null) {
+                // The previous updates may have changed other columns
+                Collection<String> previous = getUpdateDelta(itemId).changedColumns;
+                if (previous == null) {
+                    changedColumns = null;
+                } else {
+                    Set<String> union = new LinkedHashSet<String>(previous);
+                    union.addAll(changedColumns);
+                    changedColumns = union;
+                }
+            }
             // remove possible old update, so that only the last update is
             // applied and order will be dictated by the last update
             removeUpdateDelta(itemId);
-            deltaList.add(new Delta(DeltaType.UPDATE, itemId, entity));
+            deltaList.add(new Delta(DeltaType.UPDATE, itemId, entity,
+                    changedColumns));
             updatedEntitiesCache.put(itemId, entity);
         }
     }
 
+    private Delta getUpdateDelta(Object itemId) {
+        for (int i = deltaList.size() - 1; i >= 0; i--) {
+            Delta delta = deltaList.get(i);
+            if (delta.type == DeltaType.UPDATE && delta.itemId.equals(itemId)) {
+                return delta;
+            }
+        }
+        return null;
+    }
+
     public int fixDbIndexWithDeletedItems(int index) {
         Integer[] removedDbIndexes = getDbIndexesOfDeletedItems();
         for (int i = 0; i < removedDbIndexes.length; i++) {
@@ -71,6 +71,26 @@ public interface EntityProviderChangeEvent<T> extends Serializable {
         // No additional methods
     }
 
+    /**
+     * Event indicating that one or more entities have been updated in the
+     * entity provider, and that only the listed properties have changed. This
+     * allows listeners to skip refreshing when none of the changed properties
+     * is of interest to them.
+     * 
+     * @since 3.1.1
+     */
+    public interface EntityPropertiesUpdatedEvent<T> extends
+            EntitiesUpdatedEvent<T> {
+
+        /**
+         * Gets the (possibly nested) names of the properties that have
+         * changed.
+         * 
+         * @return an unmodifiable collection of property names (never null).
+         */
+        public Collection<String> getPropertyIds();
+    }
+
     /**
      * Event indicating that one or more entities have been updated a specific
      * property in the entity provider.
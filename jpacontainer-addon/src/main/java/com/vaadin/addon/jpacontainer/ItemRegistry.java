@@ -0,0 +1,168 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps weak references to all the items created by a {@link JPAContainer},
+ * grouped by item ID. This class is not part of the public API and should not
+ * be used outside of JPAContainer.
+ * <p>
+ * The references are registered with a reference queue, so the entries of
+ * garbage collected items are removed one at a time as the queue is polled,
+ * instead of scanning the whole registry. No lock is held while the registry
+ * is read, so firing property value change events does not block the
+ * creation of new items.
+ * 
+ * @since 3.1.1
+ */
+final class ItemRegistry<T> {
+
+    private final ConcurrentMap<Object, Set<ItemReference<T>>> items = new ConcurrentHashMap<Object, Set<ItemReference<T>>>();
+
+    private final ReferenceQueue<JPAContainerItem<T>> queue = new ReferenceQueue<JPAContainerItem<T>>();
+
+    /**
+     * Weak reference that remembers the item ID, as the item itself is gone by
+     * the time the reference is polled from the queue.
+     */
+    private static final class ItemReference<T> extends
+            WeakReference<JPAContainerItem<T>> {
+
+        private final Object itemId;
+
+        ItemReference(JPAContainerItem<T> item, Object itemId,
+                ReferenceQueue<JPAContainerItem<T>> queue) {
+            super(item, queue);
+            this.itemId = itemId;
+        }
+    }
+
+    /**
+     * Registers <code>item</code> under <code>itemId</code>. The entries of
+     * items that have been garbage collected since the last call are removed
+     * at the same time.
+     * 
+     * @param itemId
+     *            the ID of the item (must not be null).
+     * @param item
+     *            the item (must not be null).
+     */
+    void register(Object itemId, JPAContainerItem<T> item) {
+        assert itemId != null : "itemId must not be null";
+        assert item != null : "item must not be null";
+        expungeStaleEntries();
+        add(new ItemReference<T>(item, itemId, queue));
+    }
+
+    private void add(ItemReference<T> ref) {
+        Object itemId = ref.itemId;
+        while (true) {
+            Set<ItemReference<T>> refs = items.get(itemId);
+            if (refs == null) {
+                Set<ItemReference<T>> newRefs = Collections
+                        .newSetFromMap(new ConcurrentHashMap<ItemReference<T>, Boolean>(
+                                4));
+                refs = items.putIfAbsent(itemId, newRefs);
+                if (refs == null) {
+                    refs = newRefs;
+                }
+            }
+            refs.add(ref);
+            // The set may have been removed as empty in the meantime, in which
+            // case the reference has to be added to a new one
+            if (items.get(itemId) == refs) {
+                return;
+            }
+            refs.remove(ref);
+        }
+    }
+
+    /**
+     * Gets the items registered under <code>itemId</code> that have not been
+     * garbage collected.
+     * 
+     * @param itemId
+     *            the ID of the items (must not be null).
+     * @return a new list of items (never null).
+     */
+    List<JPAContainerItem<T>> getItems(Object itemId) {
+        assert itemId != null : "itemId must not be null";
+        Set<ItemReference<T>> refs = items.get(itemId);
+        if (refs == null) {
+            return Collections.emptyList();
+        }
+        List<JPAContainerItem<T>> result = new ArrayList<JPAContainerItem<T>>(
+                refs.size());
+        for (ItemReference<T> ref : refs) {
+            JPAContainerItem<T> item = ref.get();
+            if (item != null) {
+                result.add(item);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets the IDs that have at least one item registered.
+     * 
+     * @return a new list of item IDs (never null).
+     */
+    List<Object> getItemIds() {
+        expungeStaleEntries();
+        return new ArrayList<Object>(items.keySet());
+    }
+
+    /**
+     * Gets the number of IDs that have at least one item registered.
+     */
+    int size() {
+        expungeStaleEntries();
+        return items.size();
+    }
+
+    /**
+     * Removes the entries of all items that have been garbage collected.
+     */
+    @SuppressWarnings("unchecked")
+    void expungeStaleEntries() {
+        Reference<? extends JPAContainerItem<T>> polled;
+        while ((polled = queue.poll()) != null) {
+            ItemReference<T> ref = (ItemReference<T>) polled;
+            Set<ItemReference<T>> refs = items.get(ref.itemId);
+            if (refs != null && refs.remove(ref) && refs.isEmpty()
+                    && items.remove(ref.itemId, refs)) {
+                // An item may have been registered just before the set was
+                // removed, so move any such items to a new set
+                for (ItemReference<T> r : refs) {
+                    if (refs.remove(r)) {
+                        add(r);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package com.vaadin.addon.jpacontainer;
 
 import java.io.IOException;
+import java.io.Serializable;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -25,12 +26,15 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.Map;
 import java.util.logging.Logger;
 
+import com.vaadin.addon.jpacontainer.EntityProviderChangeEvent.EntityPropertiesUpdatedEvent;
 import com.vaadin.addon.jpacontainer.EntityProviderChangeEvent.EntityPropertyUpdatedEvent;
+import com.vaadin.addon.jpacontainer.filter.JoinFilter;
 import com.vaadin.addon.jpacontainer.filter.util.AdvancedFilterableSupport;
 import com.vaadin.addon.jpacontainer.metadata.EntityClassMetadata;
 import com.vaadin.addon.jpacontainer.metadata.MetadataFactory;
@@ -41,11 +45,18 @@ import com.vaadin.data.Container;
 import com.vaadin.data.Item;
 import com.vaadin.data.Property;
 import com.vaadin.data.Validator.InvalidValueException;
+import com.vaadin.data.util.filter.AbstractJunctionFilter;
 import com.vaadin.data.util.filter.And;
+import com.vaadin.data.util.filter.Between;
+import com.vaadin.data.util.filter.Compare;
 import com.vaadin.data.util.filter.Compare.Equal;
+import com.vaadin.data.util.filter.In;
 import com.vaadin.data.util.filter.IsNull;
+import com.vaadin.data.util.filter.Like;
+import com.vaadin.data.util.filter.Not;
 import com.vaadin.data.util.filter.SimpleStringFilter;
 import com.vaadin.data.util.filter.UnsupportedFilterException;
+import com.vaadin.server.VaadinSession;
 
 /**
  * This is the main container class of JPAContainer (and the default
@@ -131,11 +142,6 @@ public class JPAContainer<T> implements EntityContainer<T>,
         Container.Indexed {
 
     private static final long serialVersionUID = -4031940552175752858L;
-    /**
-     * Rate on which cache cleanup (of empty weak references to instantiated
-     * entities) is performed.
-     */
-    private static final int CLEANUPRATE = 200;
 	private static final int MAX_NESTED_COMMITS = 5;
     private EntityProvider<T> entityProvider;
     private AdvancedFilterableSupport filterSupport;
@@ -151,7 +157,15 @@ public class JPAContainer<T> implements EntityContainer<T>,
 		}
 	};
 
-    transient private HashMap<Object, LinkedList<WeakReference<JPAContainerItem<T>>>> itemRegistry;
+    transient private volatile ItemRegistry<T> itemRegistry;
+
+    private boolean itemIdentityCacheEnabled = false;
+
+    private long writeBehindWindow = 0;
+    private transient boolean pendingUpdatesFlushScheduled;
+    private LinkedHashMap<Object, PendingUpdate<T>> pendingUpdates;
+    transient private Map<Object, CachedItem<T>> itemIdentityCache;
+    private transient boolean itemIdentityCacheClearScheduled;
 
     private QueryModifierDelegate queryModifierDelegate;
 
@@ -259,12 +273,31 @@ public class JPAContainer<T> implements EntityContainer<T>,
      * @param event
      *            the event to publish (must not be null).
      */
-    @SuppressWarnings("unchecked")
     protected void fireContainerItemSetChange(final ItemSetChangeEvent event) {
         assert event != null : "event must not be null";
+        // The cached items may no longer be part of the container
+        clearItemIdentityCache();
         if (listeners == null || !fireContainerItemSetChangeEvents) {
             return;
         }
+        if (itemSetChangeBatchDepth == 0 && itemSetChangesCoalescedPerRequest) {
+            beginRequestItemSetChangeBatch();
+        }
+        if (itemSetChangeBatchDepth > 0) {
+            if (batchedItemSetChanges == null) {
+                batchedItemSetChanges = new ArrayList<ItemSetChangeEvent>();
+            }
+            batchedItemSetChanges.add(event);
+            return;
+        }
+        notifyItemSetChangeListeners(event);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void notifyItemSetChangeListeners(ItemSetChangeEvent event) {
+        if (listeners == null) {
+            return;
+        }
         LinkedList<ItemSetChangeListener> list = (LinkedList<ItemSetChangeListener>) listeners
                 .clone();
         for (ItemSetChangeListener l : list) {
@@ -274,6 +307,126 @@ public class JPAContainer<T> implements EntityContainer<T>,
 
     private boolean fireContainerItemSetChangeEvents = true;
 
+    private int itemSetChangeBatchDepth = 0;
+    private transient List<ItemSetChangeEvent> batchedItemSetChanges;
+    private boolean itemSetChangesCoalescedPerRequest = false;
+    private transient VaadinSession session;
+
+    /**
+     * Starts an item set change batch. Until the batch is ended using
+     * {@link #endItemSetChangeBatch() }, the item set change events of the
+     * container are held back, and when the batch ends, the listeners are
+     * notified only once. This prevents e.g. an attached table from
+     * refreshing itself after every entity when entities are added in a loop.
+     * Property value change events are not affected.
+     * <p>
+     * Batches can be nested, in which case the events are fired when the
+     * outermost batch ends. A batch should always be ended in a
+     * <code>finally</code> block:
+     * 
+     * <pre>
+     * container.beginItemSetChangeBatch();
+     * try {
+     *     // Add, update and remove entities
+     * } finally {
+     *     container.endItemSetChangeBatch();
+     * }
+     * </pre>
+     * 
+     * @see #setItemSetChangesCoalescedPerRequest(boolean)
+     * @since 3.1.1
+     */
+    public void beginItemSetChangeBatch() {
+        itemSetChangeBatchDepth++;
+    }
+
+    /**
+     * Ends an item set change batch started using
+     * {@link #beginItemSetChangeBatch() }. If this ends the outermost batch and
+     * any item set changes occurred during the batch, the listeners are
+     * notified: if there was only one change, its event is fired as it is,
+     * otherwise a single {@link ItemSetChangesCoalescedEvent} is fired.
+     * 
+     * @throws IllegalStateException
+     *             if no batch has been started.
+     * @since 3.1.1
+     */
+    public void endItemSetChangeBatch() throws IllegalStateException {
+        if (itemSetChangeBatchDepth == 0) {
+            throw new IllegalStateException(
+                    "No item set change batch has been started");
+        }
+        if (--itemSetChangeBatchDepth > 0 || batchedItemSetChanges == null
+                || batchedItemSetChanges.isEmpty()) {
+            return;
+        }
+        List<ItemSetChangeEvent> events = batchedItemSetChanges;
+        batchedItemSetChanges = null;
+        if (events.size() == 1) {
+            notifyItemSetChangeListeners(events.get(0));
+        } else {
+            notifyItemSetChangeListeners(new ItemSetChangesCoalescedEvent(
+                    events));
+        }
+    }
+
+    /**
+     * Checks whether an item set change batch is in progress.
+     * 
+     * @see #beginItemSetChangeBatch()
+     * @since 3.1.1
+     */
+    public boolean isItemSetChangeBatchInProgress() {
+        return itemSetChangeBatchDepth > 0;
+    }
+
+    /**
+     * Specifies whether all the item set changes that occur while processing
+     * a request should be coalesced into one event, which is fired at the end
+     * of the request. When enabled, the first item set change of a request
+     * starts an item set change batch (see {@link #beginItemSetChangeBatch() }
+     * ), which is ended by a task queued using
+     * {@link VaadinSession#access(Runnable) }. Such tasks are run when the
+     * request releases the session lock, i.e. after the application code has
+     * run but before the response is written. Outside of requests, e.g. in
+     * background threads that do not hold the session lock, the events are
+     * fired immediately. This is disabled by default.
+     * 
+     * @param coalesced
+     *            true to coalesce the item set changes of each request, false
+     *            to fire them immediately.
+     * @since 3.1.1
+     */
+    public void setItemSetChangesCoalescedPerRequest(boolean coalesced) {
+        this.itemSetChangesCoalescedPerRequest = coalesced;
+    }
+
+    /**
+     * Returns whether the item set changes of each request are coalesced into
+     * one event.
+     * 
+     * @see #setItemSetChangesCoalescedPerRequest(boolean)
+     * @since 3.1.1
+     */
+    public boolean isItemSetChangesCoalescedPerRequest() {
+        return itemSetChangesCoalescedPerRequest;
+    }
+
+    private void beginRequestItemSetChangeBatch() {
+        VaadinSession session = VaadinSession.getCurrent();
+        if (session == null || !session.hasLock()) {
+            return;
+        }
+        beginItemSetChangeBatch();
+        session.access(new Runnable() {
+
+            @Override
+            public void run() {
+                endItemSetChangeBatch();
+            }
+        });
+    }
+
     /**
      * Specifies whether the container should fire an item set change event when
      * it detects a change in the entity provider (such as an entity being
@@ -344,12 +497,16 @@ public class JPAContainer<T> implements EntityContainer<T>,
                     .removeListener(this);
         }
         this.entityProvider = entityProvider;
+        clearItemIdentityCache();
         // Register listener with new provider
         registerProvider();
     }
 
     @SuppressWarnings("unchecked")
     private void registerProvider() {
+        // Provider events may be delivered by other threads, see
+        // entityProviderChange()
+        session = VaadinSession.getCurrent();
         if (this.entityProvider instanceof EntityProviderChangeNotifier) {
             ((EntityProviderChangeNotifier<T>) this.entityProvider)
                     .addListener(this);
@@ -389,67 +546,230 @@ public class JPAContainer<T> implements EntityContainer<T>,
         return fireItemSetChangeOnProviderChange;
     }
 
+    /**
+     * Updates the container when the entity provider has changed. If the
+     * event is delivered by a thread that does not hold the lock of the
+     * session the container was created in (e.g. by an asynchronous provider,
+     * see
+     * {@link com.vaadin.addon.jpacontainer.provider.MutableLocalEntityProvider#setEventDispatchExecutor(java.util.concurrent.Executor) }
+     * ), the event is handled using {@link VaadinSession#access(Runnable) }
+     * so that the listeners of the container can safely update the UI.
+     */
     @Override
-	public void entityProviderChange(EntityProviderChangeEvent<T> event) {
+	public void entityProviderChange(final EntityProviderChangeEvent<T> event) {
+        VaadinSession session = this.session;
+        if (session != null && !session.hasLock()) {
+            session.access(new Runnable() {
+
+                @Override
+                public void run() {
+                    handleEntityProviderChange(event);
+                }
+            });
+        } else {
+            handleEntityProviderChange(event);
+        }
+    }
+
+    private void handleEntityProviderChange(EntityProviderChangeEvent<T> event) {
+        if (event instanceof EntityPropertyUpdatedEvent) {
+            firePropertyValueChangeEvents(event,
+                    Collections.singleton(((EntityPropertyUpdatedEvent<T>) event)
+                            .getPropertyId()));
+        } else if (event instanceof EntityPropertiesUpdatedEvent) {
+            firePropertyValueChangeEvents(event,
+                    ((EntityPropertiesUpdatedEvent<T>) event).getPropertyIds());
+        }
         if (isItemSetChangeEvent(event)
                 && isFireItemSetChangeOnProviderChange()) {
             fireContainerItemSetChange(new ProviderChangedEvent(event));
-        } else {
-            if (event instanceof EntityPropertyUpdatedEvent) {
-                // TODO fire itemSetChange event in case property of a sort
-                // column has changed
-                EntityPropertyUpdatedEvent<T> evt = (EntityPropertyUpdatedEvent<T>) event;
-                Collection<T> affectedEntities = evt.getAffectedEntities();
-                if (affectedEntities.isEmpty()) {
-                    return;
+        }
+    }
+
+    private void firePropertyValueChangeEvents(
+            EntityProviderChangeEvent<T> event, Collection<String> propertyIds) {
+        if (!entityClassMetadata.hasIdentifierProperty()) {
+            return;
+        }
+        for (T t : event.getAffectedEntities()) {
+            Object itemId = getIdentifierPropertyValue(t);
+            // The listeners may ask for the item again, and should not get a
+            // cached item that still holds the old entity
+            if (itemIdentityCache != null) {
+                CachedItem<T> cached = itemIdentityCache.get(itemId);
+                if (cached != null && cached.item.getEntity() != t) {
+                    itemIdentityCache.remove(itemId);
                 }
-                for (T t : affectedEntities) {
-                    if (entityClassMetadata.hasIdentifierProperty()) {
-                        PersistentPropertyMetadata identifierProperty = entityClassMetadata
-                                .getIdentifierProperty();
-                        Object itemId = getIdentifierPropertyValue(t);
-                        firePropertyValueChangeEvent(itemId,
-                                ((EntityPropertyUpdatedEvent<T>) event)
-                                        .getPropertyId());
-                    }
+            }
+            for (String propertyId : propertyIds) {
+                firePropertyValueChangeEvent(itemId, propertyId);
+            }
+        }
+    }
+
+    protected void firePropertyValueChangeEvent(Object itemId, String propertyId) {
+        for (JPAContainerItem<T> jpaContainerItem : getRegistry()
+                .getItems(itemId)) {
+            EntityItemProperty itemProperty = jpaContainerItem
+                    .getItemProperty(propertyId);
+            if (itemProperty == null) {
+                // A nested property that has not been added to the container,
+                // notify the listeners of the root property instead
+                int dot = propertyId.indexOf('.');
+                if (dot < 0) {
+                    continue;
+                }
+                itemProperty = jpaContainerItem.getItemProperty(propertyId
+                        .substring(0, dot));
+                if (itemProperty == null) {
+                    continue;
                 }
             }
+            itemProperty.fireValueChangeEvent();
         }
+    }
 
+    private boolean isItemSetChangeEvent(EntityProviderChangeEvent<T> event) {
+        if (event instanceof EntityPropertyUpdatedEvent) {
+            return affectsItemSet(Collections
+                    .singleton(((EntityPropertyUpdatedEvent<T>) event)
+                            .getPropertyId()));
+        } else if (event instanceof EntityPropertiesUpdatedEvent) {
+            return affectsItemSet(((EntityPropertiesUpdatedEvent<T>) event)
+                    .getPropertyIds());
+        }
+        return true;
     }
 
-    @SuppressWarnings("unchecked")
-    protected void firePropertyValueChangeEvent(Object itemId, String propertyId) {
-        LinkedList<WeakReference<JPAContainerItem<T>>> linkedList;
-        synchronized (getItemRegistry()) {
-            LinkedList<WeakReference<JPAContainerItem<T>>> origList = getItemRegistry()
-                    .get(itemId);
-            if (origList != null) {
-                linkedList = (LinkedList<WeakReference<JPAContainerItem<T>>>) origList
-                        .clone();
-            } else {
-                return;
+    /**
+     * Checks whether a change of any of the properties in
+     * <code>propertyIds</code> may change the set or the order of the items in
+     * the container, i.e. whether any of them is used by an applied filter or
+     * by the current sort order. As the effects of a
+     * {@link QueryModifierDelegate} are not known, every property is assumed
+     * to affect the item set when one has been set.
+     * 
+     * @param propertyIds
+     *            the (possibly nested) names of the changed properties.
+     * @return true if the item set may have changed, false if it has not.
+     */
+    protected boolean affectsItemSet(Collection<String> propertyIds) {
+        if (propertyIds.isEmpty()) {
+            return false;
+        }
+        if (getQueryModifierDelegate() != null) {
+            return true;
+        }
+        for (String propertyId : propertyIds) {
+            for (Filter filter : getAppliedFilters()) {
+                if (appliesToProperty(filter, propertyId)) {
+                    return true;
+                }
+            }
+            for (SortBy sortBy : getSortByList()) {
+                if (isSamePropertyOrNested(sortBy.getPropertyId().toString(),
+                        propertyId)) {
+                    return true;
+                }
             }
         }
-        for (Iterator<WeakReference<JPAContainerItem<T>>> iterator = linkedList
-                .iterator(); iterator.hasNext();) {
-            WeakReference<JPAContainerItem<T>> weakReference = iterator.next();
-            JPAContainerItem<T> jpaContainerItem = weakReference.get();
-            if (jpaContainerItem != null) {
-                EntityItemProperty itemProperty = jpaContainerItem
-                        .getItemProperty(propertyId);
-                itemProperty.fireValueChangeEvent();
+        return false;
+    }
+
+    /**
+     * Checks whether <code>filter</code> uses <code>propertyId</code>, a
+     * property nested in it or a property it is nested in. E.g. a filter on
+     * <code>address.street</code> applies to <code>address</code>, and vice
+     * versa.
+     */
+    private boolean appliesToProperty(Filter filter, String propertyId) {
+        List<String> filteredIds = new ArrayList<String>();
+        if (collectFilteredPropertyIds(filter, "", filteredIds)) {
+            for (String filteredId : filteredIds) {
+                if (isSamePropertyOrNested(filteredId, propertyId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        // The properties of an unknown filter can only be queried one by one;
+        // check the property, its parents and the known nested properties
+        String path = propertyId;
+        while (true) {
+            if (filter.appliesToProperty(path)) {
+                return true;
+            }
+            int dot = path.lastIndexOf('.');
+            if (dot < 0) {
+                break;
             }
+            path = path.substring(0, dot);
         }
+        String prefix = propertyId + ".";
+        for (String name : propertyList.getAllAvailablePropertyNames()) {
+            if (name.startsWith(prefix) && filter.appliesToProperty(name)) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    private boolean isItemSetChangeEvent(EntityProviderChangeEvent<T> event) {
-        if (event instanceof EntityPropertyUpdatedEvent) {
+    /**
+     * Adds the (possibly nested) ids of the properties used by
+     * <code>filter</code> and its subfilters to <code>ids</code>, prepending
+     * <code>prefix</code> to each.
+     * 
+     * @return true if all the ids were found, false if the filter or any of
+     *         its subfilters is of an unknown type.
+     */
+    private static boolean collectFilteredPropertyIds(Filter filter,
+            String prefix, Collection<String> ids) {
+        if (filter instanceof JoinFilter) {
+            return collectFilteredPropertyIds(
+                    ((JoinFilter) filter).getFilters(), prefix
+                            + ((JoinFilter) filter).getJoinProperty() + ".",
+                    ids);
+        } else if (filter instanceof AbstractJunctionFilter) {
+            return collectFilteredPropertyIds(
+                    ((AbstractJunctionFilter) filter).getFilters(), prefix, ids);
+        } else if (filter instanceof Not) {
+            return collectFilteredPropertyIds(((Not) filter).getFilter(),
+                    prefix, ids);
+        }
+        Object propertyId;
+        if (filter instanceof Compare) {
+            propertyId = ((Compare) filter).getPropertyId();
+        } else if (filter instanceof IsNull) {
+            propertyId = ((IsNull) filter).getPropertyId();
+        } else if (filter instanceof SimpleStringFilter) {
+            propertyId = ((SimpleStringFilter) filter).getPropertyId();
+        } else if (filter instanceof Like) {
+            propertyId = ((Like) filter).getPropertyId();
+        } else if (filter instanceof Between) {
+            propertyId = ((Between) filter).getPropertyId();
+        } else if (filter instanceof In) {
+            propertyId = ((In) filter).getPropertyId();
+        } else {
             return false;
         }
+        ids.add(prefix + propertyId);
         return true;
     }
 
+    private static boolean collectFilteredPropertyIds(
+            Collection<Filter> filters, String prefix, Collection<String> ids) {
+        for (Filter filter : filters) {
+            if (!collectFilteredPropertyIds(filter, prefix, ids)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSamePropertyOrNested(String a, String b) {
+        return a.equals(b) || a.startsWith(b + ".") || b.startsWith(a + ".");
+    }
+
     @Override
 	public void setReadOnly(boolean readOnly)
             throws UnsupportedOperationException {
@@ -734,7 +1054,6 @@ public class JPAContainer<T> implements EntityContainer<T>,
     }
 
     private boolean containsIdFiresItemSetChangeIfNotFound = false;
-    private int cleanupCount;
 
     /**
      * Returns whether the {@link #containsId(java.lang.Object) } method will
@@ -807,47 +1126,190 @@ public class JPAContainer<T> implements EntityContainer<T>,
     /**
      * {@inheritDoc }
      * <p>
-     * Please note, that this method will create a new instance of
-     * {@link EntityItem} upon every execution. That is, two subsequent calls to
-     * this method with the same <code>itemId</code> will <b>not</b> return the
-     * same {@link EntityItem} instance. The actual entity instance may still be
-     * the same though, depending on the implementation of the entity provider.
+     * Please note, that unless the item identity cache has been enabled, this
+     * method will create a new instance of {@link EntityItem} upon every
+     * execution. That is, two subsequent calls to this method with the same
+     * <code>itemId</code> will <b>not</b> return the same {@link EntityItem}
+     * instance. The actual entity instance may still be the same though,
+     * depending on the implementation of the entity provider.
+     * 
+     * @see #setItemIdentityCacheEnabled(boolean)
      */
     @Override
 	public EntityItem<T> getItem(Object itemId) {
         if (itemId == null) {
             return null;
         }
+        BufferedState state = getBufferedState(itemId);
+        if (!itemIdentityCacheEnabled) {
+            return createItem(itemId, state);
+        }
+        Map<Object, CachedItem<T>> cache = getItemIdentityCache();
+        CachedItem<T> cached = cache.get(itemId);
+        // An item created before the entity was added, updated or deleted
+        // would report the wrong state, so it is replaced
+        if (cached != null && cached.state == state) {
+            return cached.item;
+        }
+        JPAContainerItem<T> item = createItem(itemId, state);
+        if (item != null) {
+            cache.put(itemId, new CachedItem<T>(item, state));
+            scheduleItemIdentityCacheClear();
+        } else {
+            cache.remove(itemId);
+        }
+        return item;
+    }
+
+    private BufferedState getBufferedState(Object itemId) {
         if (isWriteThrough() || !bufferingDelegate.isModified()) {
-            T entity = doGetEntityProvider().getEntity(this, itemId);
-            return entity != null ? new JPAContainerItem<T>(this, entity)
-                    : null;
+            return BufferedState.UNMODIFIED;
+        } else if (bufferingDelegate.isAdded(itemId)) {
+            return BufferedState.ADDED;
+        } else if (bufferingDelegate.isUpdated(itemId)) {
+            return BufferedState.UPDATED;
+        } else if (bufferingDelegate.isDeleted(itemId)) {
+            return BufferedState.DELETED;
         } else {
-            if (bufferingDelegate.isAdded(itemId)) {
-                JPAContainerItem<T> item = new JPAContainerItem<T>(this,
-                        bufferingDelegate.getAddedEntity(itemId), itemId, false);
-                return item;
-            } else if (bufferingDelegate.isUpdated(itemId)) {
-                JPAContainerItem<T> item = new JPAContainerItem<T>(this,
-                        bufferingDelegate.getUpdatedEntity(itemId));
-                item.setDirty(true);
+            return BufferedState.UNMODIFIED;
+        }
+    }
+
+    private JPAContainerItem<T> createItem(Object itemId, BufferedState state) {
+        switch (state) {
+        case ADDED:
+            return new JPAContainerItem<T>(this,
+                    bufferingDelegate.getAddedEntity(itemId), itemId, false);
+        case UPDATED: {
+            JPAContainerItem<T> item = new JPAContainerItem<T>(this,
+                    bufferingDelegate.getUpdatedEntity(itemId));
+            item.setDirty(true);
+            return item;
+        }
+        case DELETED: {
+            T entity = doGetEntityProvider().getEntity(this, itemId);
+            if (entity != null) {
+                JPAContainerItem<T> item = new JPAContainerItem<T>(this, entity);
+                item.setDeleted(true);
                 return item;
-            } else if (bufferingDelegate.isDeleted(itemId)) {
-                T entity = doGetEntityProvider().getEntity(this, itemId);
-                if (entity != null) {
-                    JPAContainerItem<T> item = new JPAContainerItem<T>(this,
-                            entity);
-                    item.setDeleted(true);
-                    return item;
-                } else {
-                    return null;
-                }
             } else {
-                T entity = doGetEntityProvider().getEntity(this, itemId);
-                return entity != null ? new JPAContainerItem<T>(this, entity)
-                        : null;
+                return null;
             }
         }
+        default: {
+            T entity = doGetEntityProvider().getEntity(this, itemId);
+            return entity != null ? new JPAContainerItem<T>(this, entity)
+                    : null;
+        }
+        }
+    }
+
+    /**
+     * Specifies whether {@link #getItem(Object)} should return the same
+     * {@link EntityItem} instance for the same item ID, instead of creating a
+     * new item (and possibly loading the entity again) upon every call. This
+     * is useful when the same item is requested several times while serving a
+     * request, e.g. by a table, a field group and converters.
+     * <p>
+     * When used while serving a request, i.e. by a thread holding the lock of
+     * the current {@link VaadinSession}, the cached items are forgotten at the
+     * end of the request using {@link VaadinSession#access(Runnable) }, so the
+     * next request loads fresh entities. They are also forgotten whenever the
+     * container fires an item set change event, e.g. when it is filtered,
+     * sorted, refreshed, or when changes are committed or discarded. Outside
+     * of requests, call {@link #clearItemIdentityCache()} at the end of the
+     * desired scope. An item is also replaced if the entity has been added,
+     * updated or deleted in buffered mode after the item was created, so that
+     * the item always reports the correct state.
+     * <p>
+     * The cache is disabled by default.
+     * 
+     * @param enabled
+     *            true to enable the cache, false to disable it.
+     * @since 3.1.1
+     */
+    public void setItemIdentityCacheEnabled(boolean enabled) {
+        this.itemIdentityCacheEnabled = enabled;
+        if (!enabled) {
+            itemIdentityCache = null;
+        }
+    }
+
+    /**
+     * Tests whether {@link #getItem(Object)} returns the same item instance for
+     * the same item ID.
+     * 
+     * @see #setItemIdentityCacheEnabled(boolean)
+     * @return true if the item identity cache is enabled, false otherwise
+     *         (default).
+     * @since 3.1.1
+     */
+    public boolean isItemIdentityCacheEnabled() {
+        return itemIdentityCacheEnabled;
+    }
+
+    /**
+     * Forgets all the items cached by the item identity cache, so that
+     * subsequent calls to {@link #getItem(Object)} create new items. Does
+     * nothing if the cache is disabled.
+     * 
+     * @see #setItemIdentityCacheEnabled(boolean)
+     * @since 3.1.1
+     */
+    public void clearItemIdentityCache() {
+        if (itemIdentityCache != null) {
+            itemIdentityCache.clear();
+        }
+    }
+
+    /**
+     * Makes the item identity cache be cleared at the end of the current
+     * request, if any, like {@link #schedulePendingUpdatesFlush()} does for
+     * the pending updates.
+     */
+    private void scheduleItemIdentityCacheClear() {
+        if (itemIdentityCacheClearScheduled) {
+            return;
+        }
+        VaadinSession session = VaadinSession.getCurrent();
+        if (session == null || !session.hasLock()) {
+            return;
+        }
+        itemIdentityCacheClearScheduled = true;
+        session.access(new Runnable() {
+
+            @Override
+            public void run() {
+                itemIdentityCacheClearScheduled = false;
+                clearItemIdentityCache();
+            }
+        });
+    }
+
+    private Map<Object, CachedItem<T>> getItemIdentityCache() {
+        if (itemIdentityCache == null) {
+            itemIdentityCache = new HashMap<Object, CachedItem<T>>();
+        }
+        return itemIdentityCache;
+    }
+
+    /**
+     * The buffered state of an entity, used to detect when a cached item has to
+     * be replaced.
+     */
+    private enum BufferedState {
+        UNMODIFIED, ADDED, UPDATED, DELETED
+    }
+
+    private static final class CachedItem<T> {
+
+        final JPAContainerItem<T> item;
+        final BufferedState state;
+
+        CachedItem(JPAContainerItem<T> item, BufferedState state) {
+            this.item = item;
+            this.state = state;
+        }
     }
 
     /**
@@ -858,54 +1320,54 @@ public class JPAContainer<T> implements EntityContainer<T>,
      * @param item
      */
     void registerItem(JPAContainerItem<T> item) {
-        // TODO write tests to ensure the registry gets cleaned up properly
-		if (item.getItemId() != null) {
-			synchronized (getItemRegistry()) {
-	            doItemRegistryCleanup();
-	            LinkedList<WeakReference<JPAContainerItem<T>>> listOfItemsForEntity = getItemRegistry()
-	                    .get(item.getItemId());
-	            if (listOfItemsForEntity == null) {
-	                listOfItemsForEntity = new LinkedList<WeakReference<JPAContainerItem<T>>>();
-						getItemRegistry().put(item.getItemId(),
-								listOfItemsForEntity);
-	            }
-				listOfItemsForEntity
-							.add(new WeakReference<JPAContainerItem<T>>(item));
-			}
+        // the registry ignores items without an id
+        if (item.getItemId() != null) {
+            getRegistry().register(item.getItemId(), item);
         }
     }
 
+    /**
+     * Gets a snapshot of the items created by this container, grouped by item
+     * ID.
+     * <p>
+     * Before 3.1.1, this method returned the registry itself, which
+     * subclasses could modify. The items are now tracked by an internal
+     * registry, so the returned map is a copy: changes to it are not
+     * reflected in the container, and items registered later are not
+     * reflected in the map.
+     * 
+     * @return a new map of weak references to the items (never null).
+     * @deprecated the item registry is an implementation detail; the map
+     *             returned is only a snapshot of it.
+     */
+    @Deprecated
     protected HashMap<Object, LinkedList<WeakReference<JPAContainerItem<T>>>> getItemRegistry() {
-        if (itemRegistry == null) {
-            itemRegistry = new HashMap<Object, LinkedList<WeakReference<JPAContainerItem<T>>>>();
-        }
-        return itemRegistry;
-    }
-
-    private void doItemRegistryCleanup() {
-        final boolean cleanup = (cleanupCount++) % CLEANUPRATE == 0;
-        if (cleanup) {
-			Iterator<Entry<Object, LinkedList<WeakReference<JPAContainerItem<T>>>>> entryIterator = getItemRegistry()
-					.entrySet().iterator();
-			while (entryIterator.hasNext()) {
-				Entry<Object, LinkedList<WeakReference<JPAContainerItem<T>>>> entry = entryIterator
-						.next();
-				Object id = entry.getKey();
-				LinkedList<WeakReference<JPAContainerItem<T>>> linkedList = entry
-						.getValue();
-				for (Iterator<WeakReference<JPAContainerItem<T>>> itemsIterator = linkedList
-						.iterator(); itemsIterator.hasNext();) {
-					WeakReference<JPAContainerItem<T>> ref = itemsIterator
-							.next();
-                    if (ref.get() == null) {
-						itemsIterator.remove();
-                    }
-                }
-                if (linkedList.isEmpty()) {
-					entryIterator.remove();
+        ItemRegistry<T> registry = getRegistry();
+        HashMap<Object, LinkedList<WeakReference<JPAContainerItem<T>>>> snapshot = new HashMap<Object, LinkedList<WeakReference<JPAContainerItem<T>>>>();
+        for (Object id : registry.getItemIds()) {
+            LinkedList<WeakReference<JPAContainerItem<T>>> refs = new LinkedList<WeakReference<JPAContainerItem<T>>>();
+            for (JPAContainerItem<T> item : registry.getItems(id)) {
+                refs.add(new WeakReference<JPAContainerItem<T>>(item));
+            }
+            if (!refs.isEmpty()) {
+                snapshot.put(id, refs);
+            }
+        }
+        return snapshot;
+    }
+
+    ItemRegistry<T> getRegistry() {
+        ItemRegistry<T> registry = itemRegistry;
+        if (registry == null) {
+            synchronized (this) {
+                registry = itemRegistry;
+                if (registry == null) {
+                    registry = new ItemRegistry<T>();
+                    itemRegistry = registry;
                 }
             }
         }
+        return registry;
     }
 
     /**
@@ -963,6 +1425,67 @@ public class JPAContainer<T> implements EntityContainer<T>,
         }
     }
 
+    /**
+     * Counts how many of the items matching the currently applied filters
+     * have each distinct value of the property <code>propertyId</code>. This
+     * is typically used to show facet counts next to filtering options. The
+     * counts are computed by the entity provider in a single query and do not
+     * include any buffered changes that have not been committed yet.
+     * 
+     * @param propertyId
+     *            the property to count the values of (must not be null).
+     * @param limit
+     *            the maximum number of distinct values to return, or 0 to
+     *            return all of them.
+     * @return an ordered map from property value to item count, most common
+     *         value first (never null).
+     * @throws UnsupportedOperationException
+     *             if the entity provider does not implement
+     *             {@link AggregatingEntityProvider}.
+     * @since 3.1.1
+     */
+    @SuppressWarnings("unchecked")
+    public Map<Object, Long> getValueCounts(Object propertyId, int limit)
+            throws UnsupportedOperationException {
+        assert propertyId != null : "propertyId must not be null";
+        if (!(doGetEntityProvider() instanceof AggregatingEntityProvider)) {
+            throw new UnsupportedOperationException(
+                    "EntityProvider does not support aggregates");
+        }
+        return ((AggregatingEntityProvider<T>) doGetEntityProvider())
+                .getValueCounts(this, propertyId,
+                        getAppliedFiltersAsConjunction(), limit);
+    }
+
+    /**
+     * Computes <code>aggregates</code>, e.g. the sum of a numeric property,
+     * over the items matching the currently applied filters. This is
+     * typically used for totals in table footers. The aggregates are computed
+     * by the entity provider in a single query and do not include any
+     * buffered changes that have not been committed yet.
+     * 
+     * @param aggregates
+     *            the aggregates to compute (must not be empty).
+     * @return a map from aggregate to its value, in the order of
+     *         <code>aggregates</code> (never null).
+     * @throws UnsupportedOperationException
+     *             if the entity provider does not implement
+     *             {@link AggregatingEntityProvider}.
+     * @since 3.1.1
+     */
+    @SuppressWarnings("unchecked")
+    public Map<Aggregate, Object> getAggregates(Aggregate... aggregates)
+            throws UnsupportedOperationException {
+        assert aggregates.length > 0 : "aggregates must not be empty";
+        if (!(doGetEntityProvider() instanceof AggregatingEntityProvider)) {
+            throw new UnsupportedOperationException(
+                    "EntityProvider does not support aggregates");
+        }
+        return ((AggregatingEntityProvider<T>) doGetEntityProvider())
+                .getAggregates(this, getAppliedFiltersAsConjunction(),
+                        Arrays.asList(aggregates));
+    }
+
     /**
      * Returns a conjunction (filter1 AND filter2 AND ... AND filterN) of all
      * the applied filters. If there are no applied filters, this method returns
@@ -1022,6 +1545,71 @@ public class JPAContainer<T> implements EntityContainer<T>,
         return filterSupport.hasUnappliedFilters();
     }
 
+    /**
+     * Starts a group of filter changes that should be applied as a single
+     * change, e.g. when several fields of a filter form are changed at once.
+     * Until the matching call to {@link #endFilterChanges()}, adding and
+     * removing filters will not cause any {@link FiltersAppliedEvent}s, even if
+     * {@link #isApplyFiltersImmediately()} is true. Groups may be nested.
+     * 
+     * @see #batchFilterChanges(Runnable)
+     */
+    public void beginFilterChanges() {
+        filterSupport.beginFilterChanges();
+    }
+
+    /**
+     * Ends a group of filter changes started by {@link #beginFilterChanges()}.
+     * If this ends the outermost group and the filters are applied
+     * immediately, the changed filters are applied once.
+     * 
+     * @throws IllegalStateException
+     *             if no group of filter changes has been started.
+     */
+    public void endFilterChanges() throws IllegalStateException {
+        filterSupport.endFilterChanges();
+    }
+
+    /**
+     * Runs <code>changes</code> as a single group of filter changes. The
+     * filters are applied (and a {@link FiltersAppliedEvent} fired) at most
+     * once, regardless of how many filters the runnable adds or removes.
+     * 
+     * @param changes
+     *            the runnable that changes the filters (must not be null).
+     */
+    public void batchFilterChanges(Runnable changes) {
+        filterSupport.batchFilterChanges(changes);
+    }
+
+    /**
+     * Specifies whether all the filter changes that occur while processing a
+     * request should be applied as a single change, causing at most one
+     * {@link FiltersAppliedEvent} at the end of the request. Until then, the
+     * container keeps using the filters that were applied before the request.
+     * This is disabled by default.
+     * 
+     * @see AdvancedFilterableSupport#setFilterChangesCoalescedPerRequest(boolean)
+     * @param coalesced
+     *            true to coalesce the filter changes of each request, false to
+     *            apply them immediately.
+     * @since 3.1.1
+     */
+    public void setFilterChangesCoalescedPerRequest(boolean coalesced) {
+        filterSupport.setFilterChangesCoalescedPerRequest(coalesced);
+    }
+
+    /**
+     * Returns whether the filter changes of each request are applied as a
+     * single change.
+     * 
+     * @see #setFilterChangesCoalescedPerRequest(boolean)
+     * @since 3.1.1
+     */
+    public boolean isFilterChangesCoalescedPerRequest() {
+        return filterSupport.isFilterChangesCoalescedPerRequest();
+    }
+
     @Override
 	public void addContainerFilter(Object propertyId, String filterString,
             boolean ignoreCase, boolean onlyMatchPrefix) {
@@ -1040,7 +1628,10 @@ public class JPAContainer<T> implements EntityContainer<T>,
     @Override
 	public void removeContainerFilters(Object propertyId) {
         removeAllContainerFilters();
-        applyFilters();
+        if (!isApplyFiltersImmediately()) {
+            // Otherwise the filters have already been applied
+            applyFilters();
+        }
     }
 
     /**
@@ -1222,6 +1813,9 @@ public class JPAContainer<T> implements EntityContainer<T>,
         requireWritableContainer();
 
         if (isWriteThrough()) {
+            if (pendingUpdates != null) {
+                pendingUpdates.remove(itemId);
+            }
             if (getEntityProvider().containsEntity(this, itemId, null)) {
                 ((MutableEntityProvider<T>) getEntityProvider())
                         .removeEntity(itemId);
@@ -1285,14 +1879,234 @@ public class JPAContainer<T> implements EntityContainer<T>,
             requireWritableContainer();
 
             Object itemId = item.getItemId();
-            if (isWriteThrough()) {
+            if (isWriteThrough() && writeBehindWindow > 0) {
+                queuePropertyUpdate(item, propertyId);
+            } else if (isWriteThrough()) {
                 ((MutableEntityProvider<T>) getEntityProvider())
                         .updateEntityProperty(itemId, propertyId, item
                                 .getItemProperty(propertyId).getValue());
                 item.setDirty(false);
             } else {
-                bufferingDelegate.updateEntity(itemId, item.getEntity());
+                bufferingDelegate.updateEntity(itemId, item.getEntity(),
+                        item.getChangedColumns());
+            }
+        }
+    }
+
+    private void queuePropertyUpdate(JPAContainerItem<T> item,
+            String propertyId) {
+        long now = System.currentTimeMillis();
+        if (pendingUpdates == null) {
+            pendingUpdates = new LinkedHashMap<Object, PendingUpdate<T>>();
+        }
+        // The map is in the order of the first edit, so the expired updates
+        // are at the beginning
+        List<PendingUpdate<T>> expired = new ArrayList<PendingUpdate<T>>();
+        for (Iterator<PendingUpdate<T>> it = pendingUpdates.values()
+                .iterator(); it.hasNext();) {
+            PendingUpdate<T> pending = it.next();
+            if (now - pending.firstModified < writeBehindWindow) {
+                break;
             }
+            expired.add(pending);
+            it.remove();
+        }
+        PendingUpdate<T> pending = pendingUpdates.get(item.getItemId());
+        if (pending == null) {
+            pending = new PendingUpdate<T>(now);
+            pendingUpdates.put(item.getItemId(), pending);
+        }
+        pending.properties.put(propertyId, item);
+        item.setDirty(true);
+        schedulePendingUpdatesFlush();
+        flushPendingUpdates(expired);
+    }
+
+    /**
+     * Makes the pending updates be flushed at the end of the current request,
+     * if any, using {@link VaadinSession#access(Runnable) } like
+     * {@link #beginRequestItemSetChangeBatch()} does.
+     */
+    private void schedulePendingUpdatesFlush() {
+        if (pendingUpdatesFlushScheduled) {
+            return;
+        }
+        VaadinSession session = VaadinSession.getCurrent();
+        if (session == null || !session.hasLock()) {
+            return;
+        }
+        pendingUpdatesFlushScheduled = true;
+        session.access(new Runnable() {
+
+            @Override
+            public void run() {
+                pendingUpdatesFlushScheduled = false;
+                flushPendingUpdates();
+            }
+        });
+    }
+
+    /**
+     * Passes all the property updates that have been queued because of
+     * {@link #setWriteBehindWindow(long) } on to the entity provider. The
+     * updates of each entity are coalesced into a single update.
+     * 
+     * @throws SourceException
+     *             if any of the updates failed. The causes of the exception
+     *             are in turn <code>SourceException</code>s whose source is
+     *             the item that could not be updated. The failed items remain
+     *             dirty and their updates remain queued, so they are retried
+     *             by the next flush.
+     * @since 3.1.1
+     */
+    public void flushPendingUpdates() throws SourceException {
+        if (pendingUpdates == null || pendingUpdates.isEmpty()) {
+            return;
+        }
+        List<PendingUpdate<T>> updates = new ArrayList<PendingUpdate<T>>(
+                pendingUpdates.values());
+        pendingUpdates.clear();
+        flushPendingUpdates(updates);
+    }
+
+    private void flushPendingUpdates(List<PendingUpdate<T>> updates)
+            throws SourceException {
+        List<Throwable> failures = new ArrayList<Throwable>();
+        List<PendingUpdate<T>> failed = new ArrayList<PendingUpdate<T>>();
+        for (PendingUpdate<T> pending : updates) {
+            try {
+                flushPendingUpdate(pending);
+            } catch (RuntimeException e) {
+                for (JPAContainerItem<T> item : pending.properties.values()) {
+                    item.setDirty(true);
+                }
+                failed.add(pending);
+                failures.add(new SourceException(pending.properties.values()
+                        .iterator().next(), e));
+            }
+        }
+        if (!failures.isEmpty()) {
+            requeuePendingUpdates(failed);
+            throw new SourceException(this,
+                    failures.toArray(new Throwable[failures.size()]));
+        }
+    }
+
+    /**
+     * Puts failed updates back in the queue, ahead of the updates queued
+     * after them. If an entity has been changed again in the meantime, the
+     * two updates are merged, the newer item taking precedence.
+     */
+    private void requeuePendingUpdates(List<PendingUpdate<T>> failed) {
+        LinkedHashMap<Object, PendingUpdate<T>> queue = new LinkedHashMap<Object, PendingUpdate<T>>();
+        for (PendingUpdate<T> pending : failed) {
+            queue.put(pending.properties.values().iterator().next()
+                    .getItemId(), pending);
+        }
+        if (pendingUpdates != null) {
+            for (Map.Entry<Object, PendingUpdate<T>> entry : pendingUpdates
+                    .entrySet()) {
+                PendingUpdate<T> older = queue.get(entry.getKey());
+                if (older == null) {
+                    queue.put(entry.getKey(), entry.getValue());
+                } else {
+                    older.properties.putAll(entry.getValue().properties);
+                }
+            }
+        }
+        pendingUpdates = queue;
+    }
+
+    private void flushPendingUpdate(PendingUpdate<T> pending) {
+        MutableEntityProvider<T> provider = (MutableEntityProvider<T>) getEntityProvider();
+        Collection<JPAContainerItem<T>> items = pending.properties.values();
+        JPAContainerItem<T> first = items.iterator().next();
+        boolean sameItem = true;
+        for (JPAContainerItem<T> item : items) {
+            sameItem &= item == first;
+        }
+        if (sameItem && pending.properties.size() > 1) {
+            updateItemEntity(first);
+        } else {
+            // Either a single property, or the properties have been changed
+            // through different item instances, i.e. different entity
+            // instances
+            for (Map.Entry<String, JPAContainerItem<T>> entry : pending.properties
+                    .entrySet()) {
+                provider.updateEntityProperty(entry.getValue().getItemId(),
+                        entry.getKey(),
+                        entry.getValue().getItemProperty(entry.getKey())
+                                .getValue());
+            }
+        }
+        for (JPAContainerItem<T> item : items) {
+            item.setDirty(false);
+        }
+    }
+
+    /**
+     * Specifies whether, and for how long, property changes made in
+     * write-through mode should be held back and coalesced before they are
+     * passed on to the entity provider. Without this, every changed property
+     * results in its own transaction and change event, so a user tabbing
+     * through the fields of a form causes one transaction per field.
+     * <p>
+     * If the window is positive, the changed properties of each entity are
+     * queued. Changes made while processing a request are flushed at the end
+     * of the request, using a task queued with
+     * {@link VaadinSession#access(Runnable) }, so all the changed properties of
+     * an entity are written in one update and nothing stays unsaved once the
+     * user stops editing. Outside of requests, e.g. in background threads that
+     * do not hold the session lock, all the changed properties of an entity
+     * are written in one update once its first change is older than the
+     * window, when the next property of any item is changed, or when
+     * {@link #flushPendingUpdates() } or {@link #commit() } is called; with a
+     * window of {@link Long#MAX_VALUE} the changes are then only written by
+     * those calls. While updates are pending, the items remain dirty and
+     * {@link #isModified() } returns true.
+     * <p>
+     * Setting the window to 0 (the default) flushes any pending updates and
+     * passes every change on immediately.
+     * 
+     * @param millis
+     *            the length of the window in milliseconds (must not be
+     *            negative).
+     * @since 3.1.1
+     */
+    public void setWriteBehindWindow(long millis) throws SourceException {
+        if (millis < 0) {
+            throw new IllegalArgumentException(
+                    "The window must not be negative");
+        }
+        this.writeBehindWindow = millis;
+        if (millis == 0) {
+            flushPendingUpdates();
+        }
+    }
+
+    /**
+     * Returns the length of the write-behind window in milliseconds.
+     * 
+     * @see #setWriteBehindWindow(long)
+     * @since 3.1.1
+     */
+    public long getWriteBehindWindow() {
+        return writeBehindWindow;
+    }
+
+    /**
+     * The properties of an entity that have been changed within the
+     * write-behind window, and the items they were changed through.
+     */
+    private static final class PendingUpdate<T> implements Serializable {
+
+        private static final long serialVersionUID = 6263937485306311372L;
+
+        final long firstModified;
+        final LinkedHashMap<String, JPAContainerItem<T>> properties = new LinkedHashMap<String, JPAContainerItem<T>>();
+
+        PendingUpdate(long firstModified) {
+            this.firstModified = firstModified;
         }
     }
 
@@ -1325,17 +2139,42 @@ public class JPAContainer<T> implements EntityContainer<T>,
 
             Object itemId = item.getItemId();
             if (isWriteThrough()) {
-                ((MutableEntityProvider<T>) getEntityProvider())
-                        .updateEntity(item.getEntity());
+                updateItemEntity(item);
                 item.setDirty(false);
             } else {
-                bufferingDelegate.updateEntity(itemId, item.getEntity());
+                bufferingDelegate.updateEntity(itemId, item.getEntity(),
+                        item.getChangedColumns());
             }
         }
     }
 
+    /**
+     * Saves the changes made to the entity of <code>item</code>. If the entity
+     * provider supports it and the changed columns are known, only those
+     * columns are written; otherwise the entity is merged.
+     */
+    private void updateItemEntity(JPAContainerItem<T> item) {
+        MutableEntityProvider<T> provider = (MutableEntityProvider<T>) getEntityProvider();
+        List<String> changedColumns = item.getChangedColumns();
+        T updated;
+        if (changedColumns != null
+                && provider instanceof PartialUpdateEntityProvider) {
+            updated = ((PartialUpdateEntityProvider<T>) provider)
+                    .updateEntityProperties(item.getEntity(), changedColumns);
+        } else {
+            updated = provider.updateEntity(item.getEntity());
+        }
+        if (updated != null && updated != item.getEntity()) {
+            // E.g. the version has been incremented in the merged copy
+            item.replaceEntity(updated);
+        } else {
+            item.takeSnapshot();
+        }
+    }
+
     @Override
 	public void commit() throws SourceException, InvalidValueException {
+        flushPendingUpdates();
         if (!isWriteThrough() && isModified()) {
 			if (writeThrough.size() > MAX_NESTED_COMMITS) {
 				throw new IllegalStateException(
@@ -1377,7 +2216,7 @@ public class JPAContainer<T> implements EntityContainer<T>,
     @Override
 	public boolean isModified() {
         if (isWriteThrough()) {
-            return false;
+            return pendingUpdates != null && !pendingUpdates.isEmpty();
         } else {
             return bufferingDelegate.isModified();
         }
@@ -1424,6 +2263,8 @@ public class JPAContainer<T> implements EntityContainer<T>,
 			this.writeThrough.push(true);
         } else {
             if (doGetEntityProvider() instanceof BatchableEntityProvider) {
+                // Pending updates are not tracked in buffered mode
+                flushPendingUpdates();
 				this.writeThrough.pop();
 				this.writeThrough.push(false);
             } else {
@@ -1660,6 +2501,39 @@ public class JPAContainer<T> implements EntityContainer<T>,
         }
     }
 
+    /**
+     * Event fired at the end of an item set change batch when several item set
+     * changes occurred during the batch.
+     * 
+     * @see JPAContainer#beginItemSetChangeBatch()
+     * @since 3.1.1
+     */
+    public final class ItemSetChangesCoalescedEvent implements
+            ItemSetChangeEvent {
+
+        private static final long serialVersionUID = 2931526734818604263L;
+        private final List<ItemSetChangeEvent> events;
+
+        private ItemSetChangesCoalescedEvent(List<ItemSetChangeEvent> events) {
+            this.events = Collections.unmodifiableList(events);
+        }
+
+        @Override
+        public Container getContainer() {
+            return JPAContainer.this;
+        }
+
+        /**
+         * Gets the events that have been coalesced into this event, in the
+         * order in which they occurred.
+         * 
+         * @return an unmodifiable list of events (never null).
+         */
+        public List<ItemSetChangeEvent> getEvents() {
+            return events;
+        }
+    }
+
     /**
      * Event fired when a {@link EntityProviderChangeEvent} is received by the
      * container.
@@ -1787,24 +2661,10 @@ public class JPAContainer<T> implements EntityContainer<T>,
     }
 
     @Override
-	@SuppressWarnings("unchecked")
-    public void refreshItem(Object itemId) {
-        LinkedList<WeakReference<JPAContainerItem<T>>> linkedList = null;
-        synchronized (getItemRegistry()) {
-            LinkedList<WeakReference<JPAContainerItem<T>>> origList = getItemRegistry()
-                    .get(itemId);
-            if (origList != null) {
-                linkedList = (LinkedList<WeakReference<JPAContainerItem<T>>>) origList
-                        .clone();
-            }
-        }
-        if (linkedList != null) {
-            for (WeakReference<JPAContainerItem<T>> weakReference : linkedList) {
-                JPAContainerItem<T> jpaContainerItem = weakReference.get();
-                if (jpaContainerItem != null) {
-                    jpaContainerItem.refresh();
-                }
-            }
+	public void refreshItem(Object itemId) {
+        for (JPAContainerItem<T> jpaContainerItem : getRegistry()
+                .getItems(itemId)) {
+            jpaContainerItem.refresh();
         }
     }
 
@@ -1815,12 +2675,11 @@ public class JPAContainer<T> implements EntityContainer<T>,
      */
     @Override
 	public void refresh() {
+        flushPendingUpdates();
         doGetEntityProvider().refresh();
         bufferingDelegate.discard();
-        synchronized (getItemRegistry()) {
-            for (Object id : getItemRegistry().keySet().toArray()) {
-                refreshItem(id);
-            }
+        for (Object id : getRegistry().getItemIds()) {
+            refreshItem(id);
         }
         fireContainerItemSetChange(new AllItemsRefreshedEvent());
     }
@@ -27,6 +27,7 @@ import javax.transaction.UserTransaction;
 import com.vaadin.addon.jpacontainer.provider.CachingBatchableLocalEntityProvider;
 import com.vaadin.addon.jpacontainer.provider.CachingLocalEntityProvider;
 import com.vaadin.addon.jpacontainer.provider.CachingMutableLocalEntityProvider;
+import com.vaadin.addon.jpacontainer.provider.HibernateStatelessEntityProvider;
 import com.vaadin.addon.jpacontainer.provider.LocalEntityProvider;
 import com.vaadin.addon.jpacontainer.provider.MutableLocalEntityProvider;
 import com.vaadin.addon.jpacontainer.provider.jndijta.JndiAddresses;
@@ -210,6 +211,33 @@ public class JPAContainerFactory {
                 createEntityManagerForPersistenceUnit(persistenceUnitName));
     }
 
+    /**
+     * Creates a new instance of JPAContainer backed by a
+     * {@link HibernateStatelessEntityProvider}, which writes the changes using
+     * Hibernate stateless sessions. The container is buffered, so that all
+     * the changes are written in one batch when the container is committed.
+     * This method should be used for bulk imports on Hibernate; with other
+     * JPA implementations the container behaves like a non-cached batchable
+     * container.
+     * 
+     * @param <T>
+     *            the type of entity to be contained in the JPAContainer
+     * @param entityClass
+     *            the class of the entity
+     * @param entityManager
+     *            the entity manager to use
+     * @return a fully configured JPAContainer instance
+     * @since 3.1.1
+     */
+    public static <T> JPAContainer<T> makeBulkImport(Class<T> entityClass,
+            EntityManager entityManager) {
+        JPAContainer<T> container = makeWithEntityProvider(entityClass,
+                new HibernateStatelessEntityProvider<T>(entityClass,
+                        entityManager));
+        container.setBuffered(true);
+        return container;
+    }
+
     /**
      * Creates a new instance of JPAContainer backed by a
      * {@link MutableLocalEntityProvider}. This method should be used if you
@@ -17,10 +17,12 @@
 package com.vaadin.addon.jpacontainer;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 
+import com.vaadin.addon.jpacontainer.metadata.ChangeDetector;
 import com.vaadin.data.Container;
 import com.vaadin.data.Container.ItemSetChangeEvent;
 import com.vaadin.data.Property;
@@ -41,7 +43,15 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
     private T entity;
     private JPAContainer<T> container;
     private PropertyList<T> propertyList;
-    private Map<Object, JPAContainerItemProperty<T>> propertyMap;
+    // Properties indexed by their ordinal in getPropertyList(), created
+    // lazily the first time they are requested
+    private JPAContainerItemProperty<T>[] properties;
+    // Ordinals of the lazy loaded properties that are known to be initialized
+    // in the current entity
+    private BitSet initializedLazyProperties;
+    // The persistent property values of the entity when it was loaded or last
+    // saved, or null if the changed columns cannot be detected
+    private transient Object[] snapshot;
     private boolean modified = false;
     private boolean dirty = false;
     private boolean persistent = true;
@@ -98,7 +108,7 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
         } else {
             this.persistent = persistent;
         }
-        this.propertyMap = new HashMap<Object, JPAContainerItemProperty<T>>();
+        takeSnapshot();
 		// the itemRegistry will ignore this item if the id is null
         container.registerItem(this);
     }
@@ -142,6 +152,8 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
 			if (localCopy == true) {
 				this.propertyList = new PropertyList<T>(
 						container.getPropertyList());
+				// The ordinals of the local copy differ from the container's
+				remapProperties(this.propertyList);
 			} else {
 				return container.getPropertyList();
 			}
@@ -158,16 +170,62 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
     @Override
     public EntityItemProperty getItemProperty(Object id) {
         assert id != null : "id must not be null";
-        JPAContainerItemProperty<T> p = propertyMap.get(id);
+        PropertyList<T> list = getPropertyList();
+        int ordinal = list.getPropertyOrdinal(id.toString());
+        if (ordinal == -1) {
+            return null;
+        }
+        if (properties == null || ordinal >= properties.length) {
+            properties = copyOf(properties, list.getOrdinalCount());
+        }
+        JPAContainerItemProperty<T> p = properties[ordinal];
         if (p == null) {
-            if (!getItemPropertyIds().contains(id.toString())) {
-                return null;
-            }
             p = new JPAContainerItemProperty<T>(this, id.toString());
-            propertyMap.put(id, p);
+            properties[ordinal] = p;
         }
         return p;
     }
+
+    @SuppressWarnings("unchecked")
+    private JPAContainerItemProperty<T>[] copyOf(
+            JPAContainerItemProperty<T>[] original, int length) {
+        if (original == null) {
+            return new JPAContainerItemProperty[length];
+        }
+        return Arrays.copyOf(original, length);
+    }
+
+    /**
+     * Moves the properties created so far to the slots given by the ordinals
+     * of <code>list</code>.
+     */
+    private void remapProperties(PropertyList<T> list) {
+        if (properties == null) {
+            return;
+        }
+        JPAContainerItemProperty<T>[] remapped = copyOf(null,
+                list.getOrdinalCount());
+        for (JPAContainerItemProperty<T> prop : properties) {
+            if (prop != null) {
+                int ordinal = list.getPropertyOrdinal(prop.getPropertyId());
+                if (ordinal != -1) {
+                    remapped[ordinal] = prop;
+                }
+            }
+        }
+        properties = remapped;
+        initializedLazyProperties = null;
+    }
+
+    /**
+     * Gets the properties created so far, with nulls for the properties that
+     * have not been requested yet.
+     */
+    @SuppressWarnings("unchecked")
+    private JPAContainerItemProperty<T>[] getCreatedProperties() {
+        return properties == null ? new JPAContainerItemProperty[0]
+                : properties;
+    }
     
     public Class<?> getItemPropertyType(String propertyName) {
 		return getPropertyList().getPropertyType(propertyName);
@@ -189,6 +247,7 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
 			throws IllegalArgumentException, IllegalStateException {
 		getPropertyList().setPropertyValue(entity, propertyName, propertyValue);
     	dirty = true;
+        clearLazyPropertyInitialized(propertyName);
     }
     
     void containerItemPropertyModified(String propertyId) {
@@ -203,6 +262,57 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
 		return getPropertyList().isPropertyLazyLoaded(propertyName);
     }
 
+    /**
+     * Checks whether the lazy loaded property <code>propertyName</code> is
+     * known to be initialized in the current entity.
+     * 
+     * @see #setLazyPropertyInitialized(String)
+     */
+    boolean isLazyPropertyInitialized(String propertyName) {
+        if (initializedLazyProperties == null) {
+            return false;
+        }
+        int ordinal = getPropertyList().getPropertyOrdinal(propertyName);
+        return ordinal != -1 && initializedLazyProperties.get(ordinal);
+    }
+
+    /**
+     * Records that the lazy loaded property <code>propertyName</code> has been
+     * initialized in the current entity, so that it does not have to be checked
+     * again. The record is cleared when the entity is replaced.
+     */
+    void setLazyPropertyInitialized(String propertyName) {
+        int ordinal = getPropertyList().getPropertyOrdinal(propertyName);
+        if (ordinal != -1) {
+            if (initializedLazyProperties == null) {
+                initializedLazyProperties = new BitSet();
+            }
+            initializedLazyProperties.set(ordinal);
+        }
+    }
+
+    /**
+     * Forgets that <code>propertyName</code> and the properties nested in it
+     * have been initialized, as a new value has been written to it and the
+     * new value may not be loaded.
+     */
+    private void clearLazyPropertyInitialized(String propertyName) {
+        if (initializedLazyProperties == null
+                || initializedLazyProperties.isEmpty()) {
+            return;
+        }
+        PropertyList<T> propertyList = getPropertyList();
+        String prefix = propertyName + ".";
+        for (String name : propertyList.getAllAvailablePropertyNames()) {
+            if (name.equals(propertyName) || name.startsWith(prefix)) {
+                int ordinal = propertyList.getPropertyOrdinal(name);
+                if (ordinal != -1) {
+                    initializedLazyProperties.clear(ordinal);
+                }
+            }
+        }
+    }
+
     @Override
     public Collection<String> getItemPropertyIds() {
         /*
@@ -305,6 +415,45 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
     
     public void replaceEntity(T entity) {
     	this.entity = entity;
+    	initializedLazyProperties = null;
+    	takeSnapshot();
+    }
+
+    /**
+     * Takes a snapshot of the persistent property values of the entity, which
+     * {@link #getChangedColumns()} compares the entity to. This is done when
+     * the entity is loaded or replaced, and after its changes have been saved.
+     * No snapshot is taken unless the item is persistent and the entity
+     * provider is a {@link PartialUpdateEntityProvider} that actually uses
+     * partial updates, as taking a snapshot copies every persistent property.
+     */
+    void takeSnapshot() {
+        EntityProvider<T> provider = container.getEntityProvider();
+        if (isPersistent()
+                && provider instanceof PartialUpdateEntityProvider
+                && ((PartialUpdateEntityProvider<T>) provider)
+                        .isPartialUpdateEnabled()) {
+            snapshot = container.getEntityClassMetadata().getChangeDetector()
+                    .takeSnapshot(entity);
+        } else {
+            snapshot = null;
+        }
+    }
+
+    /**
+     * Gets the names of the columns of the entity that have changed since the
+     * last snapshot was taken.
+     * 
+     * @return a list of column names, or null if the changes are not known,
+     *         e.g. because a relationship has changed.
+     * @see ChangeDetector#getChangedColumns(Object, Object[])
+     */
+    List<String> getChangedColumns() {
+        if (snapshot == null) {
+            return null;
+        }
+        return container.getEntityClassMetadata().getChangeDetector()
+                .getChangedColumns(entity, snapshot);
     }
 
     @Override
@@ -315,8 +464,10 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
                  * Commit all properties. The commit() operation will check if
                  * the property is read only and ignore it if that is the case.
                  */
-                for (JPAContainerItemProperty<T> prop : propertyMap.values()) {
-                    prop.commit();
+                for (JPAContainerItemProperty<T> prop : getCreatedProperties()) {
+                    if (prop != null) {
+                        prop.commit();
+                    }
                 }
                 modified = false;
                 container.containerItemModified(this);
@@ -329,8 +480,10 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
     @Override
     public void discard() throws SourceException {
         if (!isWriteThrough()) {
-            for (JPAContainerItemProperty<T> prop : propertyMap.values()) {
-                prop.discard();
+            for (JPAContainerItemProperty<T> prop : getCreatedProperties()) {
+                if (prop != null) {
+                    prop.discard();
+                }
             }
             modified = false;
         }
@@ -366,17 +519,21 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
                 /*
                  * Do some cleaning up
                  */
-                for (JPAContainerItemProperty<T> prop : propertyMap.values()) {
-                    prop.clearCache();
+                for (JPAContainerItemProperty<T> prop : getCreatedProperties()) {
+                    if (prop != null) {
+                        prop.clearCache();
+                    }
                 }
             } else {
                 /*
-                 * We can iterate directly over the map, as this operation only
+                 * We can iterate directly over the slots, as this operation only
                  * affects existing properties. Properties that are lazily
                  * created afterwards will work automatically.
                  */
-                for (JPAContainerItemProperty<T> prop : propertyMap.values()) {
-                    prop.cacheRealValue();
+                for (JPAContainerItemProperty<T> prop : getCreatedProperties()) {
+                    if (prop != null) {
+                        prop.cacheRealValue();
+                    }
                 }
             }
             this.writeThrough = writeThrough;
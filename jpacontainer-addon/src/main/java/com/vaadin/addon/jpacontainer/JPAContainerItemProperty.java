@@ -200,6 +200,7 @@ public class JPAContainerItemProperty<T> implements EntityItemProperty {
         LazyLoadingDelegate lazyLoadingDelegate = item.getContainer()
                 .getEntityProvider().getLazyLoadingDelegate();
         if (lazyLoadingDelegate == null
+                || item.isLazyPropertyInitialized(propertyId)
                 || !item.isItemPropertyLazyLoaded(propertyId)) {
             // Don't need to do anything
             return;
@@ -226,9 +227,15 @@ public class JPAContainerItemProperty<T> implements EntityItemProperty {
             }
         }
         if (shouldLoadEntity) {
-            item.replaceEntity(lazyLoadingDelegate.ensureLazyPropertyLoaded(item.getEntity(),
-                    propertyId));
+            T loaded = lazyLoadingDelegate.ensureLazyPropertyLoaded(
+                    item.getEntity(), propertyId);
+            // Replacing the entity retakes the change snapshot, which must
+            // not absorb the changes made to the same instance so far
+            if (loaded != item.getEntity()) {
+                item.replaceEntity(loaded);
+            }
         }
+        item.setLazyPropertyInitialized(propertyId);
     }
 
     @Override
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer;
+
+import java.util.Collection;
+
+import com.vaadin.addon.jpacontainer.metadata.ChangeDetector;
+
+/**
+ * An extended version of {@link MutableEntityProvider} that can save the
+ * changes made to an entity by writing only the columns that have actually
+ * changed, instead of merging the whole entity. {@link JPAContainer} uses this
+ * feature when committing items whose changed columns are known, see
+ * {@link ChangeDetector}.
+ * 
+ * @since 3.1.1
+ */
+public interface PartialUpdateEntityProvider<T> extends
+        MutableEntityProvider<T> {
+
+    /**
+     * Saves the changes made to <code>entity</code> to the persistence
+     * storage, assuming that only the properties in
+     * <code>propertyNames</code> have changed since the entity was loaded.
+     * The properties are the (possibly nested) names of simple persistent
+     * properties, as returned by
+     * {@link ChangeDetector#getChangedColumns(Object, Object[]) }.
+     * Implementations may fall back to {@link #updateEntity(Object) } if the
+     * properties cannot be updated separately.
+     * 
+     * @param entity
+     *            the entity to update (must not be null).
+     * @param propertyNames
+     *            the names of the changed properties (must not be null).
+     * @return the updated entity, see {@link #updateEntity(Object) }.
+     * @throws RuntimeException
+     *             if an error occurs while saving the changes to the
+     *             persistence storage.
+     */
+    public T updateEntityProperties(T entity, Collection<String> propertyNames)
+            throws RuntimeException;
+
+    /**
+     * Returns whether {@link #updateEntityProperties(Object, Collection) }
+     * currently writes only the changed properties. If not, the whole entity
+     * is written anyway, so callers need not keep track of which properties
+     * have changed.
+     * 
+     * @return true if partial updates are used, false otherwise.
+     */
+    public boolean isPartialUpdateEnabled();
+}
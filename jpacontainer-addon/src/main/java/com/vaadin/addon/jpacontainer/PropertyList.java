@@ -26,18 +26,11 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
-import javax.persistence.Basic;
-import javax.persistence.ElementCollection;
-import javax.persistence.FetchType;
-import javax.persistence.ManyToMany;
-import javax.persistence.ManyToOne;
-import javax.persistence.OneToMany;
-import javax.persistence.OneToOne;
-
 import com.vaadin.addon.jpacontainer.metadata.ClassMetadata;
 import com.vaadin.addon.jpacontainer.metadata.PersistentPropertyMetadata;
 import com.vaadin.addon.jpacontainer.metadata.PropertyKind;
 import com.vaadin.addon.jpacontainer.metadata.PropertyMetadata;
+import com.vaadin.addon.jpacontainer.metadata.PropertyPath;
 
 /**
  * Helper class to make it easier to work with nested properties. Intended to be
@@ -63,6 +56,13 @@ final class PropertyList<T> implements Serializable {
     private Set<String> nestedPropertyNames = new HashSet<String>();
     private Set<String> allPropertyNames = new HashSet<String>();
 	private Set<String> readOnlyPropertyNames = new HashSet<>();
+    // Incremented whenever the properties of this list change, used to detect
+    // when the flattened index has to be rebuilt
+    private int version;
+    // Ordinals are assigned when a property first shows up in the index and
+    // are never reused, even if the property is removed
+    private final Map<String, Integer> ordinals = new HashMap<String, Integer>();
+    private transient volatile PropertyIndex index;
 
     /**
      * Creates a new <code>PropertyList</code> for the specified metadata.
@@ -157,6 +157,7 @@ final class PropertyList<T> implements Serializable {
             throws IllegalArgumentException {
         if (persistentPropertyNames.contains(propertyName)) {
             sortablePropertyMap.put(propertyName, sortPropertyName);
+            version++;
         } else {
             throw new IllegalArgumentException("Property " + propertyName
                     + " cannot be sorted based on " + sortPropertyName
@@ -196,9 +197,12 @@ final class PropertyList<T> implements Serializable {
             throw new IllegalArgumentException(propertyName + " is not nested");
         }
 
-        if (getAllAvailablePropertyNames().contains(propertyName)) {
+        Set<String> availablePropertyNames = getAllAvailablePropertyNames();
+        if (availablePropertyNames.contains(propertyName)) {
             return; // Do nothing, the property already exists.
         }
+        // The index is rebuilt lazily the next time it is needed
+        version++;
 
         if (propertyName.endsWith("*")) {
             // We add a whole bunch of properties
@@ -210,7 +214,7 @@ final class PropertyList<T> implements Serializable {
                 for (PropertyMetadata pm : parentProperty.getTypeMetadata()
                         .getProperties()) {
                     String newName = parentPropertyName + "." + pm.getName();
-                    if (!getAllAvailablePropertyNames().contains(newName)) {
+                    if (!availablePropertyNames.contains(newName)) {
                         if (pm instanceof PersistentPropertyMetadata) {
                             persistentPropertyNames.add(newName);
                             if (PropertyKind.SIMPLE
@@ -219,6 +223,7 @@ final class PropertyList<T> implements Serializable {
                                 sortablePropertyMap.put(newName, newName);
                             }
                         }
+                        metadata.getPropertyPath(newName);
                         propertyNames.add(newName);
                         allPropertyNames.add(newName);
                         nestedPropertyNames.add(newName);
@@ -238,7 +243,8 @@ final class PropertyList<T> implements Serializable {
                                 + "."
                                 + Introspector.decapitalize(m.getName()
                                         .substring(3));
-                        if (!getAllAvailablePropertyNames().contains(newName)) {
+                        if (!availablePropertyNames.contains(newName)) {
+                            metadata.getPropertyPath(newName);
                             propertyNames.add(newName);
                             nestedPropertyNames.add(newName);
                             allPropertyNames.add(newName);
@@ -249,6 +255,9 @@ final class PropertyList<T> implements Serializable {
         } else {
             // We add a single property
             NestedProperty np = getNestedProperty(propertyName);
+            // Compile the path up front so that reading the value later on
+            // does not have to parse the name
+            metadata.getPropertyPath(propertyName);
             if (np.getKind() == NestedPropertyKind.PERSISTENT) {
                 persistentPropertyNames.add(propertyName);
 
@@ -357,25 +366,6 @@ final class PropertyList<T> implements Serializable {
                 return NestedPropertyKind.TRANSIENT;
             }
         }
-
-        boolean isWritable() {
-            if (parentClassMetadata != null) {
-                return parentClassMetadata.getProperty(name).isWritable();
-            } else {
-                /*
-                 * There are cases when this may not work. For example, if the
-                 * setter is declared in a subclass.
-                 */
-                try {
-                    propertyGetterMethod.getDeclaringClass().getMethod(
-                            "s" + propertyGetterMethod.getName().substring(1),
-                            getType());
-                    return true;
-                } catch (NoSuchMethodException e) {
-                    return false;
-                }
-            }
-        }
     }
 
     private Map<String, NestedProperty> nestedPropertyMap = new HashMap<String, NestedProperty>();
@@ -470,6 +460,7 @@ final class PropertyList<T> implements Serializable {
      */
     public boolean removeProperty(String propertyName) {
         assert propertyName != null : "propertyName must not be null";
+        version++;
         boolean result = propertyNames.remove(propertyName);
         persistentPropertyNames.remove(propertyName);
         sortablePropertyMap.remove(propertyName);
@@ -490,33 +481,7 @@ final class PropertyList<T> implements Serializable {
      * @return an unmodifiable set of property names (never null).
      */
     public Set<String> getAllAvailablePropertyNames() {
-        return Collections.unmodifiableSet(doGetAllAvailablePropertyNames());
-    }
-
-    private <E> Set<E> union(Set<E>... sets) {
-        HashSet<E> newSet = new HashSet<E>();
-        for (Set<E> s : sets) {
-            newSet.addAll(s);
-        }
-        return newSet;
-    }
-
-    private <K, V> Map<K, V> union(Map<K, V>... maps) {
-        HashMap<K, V> newMap = new HashMap<K, V>();
-        for (Map<K, V> s : maps) {
-            newMap.putAll(s);
-        }
-        return newMap;
-    }
-
-    @SuppressWarnings("unchecked")
-    protected Set<String> doGetAllAvailablePropertyNames() {
-        if (parentList == null) {
-            return allPropertyNames;
-        } else {
-            return union(allPropertyNames,
-                    parentList.doGetAllAvailablePropertyNames());
-        }
+        return getIndex().allPropertyNames;
     }
 
     /**
@@ -528,16 +493,7 @@ final class PropertyList<T> implements Serializable {
      * @return an unmodifiable set of property names (never null).
      */
     public Set<String> getPropertyNames() {
-        return Collections.unmodifiableSet(doGetPropertyNames());
-    }
-
-    @SuppressWarnings("unchecked")
-    protected Set<String> doGetPropertyNames() {
-        if (parentList == null) {
-            return propertyNames;
-        } else {
-            return union(propertyNames, parentList.doGetPropertyNames());
-        }
+        return getIndex().propertyNames;
     }
 
     /**
@@ -547,17 +503,7 @@ final class PropertyList<T> implements Serializable {
      * @return an unmodifiable set of property names (never null).
      */
     public Set<String> getPersistentPropertyNames() {
-        return Collections.unmodifiableSet(doGetPersistentPropertyNames());
-    }
-
-    @SuppressWarnings("unchecked")
-    protected Set<String> doGetPersistentPropertyNames() {
-        if (parentList == null) {
-            return persistentPropertyNames;
-        } else {
-            return union(persistentPropertyNames,
-                    parentList.doGetPersistentPropertyNames());
-        }
+        return getIndex().persistentPropertyNames;
     }
 
     /**
@@ -569,17 +515,7 @@ final class PropertyList<T> implements Serializable {
      *         properties (not necessarily in the list).
      */
     public Map<String, String> getSortablePropertyMap() {
-        return Collections.unmodifiableMap(doGetSortablePropertyMap());
-    }
-
-    @SuppressWarnings("unchecked")
-    protected Map<String, String> doGetSortablePropertyMap() {
-        if (parentList == null) {
-            return sortablePropertyMap;
-        } else {
-            return union(sortablePropertyMap,
-                    parentList.doGetSortablePropertyMap());
-        }
+        return getIndex().sortablePropertyMap;
     }
 
     /**
@@ -589,16 +525,137 @@ final class PropertyList<T> implements Serializable {
      * @return an unmodifiable set of property names (never null).
      */
     public Set<String> getNestedPropertyNames() {
-        return Collections.unmodifiableSet(doGetNestedPropertyNames());
+        return getIndex().nestedPropertyNames;
+    }
+
+    /**
+     * Gets the ordinal of <code>propertyName</code>. Every property in the
+     * {@link #getAllAvailablePropertyNames() } set has an ordinal that stays
+     * the same for the lifetime of this list, so it can be used to index
+     * arrays holding per-property data.
+     * 
+     * @param propertyName
+     *            the name of the property (must not be null).
+     * @return the ordinal, or -1 if the property is not available.
+     * @since 3.1.1
+     */
+    public int getPropertyOrdinal(String propertyName) {
+        assert propertyName != null : "propertyName must not be null";
+        return getIndex().getOrdinal(propertyName);
+    }
+
+    /**
+     * Gets the number of ordinals assigned so far. All ordinals returned by
+     * {@link #getPropertyOrdinal(String)} are smaller than this.
+     * 
+     * @since 3.1.1
+     */
+    public int getOrdinalCount() {
+        return getIndex().paths.length;
     }
 
-    @SuppressWarnings("unchecked")
-    protected Set<String> doGetNestedPropertyNames() {
+    private int getVersion() {
         if (parentList == null) {
-            return nestedPropertyNames;
+            return version;
         } else {
-            return union(nestedPropertyNames,
-                    parentList.doGetNestedPropertyNames());
+            // Both counters only grow, so the sum changes whenever either does
+            return version + parentList.getVersion();
+        }
+    }
+
+    private PropertyIndex getIndex() {
+        PropertyIndex idx = index;
+        int currentVersion = getVersion();
+        if (idx == null || idx.version != currentVersion) {
+            idx = new PropertyIndex(currentVersion);
+            index = idx;
+        }
+        return idx;
+    }
+
+    /**
+     * Immutable snapshot of the properties of the list and its parents. A new
+     * snapshot is only built when the properties have changed, so reading
+     * properties does not have to merge the property sets of chained lists.
+     */
+    private final class PropertyIndex {
+
+        final int version;
+        final Set<String> allPropertyNames;
+        final Set<String> propertyNames;
+        final Set<String> persistentPropertyNames;
+        final Set<String> nestedPropertyNames;
+        final Map<String, String> sortablePropertyMap;
+        // The ordinals of the properties in allPropertyNames
+        final Map<String, Integer> ordinalMap;
+        // Indexed by ordinal, null for properties that are not available
+        final PropertyPath[] paths;
+        final boolean[] writable;
+
+        PropertyIndex(int version) {
+            this.version = version;
+            Set<String> all = new HashSet<String>(
+                    PropertyList.this.allPropertyNames);
+            Set<String> names = new HashSet<String>(
+                    PropertyList.this.propertyNames);
+            Set<String> persistent = new HashSet<String>(
+                    PropertyList.this.persistentPropertyNames);
+            Set<String> nested = new HashSet<String>(
+                    PropertyList.this.nestedPropertyNames);
+            Map<String, String> sortable = new HashMap<String, String>();
+            if (parentList != null) {
+                PropertyIndex parentIndex = parentList.getIndex();
+                all.addAll(parentIndex.allPropertyNames);
+                names.addAll(parentIndex.propertyNames);
+                persistent.addAll(parentIndex.persistentPropertyNames);
+                nested.addAll(parentIndex.nestedPropertyNames);
+                sortable.putAll(parentIndex.sortablePropertyMap);
+            }
+            sortable.putAll(PropertyList.this.sortablePropertyMap);
+            this.allPropertyNames = Collections.unmodifiableSet(all);
+            this.propertyNames = Collections.unmodifiableSet(names);
+            this.persistentPropertyNames = Collections
+                    .unmodifiableSet(persistent);
+            this.nestedPropertyNames = Collections.unmodifiableSet(nested);
+            this.sortablePropertyMap = Collections.unmodifiableMap(sortable);
+
+            Map<String, Integer> ordinalsOfAll = new HashMap<String, Integer>();
+            int ordinalCount;
+            synchronized (ordinals) {
+                for (String name : all) {
+                    Integer ordinal = ordinals.get(name);
+                    if (ordinal == null) {
+                        ordinal = ordinals.size();
+                        ordinals.put(name, ordinal);
+                    }
+                    ordinalsOfAll.put(name, ordinal);
+                }
+                ordinalCount = ordinals.size();
+            }
+            this.ordinalMap = Collections.unmodifiableMap(ordinalsOfAll);
+            paths = new PropertyPath[ordinalCount];
+            writable = new boolean[ordinalCount];
+            for (String name : all) {
+                int ordinal = ordinalsOfAll.get(name);
+                paths[ordinal] = metadata.getPropertyPath(name);
+                writable[ordinal] = !readOnlyPropertyNames.contains(name)
+                        && paths[ordinal].isWritable();
+            }
+        }
+
+        int getOrdinal(String propertyName) {
+            Integer ordinal = ordinalMap.get(propertyName);
+            return ordinal == null ? -1 : ordinal;
+        }
+
+        int getOrdinalOrFail(String propertyName)
+                throws IllegalArgumentException {
+            int ordinal = getOrdinal(propertyName);
+            if (ordinal == -1) {
+                throw new IllegalArgumentException("Illegal property name: "
+                        + propertyName);
+            }
+            return ordinal;
         }
     }
 
@@ -616,15 +673,8 @@ final class PropertyList<T> implements Serializable {
     public Class<?> getPropertyType(String propertyName)
             throws IllegalArgumentException {
         assert propertyName != null : "propertyName must not be null";
-        if (!getAllAvailablePropertyNames().contains(propertyName)) {
-            throw new IllegalArgumentException("Illegal property name: "
-                    + propertyName);
-        }
-        if (isNestedProperty(propertyName)) {
-            return getNestedProperty(propertyName).getType();
-        } else {
-            return metadata.getProperty(propertyName).getType();
-        }
+        PropertyIndex idx = getIndex();
+        return idx.paths[idx.getOrdinalOrFail(propertyName)].getType();
     }
 
     /**
@@ -640,36 +690,9 @@ final class PropertyList<T> implements Serializable {
      */
     public boolean isPropertyWritable(String propertyName)
             throws IllegalArgumentException {
-		if (readOnlyPropertyNames.contains(propertyName)) {
-			return false;
-		} else {
-			return doIsPropertyWritable(propertyName);
-		}
-	}
-
-	/**
-	 * Checks if <code>propertyName</code> is really writable (even if the user
-	 * has set a writeable property as read only with #setPropertyWriteable()).
-	 * Nested properties are supported. This method works with property names in
-	 * the {@link #getAllAvailablePropertyNames() } set.
-	 * 
-	 * @param propertyName
-	 * @return
-	 * @throws IllegalArgumentException
-	 */
-	private boolean doIsPropertyWritable(String propertyName)
-			throws IllegalArgumentException {
         assert propertyName != null : "propertyName must not be null";
-        if (!getAllAvailablePropertyNames().contains(propertyName)) {
-            throw new IllegalArgumentException("Illegal property name: "
-                    + propertyName);
-        }
-
-        if (isNestedProperty(propertyName)) {
-            return getNestedProperty(propertyName).isWritable();
-        } else {
-            return metadata.getProperty(propertyName).isWritable();
-        }
+        PropertyIndex idx = getIndex();
+        return idx.writable[idx.getOrdinalOrFail(propertyName)];
     }
 
     /**
@@ -697,6 +720,7 @@ final class PropertyList<T> implements Serializable {
 			} else /*if (writeable == false)*/ {
 				readOnlyPropertyNames.add(propertyName);
 			}
+			version++;
 		}
 	}
 
@@ -721,11 +745,26 @@ final class PropertyList<T> implements Serializable {
             throws IllegalArgumentException {
         assert propertyName != null : "propertyName must not be null";
         assert object != null : "object must not be null";
-        if (!getAllAvailablePropertyNames().contains(propertyName)) {
-            throw new IllegalArgumentException("Illegal property name: "
-                    + propertyName);
-        }
-        return metadata.getPropertyValue(object, propertyName);
+        PropertyIndex idx = getIndex();
+        return idx.paths[idx.getOrdinalOrFail(propertyName)].getValue(object);
+    }
+
+    /**
+     * Gets the value of the property with the ordinal <code>ordinal</code>
+     * from the instance <code>object</code>.
+     * 
+     * @see #getPropertyOrdinal(String)
+     * @param object
+     *            the object that the property value is fetched from (must not
+     *            be null).
+     * @param ordinal
+     *            the ordinal of an available property.
+     * @return the property value.
+     * @since 3.1.1
+     */
+    public Object getPropertyValue(T object, int ordinal) {
+        assert object != null : "object must not be null";
+        return getIndex().paths[ordinal].getValue(object);
     }
 
     /**
@@ -750,25 +789,16 @@ final class PropertyList<T> implements Serializable {
             IllegalStateException {
         assert propertyName != null : "propertyName must not be null";
         assert object != null : "object must not be null";
-        if (!getAllAvailablePropertyNames().contains(propertyName)) {
-            throw new IllegalArgumentException("Illegal property name: "
-                    + propertyName);
-        }
-        metadata.setPropertyValue(object, propertyName, propertyValue);
+        PropertyIndex idx = getIndex();
+        idx.paths[idx.getOrdinalOrFail(propertyName)].setValue(object,
+                propertyValue);
     }
 
     public PropertyKind getPropertyKind(String propertyName) {
         assert propertyName != null : "propertyName must not be null";
-        if (!getAllAvailablePropertyNames().contains(propertyName)) {
-            throw new IllegalArgumentException("Illegal property name: "
-                    + propertyName);
-        }
-        if (isNestedProperty(propertyName)) {
-            return getNestedProperty(propertyName).getPropertyMetadata()
-                    .getPropertyKind();
-        } else {
-            return metadata.getProperty(propertyName).getPropertyKind();
-        }
+        PropertyIndex idx = getIndex();
+        return idx.paths[idx.getOrdinalOrFail(propertyName)]
+                .getPropertyMetadata().getPropertyKind();
     }
 
     /**
@@ -780,42 +810,15 @@ final class PropertyList<T> implements Serializable {
      * @return true if the property is loaded lazily
      */
     public boolean isPropertyLazyLoaded(String propertyName) {
-        if (isNestedProperty(propertyName)) {
-            int dotIx = propertyName.indexOf('.');
-            if (isPropertyLazyLoaded(propertyName.substring(dotIx + 1))) {
-                return true;
-            }
-            return getPropertyFetchType(propertyName.substring(0, dotIx)) == FetchType.LAZY;
+        PropertyIndex idx = getIndex();
+        int ordinal = idx.getOrdinal(propertyName);
+        if (ordinal != -1) {
+            return idx.paths[ordinal].isLazyLoaded();
         }
-
-        return getPropertyFetchType(propertyName) == FetchType.LAZY;
-    }
-
-    /**
-     * Finds the fetch type for the given property.
-     * 
-     * @param propertyName
-     *            the name of the property
-     * @return the {@link FetchType} or null if not applicable (e.g. not a
-     *         reference to another table on the database level)
-     */
-    private FetchType getPropertyFetchType(String propertyName) {
-        PropertyMetadata pm = metadata.getProperty(propertyName);
-        if (pm != null) {
-            if (pm.getAnnotation(Basic.class) != null) {
-                return pm.getAnnotation(Basic.class).fetch();
-            } else if (pm.getAnnotation(ElementCollection.class) != null) {
-                return pm.getAnnotation(ElementCollection.class).fetch();
-            } else if (pm.getAnnotation(ManyToMany.class) != null) {
-                return pm.getAnnotation(ManyToMany.class).fetch();
-            } else if (pm.getAnnotation(OneToMany.class) != null) {
-                return pm.getAnnotation(OneToMany.class).fetch();
-            } else if (pm.getAnnotation(ManyToOne.class) != null) {
-                return pm.getAnnotation(ManyToOne.class).fetch();
-            } else if (pm.getAnnotation(OneToOne.class) != null) {
-                return pm.getAnnotation(OneToOne.class).fetch();
-            }
+        try {
+            return metadata.getPropertyPath(propertyName).isLazyLoaded();
+        } catch (IllegalArgumentException e) {
+            return false;
         }
-        return null;
     }
 }
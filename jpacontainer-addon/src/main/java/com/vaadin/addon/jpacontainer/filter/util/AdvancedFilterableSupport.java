@@ -34,6 +34,7 @@ import com.vaadin.data.util.filter.Compare;
 import com.vaadin.data.util.filter.IsNull;
 import com.vaadin.data.util.filter.Like;
 import com.vaadin.data.util.filter.SimpleStringFilter;
+import com.vaadin.server.VaadinSession;
 
 /**
  * Helper class that implements the filtering methods defined in
@@ -112,6 +113,10 @@ public class AdvancedFilterableSupport implements AdvancedFilterable,
 
     private boolean unappliedFilters = false;
 
+    private int filterChangeDepth = 0;
+
+    private boolean filterChangesCoalescedPerRequest = false;
+
     /**
      * @see AdvancedFilterable#getFilterablePropertyIds()
      */
@@ -198,8 +203,8 @@ public class AdvancedFilterableSupport implements AdvancedFilterable,
      */
     @Override
     public List<Filter> getAppliedFilters() {
-        return isApplyFiltersImmediately() ? getFilters() : Collections
-                .unmodifiableList(appliedFilters);
+        return isApplyFiltersImmediately() && !isChangingFilters() ? getFilters()
+                : Collections.unmodifiableList(appliedFilters);
     }
 
     /**
@@ -259,10 +264,7 @@ public class AdvancedFilterableSupport implements AdvancedFilterable,
      */
     public void addFilter(Filter filter) {
         filters.add(filter);
-        unappliedFilters = true;
-        if (isApplyFiltersImmediately()) {
-            applyFilters();
-        }
+        filtersChanged();
     }
 
     /**
@@ -270,17 +272,151 @@ public class AdvancedFilterableSupport implements AdvancedFilterable,
      */
     public void removeFilter(Filter filter) {
         filters.remove(filter);
-        unappliedFilters = true;
-        if (isApplyFiltersImmediately()) {
-            applyFilters();
-        }
+        filtersChanged();
     }
 
     public void removeAllFilters() {
         filters.clear();
+        filtersChanged();
+    }
+
+    private void filtersChanged() {
         unappliedFilters = true;
-        if (isApplyFiltersImmediately()) {
+        if (isApplyFiltersImmediately() && !isChangingFilters()) {
+            if (filterChangesCoalescedPerRequest
+                    && beginRequestFilterChanges()) {
+                return;
+            }
             applyFilters();
         }
     }
+
+    /**
+     * Specifies whether all the filter changes that occur while processing a
+     * request should be applied as a single change at the end of the request.
+     * When enabled and {@link #isApplyFiltersImmediately()} is true, the first
+     * filter change of a request starts a group of filter changes (see
+     * {@link #beginFilterChanges()}), which is ended by a task queued using
+     * {@link VaadinSession#access(Runnable) }. Such tasks are run when the
+     * request releases the session lock, i.e. after the application code has
+     * run but before the response is written. Until then,
+     * {@link #getAppliedFilters()} keeps returning the filters that were
+     * applied before the request. Outside of requests, e.g. in background
+     * threads that do not hold the session lock, the filters are applied
+     * immediately. This is disabled by default.
+     * 
+     * @param coalesced
+     *            true to coalesce the filter changes of each request, false to
+     *            apply them immediately.
+     * @since 3.1.1
+     */
+    public void setFilterChangesCoalescedPerRequest(boolean coalesced) {
+        this.filterChangesCoalescedPerRequest = coalesced;
+    }
+
+    /**
+     * Returns whether the filter changes of each request are applied as a
+     * single change at the end of the request.
+     * 
+     * @see #setFilterChangesCoalescedPerRequest(boolean)
+     * @since 3.1.1
+     */
+    public boolean isFilterChangesCoalescedPerRequest() {
+        return filterChangesCoalescedPerRequest;
+    }
+
+    /**
+     * Starts a group of filter changes that is ended at the end of the current
+     * request.
+     * 
+     * @return true if the group was started, false if there is no current
+     *         request.
+     */
+    private boolean beginRequestFilterChanges() {
+        VaadinSession session = VaadinSession.getCurrent();
+        if (session == null || !session.hasLock()) {
+            return false;
+        }
+        beginFilterChanges();
+        session.access(new Runnable() {
+
+            @Override
+            public void run() {
+                endFilterChanges();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Starts a group of filter changes that should be applied as a single
+     * change. Until the matching call to {@link #endFilterChanges()}, adding
+     * and removing filters will not apply the filters even if
+     * {@link #isApplyFiltersImmediately()} is true, and
+     * {@link #getAppliedFilters()} keeps returning the filters that were
+     * applied before the group was started.
+     * <p>
+     * Groups may be nested, in which case the filters are applied when the
+     * outermost group ends.
+     * 
+     * @see #batchFilterChanges(Runnable)
+     */
+    public void beginFilterChanges() {
+        filterChangeDepth++;
+    }
+
+    /**
+     * Ends a group of filter changes started by {@link #beginFilterChanges()}.
+     * If this ends the outermost group and {@link #isApplyFiltersImmediately()}
+     * is true, the filters are applied once, provided that they actually
+     * differ from the filters that were applied before the group was started.
+     * 
+     * @throws IllegalStateException
+     *             if no group of filter changes has been started.
+     */
+    public void endFilterChanges() throws IllegalStateException {
+        if (filterChangeDepth == 0) {
+            throw new IllegalStateException("No filter changes in progress");
+        }
+        filterChangeDepth--;
+        if (!isChangingFilters() && unappliedFilters
+                && isApplyFiltersImmediately()) {
+            if (filters.equals(appliedFilters)) {
+                // E.g. the filters were removed and added back again
+                unappliedFilters = false;
+            } else {
+                applyFilters();
+            }
+        }
+    }
+
+    /**
+     * Checks whether a group of filter changes is in progress.
+     * 
+     * @see #beginFilterChanges()
+     * @return true if filter changes are being grouped, false otherwise.
+     */
+    public boolean isChangingFilters() {
+        return filterChangeDepth > 0;
+    }
+
+    /**
+     * Runs <code>changes</code> as a single group of filter changes, causing
+     * the filters to be applied at most once, even if the runnable adds or
+     * removes several filters.
+     * 
+     * @see #beginFilterChanges()
+     * @see #endFilterChanges()
+     * @param changes
+     *            the runnable that changes the filters (must not be null).
+     */
+    public void batchFilterChanges(Runnable changes) {
+        assert changes != null : "changes must not be null";
+        beginFilterChanges();
+        try {
+            changes.run();
+        } finally {
+            endFilterChanges();
+        }
+    }
 }
@@ -0,0 +1,1264 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.filter.util;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import javax.persistence.Embeddable;
+import javax.persistence.Entity;
+
+import com.vaadin.addon.jpacontainer.filter.JoinFilter;
+import com.vaadin.addon.jpacontainer.metadata.ClassMetadata;
+import com.vaadin.addon.jpacontainer.metadata.MetadataFactory;
+import com.vaadin.addon.jpacontainer.metadata.PersistentPropertyMetadata;
+import com.vaadin.addon.jpacontainer.metadata.PropertyKind;
+import com.vaadin.addon.jpacontainer.metadata.PropertyMetadata;
+import com.vaadin.addon.jpacontainer.metadata.PropertyPath;
+import com.vaadin.data.Container.Filter;
+import com.vaadin.data.util.filter.And;
+import com.vaadin.data.util.filter.Between;
+import com.vaadin.data.util.filter.Compare;
+import com.vaadin.data.util.filter.In;
+import com.vaadin.data.util.filter.IsNull;
+import com.vaadin.data.util.filter.Like;
+import com.vaadin.data.util.filter.Not;
+import com.vaadin.data.util.filter.Or;
+import com.vaadin.data.util.filter.SimpleStringFilter;
+
+/**
+ * Compiles the same Vaadin container filters that {@link FilterConverter}
+ * understands into {@link CompiledFilter}s that can be evaluated against
+ * entity instances in memory, without a round trip to the database. Property
+ * values are read through {@link ClassMetadata}.
+ * <p>
+ * The compiled filters mimic the semantics of the criteria predicates produced
+ * by {@link FilterConverter} as closely as possible: comparisons against null
+ * values are unknown (and thus never match, not even when negated), LIKE
+ * patterns are interpreted the way the database does, and nested properties
+ * that traverse a null reference exclude the entity altogether, just like the
+ * implicit inner join would. A {@link JoinFilter} matches if any of the joined
+ * entities match its filters.
+ * <p>
+ * A {@link JoinFilter} nested inside a {@link Not} or an {@link Or} filter
+ * cannot be evaluated in memory, since the outcome of such a query depends on
+ * the rows produced by the join. Use {@link #isEvaluable(Filter)} to find out
+ * in advance whether a filter can be compiled.
+ * <p>
+ * In addition, {@link #isRefinementOf(Filter, Filter)} can be used to find
+ * out whether the entities matched by a filter are a subset of the entities
+ * matched by another filter, in which case the former can be evaluated against
+ * the results of the latter.
+ * 
+ * @since 3.1.1
+ */
+public class FilterEvaluator {
+
+    /**
+     * A filter compiled for in-memory evaluation. Instances are immutable and
+     * can safely be shared between threads.
+     */
+    public static abstract class CompiledFilter implements Serializable {
+
+        private static final long serialVersionUID = -6437905834150740129L;
+
+        CompiledFilter() {
+            // Only created by FilterEvaluator
+        }
+
+        /**
+         * Checks whether <code>entity</code> would be matched by the filter
+         * if the filter was run as a query against the database.
+         * 
+         * @param entity
+         *            the entity to check (must not be null).
+         * @return true if the entity matches the filter, false otherwise.
+         * @throws IllegalArgumentException
+         *             if a property value could not be read from the entity.
+         */
+        public boolean evaluate(Object entity) throws IllegalArgumentException {
+            assert entity != null : "entity must not be null";
+            return test(entity) == Boolean.TRUE;
+        }
+
+        /**
+         * Evaluates the filter using three-valued logic.
+         * 
+         * @return {@link Boolean#TRUE}, {@link Boolean#FALSE} or null if the
+         *         outcome is unknown (e.g. a comparison against null).
+         */
+        abstract Boolean test(Object entity);
+    }
+
+    /**
+     * The state that is shared while compiling one filter tree.
+     */
+    private static class CompileContext {
+        private final ClassMetadata<?> metadata;
+        private final boolean joinsAllowed;
+        /**
+         * The nested references (ManyToOne, OneToOne) that have to be non-null
+         * for the implicit joins of the query to produce a row.
+         */
+        private final Set<String> requiredReferences;
+
+        private CompileContext(ClassMetadata<?> metadata,
+                boolean joinsAllowed, Set<String> requiredReferences) {
+            this.metadata = metadata;
+            this.joinsAllowed = joinsAllowed;
+            this.requiredReferences = requiredReferences;
+        }
+
+        /**
+         * @return a context for compiling filters nested in a {@link Not} or
+         *         an {@link Or} filter.
+         */
+        private CompileContext withoutJoins() {
+            // The implicit joins apply to the entire query, so the required
+            // references are still shared
+            return new CompileContext(metadata, false, requiredReferences);
+        }
+
+        /**
+         * Registers a property that will be read by the compiled filter.
+         * 
+         * @return a reader for the property.
+         */
+        private PropertyReader readerFor(Object propertyId) {
+            String propertyName = propertyId.toString();
+            collectRequiredReferences(propertyName);
+            return new PropertyReader(metadata, propertyName);
+        }
+
+        private void collectRequiredReferences(String propertyName) {
+            ClassMetadata<?> typeMetadata = metadata;
+            StringTokenizer st = new StringTokenizer(propertyName, ".");
+            StringBuilder path = new StringBuilder();
+            while (st.hasMoreTokens() && typeMetadata != null) {
+                String propName = st.nextToken();
+                if (!st.hasMoreTokens()) {
+                    // The last property is never joined
+                    break;
+                }
+                if (path.length() > 0) {
+                    path.append('.');
+                }
+                path.append(propName);
+                PropertyMetadata pmd = typeMetadata.getProperty(propName);
+                if (!(pmd instanceof PersistentPropertyMetadata)) {
+                    break;
+                }
+                PersistentPropertyMetadata ppmd = (PersistentPropertyMetadata) pmd;
+                if (ppmd.getPropertyKind() == PropertyKind.MANY_TO_ONE
+                        || ppmd.getPropertyKind() == PropertyKind.ONE_TO_ONE) {
+                    requiredReferences.add(path.toString());
+                }
+                typeMetadata = ppmd.getTypeMetadata();
+            }
+        }
+    }
+
+    /**
+     * Reads a possibly nested property value from an entity.
+     */
+    private static class PropertyReader implements Serializable {
+        private static final long serialVersionUID = 3470234508391573711L;
+        private final ClassMetadata<Object> metadata;
+        private final String propertyName;
+        private transient PropertyPath path;
+
+        @SuppressWarnings("unchecked")
+        private PropertyReader(ClassMetadata<?> metadata, String propertyName) {
+            this.metadata = (ClassMetadata<Object>) metadata;
+            this.propertyName = propertyName;
+        }
+
+        private Object read(Object entity) {
+            if (path == null) {
+                path = metadata.getPropertyPath(propertyName);
+            }
+            return path.getValue(entity);
+        }
+    }
+
+    /**
+     * Interface for a compiler that can compile a certain kind of
+     * {@link Filter} into a {@link CompiledFilter}.
+     */
+    private interface Compiler {
+        public boolean canCompile(Filter filter);
+
+        public boolean isEvaluable(Filter filter, boolean joinsAllowed);
+
+        public CompiledFilter compile(Filter filter, CompileContext ctx);
+    }
+
+    /**
+     * Compiles {@link And} filters.
+     */
+    private static class AndCompiler implements Compiler {
+        @Override
+        public boolean canCompile(Filter filter) {
+            return filter instanceof And;
+        }
+
+        @Override
+        public boolean isEvaluable(Filter filter, boolean joinsAllowed) {
+            return areEvaluable(((And) filter).getFilters(), joinsAllowed);
+        }
+
+        @Override
+        public CompiledFilter compile(Filter filter, CompileContext ctx) {
+            return new AndFilter(compileFilters(((And) filter).getFilters(),
+                    ctx));
+        }
+    }
+
+    private static class AndFilter extends CompiledFilter {
+        private static final long serialVersionUID = 1953785402617398283L;
+        private final CompiledFilter[] filters;
+
+        private AndFilter(CompiledFilter[] filters) {
+            this.filters = filters;
+        }
+
+        @Override
+        Boolean test(Object entity) {
+            Boolean result = Boolean.TRUE;
+            for (CompiledFilter f : filters) {
+                Boolean b = f.test(entity);
+                if (b == Boolean.FALSE) {
+                    return Boolean.FALSE;
+                } else if (b == null) {
+                    result = null;
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Compiles {@link Or} filters.
+     */
+    private static class OrCompiler implements Compiler {
+        @Override
+        public boolean canCompile(Filter filter) {
+            return filter instanceof Or;
+        }
+
+        @Override
+        public boolean isEvaluable(Filter filter, boolean joinsAllowed) {
+            return areEvaluable(((Or) filter).getFilters(), false);
+        }
+
+        @Override
+        public CompiledFilter compile(Filter filter, CompileContext ctx) {
+            return new OrFilter(compileFilters(((Or) filter).getFilters(),
+                    ctx.withoutJoins()));
+        }
+    }
+
+    private static class OrFilter extends CompiledFilter {
+        private static final long serialVersionUID = -1181584773806624361L;
+        private final CompiledFilter[] filters;
+
+        private OrFilter(CompiledFilter[] filters) {
+            this.filters = filters;
+        }
+
+        @Override
+        Boolean test(Object entity) {
+            Boolean result = Boolean.FALSE;
+            for (CompiledFilter f : filters) {
+                Boolean b = f.test(entity);
+                if (b == Boolean.TRUE) {
+                    return Boolean.TRUE;
+                } else if (b == null) {
+                    result = null;
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Compiles {@link Not} filters.
+     */
+    private static class NotCompiler implements Compiler {
+        @Override
+        public boolean canCompile(Filter filter) {
+            return filter instanceof Not;
+        }
+
+        @Override
+        public boolean isEvaluable(Filter filter, boolean joinsAllowed) {
+            return FilterEvaluator.isEvaluable(((Not) filter).getFilter(),
+                    false);
+        }
+
+        @Override
+        public CompiledFilter compile(Filter filter, CompileContext ctx) {
+            final CompiledFilter negated = compileFilter(
+                    ((Not) filter).getFilter(), ctx.withoutJoins());
+            return new CompiledFilter() {
+                private static final long serialVersionUID = -4466617935185264707L;
+
+                @Override
+                Boolean test(Object entity) {
+                    Boolean b = negated.test(entity);
+                    return b == null ? null : Boolean.valueOf(!b);
+                }
+            };
+        }
+    }
+
+    /**
+     * Compiles {@link Compare} filters ({@link Compare.Equal},
+     * {@link Compare.Greater}, etc).
+     */
+    private static class CompareCompiler implements Compiler {
+        @Override
+        public boolean canCompile(Filter filter) {
+            return filter instanceof Compare;
+        }
+
+        @Override
+        public boolean isEvaluable(Filter filter, boolean joinsAllowed) {
+            return true;
+        }
+
+        @Override
+        public CompiledFilter compile(Filter filter, CompileContext ctx) {
+            final Compare compare = (Compare) filter;
+            if (Compare.Operation.EQUAL == compare.getOperation()
+                    && compare.getValue() == null) {
+                // "= null" is converted into IS NULL by FilterConverter
+                return compileFilter(new IsNull(compare.getPropertyId()), ctx);
+            }
+            final PropertyReader reader = ctx.readerFor(compare
+                    .getPropertyId());
+            final Compare.Operation operation = compare.getOperation();
+            final Object other = compare.getValue();
+            return new CompiledFilter() {
+                private static final long serialVersionUID = 6019208620519130150L;
+
+                @Override
+                Boolean test(Object entity) {
+                    Object value = reader.read(entity);
+                    if (value == null || other == null) {
+                        return null;
+                    }
+                    if (operation == Compare.Operation.EQUAL) {
+                        return isEqual(value, other);
+                    }
+                    Integer cmp = compareValues(value, other);
+                    if (cmp == null) {
+                        return Boolean.FALSE;
+                    }
+                    switch (operation) {
+                    case GREATER:
+                        return cmp > 0;
+                    case GREATER_OR_EQUAL:
+                        return cmp >= 0;
+                    case LESS:
+                        return cmp < 0;
+                    case LESS_OR_EQUAL:
+                        return cmp <= 0;
+                    default: // Shouldn't happen
+                        return Boolean.FALSE;
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Compiles {@link IsNull} filters.
+     */
+    private static class IsNullCompiler implements Compiler {
+        @Override
+        public boolean canCompile(Filter filter) {
+            return filter instanceof IsNull;
+        }
+
+        @Override
+        public boolean isEvaluable(Filter filter, boolean joinsAllowed) {
+            return true;
+        }
+
+        @Override
+        public CompiledFilter compile(Filter filter, CompileContext ctx) {
+            final PropertyReader reader = ctx.readerFor(((IsNull) filter)
+                    .getPropertyId());
+            return new CompiledFilter() {
+                private static final long serialVersionUID = 7389260963364128394L;
+
+                @Override
+                Boolean test(Object entity) {
+                    return reader.read(entity) == null;
+                }
+            };
+        }
+    }
+
+    /**
+     * Compiles {@link SimpleStringFilter} filters.
+     */
+    private static class SimpleStringFilterCompiler implements Compiler {
+        @Override
+        public boolean canCompile(Filter filter) {
+            return filter instanceof SimpleStringFilter;
+        }
+
+        @Override
+        public boolean isEvaluable(Filter filter, boolean joinsAllowed) {
+            return true;
+        }
+
+        @Override
+        public CompiledFilter compile(Filter filter, CompileContext ctx) {
+            SimpleStringFilter stringFilter = (SimpleStringFilter) filter;
+            String filterString = stringFilter.getFilterString();
+            if (stringFilter.isOnlyMatchPrefix()) {
+                filterString = filterString + "%";
+            } else {
+                filterString = "%" + filterString + "%";
+            }
+            return new LikeFilter(
+                    ctx.readerFor(stringFilter.getPropertyId()),
+                    new LikePattern(filterString, !stringFilter
+                            .isIgnoreCase()));
+        }
+    }
+
+    /**
+     * Compiles {@link Like} filters.
+     */
+    private static class LikeCompiler implements Compiler {
+        @Override
+        public boolean canCompile(Filter filter) {
+            return filter instanceof Like;
+        }
+
+        @Override
+        public boolean isEvaluable(Filter filter, boolean joinsAllowed) {
+            return true;
+        }
+
+        @Override
+        public CompiledFilter compile(Filter filter, CompileContext ctx) {
+            Like like = (Like) filter;
+            PropertyReader reader = ctx.readerFor(like.getPropertyId());
+            if (like.getValue() == null) {
+                return new UnknownFilter();
+            }
+            return new LikeFilter(reader, new LikePattern(like.getValue(),
+                    like.isCaseSensitive()));
+        }
+    }
+
+    private static class LikeFilter extends CompiledFilter {
+        private static final long serialVersionUID = -5244104427370004960L;
+        private final PropertyReader reader;
+        private final LikePattern pattern;
+
+        private LikeFilter(PropertyReader reader, LikePattern pattern) {
+            this.reader = reader;
+            this.pattern = pattern;
+        }
+
+        @Override
+        Boolean test(Object entity) {
+            Object value = reader.read(entity);
+            if (value == null) {
+                return null;
+            }
+            return pattern.matches(value.toString());
+        }
+    }
+
+    private static class UnknownFilter extends CompiledFilter {
+        private static final long serialVersionUID = 2871106426584727417L;
+
+        @Override
+        Boolean test(Object entity) {
+            return null;
+        }
+    }
+
+    /**
+     * Compiles {@link Between} filters.
+     */
+    private static class BetweenCompiler implements Compiler {
+        @Override
+        public boolean canCompile(Filter filter) {
+            return filter instanceof Between;
+        }
+
+        @Override
+        public boolean isEvaluable(Filter filter, boolean joinsAllowed) {
+            return true;
+        }
+
+        @Override
+        public CompiledFilter compile(Filter filter, CompileContext ctx) {
+            Between between = (Between) filter;
+            final PropertyReader reader = ctx.readerFor(between
+                    .getPropertyId());
+            final Object start = between.getStartValue();
+            final Object end = between.getEndValue();
+            return new CompiledFilter() {
+                private static final long serialVersionUID = -2262372200839466302L;
+
+                @Override
+                Boolean test(Object entity) {
+                    Object value = reader.read(entity);
+                    if (value == null || start == null || end == null) {
+                        return null;
+                    }
+                    Integer lower = compareValues(value, start);
+                    Integer upper = compareValues(value, end);
+                    return lower != null && upper != null && lower >= 0
+                            && upper <= 0;
+                }
+            };
+        }
+    }
+
+    /**
+     * Compiles {@link In} filters.
+     */
+    private static class InCompiler implements Compiler {
+        @Override
+        public boolean canCompile(Filter filter) {
+            return filter instanceof In;
+        }
+
+        @Override
+        public boolean isEvaluable(Filter filter, boolean joinsAllowed) {
+            return true;
+        }
+
+        @Override
+        public CompiledFilter compile(Filter filter, CompileContext ctx) {
+            In in = (In) filter;
+            final PropertyReader reader = ctx.readerFor(in.getPropertyId());
+            final Object[] values = in.getCollection().toArray();
+            return new CompiledFilter() {
+                private static final long serialVersionUID = -7785089302646926958L;
+
+                @Override
+                Boolean test(Object entity) {
+                    Object value = reader.read(entity);
+                    if (value == null) {
+                        return null;
+                    }
+                    Boolean result = Boolean.FALSE;
+                    for (Object v : values) {
+                        if (v == null) {
+                            result = null;
+                        } else if (isEqual(value, v)) {
+                            return Boolean.TRUE;
+                        }
+                    }
+                    return result;
+                }
+            };
+        }
+    }
+
+    /**
+     * Compiles {@link JoinFilter}s. The filters of the join filter are compiled
+     * lazily for each concrete class of the joined entities.
+     */
+    private static class JoinFilterCompiler implements Compiler {
+        @Override
+        public boolean canCompile(Filter filter) {
+            return filter instanceof JoinFilter;
+        }
+
+        @Override
+        public boolean isEvaluable(Filter filter, boolean joinsAllowed) {
+            return joinsAllowed
+                    && areEvaluable(((JoinFilter) filter).getFilters(), true);
+        }
+
+        @Override
+        public CompiledFilter compile(Filter filter, CompileContext ctx) {
+            if (!ctx.joinsAllowed) {
+                throw new IllegalArgumentException(
+                        "JoinFilters nested in Not or Or filters cannot be evaluated in memory");
+            }
+            JoinFilter joinFilter = (JoinFilter) filter;
+            return new JoinedFilter(ctx.readerFor(joinFilter.getJoinProperty()),
+                    joinFilter);
+        }
+    }
+
+    private static class JoinedFilter extends CompiledFilter {
+        private static final long serialVersionUID = -3129553011577373587L;
+        private final PropertyReader reader;
+        private final JoinFilter joinFilter;
+        private transient Map<Class<?>, CompiledFilter> compiledFilters;
+
+        private JoinedFilter(PropertyReader reader, JoinFilter joinFilter) {
+            this.reader = reader;
+            this.joinFilter = joinFilter;
+        }
+
+        @Override
+        Boolean test(Object entity) {
+            Object value = reader.read(entity);
+            if (value == null) {
+                // The inner join does not produce any rows
+                return Boolean.FALSE;
+            }
+            Collection<?> joined;
+            if (value instanceof Collection) {
+                joined = (Collection<?>) value;
+            } else if (value instanceof Map) {
+                joined = ((Map<?, ?>) value).values();
+            } else {
+                joined = Collections.singleton(value);
+            }
+            for (Object o : joined) {
+                if (o != null && getCompiledFilter(o.getClass()).evaluate(o)) {
+                    return Boolean.TRUE;
+                }
+            }
+            return Boolean.FALSE;
+        }
+
+        private CompiledFilter getCompiledFilter(Class<?> joinedClass) {
+            if (compiledFilters == null) {
+                compiledFilters = new ConcurrentHashMap<Class<?>, CompiledFilter>();
+            }
+            CompiledFilter compiled = compiledFilters.get(joinedClass);
+            if (compiled == null) {
+                compiled = FilterEvaluator.compileFilter(new And(joinFilter
+                        .getFilters().toArray(new Filter[0])),
+                        getMetadata(joinedClass));
+                compiledFilters.put(joinedClass, compiled);
+            }
+            return compiled;
+        }
+
+        private static ClassMetadata<?> getMetadata(Class<?> joinedClass) {
+            // Walk up the hierarchy in order to skip any proxy classes
+            Class<?> cls = joinedClass;
+            while (cls != null && cls.getAnnotation(Entity.class) == null
+                    && cls.getAnnotation(Embeddable.class) == null) {
+                cls = cls.getSuperclass();
+            }
+            if (cls == null) {
+                throw new IllegalArgumentException("The class "
+                        + joinedClass.getName()
+                        + " is neither an entity nor embeddable");
+            }
+            if (cls.getAnnotation(Entity.class) != null) {
+                return MetadataFactory.getInstance().getEntityClassMetadata(
+                        cls);
+            } else {
+                return MetadataFactory.getInstance().getClassMetadata(cls,
+                        PersistentPropertyMetadata.AccessType.FIELD);
+            }
+        }
+    }
+
+    /**
+     * Checks that all the references a compiled filter navigates through are
+     * present before evaluating the filter.
+     */
+    private static class RequiredReferencesFilter extends CompiledFilter {
+        private static final long serialVersionUID = -1906453306604788913L;
+        private final PropertyReader[] requiredReferences;
+        private final CompiledFilter filter;
+
+        private RequiredReferencesFilter(PropertyReader[] requiredReferences,
+                CompiledFilter filter) {
+            this.requiredReferences = requiredReferences;
+            this.filter = filter;
+        }
+
+        @Override
+        Boolean test(Object entity) {
+            for (PropertyReader reader : requiredReferences) {
+                if (reader.read(entity) == null) {
+                    // The implicit inner join does not produce a row
+                    return Boolean.FALSE;
+                }
+            }
+            return filter.test(entity);
+        }
+    }
+
+    /**
+     * A compiled LIKE pattern. The common cases of exact, prefix, suffix and
+     * substring matches are handled without regular expressions.
+     */
+    static class LikePattern implements Serializable {
+        private static final long serialVersionUID = 4807369521744627919L;
+
+        private enum Kind {
+            ANY, EXACT, PREFIX, SUFFIX, CONTAINS, REGEXP
+        }
+
+        private final Kind kind;
+        private final String literal;
+        private final boolean caseSensitive;
+        private final Pattern regexp;
+
+        LikePattern(String pattern, boolean caseSensitive) {
+            assert pattern != null : "pattern must not be null";
+            this.caseSensitive = caseSensitive;
+            boolean leadingWildcard = pattern.startsWith("%");
+            boolean trailingWildcard = pattern.length() > 1
+                    && pattern.endsWith("%");
+            String inner = pattern.substring(leadingWildcard ? 1 : 0,
+                    Math.max(leadingWildcard ? 1 : 0, pattern.length()
+                            - (trailingWildcard ? 1 : 0)));
+            if (inner.indexOf('%') == -1 && inner.indexOf('_') == -1) {
+                literal = inner;
+                regexp = null;
+                if (inner.length() == 0 && (leadingWildcard || trailingWildcard)) {
+                    kind = Kind.ANY;
+                } else if (leadingWildcard && trailingWildcard) {
+                    kind = Kind.CONTAINS;
+                } else if (leadingWildcard) {
+                    kind = Kind.SUFFIX;
+                } else if (trailingWildcard) {
+                    kind = Kind.PREFIX;
+                } else {
+                    kind = Kind.EXACT;
+                }
+            } else {
+                kind = Kind.REGEXP;
+                literal = null;
+                regexp = toRegexp(pattern, caseSensitive);
+            }
+        }
+
+        private static Pattern toRegexp(String pattern, boolean caseSensitive) {
+            StringBuilder sb = new StringBuilder();
+            int literalStart = 0;
+            for (int i = 0; i < pattern.length(); ++i) {
+                char c = pattern.charAt(i);
+                if (c == '%' || c == '_') {
+                    if (literalStart < i) {
+                        sb.append(Pattern.quote(pattern.substring(
+                                literalStart, i)));
+                    }
+                    sb.append(c == '%' ? ".*" : ".");
+                    literalStart = i + 1;
+                }
+            }
+            if (literalStart < pattern.length()) {
+                sb.append(Pattern.quote(pattern.substring(literalStart)));
+            }
+            int flags = Pattern.DOTALL;
+            if (!caseSensitive) {
+                flags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+            }
+            return Pattern.compile(sb.toString(), flags);
+        }
+
+        boolean matches(String value) {
+            boolean ignoreCase = !caseSensitive;
+            int len = literal == null ? 0 : literal.length();
+            switch (kind) {
+            case ANY:
+                return true;
+            case EXACT:
+                return value.length() == len
+                        && value.regionMatches(ignoreCase, 0, literal, 0, len);
+            case PREFIX:
+                return value.regionMatches(ignoreCase, 0, literal, 0, len);
+            case SUFFIX:
+                return value.regionMatches(ignoreCase, value.length() - len,
+                        literal, 0, len);
+            case CONTAINS:
+                for (int i = 0; i <= value.length() - len; ++i) {
+                    if (value.regionMatches(ignoreCase, i, literal, 0, len)) {
+                        return true;
+                    }
+                }
+                return false;
+            default:
+                return regexp.matcher(value).matches();
+            }
+        }
+    }
+
+    private static Collection<Compiler> compilers;
+    static {
+        compilers = Collections.unmodifiableCollection(Arrays.asList(
+                new AndCompiler(), new OrCompiler(), new CompareCompiler(),
+                new IsNullCompiler(), new SimpleStringFilterCompiler(),
+                new LikeCompiler(), new BetweenCompiler(),
+                new JoinFilterCompiler(), new NotCompiler(), new InCompiler()));
+    }
+
+    /**
+     * Checks whether <code>filter</code> can be compiled by
+     * {@link #compileFilter(Filter, ClassMetadata)}.
+     * 
+     * @param filter
+     *            the filter to check (must not be null).
+     * @return true if the filter can be evaluated in memory, false otherwise.
+     */
+    public static boolean isEvaluable(Filter filter) {
+        assert filter != null : "filter must not be null";
+        return isEvaluable(filter, true);
+    }
+
+    private static boolean isEvaluable(Filter filter, boolean joinsAllowed) {
+        for (Compiler c : compilers) {
+            if (c.canCompile(filter)) {
+                return c.isEvaluable(filter, joinsAllowed);
+            }
+        }
+        return false;
+    }
+
+    private static boolean areEvaluable(Collection<Filter> filters,
+            boolean joinsAllowed) {
+        for (Filter f : filters) {
+            if (!isEvaluable(f, joinsAllowed)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether <code>filter</code>, or any of its nested filters,
+     * compares string values. The database compares strings according to its
+     * collation, which may e.g. ignore case or trailing spaces, so the
+     * outcome of evaluating such a filter in memory may differ from that of a
+     * query.
+     * 
+     * @param filter
+     *            the filter to check (must not be null).
+     * @return true if the filter compares strings, or is of an unknown type;
+     *         false otherwise.
+     * @since 3.1.1
+     */
+    public static boolean comparesStrings(Filter filter) {
+        assert filter != null : "filter must not be null";
+        if (filter instanceof SimpleStringFilter || filter instanceof Like) {
+            return true;
+        } else if (filter instanceof And) {
+            return anyComparesStrings(((And) filter).getFilters());
+        } else if (filter instanceof Or) {
+            return anyComparesStrings(((Or) filter).getFilters());
+        } else if (filter instanceof Not) {
+            return comparesStrings(((Not) filter).getFilter());
+        } else if (filter instanceof JoinFilter) {
+            return anyComparesStrings(((JoinFilter) filter).getFilters());
+        } else if (filter instanceof Compare) {
+            return isString(((Compare) filter).getValue());
+        } else if (filter instanceof Between) {
+            return isString(((Between) filter).getStartValue())
+                    || isString(((Between) filter).getEndValue());
+        } else if (filter instanceof In) {
+            for (Object value : ((In) filter).getCollection()) {
+                if (isString(value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return !(filter instanceof IsNull);
+    }
+
+    private static boolean anyComparesStrings(Collection<Filter> filters) {
+        for (Filter f : filters) {
+            if (comparesStrings(f)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isString(Object value) {
+        return value instanceof CharSequence || value instanceof Character;
+    }
+
+    /**
+     * Compiles a single {@link Filter} into a {@link CompiledFilter} that
+     * evaluates the filter against instances of the class described by
+     * <code>metadata</code>.
+     * 
+     * @param filter
+     *            the {@link Filter} to compile (must not be null).
+     * @param metadata
+     *            the metadata of the class whose instances will be evaluated
+     *            (must not be null).
+     * @return the compiled filter (never null).
+     * @throws IllegalStateException
+     *             if the filter, or any of its nested filters, is of an
+     *             unsupported type.
+     * @throws IllegalArgumentException
+     *             if the filter cannot be evaluated in memory (see
+     *             {@link #isEvaluable(Filter)}).
+     */
+    public static CompiledFilter compileFilter(Filter filter,
+            ClassMetadata<?> metadata) throws IllegalStateException,
+            IllegalArgumentException {
+        assert filter != null : "filter must not be null";
+        assert metadata != null : "metadata must not be null";
+
+        CompileContext ctx = new CompileContext(metadata, true,
+                new LinkedHashSet<String>());
+        CompiledFilter compiled = compileFilter(filter, ctx);
+        if (ctx.requiredReferences.isEmpty()) {
+            return compiled;
+        }
+        List<PropertyReader> readers = new ArrayList<PropertyReader>();
+        for (String path : ctx.requiredReferences) {
+            readers.add(new PropertyReader(metadata, path));
+        }
+        return new RequiredReferencesFilter(
+                readers.toArray(new PropertyReader[readers.size()]), compiled);
+    }
+
+    private static CompiledFilter compileFilter(Filter filter,
+            CompileContext ctx) {
+        for (Compiler c : compilers) {
+            if (c.canCompile(filter)) {
+                return c.compile(filter, ctx);
+            }
+        }
+
+        throw new IllegalStateException("Cannot find any compilers for "
+                + filter.getClass().getSimpleName() + " filters!");
+    }
+
+    private static CompiledFilter[] compileFilters(Collection<Filter> filters,
+            CompileContext ctx) {
+        CompiledFilter[] result = new CompiledFilter[filters.size()];
+        int i = 0;
+        for (Filter f : filters) {
+            result[i++] = compileFilter(f, ctx);
+        }
+        return result;
+    }
+
+    /**
+     * Checks whether <code>filter</code> is a refinement of
+     * <code>other</code>, i.e. whether every entity matched by
+     * <code>filter</code> is guaranteed to be matched by <code>other</code>
+     * as well. This is the case e.g. when filters are added to an {@link And}
+     * filter, when a {@link SimpleStringFilter} is given a longer filter string
+     * or when the range of a {@link Between} filter is narrowed.
+     * <p>
+     * The check is conservative: false may be returned even though the filter
+     * actually is a refinement.
+     * 
+     * @param filter
+     *            the possibly narrower filter (may be null).
+     * @param other
+     *            the possibly wider filter (may be null, in which case
+     *            everything is matched).
+     * @return true if <code>filter</code> is known to be a refinement of
+     *         <code>other</code>, false otherwise.
+     */
+    public static boolean isRefinementOf(Filter filter, Filter other) {
+        if (other == null) {
+            return true;
+        } else if (filter == null) {
+            return false;
+        } else if (filter.equals(other)) {
+            return true;
+        } else if (other instanceof And) {
+            for (Filter f : ((And) other).getFilters()) {
+                if (!isRefinementOf(filter, f)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (filter instanceof Or) {
+            for (Filter f : ((Or) filter).getFilters()) {
+                if (!isRefinementOf(f, other)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (filter instanceof And) {
+            for (Filter f : ((And) filter).getFilters()) {
+                if (isRefinementOf(f, other)) {
+                    return true;
+                }
+            }
+            return false;
+        } else if (other instanceof Or) {
+            for (Filter f : ((Or) other).getFilters()) {
+                if (isRefinementOf(filter, f)) {
+                    return true;
+                }
+            }
+            return false;
+        } else if (filter instanceof JoinFilter && other instanceof JoinFilter) {
+            JoinFilter join = (JoinFilter) filter;
+            JoinFilter otherJoin = (JoinFilter) other;
+            return join.getJoinProperty().equals(otherJoin.getJoinProperty())
+                    && isRefinementOf(new And(join.getFilters().toArray(
+                            new Filter[0])), new And(otherJoin.getFilters()
+                            .toArray(new Filter[0])));
+        } else if (filter instanceof SimpleStringFilter
+                && other instanceof SimpleStringFilter) {
+            return isRefinementOf((SimpleStringFilter) filter,
+                    (SimpleStringFilter) other);
+        } else if (other instanceof In) {
+            return isRefinementOf(filter, (In) other);
+        }
+        Range range = Range.of(filter);
+        Range otherRange = Range.of(other);
+        return range != null && otherRange != null
+                && otherRange.contains(range);
+    }
+
+    private static boolean isRefinementOf(SimpleStringFilter filter,
+            SimpleStringFilter other) {
+        if (!filter.getPropertyId().equals(other.getPropertyId())) {
+            return false;
+        }
+        String filterString = filter.getFilterString();
+        String otherString = other.getFilterString();
+        if (hasWildcards(filterString) || hasWildcards(otherString)) {
+            return false;
+        }
+        if (other.isIgnoreCase()) {
+            filterString = filterString.toLowerCase();
+            otherString = otherString.toLowerCase();
+        } else if (filter.isIgnoreCase()) {
+            return false;
+        }
+        if (other.isOnlyMatchPrefix()) {
+            return filter.isOnlyMatchPrefix()
+                    && filterString.startsWith(otherString);
+        }
+        return filterString.contains(otherString);
+    }
+
+    private static boolean hasWildcards(String likePattern) {
+        return likePattern.indexOf('%') != -1 || likePattern.indexOf('_') != -1;
+    }
+
+    private static boolean isRefinementOf(Filter filter, In other) {
+        Object propertyId;
+        Collection<?> values;
+        if (filter instanceof In) {
+            propertyId = ((In) filter).getPropertyId();
+            values = ((In) filter).getCollection();
+        } else if (filter instanceof Compare
+                && ((Compare) filter).getOperation() == Compare.Operation.EQUAL
+                && ((Compare) filter).getValue() != null) {
+            propertyId = ((Compare) filter).getPropertyId();
+            values = Collections.singleton(((Compare) filter).getValue());
+        } else {
+            return false;
+        }
+        if (!propertyId.equals(other.getPropertyId())) {
+            return false;
+        }
+        for (Object value : values) {
+            if (value != null && !containsValue(other.getCollection(), value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean containsValue(Collection<?> values, Object value) {
+        for (Object v : values) {
+            if (v != null && isEqual(value, v)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The range of values matched by a {@link Compare} or {@link Between}
+     * filter. A null bound means that the range is unbounded in that
+     * direction.
+     */
+    private static class Range {
+        private final Object propertyId;
+        private final Object lower;
+        private final boolean lowerInclusive;
+        private final Object upper;
+        private final boolean upperInclusive;
+
+        private Range(Object propertyId, Object lower, boolean lowerInclusive,
+                Object upper, boolean upperInclusive) {
+            this.propertyId = propertyId;
+            this.lower = lower;
+            this.lowerInclusive = lowerInclusive;
+            this.upper = upper;
+            this.upperInclusive = upperInclusive;
+        }
+
+        /**
+         * @return the range matched by <code>filter</code>, or null if the
+         *         filter does not match a range of values.
+         */
+        private static Range of(Filter filter) {
+            if (filter instanceof Between) {
+                Between between = (Between) filter;
+                if (between.getStartValue() == null
+                        || between.getEndValue() == null) {
+                    return null;
+                }
+                return new Range(between.getPropertyId(),
+                        between.getStartValue(), true, between.getEndValue(),
+                        true);
+            } else if (filter instanceof Compare) {
+                Compare compare = (Compare) filter;
+                Object value = compare.getValue();
+                if (value == null) {
+                    return null;
+                }
+                switch (compare.getOperation()) {
+                case EQUAL:
+                    return new Range(compare.getPropertyId(), value, true,
+                            value, true);
+                case GREATER:
+                    return new Range(compare.getPropertyId(), value, false,
+                            null, false);
+                case GREATER_OR_EQUAL:
+                    return new Range(compare.getPropertyId(), value, true,
+                            null, false);
+                case LESS:
+                    return new Range(compare.getPropertyId(), null, false,
+                            value, false);
+                case LESS_OR_EQUAL:
+                    return new Range(compare.getPropertyId(), null, false,
+                            value, true);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return true if every value in <code>range</code> is also in this
+         *         range.
+         */
+        private boolean contains(Range range) {
+            if (!propertyId.equals(range.propertyId)) {
+                return false;
+            }
+            if (lower != null) {
+                if (range.lower == null) {
+                    return false;
+                }
+                Integer cmp = compareValues(range.lower, lower);
+                if (cmp == null || cmp < 0
+                        || (cmp == 0 && range.lowerInclusive && !lowerInclusive)) {
+                    return false;
+                }
+            }
+            if (upper != null) {
+                if (range.upper == null) {
+                    return false;
+                }
+                Integer cmp = compareValues(range.upper, upper);
+                if (cmp == null || cmp > 0
+                        || (cmp == 0 && range.upperInclusive && !upperInclusive)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Checks whether two non-null values are equal. Numbers of different
+     * types are compared by value, like the database would.
+     */
+    static boolean isEqual(Object value, Object other) {
+        if (value.equals(other)) {
+            return true;
+        }
+        Integer cmp = compareValues(value, other);
+        return cmp != null && cmp == 0;
+    }
+
+    /**
+     * Compares two non-null values.
+     * 
+     * @return a negative integer, zero or a positive integer if
+     *         <code>value</code> is less than, equal to or greater than
+     *         <code>other</code>, or null if the values are not comparable.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    static Integer compareValues(Object value, Object other) {
+        if (value instanceof Number && other instanceof Number
+                && value.getClass() != other.getClass()) {
+            BigDecimal v = toBigDecimal((Number) value);
+            BigDecimal o = toBigDecimal((Number) other);
+            if (v != null && o != null) {
+                return v.compareTo(o);
+            }
+            return Double.compare(((Number) value).doubleValue(),
+                    ((Number) other).doubleValue());
+        }
+        if (value instanceof Comparable
+                && value.getClass().isInstance(other)) {
+            return ((Comparable) value).compareTo(other);
+        }
+        if (other instanceof Comparable
+                && other.getClass().isInstance(value)) {
+            return -((Comparable) other).compareTo(value);
+        }
+        return null;
+    }
+
+    private static BigDecimal toBigDecimal(Number number) {
+        if (number instanceof BigDecimal) {
+            return (BigDecimal) number;
+        } else if (number instanceof BigInteger) {
+            return new BigDecimal((BigInteger) number);
+        } else if (number instanceof Long || number instanceof Integer
+                || number instanceof Short || number instanceof Byte) {
+            return BigDecimal.valueOf(number.longValue());
+        } else if (number instanceof Double || number instanceof Float) {
+            double d = number.doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                return null;
+            }
+            return new BigDecimal(number.toString());
+        }
+        try {
+            return new BigDecimal(number.toString());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
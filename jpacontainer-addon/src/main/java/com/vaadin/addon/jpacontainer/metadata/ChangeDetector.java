@@ -0,0 +1,276 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.metadata;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.persistence.CascadeType;
+import javax.persistence.Persistence;
+import javax.persistence.PersistenceUtil;
+
+/**
+ * Finds out which columns of an entity have been changed, by comparing the
+ * entity to a snapshot of its persistent property values. The properties to
+ * snapshot are looked up once, when the detector is created.
+ * <p>
+ * The snapshot contains the values of all simple persistent properties
+ * (except the identifier and the version), including the simple properties of
+ * embedded objects, which are referred to by their nested names, e.g.
+ * <code>address.street</code>. These are the <i>columns</i> of the entity.
+ * Lazy loaded simple properties are left out of the columns, as reading them
+ * would load them. They are compared by identity like the relationships, but
+ * only once they have been loaded; a property that is still unloaded cannot
+ * have been changed.
+ * <p>
+ * Relationships and element collections are only compared by identity: if a
+ * reference or collection has been replaced,
+ * {@link #getChangedColumns(Object, Object[]) } returns null, meaning that the
+ * whole entity has to be merged. Changes made inside referenced entities or
+ * collections are not detected at all, which is why snapshots are not
+ * supported for entities whose relationships cascade merges.
+ * <p>
+ * Dates and calendars are copied into the snapshot, as they are mutable.
+ * Other values, including arrays, are not copied, i.e. an array that has been
+ * modified in place is not detected as changed.
+ * <p>
+ * Instances of this class are immutable and can be shared between threads.
+ * 
+ * @since 3.1.1
+ */
+public final class ChangeDetector<T> {
+
+    // Marks a lazy loaded property that was not loaded in a snapshot
+    private static final Object NOT_LOADED = new Object();
+
+    private final boolean supported;
+    private final String[] columnNames;
+    private final PropertyPath[] columns;
+    private final PropertyPath[] references;
+    // The attribute to check with PersistenceUtil.isLoaded() for each lazy
+    // loaded simple property in references, null for the others
+    private final String[] lazyAttributes;
+    private final Set<String> columnNameSet;
+
+    /**
+     * Creates a new <code>ChangeDetector</code>.
+     * 
+     * @param metadata
+     *            the metadata of the entity class (must not be null).
+     */
+    ChangeDetector(EntityClassMetadata<T> metadata) {
+        assert metadata != null : "metadata must not be null";
+        List<String> columnList = new ArrayList<String>();
+        List<String> referenceList = new ArrayList<String>();
+        Set<String> lazyNames = new HashSet<String>();
+        boolean cascaded = collectProperties(metadata, "", columnList,
+                referenceList, lazyNames);
+        if (metadata.hasIdentifierProperty()) {
+            columnList.remove(metadata.getIdentifierProperty().getName());
+        }
+        if (metadata.hasVersionProperty()) {
+            columnList.remove(metadata.getVersionProperty().getName());
+        }
+        supported = !cascaded && metadata.hasIdentifierProperty()
+                && !metadata.hasEmbeddedIdentifier();
+
+        columnNames = columnList.toArray(new String[columnList.size()]);
+        columns = new PropertyPath[columnNames.length];
+        for (int i = 0; i < columnNames.length; i++) {
+            columns[i] = metadata.getPropertyPath(columnNames[i]);
+        }
+        references = new PropertyPath[referenceList.size()];
+        lazyAttributes = new String[references.length];
+        for (int i = 0; i < references.length; i++) {
+            String name = referenceList.get(i);
+            references[i] = metadata.getPropertyPath(name);
+            if (lazyNames.contains(name)) {
+                int dot = name.indexOf('.');
+                lazyAttributes[i] = dot < 0 ? name : name.substring(0, dot);
+            }
+        }
+        columnNameSet = Collections.unmodifiableSet(new HashSet<String>(
+                columnList));
+    }
+
+    /**
+     * Adds the names of the columns and references of <code>metadata</code>
+     * to the lists, descending into embedded properties.
+     * 
+     * @return true if any of the relationships cascades merges.
+     */
+    private static boolean collectProperties(ClassMetadata<?> metadata,
+            String prefix, List<String> columnList,
+            List<String> referenceList, Set<String> lazyNames) {
+        boolean cascaded = false;
+        for (PersistentPropertyMetadata pm : metadata.getPersistentProperties()) {
+            String name = prefix + pm.getName();
+            switch (pm.getPropertyKind()) {
+            case SIMPLE:
+                if (pm.isLazyLoaded()) {
+                    // Reading the value would load it
+                    referenceList.add(name);
+                    lazyNames.add(name);
+                } else {
+                    columnList.add(name);
+                }
+                break;
+            case EMBEDDED:
+                cascaded |= collectProperties(pm.getTypeMetadata(), name + ".",
+                        columnList, referenceList, lazyNames);
+                break;
+            default:
+                referenceList.add(name);
+                cascaded |= cascadesMerge(pm);
+            }
+        }
+        return cascaded;
+    }
+
+    private static boolean cascadesMerge(PersistentPropertyMetadata pm) {
+        Set<CascadeType> cascade = pm.getCascadeTypes();
+        return cascade.contains(CascadeType.ALL)
+                || cascade.contains(CascadeType.MERGE);
+    }
+
+    /**
+     * Checks whether snapshots can be taken of the entities. This is not the
+     * case if the entity has no identifier, has an embedded identifier or has
+     * relationships that cascade merges.
+     */
+    public boolean isSupported() {
+        return supported;
+    }
+
+    /**
+     * Checks whether <code>propertyName</code> is one of the columns included
+     * in the snapshots.
+     * 
+     * @param propertyName
+     *            the name of the property, possibly nested (must not be null).
+     */
+    public boolean isColumn(String propertyName) {
+        assert propertyName != null : "propertyName must not be null";
+        return columnNameSet.contains(propertyName);
+    }
+
+    /**
+     * Takes a snapshot of the persistent property values of
+     * <code>entity</code>.
+     * 
+     * @param entity
+     *            the entity (must not be null).
+     * @return the snapshot, or null if snapshots are not supported or the
+     *         values could not be read.
+     */
+    public Object[] takeSnapshot(T entity) {
+        assert entity != null : "entity must not be null";
+        if (!supported) {
+            return null;
+        }
+        Object[] snapshot = new Object[columns.length + references.length];
+        try {
+            for (int i = 0; i < columns.length; i++) {
+                snapshot[i] = copyValue(columns[i].getValue(entity));
+            }
+            PersistenceUtil persistenceUtil = Persistence.getPersistenceUtil();
+            for (int i = 0; i < references.length; i++) {
+                if (lazyAttributes[i] != null
+                        && !persistenceUtil.isLoaded(entity, lazyAttributes[i])) {
+                    snapshot[columns.length + i] = NOT_LOADED;
+                } else {
+                    snapshot[columns.length + i] = references[i]
+                            .getValue(entity);
+                }
+            }
+        } catch (RuntimeException e) {
+            // E.g. an uninitialized lazy property of a detached entity
+            return null;
+        }
+        return snapshot;
+    }
+
+    private static Object copyValue(Object value) {
+        if (value instanceof Date) {
+            return ((Date) value).clone();
+        } else if (value instanceof Calendar) {
+            return ((Calendar) value).clone();
+        }
+        return value;
+    }
+
+    /**
+     * Gets the names of the columns of <code>entity</code> whose values
+     * differ from <code>snapshot</code>.
+     * 
+     * @param entity
+     *            the entity (must not be null).
+     * @param snapshot
+     *            a snapshot taken of the entity using
+     *            {@link #takeSnapshot(Object) }, may be null.
+     * @return a list of column names (possibly empty), or null if the
+     *         snapshot is null or a relationship has changed.
+     */
+    public List<String> getChangedColumns(T entity, Object[] snapshot) {
+        assert entity != null : "entity must not be null";
+        if (snapshot == null) {
+            return null;
+        }
+        List<String> changed = new ArrayList<String>();
+        try {
+            PersistenceUtil persistenceUtil = Persistence.getPersistenceUtil();
+            for (int i = 0; i < references.length; i++) {
+                Object oldValue = snapshot[columns.length + i];
+                if (lazyAttributes[i] != null) {
+                    if (!persistenceUtil.isLoaded(entity, lazyAttributes[i])) {
+                        // Cannot have been changed without loading it
+                        continue;
+                    } else if (oldValue == NOT_LOADED) {
+                        // Loaded after the snapshot, possibly changed
+                        return null;
+                    }
+                }
+                if (references[i].getValue(entity) != oldValue) {
+                    return null;
+                }
+            }
+            for (int i = 0; i < columns.length; i++) {
+                if (!isEqual(snapshot[i], columns[i].getValue(entity))) {
+                    changed.add(columnNames[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            return null;
+        }
+        return changed;
+    }
+
+    private static boolean isEqual(Object oldValue, Object newValue) {
+        if (oldValue == newValue) {
+            return true;
+        } else if (oldValue == null || newValue == null
+                || oldValue.getClass().isArray()) {
+            return false;
+        }
+        return oldValue.equals(newValue);
+    }
+}
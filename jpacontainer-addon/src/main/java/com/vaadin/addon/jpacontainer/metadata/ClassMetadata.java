@@ -23,7 +23,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.persistence.Embeddable;
 import javax.persistence.Entity;
@@ -43,6 +43,14 @@ public class ClassMetadata<T> implements Serializable {
     private final Class<T> mappedClass;
     private final Map<String, PropertyMetadata> allProperties = new LinkedHashMap<String, PropertyMetadata>();
     private final Map<String, PersistentPropertyMetadata> persistentProperties = new LinkedHashMap<String, PersistentPropertyMetadata>();
+    /*
+     * The maximum number of compiled property paths to cache. Nested paths can
+     * be chained through cyclic references indefinitely, so the cache must
+     * not grow with whatever names the callers come up with.
+     */
+    static final int MAX_CACHED_PROPERTY_PATHS = 256;
+    // Compiled property paths, rebuilt on demand after deserialization
+    private transient volatile Map<String, PropertyPath> propertyPaths;
 
     /**
      * Constructs a new <code>ClassMetadata</code> instance. Properties can be
@@ -67,6 +75,7 @@ public class ClassMetadata<T> implements Serializable {
      */
     final void addProperties(PropertyMetadata... properties) {
         assert properties != null : "properties must not be null";
+        propertyPaths = null;
         for (PropertyMetadata pm : properties) {
             allProperties.put(pm.getName(), pm);
             if (pm instanceof PersistentPropertyMetadata) {
@@ -159,13 +168,7 @@ public class ClassMetadata<T> implements Serializable {
         assert object != null : "object must not be null";
         assert property != null : "property must not be null";
         try {
-            if (property instanceof PersistentPropertyMetadata) {
-                PersistentPropertyMetadata ppmd = (PersistentPropertyMetadata) property;
-                if (ppmd.field != null) {
-                    return getPropertyValueFromField(object, ppmd);
-                }
-            }
-            return property.getter.invoke(object);
+            return property.readValue(object);
         } catch (IllegalAccessException e) {
             throw new IllegalArgumentException(
                     "Cannot access the property value", e);
@@ -175,36 +178,6 @@ public class ClassMetadata<T> implements Serializable {
         }
     }
 
-    private Object getPropertyValueFromField(T object,
-            PersistentPropertyMetadata ppmd) throws IllegalAccessException,
-            IllegalArgumentException, InvocationTargetException {
-        // First we try to find a getter for the field in order to
-        // make getter-based lazy loading work.
-        Class<?> clazz = ppmd.field.getDeclaringClass();
-        Method getter = null;
-        try {
-            getter = clazz.getMethod("get" + capitalize(ppmd.fieldName));
-        } catch (Exception e) {
-            try {
-                getter = clazz.getMethod("is" + capitalize(ppmd.fieldName));
-            } catch (Exception e1) {
-            }
-        }
-        if (getter == null) {
-            try {
-                ppmd.field.setAccessible(true);
-                return ppmd.field.get(object);
-            } finally {
-                ppmd.field.setAccessible(false);
-            }
-        }
-        return getter.invoke(object);
-    }
-
-    private String capitalize(String string) {
-        return string.substring(0, 1).toUpperCase() + string.substring(1);
-    }
-
     /**
      * Sets the value of <code>property</code> to <code>value</code> on
      * <code>object</code>.
@@ -225,22 +198,7 @@ public class ClassMetadata<T> implements Serializable {
         assert property != null : "property must not be null";
         if (property != null && property.isWritable()) {
             try {
-                if (property.setter == null
-                        && property instanceof PersistentPropertyMetadata) {
-                    // use direct field access of PersistentPropertyMetadata iff
-                    // the setter method does not exist
-                    PersistentPropertyMetadata ppmd = (PersistentPropertyMetadata) property;
-                    if (ppmd.field != null) {
-                        try {
-                            ppmd.field.setAccessible(true);
-                            ppmd.field.set(object, value);
-                            return;
-                        } finally {
-                            ppmd.field.setAccessible(false);
-                        }
-                    }
-                }
-                property.setter.invoke(object, value);
+                property.writeValue(object, value);
             } catch (IllegalAccessException e) {
                 throw new IllegalArgumentException(
                         "Cannot set the property value", e);
@@ -309,6 +267,39 @@ public class ClassMetadata<T> implements Serializable {
         }
     }
 
+    /**
+     * Gets the compiled path of <code>propertyName</code>, which may be
+     * nested. The path is compiled the first time it is requested and then
+     * reused, so callers accessing the same property repeatedly do not have
+     * to parse the name or look up any metadata. Only paths that resolve are
+     * cached, and at most {@link #MAX_CACHED_PROPERTY_PATHS} of them; once
+     * the cache is full, further paths are compiled on every request.
+     * 
+     * @param propertyName
+     *            the name of the property (must not be null).
+     * @return the compiled path (never null).
+     * @throws IllegalArgumentException
+     *             if <code>propertyName</code> is invalid.
+     * @since 3.1.1
+     */
+    public PropertyPath getPropertyPath(String propertyName)
+            throws IllegalArgumentException {
+        assert propertyName != null : "propertyName must not be null";
+        Map<String, PropertyPath> paths = propertyPaths;
+        if (paths == null) {
+            paths = new ConcurrentHashMap<String, PropertyPath>();
+            propertyPaths = paths;
+        }
+        PropertyPath path = paths.get(propertyName);
+        if (path == null) {
+            path = PropertyPath.compile(this, propertyName);
+            if (paths.size() < MAX_CACHED_PROPERTY_PATHS) {
+                paths.put(propertyName, path);
+            }
+        }
+        return path;
+    }
+
     /**
      * Gets the value of <code>object.propertyName</code>. The property name may
      * be nested.
@@ -323,57 +314,11 @@ public class ClassMetadata<T> implements Serializable {
      *             if the property value could not be fetched, e.g. due to
      *             <code>propertyName</code> being invalid.
      */
-    @SuppressWarnings("unchecked")
     public Object getPropertyValue(T object, String propertyName)
             throws IllegalArgumentException {
         assert object != null : "object must not be null";
         assert propertyName != null : "propertyName must not be null";
-
-        StringTokenizer st = new StringTokenizer(propertyName, ".");
-        ClassMetadata<Object> typeMetadata = (ClassMetadata<Object>) this;
-        Class<?> type = null;
-        Object currentObject = object;
-        while (st.hasMoreTokens()) {
-            String propName = st.nextToken();
-            if (typeMetadata != null) {
-                PropertyMetadata pmd = typeMetadata.getProperty(propName);
-                if (pmd == null) {
-                    throw new IllegalArgumentException("Invalid property name");
-                }
-                currentObject = typeMetadata.getPropertyValue(currentObject,
-                        pmd);
-                if (currentObject == null) {
-                    return null;
-                }
-                if (pmd instanceof PersistentPropertyMetadata) {
-                    typeMetadata = (ClassMetadata<Object>) ((PersistentPropertyMetadata) pmd)
-                            .getTypeMetadata();
-                } else {
-                    typeMetadata = null;
-                }
-                if (typeMetadata == null) {
-                    type = pmd.getType();
-                } else {
-                    type = null;
-                }
-            } else if (type != null) {
-                Method getter = getGetterMethod(propName, type);
-                if (getter == null) {
-                    throw new IllegalArgumentException("Invalid property name");
-                }
-                try {
-                    currentObject = getter.invoke(currentObject);
-                    if (currentObject == null) {
-                        return null;
-                    }
-                    type = getter.getReturnType();
-                } catch (Exception e) {
-                    throw new IllegalArgumentException(
-                            "Could not access a nested property", e);
-                }
-            }
-        }
-        return currentObject;
+        return getPropertyPath(propertyName).getValue(object);
     }
 
     /**
@@ -394,79 +339,11 @@ public class ClassMetadata<T> implements Serializable {
      *             if a nested property name is used and one of the nested
      *             properties (other than the last one) is null.
      */
-    @SuppressWarnings("unchecked")
     public void setPropertyValue(T object, String propertyName, Object value)
             throws IllegalArgumentException, IllegalStateException {
         assert object != null : "object must not be null";
         assert propertyName != null : "propertyName must not be null";
-
-        StringTokenizer st = new StringTokenizer(propertyName, ".");
-        ClassMetadata<Object> typeMetadata = (ClassMetadata<Object>) this;
-        Class<?> type = null;
-        Object currentObject = object;
-        while (st.hasMoreTokens()) {
-            String propName = st.nextToken();
-            if (typeMetadata != null) {
-                PropertyMetadata pmd = typeMetadata.getProperty(propName);
-                if (pmd == null) {
-                    throw new IllegalArgumentException("Invalid property name");
-                }
-                if (!st.hasMoreTokens()) {
-                    // We have reached the end of the chain
-                    typeMetadata.setPropertyValue(currentObject, pmd, value);
-                } else {
-                    currentObject = typeMetadata.getPropertyValue(
-                            currentObject, pmd);
-                    if (currentObject == null) {
-                        throw new IllegalStateException(
-                                "A null value was found in the chain of nested properties");
-                    }
-                    if (pmd instanceof PersistentPropertyMetadata) {
-                        typeMetadata = (ClassMetadata<Object>) ((PersistentPropertyMetadata) pmd)
-                                .getTypeMetadata();
-                    } else {
-                        typeMetadata = null;
-                    }
-                    if (typeMetadata == null) {
-                        type = pmd.getType();
-                    } else {
-                        type = null;
-                    }
-                }
-            } else if (type != null) {
-                Method getter = getGetterMethod(propName, type);
-                if (getter == null) {
-                    throw new IllegalArgumentException("Invalid property name");
-                }
-                if (!st.hasMoreTokens()) {
-                    // We have reached the end of the chain
-                    Method setter = getSetterMethod(propName, type,
-                            getter.getReturnType());
-                    if (setter == null) {
-                        throw new IllegalArgumentException(
-                                "Property is read only");
-                    }
-                    try {
-                        setter.invoke(currentObject, value);
-                    } catch (Exception e) {
-                        throw new IllegalArgumentException(
-                                "Could not set the value");
-                    }
-                } else {
-                    try {
-                        currentObject = getter.invoke(currentObject);
-                        if (currentObject == null) {
-                            throw new IllegalStateException(
-                                    "A null value was found in the chain of nested properties");
-                        }
-                        type = getter.getReturnType();
-                    } catch (Exception e) {
-                        throw new IllegalArgumentException(
-                                "Could not access a nested property", e);
-                    }
-                }
-            }
-        }
+        getPropertyPath(propertyName).setValue(object, value);
     }
 
     @Override
@@ -31,6 +31,7 @@ public class EntityClassMetadata<T> extends ClassMetadata<T> {
     private final String entityName;
     private String versionProperty;
     private String identifierProperty;
+    private transient volatile ChangeDetector<T> changeDetector;
 
     /**
      * Creates a new instance of <code>EntityClassMetadata</code>.
@@ -143,6 +144,23 @@ public class EntityClassMetadata<T> extends ClassMetadata<T> {
                 && getIdentifierProperty().getPropertyKind() == PropertyKind.EMBEDDED;
     }
 
+    /**
+     * Gets the change detector that can be used to find out which columns of
+     * an entity have been changed since it was loaded. The detector is created
+     * the first time it is requested and then reused.
+     * 
+     * @return the change detector (never null).
+     * @since 3.1.1
+     */
+    public ChangeDetector<T> getChangeDetector() {
+        ChangeDetector<T> detector = changeDetector;
+        if (detector == null) {
+            detector = new ChangeDetector<T>(this);
+            changeDetector = detector;
+        }
+        return detector;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (super.equals(obj)) { // Includes a check of the parameter class
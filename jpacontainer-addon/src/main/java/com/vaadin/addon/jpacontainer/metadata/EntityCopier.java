@@ -0,0 +1,160 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.metadata;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creates copies of entities (or embeddables) of a specific class. The
+ * constructor and the fields to copy are looked up once, when the copier is
+ * created, so copying an instance only involves reading and writing the
+ * fields. Unlike {@link Object#clone()}, this does not require the class to
+ * implement {@link Cloneable}; it does however require a no-argument
+ * constructor, which JPA requires anyway.
+ * <p>
+ * All the instance fields of the class and its superclasses are copied as they
+ * are, i.e. references to other entities and collections are shared between
+ * the original and the copy. The {@link PropertyKind#EMBEDDED embedded}
+ * properties can optionally be copied as well, so that changes made to e.g.
+ * <code>address.street</code> of the copy do not affect the original.
+ * <p>
+ * Instances of this class are immutable and can be shared between threads.
+ * 
+ * @since 3.1.1
+ */
+public final class EntityCopier<T> {
+
+    private final Class<T> mappedClass;
+    private final Constructor<T> constructor;
+    private final Field[] fields;
+    private final PersistentPropertyMetadata[] embeddedProperties;
+    private final EntityCopier<?>[] embeddedCopiers;
+
+    /**
+     * Creates a new <code>EntityCopier</code>.
+     * 
+     * @param metadata
+     *            the metadata of the class whose instances to copy (must not
+     *            be null).
+     * @param copyEmbedded
+     *            true to copy embedded properties as well, false to share them
+     *            between the original and the copy.
+     * @throws IllegalArgumentException
+     *             if the class has no no-argument constructor.
+     */
+    public EntityCopier(ClassMetadata<T> metadata, boolean copyEmbedded)
+            throws IllegalArgumentException {
+        assert metadata != null : "metadata must not be null";
+        mappedClass = metadata.getMappedClass();
+        try {
+            constructor = mappedClass.getDeclaredConstructor();
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(mappedClass.getName()
+                    + " has no no-argument constructor", e);
+        }
+        PropertyMetadata.makeAccessible(constructor);
+
+        List<Field> fieldList = new ArrayList<Field>();
+        for (Class<?> c = mappedClass; c != null && c != Object.class; c = c
+                .getSuperclass()) {
+            for (Field f : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(f.getModifiers())) {
+                    PropertyMetadata.makeAccessible(f);
+                    fieldList.add(f);
+                }
+            }
+        }
+        fields = fieldList.toArray(new Field[fieldList.size()]);
+
+        List<PersistentPropertyMetadata> embedded = new ArrayList<PersistentPropertyMetadata>();
+        List<EntityCopier<?>> copiers = new ArrayList<EntityCopier<?>>();
+        if (copyEmbedded) {
+            for (PersistentPropertyMetadata pm : metadata
+                    .getPersistentProperties()) {
+                if (pm.getPropertyKind() == PropertyKind.EMBEDDED) {
+                    embedded.add(pm);
+                    copiers.add(createCopier(pm.getTypeMetadata()));
+                }
+            }
+        }
+        embeddedProperties = embedded
+                .toArray(new PersistentPropertyMetadata[embedded.size()]);
+        embeddedCopiers = copiers.toArray(new EntityCopier<?>[copiers.size()]);
+    }
+
+    private static <E> EntityCopier<E> createCopier(ClassMetadata<E> metadata) {
+        // Embeddables can in turn contain embeddables
+        return new EntityCopier<E>(metadata, true);
+    }
+
+    /**
+     * Gets the class whose instances this copier copies.
+     */
+    public Class<T> getMappedClass() {
+        return mappedClass;
+    }
+
+    /**
+     * Creates a copy of <code>original</code>.
+     * 
+     * @param original
+     *            the instance to copy (must not be null). Its class must be
+     *            exactly {@link #getMappedClass() }, as the fields of subclasses
+     *            (and proxies) would not be copied.
+     * @return the copy (never null).
+     * @throws IllegalArgumentException
+     *             if <code>original</code> is of the wrong class.
+     * @throws IllegalStateException
+     *             if the copy could not be created.
+     */
+    public T copy(T original) throws IllegalArgumentException,
+            IllegalStateException {
+        assert original != null : "original must not be null";
+        if (original.getClass() != mappedClass) {
+            throw new IllegalArgumentException("Cannot copy instances of "
+                    + original.getClass().getName());
+        }
+        try {
+            T copy = constructor.newInstance();
+            for (Field f : fields) {
+                f.set(copy, f.get(original));
+            }
+            for (int i = 0; i < embeddedProperties.length; i++) {
+                Object value = embeddedProperties[i].readValue(copy);
+                if (value != null) {
+                    embeddedProperties[i].writeValue(copy,
+                            copyEmbedded(embeddedCopiers[i], value));
+                }
+            }
+            return copy;
+        } catch (IllegalArgumentException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not copy instance of "
+                    + mappedClass.getName(), e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> E copyEmbedded(EntityCopier<E> copier, Object value) {
+        return copier.copy((E) value);
+    }
+}
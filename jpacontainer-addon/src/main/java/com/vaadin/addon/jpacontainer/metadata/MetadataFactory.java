@@ -17,18 +17,35 @@
 package com.vaadin.addon.jpacontainer.metadata;
 
 import java.beans.Introspector;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.persistence.ElementCollection;
 import javax.persistence.Embeddable;
 import javax.persistence.Embedded;
 import javax.persistence.EmbeddedId;
 import javax.persistence.Entity;
+import javax.persistence.EntityManagerFactory;
 import javax.persistence.Id;
 import javax.persistence.ManyToMany;
 import javax.persistence.ManyToOne;
@@ -37,20 +54,36 @@ import javax.persistence.OneToMany;
 import javax.persistence.OneToOne;
 import javax.persistence.Transient;
 import javax.persistence.Version;
+import javax.persistence.metamodel.EntityType;
 
 import com.vaadin.addon.jpacontainer.metadata.PersistentPropertyMetadata.AccessType;
 
 /**
  * Factory for creating and populating {@link ClassMetadata} and
- * {@link EntityClassMetadata} instances.
+ * {@link EntityClassMetadata} instances. The factory is thread safe; the
+ * metadata of a class is only made visible to other threads once the metadata
+ * of all the classes it references has been fully populated, and there is
+ * only one metadata instance per class.
  * 
  * @author Petter Holmström (Vaadin Ltd)
  * @since 1.0
  */
 public class MetadataFactory {
 
-	private static MetadataFactory INSTANCE;
-	private Map<Class<?>, ClassMetadata<?>> metadataMap = new HashMap<Class<?>, ClassMetadata<?>>();
+	private static final Logger logger = Logger.getLogger(MetadataFactory.class
+			.getName());
+
+	private static class InstanceHolder {
+		private static final MetadataFactory INSTANCE = new MetadataFactory();
+	}
+
+	private final ConcurrentMap<Class<?>, ClassMetadata<?>> metadataMap = new ConcurrentHashMap<Class<?>, ClassMetadata<?>>();
+	/*
+	 * The metadata being populated by the current thread. The classes may
+	 * reference each other, so they are published together once the outermost
+	 * call to getClassMetadata() has finished.
+	 */
+	private final ThreadLocal<Map<Class<?>, ClassMetadata<?>>> metadataUnderConstruction = new ThreadLocal<Map<Class<?>, ClassMetadata<?>>>();
 
 	protected MetadataFactory() {
 		// NOP
@@ -62,10 +95,123 @@ public class MetadataFactory {
 	 * @return the factory instance (never null).
 	 */
 	public static MetadataFactory getInstance() {
-		if (INSTANCE == null) {
-			INSTANCE = new MetadataFactory();
+		return InstanceHolder.INSTANCE;
+	}
+
+	/**
+	 * Eagerly extracts the metadata of every entity class managed by
+	 * <code>entityManagerFactory</code>, so that the first requests after
+	 * startup do not have to. The classes are processed in parallel, using at
+	 * most one thread per available processor, and this method returns once
+	 * all of them are done. Entity classes whose metadata cannot be extracted
+	 * are logged and skipped.
+	 * 
+	 * @param entityManagerFactory
+	 *            the entity manager factory whose metamodel lists the entity
+	 *            classes (must not be null).
+	 * @since 3.1.1
+	 */
+	public void preloadMetadata(EntityManagerFactory entityManagerFactory) {
+		assert entityManagerFactory != null : "entityManagerFactory must not be null";
+		List<Class<?>> entityClasses = new ArrayList<Class<?>>();
+		for (EntityType<?> entityType : entityManagerFactory.getMetamodel()
+				.getEntities()) {
+			Class<?> javaType = entityType.getJavaType();
+			if (javaType != null && !metadataMap.containsKey(javaType)) {
+				entityClasses.add(javaType);
+			}
+		}
+		if (entityClasses.isEmpty()) {
+			return;
+		}
+
+		int threads = Math.min(entityClasses.size(), Runtime.getRuntime()
+				.availableProcessors());
+		ExecutorService executor = Executors.newFixedThreadPool(threads,
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "JPAContainer metadata preloader");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		try {
+			List<Future<?>> results = new ArrayList<Future<?>>();
+			for (final Class<?> entityClass : entityClasses) {
+				results.add(executor.submit(new Callable<Object>() {
+					public Object call() {
+						return getEntityClassMetadata(entityClass);
+					}
+				}));
+			}
+			for (int i = 0; i < results.size(); i++) {
+				try {
+					results.get(i).get();
+				} catch (ExecutionException e) {
+					logger.log(Level.WARNING, "Could not preload the metadata of "
+							+ entityClasses.get(i).getName(), e.getCause());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Writes the metadata created so far to <code>out</code>, so that it can be
+	 * restored using {@link #readSnapshot(InputStream, ClassLoader)} when the
+	 * application is started the next time. The snapshot can be written e.g.
+	 * during the build or after {@link #preloadMetadata(EntityManagerFactory)}
+	 * on the first start. The stream is not closed.
+	 * 
+	 * @param out
+	 *            the stream to write to (must not be null).
+	 * @throws IOException
+	 *             if the snapshot could not be written.
+	 * @since 3.1.1
+	 */
+	public void writeSnapshot(OutputStream out) throws IOException {
+		assert out != null : "out must not be null";
+		MetadataSnapshot.write(
+				new ArrayList<ClassMetadata<?>>(metadataMap.values()), out);
+	}
+
+	/**
+	 * Restores metadata from a snapshot written by
+	 * {@link #writeSnapshot(OutputStream)}, instead of extracting it from the
+	 * classes using reflection. The metadata of a class is only restored if
+	 * neither the class nor any class it references has changed since the
+	 * snapshot was written; otherwise it will be extracted using reflection
+	 * when first requested. Metadata that has already been created is never
+	 * replaced, and the classes that reference it are not restored either. The
+	 * stream is not closed.
+	 * 
+	 * @param in
+	 *            the stream to read from (must not be null).
+	 * @param classLoader
+	 *            the class loader that loads the entity classes (must not be
+	 *            null).
+	 * @return the number of classes whose metadata was restored.
+	 * @throws IOException
+	 *             if the snapshot could not be read.
+	 * @since 3.1.1
+	 */
+	public int readSnapshot(InputStream in, ClassLoader classLoader)
+			throws IOException {
+		assert in != null : "in must not be null";
+		assert classLoader != null : "classLoader must not be null";
+		int restored = 0;
+		for (List<ClassMetadata<?>> group : MetadataSnapshot.read(in,
+				classLoader)) {
+			// The classes of a group reference each other, so a group is
+			// skipped if any of its classes has already been created
+			if (publish(group)) {
+				restored += group.size();
+			}
 		}
-		return INSTANCE;
+		return restored;
 	}
 
 	/**
@@ -129,6 +275,66 @@ public class MetadataFactory {
 			return metadata;
 		}
 
+		Map<Class<?>, ClassMetadata<?>> pending = metadataUnderConstruction
+				.get();
+		if (pending != null) {
+			// We are populating the metadata of another class that references
+			// this one
+			metadata = (ClassMetadata<T>) pending.get(mappedClass);
+			if (metadata == null) {
+				metadata = createClassMetadata(mappedClass, accessType, pending);
+			}
+			return metadata;
+		}
+
+		while (true) {
+			pending = new HashMap<Class<?>, ClassMetadata<?>>();
+			metadataUnderConstruction.set(pending);
+			try {
+				metadata = createClassMetadata(mappedClass, accessType, pending);
+			} finally {
+				metadataUnderConstruction.remove();
+			}
+			if (publish(pending.values())) {
+				return metadata;
+			}
+			// Another thread published some of the classes first. The
+			// instances created here do not reference the published ones, so
+			// they are dropped and the metadata is created again.
+			metadata = (ClassMetadata<T>) metadataMap.get(mappedClass);
+			if (metadata != null) {
+				return metadata;
+			}
+		}
+	}
+
+	/**
+	 * Makes <code>metadata</code> visible to other threads, unless the
+	 * metadata of any of the classes has already been published.
+	 * 
+	 * @return true if the metadata was published, false if nothing was
+	 *         published.
+	 */
+	private boolean publish(Collection<ClassMetadata<?>> metadata) {
+		synchronized (metadataMap) {
+			for (ClassMetadata<?> cm : metadata) {
+				if (metadataMap.containsKey(cm.getMappedClass())) {
+					return false;
+				}
+			}
+			for (ClassMetadata<?> cm : metadata) {
+				metadataMap.put(cm.getMappedClass(), cm);
+			}
+			return true;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> ClassMetadata<T> createClassMetadata(Class<T> mappedClass,
+			PersistentPropertyMetadata.AccessType accessType,
+			Map<Class<?>, ClassMetadata<?>> pending)
+			throws IllegalArgumentException {
+		ClassMetadata<T> metadata;
 		// Check if we are dealing with an entity class or an embeddable class
 		Entity entity = mappedClass.getAnnotation(Entity.class);
 		Embeddable embeddable = mappedClass.getAnnotation(Embeddable.class);
@@ -139,7 +345,7 @@ public class MetadataFactory {
 			metadata = new EntityClassMetadata<T>(mappedClass, entityName);
 			// Put the metadata instance in the cache in case it is referenced
 			// from loadProperties()
-			metadataMap.put(mappedClass, metadata);
+			pending.put(mappedClass, metadata);
 			loadProperties(mappedClass, metadata, accessType);
 
 			// Locate the version and identifier properties
@@ -165,7 +371,7 @@ public class MetadataFactory {
 			metadata = new ClassMetadata<T>(mappedClass);
 			// Put the metadata instance in the cache in case it is referenced
 			// from loadProperties()
-			metadataMap.put(mappedClass, metadata);
+			pending.put(mappedClass, metadata);
 			loadProperties(mappedClass, metadata, accessType);
 		} else {
 			throw new IllegalArgumentException("The class "
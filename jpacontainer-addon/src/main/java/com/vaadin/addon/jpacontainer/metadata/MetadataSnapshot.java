@@ -0,0 +1,347 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.metadata;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads and writes snapshots of the metadata created by
+ * {@link MetadataFactory}. Intended to be used by {@link MetadataFactory}
+ * only.
+ * <p>
+ * The metadata of classes that reference each other cannot be serialized
+ * separately, so the classes are split into groups of connected classes and
+ * each group is serialized on its own. Every class is stored with a checksum
+ * of its class file and those of its superclasses, which is much cheaper to
+ * compute than inspecting the class using reflection. When a snapshot is read,
+ * a group is only restored if none of its classes has changed; the metadata of
+ * the other classes is created using reflection as usual.
+ * 
+ * @since 3.1.1
+ */
+final class MetadataSnapshot {
+
+    private static final Logger logger = Logger
+            .getLogger(MetadataSnapshot.class.getName());
+
+    private static final int FORMAT_VERSION = 2;
+
+    private MetadataSnapshot() {
+        // NOP
+    }
+
+    /**
+     * Writes <code>metadata</code> to <code>out</code>. The stream is not
+     * closed.
+     */
+    static void write(Collection<ClassMetadata<?>> metadata, OutputStream out)
+            throws IOException {
+        List<List<ClassMetadata<?>>> groups = groupConnectedClasses(metadata);
+        ObjectOutputStream oos = new ObjectOutputStream(out);
+        oos.writeInt(FORMAT_VERSION);
+        oos.writeInt(groups.size());
+        for (List<ClassMetadata<?>> group : groups) {
+            HashMap<String, String> hashes = new HashMap<String, String>();
+            for (ClassMetadata<?> cm : group) {
+                hashes.put(cm.getMappedClass().getName(),
+                        classHash(cm.getMappedClass()));
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream groupOut = new ObjectOutputStream(bytes);
+            groupOut.writeObject(new ArrayList<ClassMetadata<?>>(group));
+            groupOut.close();
+
+            oos.writeObject(hashes);
+            oos.writeObject(bytes.toByteArray());
+        }
+        oos.flush();
+    }
+
+    /**
+     * Reads the metadata of all the unchanged classes from <code>in</code>,
+     * one list per group of classes that reference each other.
+     * 
+     * @param in
+     *            the stream to read from (must not be null).
+     * @param classLoader
+     *            the class loader to load the mapped classes with (must not be
+     *            null).
+     * @return the groups of restored metadata (never null).
+     * @throws IOException
+     *             if the snapshot could not be read.
+     */
+    @SuppressWarnings("unchecked")
+    static List<List<ClassMetadata<?>>> read(InputStream in,
+            ClassLoader classLoader) throws IOException {
+        ObjectInputStream ois = new ClassLoaderObjectInputStream(in,
+                classLoader);
+        if (ois.readInt() != FORMAT_VERSION) {
+            logger.log(Level.INFO,
+                    "Ignoring a metadata snapshot of an unknown format");
+            return Collections.emptyList();
+        }
+        List<List<ClassMetadata<?>>> result = new ArrayList<List<ClassMetadata<?>>>();
+        int groupCount = ois.readInt();
+        for (int i = 0; i < groupCount; i++) {
+            Map<String, String> hashes;
+            byte[] bytes;
+            try {
+                hashes = (Map<String, String>) ois.readObject();
+                bytes = (byte[]) ois.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Invalid metadata snapshot", e);
+            }
+            if (!isUnchanged(hashes, classLoader)) {
+                continue;
+            }
+            try {
+                ObjectInputStream groupIn = new ClassLoaderObjectInputStream(
+                        new ByteArrayInputStream(bytes), classLoader);
+                result.add((List<ClassMetadata<?>>) groupIn.readObject());
+            } catch (Exception e) {
+                logger.log(Level.INFO,
+                        "Could not restore the metadata of " + hashes.keySet(),
+                        e);
+            }
+        }
+        return result;
+    }
+
+    private static boolean isUnchanged(Map<String, String> hashes,
+            ClassLoader classLoader) {
+        for (Map.Entry<String, String> entry : hashes.entrySet()) {
+            try {
+                Class<?> cls = Class.forName(entry.getKey(), false,
+                        classLoader);
+                if (!classHash(cls).equals(entry.getValue())) {
+                    logger.log(Level.FINE, "{0} has changed since the "
+                            + "metadata snapshot was written", entry.getKey());
+                    return false;
+                }
+            } catch (ClassNotFoundException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Splits <code>metadata</code> into groups of classes that reference each
+     * other, directly or indirectly.
+     */
+    private static List<List<ClassMetadata<?>>> groupConnectedClasses(
+            Collection<ClassMetadata<?>> metadata) {
+        // ClassMetadata implements equals() by value, so identity is used here
+        Map<ClassMetadata<?>, ClassMetadata<?>> parents = new IdentityHashMap<ClassMetadata<?>, ClassMetadata<?>>();
+        List<ClassMetadata<?>> unvisited = new ArrayList<ClassMetadata<?>>(
+                metadata);
+        for (ClassMetadata<?> cm : metadata) {
+            parents.put(cm, cm);
+        }
+        while (!unvisited.isEmpty()) {
+            ClassMetadata<?> cm = unvisited.remove(unvisited.size() - 1);
+            for (PersistentPropertyMetadata pm : cm.getPersistentProperties()) {
+                ClassMetadata<?> referenced = pm.getTypeMetadata();
+                if (referenced != null) {
+                    if (!parents.containsKey(referenced)) {
+                        // Serialized along with cm anyway, so hash it too
+                        parents.put(referenced, referenced);
+                        unvisited.add(referenced);
+                    }
+                    parents.put(findRoot(parents, cm),
+                            findRoot(parents, referenced));
+                }
+            }
+        }
+        Map<ClassMetadata<?>, List<ClassMetadata<?>>> groups = new IdentityHashMap<ClassMetadata<?>, List<ClassMetadata<?>>>();
+        for (ClassMetadata<?> cm : parents.keySet()) {
+            ClassMetadata<?> root = findRoot(parents, cm);
+            List<ClassMetadata<?>> group = groups.get(root);
+            if (group == null) {
+                group = new ArrayList<ClassMetadata<?>>();
+                groups.put(root, group);
+            }
+            group.add(cm);
+        }
+        return new ArrayList<List<ClassMetadata<?>>>(groups.values());
+    }
+
+    private static ClassMetadata<?> findRoot(
+            Map<ClassMetadata<?>, ClassMetadata<?>> parents, ClassMetadata<?> cm) {
+        ClassMetadata<?> root = cm;
+        while (parents.get(root) != root) {
+            root = parents.get(root);
+        }
+        return root;
+    }
+
+    /**
+     * Computes a checksum of the class files of <code>cls</code> and its
+     * superclasses. If a class file cannot be read, e.g. because the class
+     * was generated at runtime, the hash is computed from the declared
+     * fields, methods and annotations instead.
+     */
+    static String classHash(Class<?> cls) {
+        MessageDigest digest = createDigest();
+        for (Class<?> c = cls; c != null && c != Object.class; c = c
+                .getSuperclass()) {
+            byte[] classFile = readClassFile(c);
+            if (classFile == null) {
+                return reflectiveClassHash(cls);
+            }
+            digest.update(toBytes(c.getName()));
+            digest.update(classFile);
+        }
+        return toHex(digest.digest());
+    }
+
+    private static byte[] readClassFile(Class<?> cls) {
+        String resource = cls.getName().replace('.', '/') + ".class";
+        ClassLoader loader = cls.getClassLoader();
+        InputStream in = loader == null ? ClassLoader
+                .getSystemResourceAsStream(resource) : loader
+                .getResourceAsStream(resource);
+        if (in == null) {
+            return null;
+        }
+        try {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    bytes.write(buffer, 0, read);
+                }
+                return bytes.toByteArray();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Could not read the class file of "
+                    + cls.getName(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Computes a hash of the declared fields, methods and annotations of
+     * <code>cls</code> and its superclasses.
+     */
+    static String reflectiveClassHash(Class<?> cls) {
+        List<String> members = new ArrayList<String>();
+        for (Class<?> c = cls; c != null && c != Object.class; c = c
+                .getSuperclass()) {
+            members.add(c.getName() + annotations(c.getAnnotations()));
+            for (Field f : c.getDeclaredFields()) {
+                members.add(c.getName() + "#" + f.toGenericString()
+                        + annotations(f.getAnnotations()));
+            }
+            for (Method m : c.getDeclaredMethods()) {
+                members.add(c.getName() + "#" + m.toGenericString()
+                        + annotations(m.getAnnotations()));
+            }
+        }
+        // The reflection API does not guarantee any order
+        Collections.sort(members);
+        MessageDigest digest = createDigest();
+        for (String member : members) {
+            digest.update(toBytes(member));
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] toBytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+        }
+        return sb.toString();
+    }
+
+    private static String annotations(Annotation[] annotations) {
+        List<String> names = new ArrayList<String>();
+        for (Annotation a : annotations) {
+            names.add(a.toString());
+        }
+        Collections.sort(names);
+        return names.toString();
+    }
+
+    /**
+     * Object input stream that resolves classes using a specific class loader,
+     * as the default one may not see the entity classes in a container.
+     */
+    private static class ClassLoaderObjectInputStream extends
+            ObjectInputStream {
+
+        private final ClassLoader classLoader;
+
+        ClassLoaderObjectInputStream(InputStream in, ClassLoader classLoader)
+                throws IOException {
+            super(in);
+            this.classLoader = classLoader;
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc)
+                throws IOException, ClassNotFoundException {
+            try {
+                return Class.forName(desc.getName(), false, classLoader);
+            } catch (ClassNotFoundException e) {
+                return super.resolveClass(desc);
+            }
+        }
+    }
+}
@@ -20,7 +20,20 @@ import java.io.InvalidObjectException;
 import java.io.ObjectStreamException;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+
+import javax.persistence.Basic;
+import javax.persistence.CascadeType;
+import javax.persistence.ElementCollection;
+import javax.persistence.FetchType;
+import javax.persistence.ManyToMany;
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToMany;
+import javax.persistence.OneToOne;
 
 /**
  * An extended version of {@link PropertyMetadata} that provides additional
@@ -54,6 +67,15 @@ public class PersistentPropertyMetadata extends PropertyMetadata {
     private final PropertyKind propertyKind;
     private final ClassMetadata<?> typeMetadata;
     transient final Field field;
+    /*
+     * The public getter of a field property, resolved once. If present, it is
+     * used instead of the field in order to make getter-based lazy loading
+     * work.
+     */
+    transient final Method fieldGetter;
+    // Resolved from the mapping annotations once, as it is needed on every
+    // lazy loading check
+    private transient final FetchType fetchType;
     // Required for serialization
     protected final String fieldName;
     protected final Class<?> fieldDeclaringClass;
@@ -88,6 +110,9 @@ public class PersistentPropertyMetadata extends PropertyMetadata {
         this.field = field;
         fieldName = field.getName();
         fieldDeclaringClass = field.getDeclaringClass();
+        fieldGetter = findFieldGetter(field);
+        makeAccessible(field);
+        fetchType = findFetchType();
     }
 
     /**
@@ -124,6 +149,8 @@ public class PersistentPropertyMetadata extends PropertyMetadata {
         field = null;
         fieldName = null;
         fieldDeclaringClass = null;
+        fieldGetter = null;
+        fetchType = findFetchType();
     }
 
     /**
@@ -155,6 +182,9 @@ public class PersistentPropertyMetadata extends PropertyMetadata {
         this.field = field;
         fieldName = field.getName();
         fieldDeclaringClass = field.getDeclaringClass();
+        fieldGetter = findFieldGetter(field);
+        makeAccessible(field);
+        fetchType = findFetchType();
     }
 
     /**
@@ -190,6 +220,8 @@ public class PersistentPropertyMetadata extends PropertyMetadata {
         field = null;
         fieldName = null;
         fieldDeclaringClass = null;
+        fieldGetter = null;
+        fetchType = findFetchType();
     }
 
     /**
@@ -207,10 +239,82 @@ public class PersistentPropertyMetadata extends PropertyMetadata {
         if (this.field == null) {
             fieldName = null;
             fieldDeclaringClass = null;
+            fieldGetter = null;
         } else {
             fieldName = field.getName();
             fieldDeclaringClass = field.getDeclaringClass();
+            fieldGetter = findFieldGetter(field);
+            makeAccessible(field);
+        }
+        fetchType = findFetchType();
+    }
+
+    /**
+     * Finds the public getter method of <code>field</code>, if there is one.
+     * 
+     * @param field
+     *            the field whose getter to find (must not be null).
+     * @return the getter method, or null if not found.
+     */
+    private static Method findFieldGetter(Field field) {
+        Class<?> clazz = field.getDeclaringClass();
+        String name = field.getName().substring(0, 1).toUpperCase()
+                + field.getName().substring(1);
+        Method getter = null;
+        try {
+            getter = clazz.getMethod("get" + name);
+        } catch (NoSuchMethodException e) {
+            try {
+                getter = clazz.getMethod("is" + name);
+            } catch (NoSuchMethodException e1) {
+            }
+        }
+        makeAccessible(getter);
+        return getter;
+    }
+
+    @Override
+    Object readValue(Object object) throws IllegalAccessException,
+            InvocationTargetException {
+        if (fieldGetter != null) {
+            return fieldGetter.invoke(object);
+        } else if (field != null) {
+            return field.get(object);
+        }
+        return super.readValue(object);
+    }
+
+    @Override
+    void writeValue(Object object, Object value)
+            throws IllegalAccessException, InvocationTargetException {
+        if (setter == null && field != null) {
+            // use direct field access iff the setter method does not exist
+            field.set(object, value);
+        } else {
+            super.writeValue(object, value);
+        }
+    }
+
+    /**
+     * Finds the fetch type of the property from its mapping annotations.
+     * 
+     * @return the {@link FetchType} or null if not applicable.
+     */
+    private FetchType findFetchType() {
+        if (getAnnotation(Basic.class) != null) {
+            return getAnnotation(Basic.class).fetch();
+        } else if (getAnnotation(ElementCollection.class) != null) {
+            return getAnnotation(ElementCollection.class).fetch();
+        } else if (getAnnotation(ManyToMany.class) != null) {
+            return getAnnotation(ManyToMany.class).fetch();
+        } else if (getAnnotation(OneToMany.class) != null) {
+            return getAnnotation(OneToMany.class).fetch();
+        } else if (getAnnotation(ManyToOne.class) != null) {
+            return getAnnotation(ManyToOne.class).fetch();
+        } else if (getAnnotation(OneToOne.class) != null) {
+            return getAnnotation(OneToOne.class).fetch();
         }
+        return null;
     }
 
     /**
@@ -231,6 +335,52 @@ public class PersistentPropertyMetadata extends PropertyMetadata {
         return propertyKind;
     }
 
+    /**
+     * The fetch type of the property, as declared by its mapping annotation.
+     * 
+     * @return the {@link FetchType}, or null if not applicable (e.g. not a
+     *         reference to another table on the database level).
+     * @since 3.1.1
+     */
+    public FetchType getFetchType() {
+        return fetchType;
+    }
+
+    /**
+     * Returns whether the value of the property is loaded lazily.
+     * 
+     * @since 3.1.1
+     */
+    public boolean isLazyLoaded() {
+        return fetchType == FetchType.LAZY;
+    }
+
+    /**
+     * The operations cascaded to the referenced entities, as declared by the
+     * relationship annotation of the property.
+     * 
+     * @return a new set of cascade types, empty if the property is not a
+     *         relationship or does not cascade any operations (never null).
+     * @since 3.1.1
+     */
+    public Set<CascadeType> getCascadeTypes() {
+        CascadeType[] cascade;
+        if (getAnnotation(ManyToOne.class) != null) {
+            cascade = getAnnotation(ManyToOne.class).cascade();
+        } else if (getAnnotation(OneToOne.class) != null) {
+            cascade = getAnnotation(OneToOne.class).cascade();
+        } else if (getAnnotation(OneToMany.class) != null) {
+            cascade = getAnnotation(OneToMany.class).cascade();
+        } else if (getAnnotation(ManyToMany.class) != null) {
+            cascade = getAnnotation(ManyToMany.class).cascade();
+        } else {
+            cascade = new CascadeType[0];
+        }
+        Set<CascadeType> types = EnumSet.noneOf(CascadeType.class);
+        types.addAll(Arrays.asList(cascade));
+        return types;
+    }
+
     /**
      * The way the property value is accessed (as a JavaBean property or as a
      * field).
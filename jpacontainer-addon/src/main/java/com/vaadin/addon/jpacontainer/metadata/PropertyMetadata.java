@@ -20,6 +20,8 @@ import java.io.InvalidObjectException;
 import java.io.ObjectStreamException;
 import java.io.Serializable;
 import java.lang.annotation.Annotation;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
 /**
@@ -71,6 +73,8 @@ public class PropertyMetadata implements Serializable {
         this.type = type;
         this.getter = getter;
         this.setter = setter;
+        makeAccessible(getter);
+        makeAccessible(setter);
         /*
          * The getter may also be null, e.g. if PersistentPropertyMetadata uses
          * a field instead of a getter to access the property.
@@ -91,6 +95,49 @@ public class PropertyMetadata implements Serializable {
         }
     }
 
+    /**
+     * Turns off the Java language access checks of <code>member</code>, so
+     * that they are not repeated every time the property is accessed. This is
+     * done once when the metadata is created.
+     * 
+     * @param member
+     *            the field or method to make accessible (may be null).
+     */
+    static void makeAccessible(AccessibleObject member) {
+        if (member != null && !member.isAccessible()) {
+            try {
+                member.setAccessible(true);
+            } catch (SecurityException e) {
+                // The access checks will simply be performed on every call
+            }
+        }
+    }
+
+    /**
+     * Reads the value of this property from <code>object</code>.
+     * 
+     * @param object
+     *            the object to read the value from (must not be null).
+     * @return the property value.
+     */
+    Object readValue(Object object) throws IllegalAccessException,
+            InvocationTargetException {
+        return getter.invoke(object);
+    }
+
+    /**
+     * Writes <code>value</code> to this property of <code>object</code>.
+     * 
+     * @param object
+     *            the object to write the value to (must not be null).
+     * @param value
+     *            the value to write.
+     */
+    void writeValue(Object object, Object value)
+            throws IllegalAccessException, InvocationTargetException {
+        setter.invoke(object, value);
+    }
+
     public Object readResolve() throws ObjectStreamException {
         try {
             Method getterM = null;
@@ -0,0 +1,338 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.metadata;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import javax.persistence.FetchType;
+
+/**
+ * A compiled, possibly nested, property name such as
+ * <code>address.street</code>. The name is parsed and every level of the chain
+ * is resolved to its metadata or getter method once, when the path is
+ * created, so reading and writing the property value does not involve any
+ * string handling or lookups. Once created, the instances of this class are
+ * immutable.
+ * <p>
+ * Paths are obtained from {@link ClassMetadata#getPropertyPath(String)}, which
+ * also caches them.
+ * 
+ * @since 3.1.1
+ */
+public final class PropertyPath {
+
+    /**
+     * One level in the chain of nested properties. A level is either
+     * described by property metadata, or, if the owning class has no metadata
+     * (i.e. it is reached through a transient property), by a plain JavaBean
+     * getter and setter.
+     */
+    private static final class Level {
+
+        final PropertyMetadata property;
+        final Method getter;
+        final Method setter;
+        final Class<?> type;
+        final FetchType fetchType;
+
+        Level(PropertyMetadata property) {
+            this.property = property;
+            this.getter = null;
+            this.setter = null;
+            this.type = property.getType();
+            if (property instanceof PersistentPropertyMetadata) {
+                this.fetchType = ((PersistentPropertyMetadata) property)
+                        .getFetchType();
+            } else {
+                this.fetchType = null;
+            }
+        }
+
+        Level(Method getter, Method setter) {
+            this.property = null;
+            this.getter = getter;
+            this.setter = setter;
+            this.type = getter.getReturnType();
+            this.fetchType = null;
+        }
+
+        ClassMetadata<?> getTypeMetadata() {
+            if (property instanceof PersistentPropertyMetadata) {
+                return ((PersistentPropertyMetadata) property)
+                        .getTypeMetadata();
+            }
+            return null;
+        }
+
+        Object readValue(Object object) throws IllegalArgumentException {
+            if (property != null) {
+                try {
+                    return property.readValue(object);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalArgumentException(
+                            "Cannot access the property value", e);
+                } catch (InvocationTargetException e) {
+                    throw new IllegalArgumentException(
+                            "Cannot access the property value", e);
+                }
+            }
+            try {
+                return getter.invoke(object);
+            } catch (Exception e) {
+                throw new IllegalArgumentException(
+                        "Could not access a nested property", e);
+            }
+        }
+
+        void writeValue(Object object, Object value)
+                throws IllegalArgumentException {
+            if (property != null) {
+                if (!property.isWritable()) {
+                    throw new IllegalArgumentException(
+                            "No such writable property: " + property.getName());
+                }
+                try {
+                    property.writeValue(object, value);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalArgumentException(
+                            "Cannot set the property value", e);
+                } catch (InvocationTargetException e) {
+                    throw new IllegalArgumentException(
+                            "Cannot set the property value", e);
+                }
+            } else {
+                if (setter == null) {
+                    throw new IllegalArgumentException("Property is read only");
+                }
+                try {
+                    setter.invoke(object, value);
+                } catch (Exception e) {
+                    throw new IllegalArgumentException(
+                            "Could not set the value", e);
+                }
+            }
+        }
+
+        boolean isWritable() {
+            return property != null ? property.isWritable() : setter != null;
+        }
+    }
+
+    private final String name;
+    private final Level[] levels;
+    private final boolean lazyLoaded;
+
+    private PropertyPath(String name, Level[] levels) {
+        this.name = name;
+        this.levels = levels;
+        boolean lazy = false;
+        for (Level level : levels) {
+            if (level.fetchType == FetchType.LAZY) {
+                lazy = true;
+                break;
+            }
+        }
+        this.lazyLoaded = lazy;
+    }
+
+    /**
+     * Compiles <code>propertyName</code> against <code>metadata</code>.
+     * 
+     * @param metadata
+     *            the metadata of the class owning the first property in the
+     *            chain (must not be null).
+     * @param propertyName
+     *            the property name, possibly nested (must not be null).
+     * @return the compiled path (never null).
+     * @throws IllegalArgumentException
+     *             if any of the property names in the chain is invalid.
+     */
+    static PropertyPath compile(ClassMetadata<?> metadata, String propertyName)
+            throws IllegalArgumentException {
+        assert metadata != null : "metadata must not be null";
+        assert propertyName != null : "propertyName must not be null";
+
+        List<Level> levels = new ArrayList<Level>();
+        StringTokenizer st = new StringTokenizer(propertyName, ".");
+        ClassMetadata<?> typeMetadata = metadata;
+        Class<?> type = null;
+        while (st.hasMoreTokens()) {
+            String propName = st.nextToken();
+            Level level;
+            if (typeMetadata != null) {
+                PropertyMetadata pmd = typeMetadata.getProperty(propName);
+                if (pmd == null) {
+                    throw new IllegalArgumentException("Invalid property name");
+                }
+                level = new Level(pmd);
+            } else if (type != null) {
+                Method getter = metadata.getGetterMethod(propName, type);
+                if (getter == null) {
+                    throw new IllegalArgumentException("Invalid property name");
+                }
+                PropertyMetadata.makeAccessible(getter);
+                Method setter = metadata.getSetterMethod(propName, type,
+                        getter.getReturnType());
+                PropertyMetadata.makeAccessible(setter);
+                level = new Level(getter, setter);
+            } else {
+                throw new IllegalArgumentException("Invalid property name");
+            }
+            levels.add(level);
+            typeMetadata = level.getTypeMetadata();
+            type = typeMetadata == null ? level.type : null;
+        }
+        if (levels.isEmpty()) {
+            throw new IllegalArgumentException("Invalid property name");
+        }
+        return new PropertyPath(propertyName,
+                levels.toArray(new Level[levels.size()]));
+    }
+
+    /**
+     * Gets the full name of the property, e.g. <code>address.street</code>.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns whether the path consists of more than one property.
+     */
+    public boolean isNested() {
+        return levels.length > 1;
+    }
+
+    /**
+     * Gets the type of the last property in the chain.
+     */
+    public Class<?> getType() {
+        return getLeaf().type;
+    }
+
+    /**
+     * Gets the metadata of the last property in the chain.
+     * 
+     * @return the property metadata, or null if the last property is reached
+     *         through a transient property and thus has no metadata.
+     */
+    public PropertyMetadata getPropertyMetadata() {
+        return getLeaf().property;
+    }
+
+    /**
+     * Returns whether the last property in the chain can be written.
+     */
+    public boolean isWritable() {
+        return getLeaf().isWritable();
+    }
+
+    /**
+     * Returns whether the path can be used in queries, i.e. whether every
+     * property in the chain is persistent.
+     */
+    public boolean isPersistent() {
+        for (Level level : levels) {
+            if (!(level.property instanceof PersistentPropertyMetadata)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the fetch type of the last property in the chain.
+     * 
+     * @return the {@link FetchType}, or null if not applicable (e.g. not a
+     *         reference to another table on the database level).
+     */
+    public FetchType getFetchType() {
+        return getLeaf().fetchType;
+    }
+
+    /**
+     * Returns whether any of the properties in the chain is loaded lazily.
+     */
+    public boolean isLazyLoaded() {
+        return lazyLoaded;
+    }
+
+    /**
+     * Gets the value of this property from <code>object</code>. If one of the
+     * properties in the chain is null, null is returned.
+     * 
+     * @param object
+     *            the object to read the value from (must not be null).
+     * @return the property value.
+     * @throws IllegalArgumentException
+     *             if the property value could not be read.
+     */
+    public Object getValue(Object object) throws IllegalArgumentException {
+        assert object != null : "object must not be null";
+        Object currentObject = object;
+        for (Level level : levels) {
+            currentObject = level.readValue(currentObject);
+            if (currentObject == null) {
+                return null;
+            }
+        }
+        return currentObject;
+    }
+
+    /**
+     * Sets the value of this property on <code>object</code> to
+     * <code>value</code>.
+     * 
+     * @param object
+     *            the object to write the value to (must not be null).
+     * @param value
+     *            the value to set.
+     * @throws IllegalArgumentException
+     *             if the value could not be set, e.g. due to the property
+     *             being read only.
+     * @throws IllegalStateException
+     *             if one of the properties in the chain (other than the last
+     *             one) is null.
+     */
+    public void setValue(Object object, Object value)
+            throws IllegalArgumentException, IllegalStateException {
+        assert object != null : "object must not be null";
+        Object currentObject = object;
+        int last = levels.length - 1;
+        for (int i = 0; i < last; i++) {
+            currentObject = levels[i].readValue(currentObject);
+            if (currentObject == null) {
+                throw new IllegalStateException(
+                        "A null value was found in the chain of nested properties");
+            }
+        }
+        levels[last].writeValue(currentObject, value);
+    }
+
+    private Level getLeaf() {
+        return levels[levels.length - 1];
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -16,10 +16,13 @@
 
 package com.vaadin.addon.jpacontainer.provider;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import javax.persistence.EntityManager;
 
+import com.vaadin.addon.jpacontainer.Aggregate;
 import com.vaadin.addon.jpacontainer.CachingEntityProvider;
 import com.vaadin.addon.jpacontainer.EntityContainer;
 import com.vaadin.addon.jpacontainer.SortBy;
@@ -80,6 +83,27 @@ public class CachingLocalEntityProvider<T> extends LocalEntityProvider<T>
         cachingSupport.flush();
     }
 
+    /**
+     * Gets the cached entities whose identifiers are next to
+     * <code>entityId</code> in any of the cached identifier windows, i.e. the
+     * entities that are likely to be shown together with the entity
+     * identified by <code>entityId</code>. This is used by
+     * {@link com.vaadin.addon.jpacontainer.util.HibernateLazyLoadingDelegate}
+     * to load lazy properties for several entities at once.
+     * 
+     * @param entityId
+     *            the identifier of the entity (must not be null).
+     * @param maxEntities
+     *            the maximum number of entities to return.
+     * @return an unmodifiable list of cached entities, not including the
+     *         entity identified by <code>entityId</code> (never null, but may
+     *         be empty, e.g. if the cache is disabled).
+     * @since 3.1.1
+     */
+    public List<T> getCachedWindow(Object entityId, int maxEntities) {
+        return cachingSupport.getCachedWindow(entityId, maxEntities);
+    }
+
     @Override
     public int getEntityCacheMaxSize() {
         return cachingSupport.getMaxCacheSize();
@@ -137,11 +161,51 @@ public class CachingLocalEntityProvider<T> extends LocalEntityProvider<T>
         cachingSupport.setCloneCachedEntities(clone);
     }
 
+    /**
+     * Returns whether the embedded objects of cached entities are copied as
+     * well when the entities are cloned.
+     * 
+     * @see #setCopyEmbeddedObjects(boolean)
+     * @since 3.1.1
+     */
+    public boolean isCopyEmbeddedObjects() {
+        return cachingSupport.isCopyEmbeddedObjects();
+    }
+
+    /**
+     * Specifies whether the embedded objects of cached entities should be
+     * copied as well when the entities are cloned (see
+     * {@link #setCloneCachedEntities(boolean) }). If they are not copied, an
+     * entity and its clone share the same embedded objects, so changing an
+     * embedded property of the clone also changes the cached entity. Embedded
+     * objects are copied by default.
+     * 
+     * @param copyEmbeddedObjects
+     *            true to copy embedded objects, false to share them.
+     * @since 3.1.1
+     */
+    public void setCopyEmbeddedObjects(boolean copyEmbeddedObjects) {
+        cachingSupport.setCopyEmbeddedObjects(copyEmbeddedObjects);
+    }
+
     @Override
     public int getEntityCount(EntityContainer<T> container, Filter filter) {
         return cachingSupport.getEntityCount(container, filter);
     }
 
+    @Override
+    public Map<Object, Long> getValueCounts(EntityContainer<T> container,
+            Object propertyId, Filter filter, int limit) {
+        return cachingSupport.getValueCounts(container, propertyId, filter,
+                limit);
+    }
+
+    @Override
+    public Map<Aggregate, Object> getAggregates(EntityContainer<T> container,
+            Filter filter, Collection<Aggregate> aggregates) {
+        return cachingSupport.getAggregates(container, filter, aggregates);
+    }
+
     @Override
     public Object getEntityIdentifierAt(EntityContainer<T> container, Filter filter, List<SortBy> sortBy,
             int index) {
@@ -16,10 +16,14 @@
 
 package com.vaadin.addon.jpacontainer.provider;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import javax.persistence.EntityManager;
 
+import com.vaadin.addon.jpacontainer.Aggregate;
 import com.vaadin.addon.jpacontainer.CachingEntityProvider;
 import com.vaadin.addon.jpacontainer.EntityContainer;
 import com.vaadin.addon.jpacontainer.SortBy;
@@ -76,6 +80,17 @@ public class CachingMutableLocalEntityProvider<T> extends
         cachingSupport.flush();
     }
 
+    /**
+     * Gets at most <code>maxEntities</code> cached entities next to the entity
+     * identified by <code>entityId</code>.
+     * 
+     * @see CachingLocalEntityProvider#getCachedWindow(Object, int)
+     * @since 3.1.1
+     */
+    public List<T> getCachedWindow(Object entityId, int maxEntities) {
+        return cachingSupport.getCachedWindow(entityId, maxEntities);
+    }
+
     @Override
     public int getEntityCacheMaxSize() {
         return cachingSupport.getMaxCacheSize();
@@ -133,11 +148,51 @@ public class CachingMutableLocalEntityProvider<T> extends
         cachingSupport.setCloneCachedEntities(clone);
     }
 
+    /**
+     * Returns whether the embedded objects of cached entities are copied as
+     * well when the entities are cloned.
+     * 
+     * @see #setCopyEmbeddedObjects(boolean)
+     * @since 3.1.1
+     */
+    public boolean isCopyEmbeddedObjects() {
+        return cachingSupport.isCopyEmbeddedObjects();
+    }
+
+    /**
+     * Specifies whether the embedded objects of cached entities should be
+     * copied as well when the entities are cloned (see
+     * {@link #setCloneCachedEntities(boolean) }). If they are not copied, an
+     * entity and its clone share the same embedded objects, so changing an
+     * embedded property of the clone also changes the cached entity. Embedded
+     * objects are copied by default.
+     * 
+     * @param copyEmbeddedObjects
+     *            true to copy embedded objects, false to share them.
+     * @since 3.1.1
+     */
+    public void setCopyEmbeddedObjects(boolean copyEmbeddedObjects) {
+        cachingSupport.setCopyEmbeddedObjects(copyEmbeddedObjects);
+    }
+
     @Override
     public int getEntityCount(EntityContainer<T> container, Filter filter) {
         return cachingSupport.getEntityCount(container, filter);
     }
 
+    @Override
+    public Map<Object, Long> getValueCounts(EntityContainer<T> container,
+            Object propertyId, Filter filter, int limit) {
+        return cachingSupport.getValueCounts(container, propertyId, filter,
+                limit);
+    }
+
+    @Override
+    public Map<Aggregate, Object> getAggregates(EntityContainer<T> container,
+            Filter filter, Collection<Aggregate> aggregates) {
+        return cachingSupport.getAggregates(container, filter, aggregates);
+    }
+
     @Override
     public Object getEntityIdentifierAt(EntityContainer<T> container, Filter filter, List<SortBy> sortBy,
             int index) {
@@ -174,6 +229,12 @@ public class CachingMutableLocalEntityProvider<T> extends
         return result;
     }
 
+    @Override
+    public void addEntities(Collection<? extends T> entities) {
+        super.addEntities(entities);
+        cachingSupport.flush();
+    }
+
     @Override
     public void removeEntity(Object entityId) {
         super.removeEntity(entityId);
@@ -192,10 +253,44 @@ public class CachingMutableLocalEntityProvider<T> extends
     }
 
     @Override
-    public void updateEntityProperty(Object entityId, String propertyName,
-            Object propertyValue) throws IllegalArgumentException {
-        super.updateEntityProperty(entityId, propertyName, propertyValue);
+    public T updateEntityProperties(T entity, Collection<String> propertyNames) {
+        T result = super.updateEntityProperties(entity, propertyNames);
+        Object entityId = getEntityClassMetadata().getPropertyValue(entity,
+                getEntityClassMetadata().getIdentifierProperty().getName());
+        if (result == entity && !propertyNames.isEmpty()) {
+            // Only the given columns were written
+            cachingSupport.entityPropertiesUpdated(entityId, entity,
+                    propertyNames);
+        } else {
+            cachingSupport.invalidate(entityId, true);
+        }
+        return result;
+    }
+
+    @Override
+    protected T updateEntityPropertyByMerge(Object entityId,
+            String propertyName, Object propertyValue) {
+        T result = super.updateEntityPropertyByMerge(entityId, propertyName,
+                propertyValue);
         cachingSupport.invalidate(entityId, true);
+        return result;
+    }
+
+    @Override
+    protected T updateEntityPropertyDirectly(Object entityId,
+            String propertyName, Object propertyValue) {
+        T result = super.updateEntityPropertyDirectly(entityId, propertyName,
+                propertyValue);
+        if (result != null) {
+            cachingSupport.entityPropertiesUpdated(entityId, result,
+                    Collections.singleton(propertyName));
+        }
+        return result;
+    }
+
+    @Override
+    protected T getCachedEntity(Object entityId) {
+        return cachingSupport.getCachedEntity(entityId);
     }
 
     /*
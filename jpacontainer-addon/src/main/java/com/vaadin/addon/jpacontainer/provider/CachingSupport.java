@@ -20,20 +20,33 @@ import java.io.Serializable;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.persistence.TypedQuery;
 
+import com.vaadin.addon.jpacontainer.Aggregate;
+import com.vaadin.addon.jpacontainer.AggregatingEntityProvider;
 import com.vaadin.addon.jpacontainer.EntityContainer;
 import com.vaadin.addon.jpacontainer.EntityProvider;
 import com.vaadin.addon.jpacontainer.QueryModifierDelegate;
 import com.vaadin.addon.jpacontainer.SortBy;
+import com.vaadin.addon.jpacontainer.filter.util.FilterEvaluator;
+import com.vaadin.addon.jpacontainer.filter.util.FilterEvaluator.CompiledFilter;
+import com.vaadin.addon.jpacontainer.metadata.ClassMetadata;
+import com.vaadin.addon.jpacontainer.metadata.EntityClassMetadata;
+import com.vaadin.addon.jpacontainer.metadata.EntityCopier;
+import com.vaadin.addon.jpacontainer.metadata.MetadataFactory;
 import com.vaadin.data.Container.Filter;
 import com.vaadin.data.Item;
 
@@ -47,10 +60,15 @@ import com.vaadin.data.Item;
  */
 class CachingSupport<T> implements Serializable {
 
+    private static final Logger logger = Logger.getLogger(CachingSupport.class
+            .getName());
     private final LocalEntityProvider<T> entityProvider;
     private int maxCacheSize = 1000;
     private boolean cacheEnabled = true;
     private boolean cloneCachedEntities = false;
+    private boolean copyEmbeddedObjects = true;
+    // The copiers for the entity class and any subclasses, created on demand
+    private transient Map<Class<?>, EntityCopier<?>> entityCopiers;
     /**
      * The number of entity IDs to fetch every time a query is made.
      */
@@ -87,6 +105,16 @@ class CachingSupport<T> implements Serializable {
      * <code>MAX_FILTER_CACHE_SIZE * MAX_SORTBY_CACHE_SIZE</code>.
      */
     public static final int MAX_SORTBY_CACHE_SIZE = 10;
+    /**
+     * The max size of the value count cache for each filter, i.e. how many
+     * different property-limit combinations to cache.
+     */
+    public static final int MAX_VALUE_COUNT_CACHE_SIZE = 10;
+    /**
+     * The max size of the aggregate cache for each filter, i.e. how many
+     * different aggregates to cache.
+     */
+    public static final int MAX_AGGREGATE_CACHE_SIZE = 20;
 
     // TODO Make chunk size, filter cache size and sortBy cache size user
     // configurable.
@@ -135,6 +163,10 @@ class CachingSupport<T> implements Serializable {
         public Map<List<SortBy>, IdListEntry> idListMap = new CacheMap<List<SortBy>, IdListEntry>(
                 MAX_SORTBY_CACHE_SIZE);
         public Set<Object> idSet = new CacheSet<Object>(getMaxCacheSize());
+        public Map<List<Object>, Map<Object, Long>> valueCountMap = new CacheMap<List<Object>, Map<Object, Long>>(
+                MAX_VALUE_COUNT_CACHE_SIZE);
+        public Map<Aggregate, Object> aggregateMap = new CacheMap<Aggregate, Object>(
+                MAX_AGGREGATE_CACHE_SIZE);
 
         /**
          * Creates a new <code>FilterCacheEntry</code>.
@@ -161,6 +193,65 @@ class CachingSupport<T> implements Serializable {
             return entityCount;
         }
 
+        /**
+         * @see AggregatingEntityProvider#getValueCounts(EntityContainer,
+         *      Object, Filter, int)
+         */
+        public synchronized Map<Object, Long> getValueCounts(
+                EntityContainer<T> container, Object propertyId, int limit) {
+            if (!isCachingPossible(container)) {
+                return entityProvider.doGetValueCounts(container, propertyId,
+                        getFilter(), limit);
+            }
+            List<Object> key = Arrays.<Object> asList(propertyId, limit);
+            Map<Object, Long> counts = valueCountMap.get(key);
+            if (counts == null) {
+                counts = entityProvider.doGetValueCounts(container,
+                        propertyId, getFilter(), limit);
+                valueCountMap.put(key, counts);
+            }
+            return counts;
+        }
+
+        /**
+         * @see AggregatingEntityProvider#getAggregates(EntityContainer,
+         *      Filter, Collection)
+         */
+        public synchronized Map<Aggregate, Object> getAggregates(
+                EntityContainer<T> container, Collection<Aggregate> aggregates) {
+            if (!isCachingPossible(container)) {
+                return entityProvider.doGetAggregates(container, getFilter(),
+                        aggregates);
+            }
+            // Compute all the missing aggregates in a single query
+            List<Aggregate> missing = new ArrayList<Aggregate>();
+            for (Aggregate aggregate : aggregates) {
+                if (!aggregateMap.containsKey(aggregate)) {
+                    missing.add(aggregate);
+                }
+            }
+            Map<Aggregate, Object> computed = Collections.emptyMap();
+            if (!missing.isEmpty()) {
+                computed = entityProvider.doGetAggregates(container,
+                        getFilter(), missing);
+            }
+            // Read the cache hits before caching the computed values, since
+            // caching them may evict some of the hits
+            Map<Aggregate, Object> result = new LinkedHashMap<Aggregate, Object>();
+            for (Aggregate aggregate : aggregates) {
+                if (computed.containsKey(aggregate)) {
+                    result.put(aggregate, computed.get(aggregate));
+                } else {
+                    result.put(aggregate, aggregateMap.get(aggregate));
+                }
+            }
+            // One at a time, as HashMap.putAll() does not always call put()
+            for (Map.Entry<Aggregate, Object> entry : computed.entrySet()) {
+                aggregateMap.put(entry.getKey(), entry.getValue());
+            }
+            return Collections.unmodifiableMap(result);
+        }
+
         /**
          * @see EntityProvider#containsEntity(java.lang.Object,
          *      com.vaadin.addons.jpacontainer.Filter)
@@ -319,6 +410,44 @@ class CachingSupport<T> implements Serializable {
             idListMap.clear();
             // Removing the entity Id from the Id cache should be enough
             idSet.remove(entityId);
+            // The removed or changed entity may have been counted under any
+            // value
+            valueCountMap.clear();
+            aggregateMap.clear();
+        }
+
+        /**
+         * Informs the cache that some properties not used by the filter have
+         * been updated. The set of matching entities is unchanged, but the
+         * identifier lists sorted by, and the value counts and aggregates
+         * computed from, any of the properties are removed.
+         * 
+         * @param propertyIds
+         *            the ids of the updated properties.
+         */
+        public synchronized void propertiesUpdated(Set<Object> propertyIds) {
+            Iterator<List<SortBy>> sorted = idListMap.keySet().iterator();
+            while (sorted.hasNext()) {
+                for (SortBy sortBy : sorted.next()) {
+                    if (propertyIds.contains(sortBy.getPropertyId())) {
+                        sorted.remove();
+                        break;
+                    }
+                }
+            }
+            Iterator<List<Object>> counted = valueCountMap.keySet()
+                    .iterator();
+            while (counted.hasNext()) {
+                if (propertyIds.contains(counted.next().get(0))) {
+                    counted.remove();
+                }
+            }
+            Iterator<Aggregate> aggregated = aggregateMap.keySet().iterator();
+            while (aggregated.hasNext()) {
+                if (propertyIds.contains(aggregated.next().getPropertyId())) {
+                    aggregated.remove();
+                }
+            }
         }
 
         /**
@@ -423,6 +552,21 @@ class CachingSupport<T> implements Serializable {
         public Filter getFilter() {
             return filter == NULL_FILTER ? null : filter;
         }
+
+        /**
+         * Gets any of the identifier lists that contain all the identifiers
+         * matching the filter.
+         * 
+         * @return the identifier list entry, or null if there is none.
+         */
+        synchronized IdListEntry getCompleteIdList() {
+            for (IdListEntry entry : idListMap.values()) {
+                if (entry.containsAll) {
+                    return entry;
+                }
+            }
+            return null;
+        }
     }
 
     /**
@@ -443,6 +587,118 @@ class CachingSupport<T> implements Serializable {
         }
     }
 
+    /**
+     * Called when some simple properties of an entity have been updated
+     * without changing any other state of the entity. If the cached instance
+     * is not <code>entity</code>, it is removed from the entity cache.
+     * Filter cache entries whose filter uses any of the updated properties
+     * are removed, and the identifier lists, value counts and aggregates that
+     * are sorted by or computed from them are dropped from the remaining
+     * entries. The version property is treated as updated as well.
+     * 
+     * @param entityId
+     *            the ID of the updated entity (must not be null).
+     * @param entity
+     *            the updated entity instance (must not be null).
+     * @param propertyNames
+     *            the names of the updated properties (must not be null).
+     * @since 3.1.1
+     */
+    public synchronized void entityPropertiesUpdated(Object entityId,
+            T entity, Collection<String> propertyNames) {
+        assert entityId != null : "entityId must not be null";
+        assert entity != null : "entity must not be null";
+        assert propertyNames != null : "propertyNames must not be null";
+        if (getEntityCache().get(entityId) != entity) {
+            getEntityCache().remove(entityId);
+        }
+        Set<Object> updated = new HashSet<Object>(propertyNames);
+        EntityClassMetadata<T> metadata = entityProvider
+                .getEntityClassMetadata();
+        if (metadata.hasVersionProperty()) {
+            updated.add(metadata.getVersionProperty().getName());
+        }
+        Iterator<FilterCacheEntry> it = getFilterCache().values().iterator();
+        while (it.hasNext()) {
+            FilterCacheEntry entry = it.next();
+            if (appliesToAny(entry.filter, updated)) {
+                it.remove();
+            } else {
+                entry.propertiesUpdated(updated);
+            }
+        }
+    }
+
+    private static boolean appliesToAny(Filter filter,
+            Collection<Object> propertyIds) {
+        for (Object propertyId : propertyIds) {
+            if (filter.appliesToProperty(propertyId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the cached entity identified by <code>entityId</code>, without
+     * loading it if it is not cached.
+     * 
+     * @param entityId
+     *            the ID of the entity (must not be null).
+     * @return the cached entity instance, or null if the entity is not cached
+     *         or the cache is disabled.
+     * @since 3.1.1
+     */
+    public synchronized T getCachedEntity(Object entityId) {
+        assert entityId != null : "entityId must not be null";
+        if (!isCacheEnabled() || entityCache == null) {
+            return null;
+        }
+        return entityCache.get(entityId);
+    }
+
+    /**
+     * Gets the cached entities whose identifiers are next to
+     * <code>entityId</code> in the cached identifier lists. The first list
+     * that contains <code>entityId</code> is used, and the window is centered
+     * around the position of <code>entityId</code>.
+     * 
+     * @see CachingLocalEntityProvider#getCachedWindow(Object, int)
+     * @since 3.1.1
+     */
+    public synchronized List<T> getCachedWindow(Object entityId,
+            int maxEntities) {
+        assert entityId != null : "entityId must not be null";
+        if (!isCacheEnabled() || entityCache == null || filterCache == null
+                || maxEntities <= 0) {
+            return Collections.emptyList();
+        }
+        for (FilterCacheEntry filterEntry : filterCache.values()) {
+            for (IdListEntry idEntry : filterEntry.idListMap.values()) {
+                if (idEntry.idList == null) {
+                    continue;
+                }
+                int index = idEntry.idList.indexOf(entityId);
+                if (index < 0) {
+                    continue;
+                }
+                int size = idEntry.idList.size();
+                int from = Math.max(0, index - maxEntities / 2);
+                int to = Math.min(size, from + maxEntities + 1);
+                List<T> window = new ArrayList<T>(to - from);
+                for (Object id : idEntry.idList.subList(from, to)) {
+                    T entity = entityCache.get(id);
+                    if (entity != null && !id.equals(entityId)
+                            && window.size() < maxEntities) {
+                        window.add(entity);
+                    }
+                }
+                return Collections.unmodifiableList(window);
+            }
+        }
+        return Collections.emptyList();
+    }
+
     /**
      * TODO Document me!
      * 
@@ -649,11 +905,92 @@ class CachingSupport<T> implements Serializable {
         FilterCacheEntry e = getFilterCache().get(filter);
         if (e == null) {
             e = new FilterCacheEntry(filter);
+            if (filter != NULL_FILTER) {
+                refineFromCachedSuperset(e);
+            }
             getFilterCache().put(filter, e);
         }
         return e;
     }
 
+    /**
+     * Tries to populate a newly created cache entry in memory from another
+     * cache entry whose filter is less restrictive. This is possible if the
+     * other entry contains complete lists of identifiers (see
+     * {@link FilterCacheEntry#getAllIds(EntityContainer, List)}) and all of
+     * the corresponding entities are in the entity cache. The filter of the
+     * new entry is then evaluated against the cached entities, and the entity
+     * count and the complete identifier lists of the new entry are derived
+     * from the results without querying the database.
+     * <p>
+     * Filters that compare strings are never refined in memory, as the
+     * database may compare them differently depending on its collation (see
+     * {@link FilterEvaluator#comparesStrings(Filter)}).
+     * 
+     * @param entry
+     *            the new cache entry to populate (must not be null).
+     */
+    private void refineFromCachedSuperset(FilterCacheEntry entry) {
+        Filter filter = entry.getFilter();
+        if (filterCache == null || filterCache.isEmpty()
+                || !FilterEvaluator.isEvaluable(filter)
+                || FilterEvaluator.comparesStrings(filter)) {
+            return;
+        }
+        FilterCacheEntry superset = null;
+        int supersetSize = Integer.MAX_VALUE;
+        for (FilterCacheEntry candidate : filterCache.values()) {
+            IdListEntry complete = candidate.getCompleteIdList();
+            if (complete != null && complete.idList.size() < supersetSize
+                    && FilterEvaluator.isRefinementOf(filter,
+                            candidate.getFilter())
+                    && getEntityCache().keySet().containsAll(complete.idList)) {
+                superset = candidate;
+                supersetSize = complete.idList.size();
+            }
+        }
+        if (superset == null) {
+            return;
+        }
+
+        Set<Object> matchingIds = new HashSet<Object>();
+        try {
+            CompiledFilter compiled = FilterEvaluator.compileFilter(filter,
+                    entityProvider.getEntityClassMetadata());
+            for (Object id : superset.getCompleteIdList().idList) {
+                if (compiled.evaluate(getEntityCache().get(id))) {
+                    matchingIds.add(id);
+                }
+            }
+        } catch (RuntimeException e) {
+            // E.g. a lazy loaded property that cannot be accessed. Fall back
+            // to querying the database.
+            logger.log(Level.FINE,
+                    "Could not evaluate the filter against cached entities", e);
+            return;
+        }
+
+        for (Map.Entry<List<SortBy>, IdListEntry> sorted : superset.idListMap
+                .entrySet()) {
+            if (sorted.getValue().containsAll) {
+                IdListEntry refined = new IdListEntry();
+                refined.idList = new ArrayList<Object>(matchingIds.size());
+                // Filtering preserves the order of the superset
+                for (Object id : sorted.getValue().idList) {
+                    if (matchingIds.contains(id)) {
+                        refined.idList.add(id);
+                    }
+                }
+                refined.containsAll = true;
+                entry.idListMap.put(sorted.getKey(), refined);
+            }
+        }
+        entry.entityCount = matchingIds.size();
+        for (Object id : matchingIds) {
+            entry.idSet.add(id);
+        }
+    }
+
     public synchronized void flush() {
         if (entityCache != null) {
             entityCache.clear();
@@ -775,18 +1112,30 @@ class CachingSupport<T> implements Serializable {
     }
 
     /**
-     * Returns a clone of <code>entity</code> if
-     * {@link #isCloneCachedEntities() } is true.
+     * Returns a copy of <code>entity</code> if
+     * {@link #isCloneCachedEntities() } is true. The copy is made by an
+     * {@link EntityCopier}, which is created once for every entity class.
+     * Should the entity not be of a mapped class (e.g. a proxy), it is cloned
+     * using its <code>clone()</code> method instead, provided that it is
+     * {@link Cloneable}.
      * 
      * @param entity
-     *            the entity to clone (must not be null and must be an instance
-     *            of {@link Cloneable}).
-     * @return the cloned entity.
+     *            the entity to copy (must not be null).
+     * @return the copied entity.
      */
     @SuppressWarnings("unchecked")
     protected T cloneEntityIfNeeded(T entity) {
         if (isCloneCachedEntities()) {
-            assert entity instanceof Cloneable : "entity is not cloneable";
+            EntityCopier<T> copier = (EntityCopier<T>) getEntityCopier(entity
+                    .getClass());
+            if (copier != null) {
+                return copier.copy(entity);
+            }
+            if (!(entity instanceof Cloneable)) {
+                throw new UnsupportedOperationException(
+                        "Could not copy entity of "
+                                + entity.getClass().getName());
+            }
             try {
                 Method m = entity.getClass().getMethod("clone");
                 T copy = (T) m.invoke(entity);
@@ -800,6 +1149,47 @@ class CachingSupport<T> implements Serializable {
         }
     }
 
+    /**
+     * Gets the copier for entities of <code>entityClass</code>.
+     * 
+     * @return the copier, or null if the class is not a mapped class.
+     */
+    private synchronized EntityCopier<?> getEntityCopier(Class<?> entityClass) {
+        if (entityCopiers == null) {
+            entityCopiers = new HashMap<Class<?>, EntityCopier<?>>();
+        }
+        if (entityCopiers.containsKey(entityClass)) {
+            return entityCopiers.get(entityClass);
+        }
+        ClassMetadata<?> metadata;
+        if (entityClass == entityProvider.getEntityClassMetadata()
+                .getMappedClass()) {
+            metadata = entityProvider.getEntityClassMetadata();
+        } else {
+            try {
+                metadata = MetadataFactory.getInstance().getEntityClassMetadata(
+                        entityClass);
+            } catch (IllegalArgumentException e) {
+                metadata = null;
+            }
+        }
+        EntityCopier<?> copier = null;
+        if (metadata != null) {
+            try {
+                copier = createEntityCopier(metadata);
+            } catch (IllegalArgumentException e) {
+                logger.log(Level.FINE, "Could not create copier for "
+                        + entityClass.getName(), e);
+            }
+        }
+        entityCopiers.put(entityClass, copier);
+        return copier;
+    }
+
+    private <E> EntityCopier<E> createEntityCopier(ClassMetadata<E> metadata) {
+        return new EntityCopier<E>(metadata, copyEmbeddedObjects);
+    }
+
     public boolean isEntitiesDetached() {
         return usesCache(null) || entityProvider.isEntitiesDetached();
     }
@@ -810,17 +1200,35 @@ class CachingSupport<T> implements Serializable {
 
     public void setCloneCachedEntities(boolean clone)
             throws UnsupportedOperationException {
-        if (!clone) {
-            this.cloneCachedEntities = false;
-        } else {
-            if (Cloneable.class.isAssignableFrom(entityProvider
-                    .getEntityClassMetadata().getMappedClass())) {
-                this.cloneCachedEntities = true;
-            } else {
-                throw new UnsupportedOperationException(
-                        "Entity class is not cloneable");
-            }
-        }
+        // Entities are copied field by field, so they need not be Cloneable
+        this.cloneCachedEntities = clone;
+    }
+
+    /**
+     * Returns whether the embedded objects of cached entities should be copied
+     * as well when the entities are copied. If false, an entity and its copy
+     * share the same embedded objects, so changing e.g.
+     * <code>address.street</code> of a copy also changes the cached entity.
+     * Only used when {@link #isCloneCachedEntities() } is true.
+     * 
+     * @return true if embedded objects should be copied (default), false
+     *         otherwise.
+     * @since 3.1.1
+     */
+    public boolean isCopyEmbeddedObjects() {
+        return copyEmbeddedObjects;
+    }
+
+    /**
+     * Changes the value of the {@link #isCopyEmbeddedObjects() } flag.
+     * 
+     * @param copyEmbeddedObjects
+     *            true to copy embedded objects, false to share them.
+     * @since 3.1.1
+     */
+    public synchronized void setCopyEmbeddedObjects(boolean copyEmbeddedObjects) {
+        this.copyEmbeddedObjects = copyEmbeddedObjects;
+        entityCopiers = null;
     }
 
     public int getEntityCount(EntityContainer<T> container, Filter filter) {
@@ -831,6 +1239,28 @@ class CachingSupport<T> implements Serializable {
         }
     }
 
+    public Map<Object, Long> getValueCounts(EntityContainer<T> container,
+            Object propertyId, Filter filter, int limit) {
+        if (usesCache(container)) {
+            return getFilterCacheEntry(filter).getValueCounts(container,
+                    propertyId, limit);
+        } else {
+            return entityProvider.doGetValueCounts(container, propertyId,
+                    filter, limit);
+        }
+    }
+
+    public Map<Aggregate, Object> getAggregates(EntityContainer<T> container,
+            Filter filter, Collection<Aggregate> aggregates) {
+        if (usesCache(container)) {
+            return getFilterCacheEntry(filter).getAggregates(container,
+                    aggregates);
+        } else {
+            return entityProvider.doGetAggregates(container, filter,
+                    aggregates);
+        }
+    }
+
     public Object getEntityIdentifierAt(EntityContainer<T> container,
             Filter filter, List<SortBy> sortBy, int index) {
         if (sortBy == null) {
@@ -908,6 +1338,8 @@ class CachingSupport<T> implements Serializable {
                     filterCacheEntry.entityCount = null;
                 }
             }
+            filterCacheEntry.valueCountMap.clear();
+            filterCacheEntry.aggregateMap.clear();
         }
 
     }
@@ -0,0 +1,50 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+
+import com.vaadin.addon.jpacontainer.EntityProviderChangeEvent;
+import com.vaadin.addon.jpacontainer.MutableEntityProvider;
+
+/**
+ * Event indicating that one or more entities have been updated, and that only
+ * the listed properties have changed.
+ * 
+ * @since 3.1.1
+ */
+class EntityPropertiesUpdatedEvent<T> extends EntitiesUpdatedEvent<T>
+        implements EntityProviderChangeEvent.EntityPropertiesUpdatedEvent<T> {
+
+    private static final long serialVersionUID = 4308471916356521887L;
+    private final Collection<String> propertyIds;
+
+    public EntityPropertiesUpdatedEvent(
+            MutableEntityProvider<T> entityProvider,
+            Collection<String> propertyIds, T... entities) {
+        super(entityProvider, entities);
+        this.propertyIds = Collections
+                .unmodifiableCollection(new ArrayList<String>(propertyIds));
+    }
+
+    @Override
+    public Collection<String> getPropertyIds() {
+        return propertyIds;
+    }
+}
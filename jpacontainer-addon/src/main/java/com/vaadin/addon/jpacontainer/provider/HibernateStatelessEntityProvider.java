@@ -0,0 +1,300 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+
+import com.vaadin.addon.jpacontainer.BatchableEntityProvider;
+
+/**
+ * A {@link BatchableEntityProvider} for bulk imports on Hibernate. Entities
+ * are read using the entity manager like with any other
+ * {@link LocalEntityProvider}, but all the changes are written using a
+ * Hibernate <code>StatelessSession</code>. A stateless session has no
+ * first-level cache and performs no dirty checking, which makes inserting a
+ * large number of entities considerably faster and keeps the memory
+ * consumption constant. To have the inserts sent to the database in JDBC
+ * batches, set the <code>hibernate.jdbc.batch_size</code> property of the
+ * persistence unit.
+ * <p>
+ * A {@link #batchUpdate(BatchUpdateCallback) } runs all its operations in one
+ * stateless session and transaction, and fires a single
+ * {@link BatchUpdatePerformedEvent} when done. This is what
+ * {@link com.vaadin.addon.jpacontainer.JPAContainer} does when buffered
+ * changes are committed. Operations outside of a batch update each run in
+ * their own stateless session.
+ * <p>
+ * Note that a stateless session ignores cascades, collections and
+ * interceptors, i.e. only the entities themselves are written. If the entity
+ * manager is not a Hibernate entity manager, this provider behaves exactly
+ * like {@link BatchableLocalEntityProvider}.
+ * <p>
+ * A stateless session uses a connection of its own, so it cannot take part
+ * in a transaction of the entity manager or an externally managed (e.g. JTA)
+ * transaction. The transactions of the stateless sessions are therefore
+ * always handled by this provider, and the write operations throw an
+ * {@link IllegalStateException} if
+ * {@link #isTransactionsHandledByProvider() } is false.
+ * 
+ * @since 3.1.1
+ */
+public class HibernateStatelessEntityProvider<T> extends
+        BatchableLocalEntityProvider<T> {
+
+    private static final long serialVersionUID = -2651284519213742961L;
+
+    // The session of the ongoing operation or batch update, if any
+    private transient StatelessSessionHandle currentSession;
+
+    /**
+     * Creates a new <code>HibernateStatelessEntityProvider</code>. The entity
+     * manager must be set using
+     * {@link #setEntityManager(javax.persistence.EntityManager) }.
+     * 
+     * @param entityClass
+     *            the entity class (must not be null).
+     */
+    public HibernateStatelessEntityProvider(Class<T> entityClass) {
+        super(entityClass);
+    }
+
+    /**
+     * Creates a new <code>HibernateStatelessEntityProvider</code>.
+     * 
+     * @param entityClass
+     *            the entity class (must not be null).
+     * @param entityManager
+     *            the entity manager to use (must not be null).
+     */
+    public HibernateStatelessEntityProvider(Class<T> entityClass,
+            EntityManager entityManager) {
+        super(entityClass, entityManager);
+    }
+
+    /**
+     * An operation to run in a stateless session.
+     */
+    private interface StatelessOperation {
+        void run(StatelessSessionHandle session);
+    }
+
+    /**
+     * Checks whether the entity manager is a Hibernate entity manager, i.e.
+     * whether stateless sessions are used to write the changes.
+     */
+    public boolean isStatelessSessionSupported() {
+        return StatelessSessionHandle.isSupported(getEntityManager());
+    }
+
+    private void runInStatelessSession(StatelessOperation operation) {
+        if (currentSession != null) {
+            operation.run(currentSession);
+            return;
+        }
+        if (!isTransactionsHandledByProvider()) {
+            throw new IllegalStateException(
+                    "Stateless sessions cannot join externally managed "
+                            + "transactions, transactions must be handled by "
+                            + "the provider");
+        }
+        StatelessSessionHandle session = StatelessSessionHandle
+                .open(getEntityManager());
+        currentSession = session;
+        try {
+            session.beginTransaction();
+            try {
+                operation.run(session);
+                session.commit();
+            } finally {
+                // Does nothing if the transaction has been committed
+                session.rollback();
+            }
+        } finally {
+            currentSession = null;
+            session.close();
+        }
+    }
+
+    @Override
+    public void batchUpdate(final BatchUpdateCallback<T> callback)
+            throws UnsupportedOperationException {
+        assert callback != null : "callback must not be null";
+        if (!isStatelessSessionSupported()) {
+            super.batchUpdate(callback);
+            return;
+        }
+        setFireEntityProviderChangeEvents(false);
+        try {
+            runInStatelessSession(new StatelessOperation() {
+
+                @Override
+                public void run(StatelessSessionHandle session) {
+                    callback.batchUpdate(HibernateStatelessEntityProvider.this);
+                }
+            });
+        } finally {
+            setFireEntityProviderChangeEvents(true);
+        }
+        fireEntityProviderChangeEvent(new BatchUpdatePerformedEvent<T>(this));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The entity is inserted as it is, so the returned instance is always
+     * <code>entity</code> itself.
+     */
+    @Override
+    public T addEntity(final T entity) {
+        assert entity != null : "entity must not be null";
+        if (!isStatelessSessionSupported()) {
+            return super.addEntity(entity);
+        }
+        runInStatelessSession(new StatelessOperation() {
+
+            @Override
+            public void run(StatelessSessionHandle session) {
+                session.insert(entity);
+            }
+        });
+        fireEntityProviderChangeEvent(new EntitiesAddedEvent<T>(this, entity));
+        return entity;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void addEntities(final Collection<? extends T> entities) {
+        assert entities != null : "entities must not be null";
+        if (!isStatelessSessionSupported()) {
+            super.addEntities(entities);
+            return;
+        }
+        if (entities.isEmpty()) {
+            return;
+        }
+        final List<T> added = new ArrayList<T>(entities);
+        runInStatelessSession(new StatelessOperation() {
+
+            @Override
+            public void run(StatelessSessionHandle session) {
+                for (T entity : added) {
+                    session.insert(entity);
+                }
+            }
+        });
+        fireEntityProviderChangeEvent(new EntitiesAddedEvent<T>(this,
+                (T[]) added.toArray()));
+    }
+
+    @Override
+    public void removeEntity(final Object entityId) {
+        assert entityId != null : "entityId must not be null";
+        if (!isStatelessSessionSupported()) {
+            super.removeEntity(entityId);
+            return;
+        }
+        final List<T> removed = new ArrayList<T>(1);
+        runInStatelessSession(new StatelessOperation() {
+
+            @Override
+            public void run(StatelessSessionHandle session) {
+                T entity = session.get(getEntityClassMetadata()
+                        .getMappedClass(), entityId);
+                if (entity != null) {
+                    session.delete(entity);
+                    removed.add(entity);
+                }
+            }
+        });
+        if (!removed.isEmpty()) {
+            fireEntityProviderChangeEvent(new EntitiesRemovedEvent<T>(this,
+                    removed.get(0)));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The entity is updated as it is, so the returned instance is always
+     * <code>entity</code> itself. Its version, if any, is incremented.
+     */
+    @Override
+    public T updateEntity(final T entity) {
+        assert entity != null : "entity must not be null";
+        if (!isStatelessSessionSupported()) {
+            return super.updateEntity(entity);
+        }
+        runInStatelessSession(new StatelessOperation() {
+
+            @Override
+            public void run(StatelessSessionHandle session) {
+                session.update(entity);
+            }
+        });
+        fireEntityProviderChangeEvent(new EntitiesUpdatedEvent<T>(this, entity));
+        return entity;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * A stateless session always updates all the columns, so this is the same
+     * as {@link #updateEntity(Object) } if stateless sessions are supported.
+     */
+    @Override
+    public T updateEntityProperties(T entity, Collection<String> propertyNames) {
+        if (!isStatelessSessionSupported()) {
+            return super.updateEntityProperties(entity, propertyNames);
+        }
+        return updateEntity(entity);
+    }
+
+    @Override
+    public void updateEntityProperty(final Object entityId,
+            final String propertyName, final Object propertyValue)
+            throws IllegalArgumentException {
+        assert entityId != null : "entityId must not be null";
+        assert propertyName != null : "propertyName must not be null";
+        if (!isStatelessSessionSupported()) {
+            super.updateEntityProperty(entityId, propertyName, propertyValue);
+            return;
+        }
+        final List<T> updated = new ArrayList<T>(1);
+        runInStatelessSession(new StatelessOperation() {
+
+            @Override
+            public void run(StatelessSessionHandle session) {
+                T entity = session.get(getEntityClassMetadata()
+                        .getMappedClass(), entityId);
+                if (entity != null) {
+                    getEntityClassMetadata().setPropertyValue(entity,
+                            propertyName, propertyValue);
+                    session.update(entity);
+                    updated.add(entity);
+                }
+            }
+        });
+        if (!updated.isEmpty()) {
+            fireEntityProviderChangeEvent(new EntityPropertyUpdatedEvent<T>(
+                    this, propertyName, updated.get(0)));
+        }
+    }
+}
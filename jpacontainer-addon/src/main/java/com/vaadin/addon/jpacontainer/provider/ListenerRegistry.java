@@ -0,0 +1,206 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.lang.ref.WeakReference;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vaadin.addon.jpacontainer.EntityProviderChangeEvent;
+import com.vaadin.addon.jpacontainer.EntityProviderChangeListener;
+
+/**
+ * Registry of weakly referenced {@link EntityProviderChangeListener}s used by
+ * {@link MutableLocalEntityProvider}. The listeners are kept in a
+ * copy-on-write list, so events can be fired without locking while listeners
+ * are added or removed by other threads.
+ * <p>
+ * If an {@link Executor} has been set, the events are delivered
+ * asynchronously: every listener has a queue of its own, which is drained by
+ * at most one task at a time, so each listener receives the events in the
+ * order in which they were fired, while a slow listener does not hold up the
+ * others or the thread that fired the event.
+ * 
+ * @since 3.1.1
+ */
+final class ListenerRegistry<T> {
+
+    private static final Logger logger = Logger
+            .getLogger(ListenerRegistry.class.getName());
+
+    private final CopyOnWriteArrayList<ListenerReference<T>> listeners = new CopyOnWriteArrayList<ListenerReference<T>>();
+    private volatile Executor executor;
+    private final AtomicInteger pendingEvents = new AtomicInteger();
+    private final AtomicInteger peakPendingEvents = new AtomicInteger();
+    private final AtomicLong dispatchedEvents = new AtomicLong();
+
+    /**
+     * Weak reference to a listener, together with the events waiting to be
+     * delivered to it asynchronously.
+     */
+    private static final class ListenerReference<T> extends
+            WeakReference<EntityProviderChangeListener<T>> {
+
+        private final Queue<EntityProviderChangeEvent<T>> queue = new ConcurrentLinkedQueue<EntityProviderChangeEvent<T>>();
+        private final AtomicBoolean draining = new AtomicBoolean();
+
+        ListenerReference(EntityProviderChangeListener<T> listener) {
+            super(listener);
+        }
+    }
+
+    void addListener(EntityProviderChangeListener<T> listener) {
+        assert listener != null : "listener must not be null";
+        listeners.add(new ListenerReference<T>(listener));
+    }
+
+    void removeListener(EntityProviderChangeListener<T> listener) {
+        assert listener != null : "listener must not be null";
+        for (ListenerReference<T> ref : listeners) {
+            EntityProviderChangeListener<T> l = ref.get();
+            // also clean up old references
+            if (l == null || listener.equals(l)) {
+                listeners.remove(ref);
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return listeners.isEmpty();
+    }
+
+    /**
+     * Sets the executor to deliver the events with, or null to deliver them
+     * synchronously on the thread that fires them.
+     */
+    void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sends <code>event</code> to all the listeners that have not been garbage
+     * collected.
+     * 
+     * @param event
+     *            the event to send (must not be null).
+     */
+    void fireEvent(EntityProviderChangeEvent<T> event) {
+        assert event != null : "event must not be null";
+        Executor e = executor;
+        // Iterates over a snapshot of the list
+        for (ListenerReference<T> ref : listeners) {
+            EntityProviderChangeListener<T> listener = ref.get();
+            if (listener == null) {
+                listeners.remove(ref);
+            } else if (e == null && ref.queue.isEmpty()) {
+                deliver(listener, event);
+            } else {
+                enqueue(ref, event, e);
+            }
+        }
+    }
+
+    private void enqueue(final ListenerReference<T> ref,
+            EntityProviderChangeEvent<T> event, Executor e) {
+        ref.queue.add(event);
+        int pending = pendingEvents.incrementAndGet();
+        int peak = peakPendingEvents.get();
+        while (pending > peak
+                && !peakPendingEvents.compareAndSet(peak, pending)) {
+            peak = peakPendingEvents.get();
+        }
+        if (!ref.draining.compareAndSet(false, true)) {
+            // The running task will pick up the event
+            return;
+        }
+        if (e == null) {
+            // Asynchronous dispatching has been turned off while events were
+            // still queued; deliver them in order on this thread
+            drain(ref);
+            return;
+        }
+        try {
+            e.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    drain(ref);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            logger.log(Level.WARNING,
+                    "Event dispatch task rejected, delivering synchronously",
+                    ex);
+            drain(ref);
+        }
+    }
+
+    private void drain(ListenerReference<T> ref) {
+        while (true) {
+            EntityProviderChangeEvent<T> event;
+            while ((event = ref.queue.poll()) != null) {
+                pendingEvents.decrementAndGet();
+                EntityProviderChangeListener<T> listener = ref.get();
+                if (listener != null) {
+                    try {
+                        deliver(listener, event);
+                    } catch (RuntimeException ex) {
+                        // Nobody to throw to, keep delivering to the others
+                        logger.log(Level.SEVERE,
+                                "Listener failed to handle event", ex);
+                    }
+                }
+            }
+            ref.draining.set(false);
+            // An event may have been queued after the last poll but before
+            // the flag was cleared
+            if (ref.queue.isEmpty() || !ref.draining.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    private void deliver(EntityProviderChangeListener<T> listener,
+            EntityProviderChangeEvent<T> event) {
+        listener.entityProviderChange(event);
+        dispatchedEvents.incrementAndGet();
+    }
+
+    int getPendingEventCount() {
+        return pendingEvents.get();
+    }
+
+    int getPeakPendingEventCount() {
+        return peakPendingEvents.get();
+    }
+
+    long getDispatchedEventCount() {
+        return dispatchedEvents.get();
+    }
+}
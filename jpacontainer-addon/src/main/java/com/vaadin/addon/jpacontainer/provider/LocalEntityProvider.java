@@ -20,8 +20,10 @@ import java.io.ObjectStreamException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -31,16 +33,19 @@ import javax.persistence.TransactionRequiredException;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Expression;
 import javax.persistence.criteria.Join;
 import javax.persistence.criteria.JoinType;
 import javax.persistence.criteria.Order;
 import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Selection;
 
+import com.vaadin.addon.jpacontainer.Aggregate;
+import com.vaadin.addon.jpacontainer.AggregatingEntityProvider;
 import com.vaadin.addon.jpacontainer.EntityContainer;
 import com.vaadin.addon.jpacontainer.EntityManagerProvider;
-import com.vaadin.addon.jpacontainer.EntityProvider;
 import com.vaadin.addon.jpacontainer.LazyLoadingDelegate;
 import com.vaadin.addon.jpacontainer.QueryModifierDelegate;
 import com.vaadin.addon.jpacontainer.SortBy;
@@ -83,7 +88,8 @@ import com.vaadin.data.util.filter.Or;
  * @author Petter Holmström (Vaadin Ltd)
  * @since 1.0
  */
-public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
+public class LocalEntityProvider<T> implements AggregatingEntityProvider<T>,
+        Serializable {
 
     private static final long serialVersionUID = 1601796410565144708L;
     private transient EntityManager entityManager;
@@ -447,21 +453,7 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         }
         tellDelegateFiltersWereAdded(container, cb, query);
 
-        if (getEntityClassMetadata().hasEmbeddedIdentifier()) {
-            /*
-             * Hibernate will generate SQL for "count(obj)" that does not run on
-             * HSQLDB. "count(*)" works fine, but then EclipseLink won't work.
-             * With this hack, this method should work with both Hibernate and
-             * EclipseLink.
-             */
-            query.select(cb.count(root.get(entityIdPropertyName).get(
-                    getEntityClassMetadata().getIdentifierProperty()
-                            .getTypeMetadata().getPersistentPropertyNames()
-                            .iterator().next())));
-        } else {
-
-            query.select(cb.count(root.get(entityIdPropertyName)));
-        }
+        query.select(countEntities(cb, root));
         tellDelegateQueryHasBeenBuilt(container, cb, query);
         TypedQuery<Long> tq = doGetEntityManager().createQuery(query);
         return tq.getSingleResult() == 1;
@@ -511,9 +503,6 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
     }
 
     protected int doGetEntityCount(EntityContainer<T> container, Filter filter) {
-        String entityIdPropertyName = getEntityClassMetadata()
-                .getIdentifierProperty().getName();
-
         CriteriaBuilder cb = doGetEntityManager().getCriteriaBuilder();
         CriteriaQuery<Long> query = cb.createQuery(Long.class);
         Root<T> root = query.from(getEntityClassMetadata().getMappedClass());
@@ -530,6 +519,29 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         }
         tellDelegateFiltersWereAdded(container, cb, query);
 
+        query.select(countEntities(cb, root));
+        tellDelegateQueryHasBeenBuilt(container, cb, query);
+        TypedQuery<Long> tq = doGetEntityManager().createQuery(query);
+        return tq.getSingleResult().intValue();
+    }
+
+    @Override
+    public int getEntityCount(EntityContainer<T> container, Filter filter) {
+        return doGetEntityCount(container, filter);
+    }
+
+    /**
+     * Creates an expression that counts the entities of <code>root</code>.
+     * 
+     * @param cb
+     *            the criteria builder to use (must not be null).
+     * @param root
+     *            the root of the query (must not be null).
+     * @return the count expression (never null).
+     */
+    private Expression<Long> countEntities(CriteriaBuilder cb, Root<T> root) {
+        String entityIdPropertyName = getEntityClassMetadata()
+                .getIdentifierProperty().getName();
         if (getEntityClassMetadata().hasEmbeddedIdentifier()) {
             /*
              * Hibernate will generate SQL for "count(obj)" that does not run on
@@ -537,22 +549,160 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
              * With this hack, this method should work with both Hibernate and
              * EclipseLink.
              */
-
-            query.select(cb.count(root.get(entityIdPropertyName).get(
+            return cb.count(root.get(entityIdPropertyName).get(
                     getEntityClassMetadata().getIdentifierProperty()
                             .getTypeMetadata().getPersistentPropertyNames()
-                            .iterator().next())));
+                            .iterator().next()));
         } else {
-            query.select(cb.count(root.get(entityIdPropertyName)));
+            return cb.count(root.get(entityIdPropertyName));
+        }
+    }
+
+    protected Map<Object, Long> doGetValueCounts(EntityContainer<T> container,
+            Object propertyId, Filter filter, int limit) {
+        assert propertyId != null : "propertyId must not be null";
+        assert limit >= 0 : "limit must not be negative";
+
+        CriteriaBuilder cb = doGetEntityManager().getCriteriaBuilder();
+        CriteriaQuery<Object[]> query = cb.createQuery(Object[].class);
+        Root<T> root = query.from(getEntityClassMetadata().getMappedClass());
+
+        tellDelegateQueryWillBeBuilt(container, cb, query);
+
+        List<Predicate> predicates = new ArrayList<Predicate>();
+        if (filter != null) {
+            predicates.add(FilterConverter.convertFilter(filter, cb, root));
+        }
+        tellDelegateFiltersWillBeAdded(container, cb, query, predicates);
+        if (!predicates.isEmpty()) {
+            query.where(CollectionUtil.toArray(Predicate.class, predicates));
         }
+        tellDelegateFiltersWereAdded(container, cb, query);
+
+        Path<?> value = AdvancedFilterableSupport.getPropertyPathTyped(
+                root, propertyId.toString());
+        Expression<Long> count = countEntities(cb, root);
+        query.multiselect(value, count);
+        query.groupBy(value);
+        query.orderBy(cb.desc(count));
         tellDelegateQueryHasBeenBuilt(container, cb, query);
-        TypedQuery<Long> tq = doGetEntityManager().createQuery(query);
-        return tq.getSingleResult().intValue();
+
+        TypedQuery<Object[]> tq = doGetEntityManager().createQuery(query);
+        if (limit > 0) {
+            tq.setMaxResults(limit);
+        }
+        Map<Object, Long> result = new LinkedHashMap<Object, Long>();
+        for (Object[] row : tq.getResultList()) {
+            result.put(row[0], (Long) row[1]);
+        }
+        return Collections.unmodifiableMap(result);
     }
 
     @Override
-    public int getEntityCount(EntityContainer<T> container, Filter filter) {
-        return doGetEntityCount(container, filter);
+    public Map<Object, Long> getValueCounts(EntityContainer<T> container,
+            Object propertyId, Filter filter, int limit) {
+        return doGetValueCounts(container, propertyId, filter, limit);
+    }
+
+    protected Map<Aggregate, Object> doGetAggregates(
+            EntityContainer<T> container, Filter filter,
+            Collection<Aggregate> aggregates) throws IllegalArgumentException {
+        assert aggregates != null && !aggregates.isEmpty() : "aggregates must not be null or empty";
+
+        CriteriaBuilder cb = doGetEntityManager().getCriteriaBuilder();
+        CriteriaQuery<Object> query = cb.createQuery();
+        Root<T> root = query.from(getEntityClassMetadata().getMappedClass());
+
+        tellDelegateQueryWillBeBuilt(container, cb, query);
+
+        List<Predicate> predicates = new ArrayList<Predicate>();
+        if (filter != null) {
+            predicates.add(FilterConverter.convertFilter(filter, cb, root));
+        }
+        tellDelegateFiltersWillBeAdded(container, cb, query, predicates);
+        if (!predicates.isEmpty()) {
+            query.where(CollectionUtil.toArray(Predicate.class, predicates));
+        }
+        tellDelegateFiltersWereAdded(container, cb, query);
+
+        List<Aggregate> aggregateList = new ArrayList<Aggregate>(aggregates);
+        List<Selection<?>> selections = new ArrayList<Selection<?>>();
+        for (Aggregate aggregate : aggregateList) {
+            selections.add(translateAggregate(aggregate, cb, root));
+        }
+        if (selections.size() > 1) {
+            query.multiselect(selections.toArray(new Selection<?>[selections
+                    .size()]));
+        } else {
+            query.select(selections.get(0));
+        }
+        tellDelegateQueryHasBeenBuilt(container, cb, query);
+
+        Object row = doGetEntityManager().createQuery(query).getSingleResult();
+        Object[] values = selections.size() > 1 ? (Object[]) row
+                : new Object[] { row };
+        Map<Aggregate, Object> result = new LinkedHashMap<Aggregate, Object>();
+        for (int i = 0; i < aggregateList.size(); ++i) {
+            result.put(aggregateList.get(i), values[i]);
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    @Override
+    public Map<Aggregate, Object> getAggregates(EntityContainer<T> container,
+            Filter filter, Collection<Aggregate> aggregates)
+            throws IllegalArgumentException {
+        return doGetAggregates(container, filter, aggregates);
+    }
+
+    /**
+     * Translates the specified aggregate into a criteria expression.
+     * 
+     * @param aggregate
+     *            the aggregate to translate (must not be null).
+     * @param cb
+     *            the criteria builder to use (must not be null).
+     * @param root
+     *            the root of the query (must not be null).
+     * @return the aggregate expression (never null).
+     * @throws IllegalArgumentException
+     *             if a sum or an average is requested for a property that is
+     *             not numeric.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    protected Expression<?> translateAggregate(Aggregate aggregate,
+            CriteriaBuilder cb, Root<T> root) throws IllegalArgumentException {
+        Path<?> path = AdvancedFilterableSupport.getPropertyPathTyped(root,
+                aggregate.getPropertyId().toString());
+        switch (aggregate.getFunction()) {
+        case SUM:
+            return cb.sum(toNumericExpression(aggregate, path));
+        case AVG:
+            return cb.avg(toNumericExpression(aggregate, path));
+        case MIN:
+            return cb.least((Expression) path);
+        case MAX:
+            return cb.greatest((Expression) path);
+        case COUNT:
+            return cb.count(path);
+        default:
+            throw new IllegalArgumentException("Unsupported aggregate "
+                    + aggregate);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Expression<Number> toNumericExpression(Aggregate aggregate,
+            Path<?> path) throws IllegalArgumentException {
+        Class<?> type = path.getJavaType();
+        boolean numeric = Number.class.isAssignableFrom(type)
+                || (type.isPrimitive() && type != boolean.class
+                        && type != char.class && type != void.class);
+        if (!numeric) {
+            throw new IllegalArgumentException(aggregate
+                    + " requires a numeric property");
+        }
+        return (Expression<Number>) path;
     }
 
     protected Object doGetFirstEntityIdentifier(EntityContainer<T> container,
@@ -16,17 +16,30 @@
 
 package com.vaadin.addon.jpacontainer.provider;
 
-import java.lang.ref.WeakReference;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
+import javax.persistence.CascadeType;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityTransaction;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.Query;
 
 import com.vaadin.addon.jpacontainer.EntityProviderChangeEvent;
 import com.vaadin.addon.jpacontainer.EntityProviderChangeListener;
 import com.vaadin.addon.jpacontainer.EntityProviderChangeNotifier;
-import com.vaadin.addon.jpacontainer.MutableEntityProvider;
+import com.vaadin.addon.jpacontainer.PartialUpdateEntityProvider;
+import com.vaadin.addon.jpacontainer.metadata.ChangeDetector;
+import com.vaadin.addon.jpacontainer.metadata.EntityClassMetadata;
+import com.vaadin.addon.jpacontainer.metadata.PersistentPropertyMetadata;
+import com.vaadin.addon.jpacontainer.metadata.PropertyKind;
+import com.vaadin.addon.jpacontainer.metadata.PropertyMetadata;
 
 /**
  * Extended version of {@link LocalEntityProvider} that provides editing
@@ -42,7 +55,8 @@ import com.vaadin.addon.jpacontainer.MutableEntityProvider;
  * @since 1.0
  */
 public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
-        implements MutableEntityProvider<T>, EntityProviderChangeNotifier<T> {
+        implements PartialUpdateEntityProvider<T>,
+        EntityProviderChangeNotifier<T> {
 
     private static final long serialVersionUID = -6628293930338167750L;
 
@@ -130,6 +144,14 @@ public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * New entities, i.e. entities whose identifier or version is null, are
+     * persisted directly instead of being merged, as merging copies the
+     * entity and may load the referenced entities. In that case the returned
+     * instance is <code>entity</code> itself.
+     */
     @Override
     @SuppressWarnings("unchecked")
     public T addEntity(final T entity) {
@@ -140,7 +162,7 @@ public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
             @Override
             public void run() {
                 EntityManager em = getEntityManager();
-                entityA[0] = em.merge(entity);
+                entityA[0] = persistOrMerge(em, entity);
                 em.flush();
             }
         });
@@ -149,6 +171,97 @@ public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
         return dEntity;
     }
 
+    /**
+     * Adds all <code>entities</code> in a single transaction and fires a
+     * single change event. This is considerably faster than calling
+     * {@link #addEntity(Object) } for every entity when the added instances
+     * are not needed afterwards, e.g. when importing data. New entities are
+     * persisted as described in {@link #addEntity(Object) }, and are only
+     * detached if {@link #isEntitiesDetached() } is true.
+     * 
+     * @param entities
+     *            the entities to add (must not be null).
+     * @since 3.1.1
+     */
+    @SuppressWarnings("unchecked")
+    public void addEntities(final Collection<? extends T> entities) {
+        assert entities != null : "entities must not be null";
+        if (entities.isEmpty()) {
+            return;
+        }
+        final List<T> added = new ArrayList<T>(entities.size());
+        runInTransaction(new Runnable() {
+
+            @Override
+            public void run() {
+                EntityManager em = getEntityManager();
+                for (T entity : entities) {
+                    added.add(persistOrMerge(em, entity));
+                }
+                em.flush();
+            }
+        });
+        if (isEntitiesDetached()) {
+            for (T entity : added) {
+                detachEntity(entity);
+            }
+        }
+        fireEntityProviderChangeEvent(new EntitiesAddedEvent<T>(this,
+                (T[]) added.toArray()));
+    }
+
+    private T persistOrMerge(EntityManager em, T entity) {
+        if (isTransient(entity)) {
+            em.persist(entity);
+            return entity;
+        } else {
+            return em.merge(entity);
+        }
+    }
+
+    /**
+     * Checks whether <code>entity</code> is new, i.e. has never been
+     * persisted, so that it can be persisted instead of merged. This is the
+     * case if its identifier or version is null. Entities with relationships
+     * that cascade the persist operation are always merged, as they may refer
+     * to detached entities.
+     */
+    private boolean isTransient(T entity) {
+        EntityClassMetadata<T> metadata = getEntityClassMetadata();
+        if (entity.getClass() != metadata.getMappedClass()
+                || isPersistCascaded()) {
+            return false;
+        }
+        if (metadata.hasVersionProperty()
+                && metadata.getPropertyValue(entity, metadata
+                        .getVersionProperty().getName()) == null) {
+            return true;
+        }
+        return metadata.hasIdentifierProperty()
+                && metadata.getPropertyValue(entity, metadata
+                        .getIdentifierProperty().getName()) == null;
+    }
+
+    private transient Boolean persistCascaded;
+
+    private boolean isPersistCascaded() {
+        if (persistCascaded == null) {
+            boolean cascaded = false;
+            for (PersistentPropertyMetadata pm : getEntityClassMetadata()
+                    .getPersistentProperties()) {
+                cascaded |= cascadesPersist(pm);
+            }
+            persistCascaded = cascaded;
+        }
+        return persistCascaded;
+    }
+
+    private static boolean cascadesPersist(PersistentPropertyMetadata pm) {
+        Set<CascadeType> cascade = pm.getCascadeTypes();
+        return cascade.contains(CascadeType.ALL)
+                || cascade.contains(CascadeType.PERSIST);
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public void removeEntity(final Object entityId) {
@@ -194,12 +307,35 @@ public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public void updateEntityProperty(final Object entityId,
             final String propertyName, final Object propertyValue)
             throws IllegalArgumentException {
         assert entityId != null : "entityId must not be null";
         assert propertyName != null : "propertyName must not be null";
+        T entity = updateEntityPropertyDirectly(entityId, propertyName,
+                propertyValue);
+        if (entity == null) {
+            entity = updateEntityPropertyByMerge(entityId, propertyName,
+                    propertyValue);
+        }
+        if (entity != null) {
+            fireEntityProviderChangeEvent(new EntityPropertyUpdatedEvent<T>(
+                    this, propertyName, entity));
+        }
+    }
+
+    /**
+     * Updates the property by loading the latest version of the entity,
+     * setting the property value and merging the entity back. This works for
+     * all kinds of properties, but requires several round trips to the
+     * database.
+     * 
+     * @return the updated and detached entity, or null if no entity was found.
+     * @since 3.1.1
+     */
+    @SuppressWarnings("unchecked")
+    protected T updateEntityPropertyByMerge(final Object entityId,
+            final String propertyName, final Object propertyValue) {
         final Object[] entityA = new Object[1];
         runInTransaction(new Runnable() {
 
@@ -221,48 +357,398 @@ public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
                 }
             }
         });
-        if (entityA[0] != null) {
-            fireEntityProviderChangeEvent(new EntityPropertyUpdatedEvent(this,
-                    propertyName, entityA));
+        return (T) entityA[0];
+    }
+
+    /**
+     * Updates the property using a single <code>UPDATE</code> statement, if
+     * {@link #isDirectPropertyUpdatesEnabled() } is true, the property is a
+     * simple persistent property, entities are detached (see
+     * {@link #isEntitiesDetached() }) and the entity is available from
+     * {@link #getCachedEntity(Object) }. If the entity has a numeric version
+     * property, the version is incremented and checked against the version of
+     * the cached entity. The cached entity is updated in place.
+     * 
+     * @return the updated entity, or null if the property could not be
+     *         updated this way.
+     * @throws OptimisticLockException
+     *             if the entity has been updated or removed by someone else.
+     * @since 3.1.1
+     */
+    protected T updateEntityPropertyDirectly(final Object entityId,
+            final String propertyName, final Object propertyValue)
+            throws OptimisticLockException {
+        if (!isDirectPropertyUpdatesEnabled() || !isEntitiesDetached()
+                || !isDirectlyUpdatable(propertyName)) {
+            return null;
+        }
+        T entity = getCachedEntity(entityId);
+        if (entity == null) {
+            return null;
+        }
+        EntityClassMetadata<T> metadata = getEntityClassMetadata();
+        Object expectedVersion = metadata.hasVersionProperty() ? metadata
+                .getPropertyValue(entity, metadata.getVersionProperty()
+                        .getName()) : null;
+        executeUpdate(entityId, entity,
+                Collections.singletonMap(propertyName, propertyValue),
+                expectedVersion);
+        metadata.setPropertyValue(entity, propertyName, propertyValue);
+        return entity;
+    }
+
+    /**
+     * Saves the changes made to <code>entity</code> by writing only the
+     * properties in <code>propertyNames</code> with a single
+     * <code>UPDATE</code> statement, if
+     * {@link #isPartialUpdateEnabled() } is true and all the properties are
+     * columns of the entity according to
+     * {@link EntityClassMetadata#getChangeDetector() }. Otherwise, or if
+     * <code>propertyNames</code> is empty, the entity is merged using
+     * {@link #updateEntity(Object) }.
+     * <p>
+     * Unless <code>propertyNames</code> is empty, the listeners are notified
+     * with an
+     * {@link com.vaadin.addon.jpacontainer.EntityProviderChangeEvent.EntityPropertiesUpdatedEvent}
+     * listing the changed properties.
+     * <p>
+     * If the entity has a numeric version property, the version is
+     * incremented and checked against the version of <code>entity</code>,
+     * which is updated in place and returned.
+     * 
+     * @throws OptimisticLockException
+     *             if the entity has been updated or removed by someone else.
+     * @since 3.1.1
+     */
+    @Override
+    public T updateEntityProperties(final T entity,
+            final Collection<String> propertyNames)
+            throws OptimisticLockException {
+        assert entity != null : "entity must not be null";
+        assert propertyNames != null : "propertyNames must not be null";
+        EntityClassMetadata<T> metadata = getEntityClassMetadata();
+        ChangeDetector<T> detector = metadata.getChangeDetector();
+        if (propertyNames.isEmpty()) {
+            return updateEntity(entity);
+        }
+        if (!isPartialUpdateEnabled()
+                || getEntityManager().contains(entity)) {
+            return mergeEntityProperties(entity, propertyNames);
+        }
+        Object entityId = metadata.getPropertyValue(entity, metadata
+                .getIdentifierProperty().getName());
+        if (entityId == null) {
+            return mergeEntityProperties(entity, propertyNames);
+        }
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        for (String propertyName : propertyNames) {
+            if (!detector.isColumn(propertyName)) {
+                return mergeEntityProperties(entity, propertyNames);
+            }
+            values.put(propertyName,
+                    metadata.getPropertyValue(entity, propertyName));
+        }
+        Object expectedVersion = metadata.hasVersionProperty() ? metadata
+                .getPropertyValue(entity, metadata.getVersionProperty()
+                        .getName()) : null;
+        executeUpdate(entityId, entity, values, expectedVersion);
+        fireEntityProviderChangeEvent(new EntityPropertiesUpdatedEvent<T>(
+                this, propertyNames, entity));
+        return entity;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This is the case if {@link #isDirectPropertyUpdatesEnabled() } and
+     * {@link #isEntitiesDetached() } are true and the entity can be updated
+     * with a single statement, i.e. it has a simple identifier and, if
+     * versioned, a numeric version. An <code>UPDATE</code> statement bypasses
+     * the persistence context, so managed entities would not see the changes
+     * and could overwrite them when flushed.
+     * 
+     * @since 3.1.1
+     */
+    @Override
+    public boolean isPartialUpdateEnabled() {
+        return isDirectPropertyUpdatesEnabled() && isEntitiesDetached()
+                && isDirectlyUpdatable()
+                && getEntityClassMetadata().getChangeDetector().isSupported();
+    }
+
+    /**
+     * Updates <code>entity</code> using {@link #updateEntity(Object) }, but
+     * fires an {@link EntityPropertiesUpdatedEvent} listing
+     * <code>propertyNames</code> instead of a plain update event.
+     */
+    private T mergeEntityProperties(T entity, Collection<String> propertyNames) {
+        boolean fireEvents = isFireEntityProviderChangeEvent();
+        setFireEntityProviderChangeEvents(false);
+        T result;
+        try {
+            result = updateEntity(entity);
+        } finally {
+            setFireEntityProviderChangeEvents(fireEvents);
+        }
+        fireEntityProviderChangeEvent(new EntityPropertiesUpdatedEvent<T>(
+                this, propertyNames, result));
+        return result;
+    }
+
+    /**
+     * Writes <code>values</code> to the entity identified by
+     * <code>entityId</code> using a single <code>UPDATE</code> statement,
+     * incrementing and checking the version if there is one. The version of
+     * <code>entity</code> is updated accordingly.
+     */
+    private void executeUpdate(final Object entityId, T entity,
+            final Map<String, Object> values, final Object expectedVersion)
+            throws OptimisticLockException {
+        final EntityClassMetadata<T> metadata = getEntityClassMetadata();
+        final String versionName = metadata.hasVersionProperty() ? metadata
+                .getVersionProperty().getName() : null;
+
+        final int[] updated = new int[1];
+        runInTransaction(new Runnable() {
+
+            @Override
+            public void run() {
+                StringBuilder jpql = new StringBuilder("UPDATE ");
+                jpql.append(metadata.getEntityName()).append(" e SET ");
+                int i = 0;
+                for (String propertyName : values.keySet()) {
+                    if (i > 0) {
+                        jpql.append(", ");
+                    }
+                    jpql.append("e.").append(propertyName).append(" = :p")
+                            .append(i++);
+                }
+                if (versionName != null) {
+                    jpql.append(", e.").append(versionName).append(" = e.")
+                            .append(versionName).append(" + 1");
+                }
+                jpql.append(" WHERE e.")
+                        .append(metadata.getIdentifierProperty().getName())
+                        .append(" = :id");
+                if (expectedVersion != null) {
+                    jpql.append(" AND e.").append(versionName)
+                            .append(" = :version");
+                }
+                Query query = getEntityManager().createQuery(jpql.toString());
+                i = 0;
+                for (Object value : values.values()) {
+                    query.setParameter("p" + i++, value);
+                }
+                query.setParameter("id", entityId);
+                if (expectedVersion != null) {
+                    query.setParameter("version", expectedVersion);
+                }
+                updated[0] = query.executeUpdate();
+            }
+        });
+        if (updated[0] == 0) {
+            throw new OptimisticLockException("Entity " + entityId
+                    + " has been updated or removed by someone else", null,
+                    entity);
+        }
+        if (expectedVersion != null) {
+            metadata.setPropertyValue(entity, versionName,
+                    incrementVersion(expectedVersion));
+        }
+    }
+
+    private boolean isDirectlyUpdatable(String propertyName) {
+        EntityClassMetadata<T> metadata = getEntityClassMetadata();
+        PropertyMetadata property = metadata.getProperty(propertyName);
+        if (!(property instanceof PersistentPropertyMetadata)
+                || ((PersistentPropertyMetadata) property).getPropertyKind() != PropertyKind.SIMPLE
+                || property == metadata.getIdentifierProperty()) {
+            return false;
         }
+        return property != metadata.getVersionProperty()
+                && isDirectlyUpdatable();
+    }
+
+    /**
+     * Checks whether the entity has an identifier, and a version that can be
+     * incremented by an <code>UPDATE</code> statement (if any).
+     */
+    private boolean isDirectlyUpdatable() {
+        EntityClassMetadata<T> metadata = getEntityClassMetadata();
+        if (!metadata.hasIdentifierProperty()
+                || metadata.hasEmbeddedIdentifier()) {
+            return false;
+        }
+        if (metadata.hasVersionProperty()) {
+            // The version can only be incremented in the statement if it is
+            // a number
+            Class<?> versionType = metadata.getVersionProperty().getType();
+            return versionType == Integer.class
+                    || versionType == Integer.TYPE
+                    || versionType == Long.class || versionType == Long.TYPE
+                    || versionType == Short.class || versionType == Short.TYPE;
+        }
+        return true;
+    }
+
+    private static Object incrementVersion(Object version) {
+        if (version instanceof Long) {
+            return (Long) version + 1;
+        } else if (version instanceof Short) {
+            return (short) ((Short) version + 1);
+        } else {
+            return (Integer) version + 1;
+        }
+    }
+
+    /**
+     * Gets the entity identified by <code>entityId</code> if it is already
+     * held in memory by the provider, e.g. in a cache. This implementation has
+     * no cache and always returns null, which means that
+     * {@link #updateEntityPropertyDirectly(Object, String, Object) } is never
+     * used.
+     * 
+     * @param entityId
+     *            the ID of the entity (must not be null).
+     * @return the entity, or null if it is not held in memory.
+     * @since 3.1.1
+     */
+    protected T getCachedEntity(Object entityId) {
+        return null;
+    }
+
+    private boolean directPropertyUpdatesEnabled = false;
+
+    /**
+     * Specifies whether
+     * {@link #updateEntityProperty(Object, String, Object) } may update simple
+     * properties of cached entities using a single <code>UPDATE</code>
+     * statement, instead of loading, refreshing and merging the entity, and
+     * whether {@link #updateEntityProperties(Object, Collection) } may write
+     * only the changed columns in the same way. Note that entity listeners and
+     * lifecycle callback methods are not invoked for such updates, and that
+     * the version of the cached or updated entity is checked, i.e. concurrent
+     * modifications cause an {@link OptimisticLockException} instead of being
+     * overwritten. Direct updates are only used while
+     * {@link #isEntitiesDetached() } is true, as they bypass the persistence
+     * context. This is disabled by default.
+     * 
+     * @param enabled
+     *            true to enable direct property updates, false to disable
+     *            them.
+     * @since 3.1.1
+     */
+    public void setDirectPropertyUpdatesEnabled(boolean enabled) {
+        this.directPropertyUpdatesEnabled = enabled;
+    }
+
+    /**
+     * Returns whether simple properties may be updated using a single
+     * <code>UPDATE</code> statement.
+     * 
+     * @see #setDirectPropertyUpdatesEnabled(boolean)
+     * @since 3.1.1
+     */
+    public boolean isDirectPropertyUpdatesEnabled() {
+        return directPropertyUpdatesEnabled;
     }
 
     /*
      * Transient note: Listeners (read: JPAContainers) should re attach themselves when deserialized 
      */
-    transient private LinkedList<WeakReference<EntityProviderChangeListener<T>>> listeners;
-    
-    private LinkedList<WeakReference<EntityProviderChangeListener<T>>> getListeners() {
-        if(listeners == null) {
-            listeners = new LinkedList<WeakReference<EntityProviderChangeListener<T>>>();
+    transient private volatile ListenerRegistry<T> listeners;
+
+    private ListenerRegistry<T> getListeners() {
+        ListenerRegistry<T> registry = listeners;
+        if (registry == null) {
+            synchronized (this) {
+                registry = listeners;
+                if (registry == null) {
+                    registry = new ListenerRegistry<T>();
+                    listeners = registry;
+                }
+            }
         }
-        return listeners;
+        return registry;
     }
 
     @Override
     public void addListener(EntityProviderChangeListener<T> listener) {
-        synchronized (getListeners()) {
-            assert listener != null : "listener must not be null";
-            getListeners().add(new WeakReference<EntityProviderChangeListener<T>>(
-                    listener));
-        }
+        assert listener != null : "listener must not be null";
+        getListeners().addListener(listener);
     }
 
     @Override
     public void removeListener(EntityProviderChangeListener<T> listener) {
-        synchronized (getListeners()) {
-            assert listener != null : "listener must not be null";
-
-            Iterator<WeakReference<EntityProviderChangeListener<T>>> it = getListeners()
-                    .iterator();
-            while (it.hasNext()) {
-                EntityProviderChangeListener<T> l = it.next().get();
-                // also clean up old references
-                if (null == l || listener.equals(l)) {
-                    it.remove();
-                }
-            }
-        }
+        assert listener != null : "listener must not be null";
+        getListeners().removeListener(listener);
+    }
+
+    /**
+     * Sets the executor to use for delivering {@link EntityProviderChangeEvent}s
+     * to the listeners. By default (or if <code>executor</code> is null), the
+     * listeners are notified synchronously on the thread that changes the
+     * entities, which means that a write does not return until all the
+     * listeners have handled the event. With an executor, the events are
+     * queued and delivered by the executor, and every listener receives them
+     * in the order in which they were fired. If the executor rejects a task,
+     * the events are delivered synchronously instead.
+     * <p>
+     * Note that the listeners are then called without the lock of any Vaadin
+     * session. {@link com.vaadin.addon.jpacontainer.JPAContainer}s pass the
+     * events on to the session they were created in, but other listeners that
+     * update a UI must lock the session themselves. The executor is not
+     * serialized.
+     * 
+     * @param executor
+     *            the executor, or null to deliver the events synchronously.
+     * @since 3.1.1
+     */
+    public void setEventDispatchExecutor(Executor executor) {
+        getListeners().setExecutor(executor);
+    }
+
+    /**
+     * Gets the executor used for delivering events, if any.
+     * 
+     * @see #setEventDispatchExecutor(Executor)
+     * @return the executor, or null if events are delivered synchronously.
+     * @since 3.1.1
+     */
+    public Executor getEventDispatchExecutor() {
+        return getListeners().getExecutor();
+    }
+
+    /**
+     * Gets the number of events that have been queued for asynchronous
+     * delivery but not yet delivered, summed over all the listeners. A
+     * steadily growing number means that the listeners cannot keep up with
+     * the changes.
+     * 
+     * @see #setEventDispatchExecutor(Executor)
+     * @since 3.1.1
+     */
+    public int getPendingEventCount() {
+        return getListeners().getPendingEventCount();
+    }
+
+    /**
+     * Gets the highest value of {@link #getPendingEventCount() } so far.
+     * 
+     * @since 3.1.1
+     */
+    public int getPeakPendingEventCount() {
+        return getListeners().getPeakPendingEventCount();
+    }
+
+    /**
+     * Gets the total number of events delivered to the listeners, counting
+     * each listener separately.
+     * 
+     * @since 3.1.1
+     */
+    public long getDispatchedEventCount() {
+        return getListeners().getDispatchedEventCount();
     }
 
     private boolean fireEntityProviderChangeEvent = true;
@@ -290,32 +776,12 @@ public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
      * @param event
      *            the event to send (must not be null).
      */
-    @SuppressWarnings("unchecked")
     protected void fireEntityProviderChangeEvent(
             final EntityProviderChangeEvent<T> event) {
-        LinkedList<WeakReference<EntityProviderChangeListener<T>>> list;
-        synchronized (getListeners()) {
-            assert event != null : "event must not be null";
-            if (getListeners().isEmpty() && !isFireEntityProviderChangeEvent()) {
-                return;
-            }
-            // cleanup
-            Iterator<WeakReference<EntityProviderChangeListener<T>>> it = getListeners()
-                    .iterator();
-            while (it.hasNext()) {
-                if (null == it.next().get()) {
-                    it.remove();
-                }
-            }
-            // copy list to use outside the synchronized block
-            list = (LinkedList<WeakReference<EntityProviderChangeListener<T>>>) getListeners()
-                    .clone();
-        }
-        for (WeakReference<EntityProviderChangeListener<T>> ref : list) {
-            EntityProviderChangeListener<T> listener = ref.get();
-            if (null != listener) {
-                listener.entityProviderChange(event);
-            }
+        assert event != null : "event must not be null";
+        if (!isFireEntityProviderChangeEvent()) {
+            return;
         }
+        getListeners().fireEvent(event);
     }
 }
@@ -0,0 +1,206 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+
+/**
+ * Reflective wrapper around a Hibernate <code>StatelessSession</code> and its
+ * transaction, so that {@link HibernateStatelessEntityProvider} does not force
+ * a compile-time dependency on Hibernate. Intended to be used by
+ * {@link HibernateStatelessEntityProvider} only.
+ * 
+ * @since 3.1.1
+ */
+final class StatelessSessionHandle {
+
+    private static final Logger logger = Logger
+            .getLogger(StatelessSessionHandle.class.getName());
+
+    /**
+     * The reflected Hibernate methods, looked up once.
+     */
+    private static final class Methods {
+        final Class<?> sessionClass;
+        final Method getSessionFactory;
+        final Method openStatelessSession;
+        final Method insert;
+        final Method update;
+        final Method delete;
+        final Method get;
+        final Method beginTransaction;
+        final Method commit;
+        final Method rollback;
+        final Method close;
+
+        Methods() throws ClassNotFoundException, NoSuchMethodException {
+            sessionClass = Class.forName("org.hibernate.Session");
+            Class<?> factoryClass = Class
+                    .forName("org.hibernate.SessionFactory");
+            Class<?> statelessClass = Class
+                    .forName("org.hibernate.StatelessSession");
+            Class<?> transactionClass = Class
+                    .forName("org.hibernate.Transaction");
+            getSessionFactory = sessionClass.getMethod("getSessionFactory");
+            openStatelessSession = factoryClass
+                    .getMethod("openStatelessSession");
+            insert = statelessClass.getMethod("insert", Object.class);
+            update = statelessClass.getMethod("update", Object.class);
+            delete = statelessClass.getMethod("delete", Object.class);
+            get = statelessClass.getMethod("get", Class.class,
+                    Serializable.class);
+            beginTransaction = statelessClass.getMethod("beginTransaction");
+            commit = transactionClass.getMethod("commit");
+            rollback = transactionClass.getMethod("rollback");
+            close = statelessClass.getMethod("close");
+        }
+    }
+
+    private static Methods methods;
+    private static boolean methodsLookedUp;
+
+    private static synchronized Methods getMethods() {
+        if (!methodsLookedUp) {
+            methodsLookedUp = true;
+            try {
+                methods = new Methods();
+            } catch (ClassNotFoundException e) {
+                logger.log(Level.FINEST, "Hibernate not in use", e);
+            } catch (NoSuchMethodException e) {
+                logger.log(Level.WARNING,
+                        "Unsupported Hibernate version, stateless sessions "
+                                + "will not be used", e);
+            }
+        }
+        return methods;
+    }
+
+    private final Methods m;
+    private final Object session;
+    private Object transaction;
+
+    private StatelessSessionHandle(Methods m, Object session) {
+        this.m = m;
+        this.session = session;
+    }
+
+    /**
+     * Checks whether <code>em</code> is a Hibernate entity manager, i.e.
+     * whether {@link #open(EntityManager) } will succeed.
+     * 
+     * @param em
+     *            the entity manager (must not be null).
+     */
+    static boolean isSupported(EntityManager em) {
+        assert em != null : "em must not be null";
+        return unwrapSession(em) != null;
+    }
+
+    private static Object unwrapSession(EntityManager em) {
+        Methods m = getMethods();
+        if (m == null) {
+            return null;
+        }
+        try {
+            return em.unwrap(m.sessionClass);
+        } catch (PersistenceException e) {
+            // Not a Hibernate entity manager
+            return null;
+        }
+    }
+
+    /**
+     * Opens a new stateless session using the session factory of
+     * <code>em</code>.
+     * 
+     * @param em
+     *            the entity manager (must not be null).
+     * @return the session (never null).
+     * @throws UnsupportedOperationException
+     *             if <code>em</code> is not a Hibernate entity manager.
+     */
+    static StatelessSessionHandle open(EntityManager em)
+            throws UnsupportedOperationException {
+        assert em != null : "em must not be null";
+        Object hibernateSession = unwrapSession(em);
+        if (hibernateSession == null) {
+            throw new UnsupportedOperationException(
+                    "The entity manager is not a Hibernate entity manager");
+        }
+        Methods m = getMethods();
+        Object factory = invoke(m.getSessionFactory, hibernateSession);
+        return new StatelessSessionHandle(m, invoke(m.openStatelessSession,
+                factory));
+    }
+
+    void beginTransaction() {
+        transaction = invoke(m.beginTransaction, session);
+    }
+
+    void commit() {
+        invoke(m.commit, transaction);
+        transaction = null;
+    }
+
+    void rollback() {
+        if (transaction != null) {
+            invoke(m.rollback, transaction);
+            transaction = null;
+        }
+    }
+
+    void insert(Object entity) {
+        invoke(m.insert, session, entity);
+    }
+
+    void update(Object entity) {
+        invoke(m.update, session, entity);
+    }
+
+    void delete(Object entity) {
+        invoke(m.delete, session, entity);
+    }
+
+    <T> T get(Class<T> entityClass, Object id) {
+        return entityClass.cast(invoke(m.get, session, entityClass, id));
+    }
+
+    void close() {
+        invoke(m.close, session);
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            // Hibernate exceptions are runtime exceptions
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new PersistenceException(e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new PersistenceException(e);
+        }
+    }
+}
@@ -15,21 +15,42 @@
  */
 package com.vaadin.addon.jpacontainer.util;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import javax.persistence.Id;
+import javax.persistence.Entity;
+import javax.persistence.EntityManager;
+import javax.persistence.Persistence;
+import javax.persistence.PersistenceUtil;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.JoinType;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 
 import com.vaadin.addon.jpacontainer.EntityProvider;
 import com.vaadin.addon.jpacontainer.LazyLoadingDelegate;
+import com.vaadin.addon.jpacontainer.metadata.EntityClassMetadata;
+import com.vaadin.addon.jpacontainer.metadata.MetadataFactory;
+import com.vaadin.addon.jpacontainer.metadata.PropertyKind;
+import com.vaadin.addon.jpacontainer.metadata.PropertyMetadata;
+import com.vaadin.addon.jpacontainer.provider.CachingLocalEntityProvider;
+import com.vaadin.addon.jpacontainer.provider.CachingMutableLocalEntityProvider;
 
 /**
  * HibernateLazyLoadingDelegate is the default implementation of the
@@ -41,27 +62,87 @@ import com.vaadin.addon.jpacontainer.LazyLoadingDelegate;
  * loading the property in question from the database and attaching it to the
  * entity passed in. This happens recursively if the property is nested.
  * 
+ * If a batch size greater than one has been set, the property is also loaded
+ * for the other entities next to the entity in the cache of the entity
+ * provider, see {@link #setBatchSize(int) }.
+ * 
  * @author Jonatan Kronqvist / Vaadin Ltd
  * @since 2.0
  */
 public class HibernateLazyLoadingDelegate implements LazyLoadingDelegate {
 
+    private static final Logger logger = Logger
+            .getLogger(HibernateLazyLoadingDelegate.class.getName());
+
     private EntityProvider<?> entityProvider;
+    private int batchSize = 1;
+    private final ConcurrentMap<Class<?>, EntityClassMetadata<?>> metadataCache = new ConcurrentHashMap<Class<?>, EntityClassMetadata<?>>();
 
     @Override
     public void setEntityProvider(EntityProvider<?> ep) {
         entityProvider = ep;
     }
 
+    /**
+     * Sets the maximum number of entities for which a lazy property is loaded
+     * with a single query. When a lazy property of an entity is accessed and
+     * the batch size is greater than one, the property is also loaded for the
+     * entities next to it in the cached identifier windows of the entity
+     * provider (see
+     * {@link CachingLocalEntityProvider#getCachedWindow(Object, int) }), i.e.
+     * typically for the other rows shown in a table. Instead of one query per
+     * entity and nesting level, one query with an <code>IN</code> restriction
+     * is then run per nesting level. Other entity providers than
+     * {@link CachingLocalEntityProvider} and
+     * {@link CachingMutableLocalEntityProvider} (and their subclasses) only
+     * get the requested entity loaded. The default batch
+     * size is 1, which disables batch loading.
+     * 
+     * @param batchSize
+     *            the maximum number of entities to load a property for at a
+     *            time (must be at least 1).
+     * @since 3.1.1
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Gets the maximum number of entities for which a lazy property is loaded
+     * with a single query.
+     * 
+     * @see #setBatchSize(int)
+     * @since 3.1.1
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
     @Override
     public <E> E ensureLazyPropertyLoaded(E entity, String propertyName) {
+        if (batchSize > 1) {
+            try {
+                List<Object> entities = new ArrayList<Object>();
+                entities.add(entity);
+                entities.addAll(getCachedWindow(entity, propertyName));
+                loadBatch(entities, propertyName);
+            } catch (IllegalArgumentException e) {
+                logger.log(Level.WARNING, "Could not batch load lazy property "
+                        + propertyName, e);
+            }
+            return entity;
+        }
         String prop = getRootPropertyName(propertyName);
         try {
             Object value = lazilyLoadPropertyValue(entity, prop);
             value = recurseIfNested(propertyName, value);
-            trySetUsingSetter(entity, prop, value);
+            setPropertyValue(entity, prop, value);
         } catch (IllegalArgumentException e) {
-            e.printStackTrace();
+            logger.log(Level.WARNING, "Could not load lazy property "
+                    + propertyName, e);
         }
         return entity;
     }
@@ -75,12 +156,160 @@ public class HibernateLazyLoadingDelegate implements LazyLoadingDelegate {
         CriteriaBuilder cb = entityProvider.getEntityManager()
                 .getCriteriaBuilder();
         CriteriaQuery<Object> q = cb.createQuery();
-        Root<? extends Object> root = q.from(entity.getClass());
+        Root<? extends Object> root = q.from(getMetadata(entity)
+                .getMappedClass());
         q.select(root.get(prop));
-        q.where(cb.equal(root.get("id"), cb.literal(tryGetEntityId(entity))));
+        q.where(cb.equal(root.get(getIdentifierPropertyName(entity)),
+                getEntityId(entity)));
         return entityProvider.getEntityManager().createQuery(q).getResultList();
     }
 
+    /**
+     * Gets the cached entities next to <code>entity</code> whose root property
+     * of <code>propertyName</code> has not been loaded yet.
+     */
+    private List<Object> getCachedWindow(Object entity, String propertyName) {
+        Object entityId = getEntityId(entity);
+        if (entityId == null) {
+            return Collections.emptyList();
+        }
+        List<?> cachedWindow;
+        if (entityProvider instanceof CachingLocalEntityProvider) {
+            cachedWindow = ((CachingLocalEntityProvider<?>) entityProvider)
+                    .getCachedWindow(entityId, batchSize - 1);
+        } else if (entityProvider instanceof CachingMutableLocalEntityProvider) {
+            cachedWindow = ((CachingMutableLocalEntityProvider<?>) entityProvider)
+                    .getCachedWindow(entityId, batchSize - 1);
+        } else {
+            return Collections.emptyList();
+        }
+        String prop = getRootPropertyName(propertyName);
+        PersistenceUtil persistenceUtil = Persistence.getPersistenceUtil();
+        List<Object> window = new ArrayList<Object>();
+        for (Object cached : cachedWindow) {
+            if (cached.getClass() == entity.getClass()
+                    && !persistenceUtil.isLoaded(cached, prop)) {
+                window.add(cached);
+            }
+        }
+        return window;
+    }
+
+    /**
+     * Loads the, possibly nested, property for all of <code>entities</code>
+     * and attaches the values to them, using one query per entity class and
+     * nesting level.
+     */
+    private void loadBatch(List<Object> entities, String propertyName) {
+        Map<EntityClassMetadata<Object>, List<Object>> entitiesByClass = new LinkedHashMap<EntityClassMetadata<Object>, List<Object>>();
+        for (Object entity : entities) {
+            EntityClassMetadata<Object> metadata = getMetadata(entity);
+            List<Object> list = entitiesByClass.get(metadata);
+            if (list == null) {
+                list = new ArrayList<Object>();
+                entitiesByClass.put(metadata, list);
+            }
+            list.add(entity);
+        }
+        for (Map.Entry<EntityClassMetadata<Object>, List<Object>> entry : entitiesByClass
+                .entrySet()) {
+            loadBatchOfClass(entry.getKey(), entry.getValue(), propertyName);
+        }
+    }
+
+    private void loadBatchOfClass(EntityClassMetadata<Object> metadata,
+            List<Object> entities, String propertyName) {
+        String prop = getRootPropertyName(propertyName);
+        PropertyMetadata property = metadata.getProperty(prop);
+        if (property == null) {
+            throw new IllegalArgumentException("No such property: " + prop);
+        }
+        PropertyKind kind = property.getPropertyKind();
+        boolean plural = kind == PropertyKind.ONE_TO_MANY
+                || kind == PropertyKind.MANY_TO_MANY
+                || kind == PropertyKind.ELEMENT_COLLECTION;
+        Map<Object, Object> idsByEntity = new IdentityHashMap<Object, Object>();
+        for (Object entity : entities) {
+            idsByEntity.put(entity, getEntityId(entity));
+        }
+        Map<Object, List<Object>> values = lazilyLoadPropertyValues(metadata,
+                prop, plural, new HashSet<Object>(idsByEntity.values()));
+
+        if (isNestedProperty(propertyName)) {
+            // Only the final node can be a collection, see
+            // recurseIfNested(String, Object)
+            Map<Object, Object> subEntities = new IdentityHashMap<Object, Object>();
+            for (List<Object> value : values.values()) {
+                if (!value.isEmpty() && value.get(0) != null) {
+                    subEntities.put(value.get(0), value.get(0));
+                }
+            }
+            if (!subEntities.isEmpty()) {
+                loadBatch(new ArrayList<Object>(subEntities.keySet()),
+                        propertyName.substring(propertyName.indexOf('.') + 1));
+            }
+        }
+
+        for (Object entity : entities) {
+            List<Object> value = values.get(idsByEntity.get(entity));
+            if (value == null) {
+                value = Collections.emptyList();
+            }
+            setPropertyValue(entity, prop, value);
+        }
+    }
+
+    /**
+     * Loads the values of <code>prop</code> for all the entities identified
+     * by <code>ids</code> with a single query.
+     * 
+     * @return the values, mapped by entity identifier. The null values of
+     *         collection properties are left out.
+     */
+    private Map<Object, List<Object>> lazilyLoadPropertyValues(
+            EntityClassMetadata<Object> metadata, String prop, boolean plural,
+            Collection<Object> ids) {
+        EntityManager em = entityProvider.getEntityManager();
+        CriteriaBuilder cb = em.getCriteriaBuilder();
+        CriteriaQuery<Object[]> q = cb.createQuery(Object[].class);
+        Root<?> root = q.from(metadata.getMappedClass());
+        Path<Object> idPath = root.get(metadata.getIdentifierProperty()
+                .getName());
+        PropertyKind kind = metadata.getProperty(prop).getPropertyKind();
+        Expression<?> value;
+        if (plural || kind == PropertyKind.MANY_TO_ONE
+                || kind == PropertyKind.ONE_TO_ONE) {
+            // Outer join to get a row for entities with no value as well
+            value = root.join(prop, JoinType.LEFT);
+        } else {
+            value = root.get(prop);
+        }
+        q.multiselect(idPath, value);
+        if (metadata.hasEmbeddedIdentifier()) {
+            // IN is not supported for composite values by all databases
+            List<Predicate> predicates = new ArrayList<Predicate>(ids.size());
+            for (Object id : ids) {
+                predicates.add(cb.equal(idPath, id));
+            }
+            q.where(cb.or(predicates.toArray(new Predicate[predicates.size()])));
+        } else {
+            q.where(idPath.in(ids));
+        }
+
+        Map<Object, List<Object>> values = new HashMap<Object, List<Object>>();
+        for (Object[] row : em.createQuery(q).getResultList()) {
+            List<Object> list = values.get(row[0]);
+            if (list == null) {
+                list = new ArrayList<Object>();
+                values.put(row[0], list);
+            }
+            if (row[1] != null || !plural) {
+                list.add(row[1]);
+            }
+        }
+        return values;
+    }
+
     /**
      * Lazily load the properties recursively if this is a nested property. E.g.
      * loads the data for "bar" and "baz" if the property name is "foo.bar.baz"
@@ -125,79 +354,67 @@ public class HibernateLazyLoadingDelegate implements LazyLoadingDelegate {
         return propertyName.indexOf('.') != -1;
     }
 
-    private <E> Object tryGetEntityId(E entity) {
-        try {
-            return getEntityId(entity);
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException("Could not get the entity id.", e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException("Could not get the entity id.", e);
-        } catch (InvocationTargetException e) {
-            throw new RuntimeException("Could not get the entity id.", e);
+    /**
+     * Gets the metadata of the entity class of <code>entity</code>. The
+     * metadata is cached per runtime class, so that no reflection is needed
+     * on subsequent calls.
+     */
+    @SuppressWarnings("unchecked")
+    private EntityClassMetadata<Object> getMetadata(Object entity) {
+        Class<?> runtimeClass = entity.getClass();
+        EntityClassMetadata<Object> metadata = (EntityClassMetadata<Object>) metadataCache
+                .get(runtimeClass);
+        if (metadata == null) {
+            // Skip subclasses generated by the persistence provider, e.g.
+            // Hibernate proxies, which do not carry the @Entity annotation
+            Class<?> entityClass = runtimeClass;
+            while (entityClass != null
+                    && entityClass.getAnnotation(Entity.class) == null) {
+                entityClass = entityClass.getSuperclass();
+            }
+            if (entityClass == null) {
+                throw new IllegalArgumentException(runtimeClass.getName()
+                        + " is not an entity");
+            }
+            EntityClassMetadata<?> found = MetadataFactory.getInstance()
+                    .getEntityClassMetadata(entityClass);
+            metadataCache.put(runtimeClass, found);
+            metadata = (EntityClassMetadata<Object>) found;
         }
+        return metadata;
     }
 
     /**
-     * Find the ID of an entity by finding either the field or the getter
-     * annotated with the {@link Id} annotation and getting the value.
+     * Gets the name of the identifier property of <code>entity</code>.
      * 
-     * @param entity
-     *            the entity to find the ID of.
-     * @return the ID of the entity.
      * @throws IllegalArgumentException
-     * @throws IllegalAccessException
-     * @throws InvocationTargetException
+     *             if the entity has no identifier property.
      */
-    private <E> Object getEntityId(E entity) throws IllegalArgumentException,
-            IllegalAccessException, InvocationTargetException {
-        // Try fields
-        for (Field f : entity.getClass().getDeclaredFields()) {
-            if (f.isAnnotationPresent(Id.class)) {
-                try {
-                    f.setAccessible(true);
-                    return f.get(entity);
-                } finally {
-                    f.setAccessible(false);
-                }
-            }
-        }
-        // Try methods if no annotated field was found.
-        for (Method m : entity.getClass().getMethods()) {
-            if (m.isAnnotationPresent(Id.class)) {
-                return m.invoke(entity);
-            }
+    private String getIdentifierPropertyName(Object entity) {
+        EntityClassMetadata<Object> metadata = getMetadata(entity);
+        if (!metadata.hasIdentifierProperty()) {
+            throw new IllegalArgumentException(metadata.getMappedClass()
+                    .getName() + " has no identifier property");
         }
-        return null;
+        return metadata.getIdentifierProperty().getName();
     }
 
-    private <E> void trySetUsingSetter(E entity, String propertyName,
-            Object value) {
-        try {
-            setUsingSetter(entity, propertyName, value);
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException(
-                    "Could not set lazy loaded value for entity.", e);
-        } catch (SecurityException e) {
-            throw new RuntimeException(
-                    "Could not set lazy loaded value for entity.", e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(
-                    "Could not set lazy loaded value for entity.", e);
-        } catch (InvocationTargetException e) {
-            throw new RuntimeException(
-                    "Could not set lazy loaded value for entity.", e);
-        } catch (InstantiationException e) {
-            throw new RuntimeException(
-                    "Could not set lazy loaded value for entity.", e);
-        } catch (NoSuchMethodException e) {
-            throw new RuntimeException(
-                    "Could not set lazy loaded value for entity.", e);
-        }
+    /**
+     * Gets the identifier of <code>entity</code> from the persistence
+     * provider, which also works for uninitialized proxies and does not
+     * require any reflection.
+     * 
+     * @return the identifier of <code>entity</code>, or null if it has none.
+     */
+    private Object getEntityId(Object entity) {
+        return entityProvider.getEntityManager().getEntityManagerFactory()
+                .getPersistenceUnitUtil().getIdentifier(entity);
     }
 
     /**
-     * Finds the setter for a property and sets the value of the property using
-     * the found setter method.
+     * Sets the value of a property using the accessors of the entity
+     * metadata. Values loaded by a query are always lists, so they are
+     * converted to the type of the property first.
      * 
      * @param entity
      *            the entity containing the property to set the value for.
@@ -205,41 +422,31 @@ public class HibernateLazyLoadingDelegate implements LazyLoadingDelegate {
      *            the name of the property.
      * @param value
      *            the new value of the property.
-     * @throws IllegalArgumentException
-     * @throws IllegalAccessException
-     * @throws InvocationTargetException
-     * @throws InstantiationException
-     * @throws SecurityException
-     * @throws NoSuchMethodException
      */
     @SuppressWarnings({ "rawtypes", "unchecked" })
-    private <E> void setUsingSetter(E entity, String propertyName, Object value)
-            throws IllegalArgumentException, IllegalAccessException,
-            InvocationTargetException, InstantiationException,
-            SecurityException, NoSuchMethodException {
-        Method setter = findSetterFor(entity, propertyName);
-        if (setter != null) {
-            Class<?> parameterType = setter.getParameterTypes()[0];
-            if (Collection.class.isAssignableFrom(parameterType)) {
-                if (Set.class.isAssignableFrom(parameterType)) {
-                    value = new HashSet((Collection) value);
-                }
-            } else if (value instanceof Collection) {
-                // "Unwrap" the value from the collection, since the setter
-                // doesn't accept collections.
-                value = ((Collection) value).iterator().next();
-            }
-            setter.invoke(entity, value);
+    private void setPropertyValue(Object entity, String propertyName,
+            Object value) {
+        EntityClassMetadata<Object> metadata = getMetadata(entity);
+        PropertyMetadata property = metadata.getProperty(propertyName);
+        if (property == null) {
+            return;
         }
-    }
-
-    private <E> Method findSetterFor(E entity, String propertyName) {
-        for (Method m : entity.getClass().getMethods()) {
-            if (m.getName().equalsIgnoreCase("set" + propertyName)) {
-                return m;
+        if (Collection.class.isAssignableFrom(property.getType())) {
+            if (Set.class.isAssignableFrom(property.getType())) {
+                value = new HashSet((Collection) value);
             }
+        } else if (value instanceof Collection) {
+            // "Unwrap" the value from the collection, since the property is
+            // not a collection.
+            Iterator<?> it = ((Collection) value).iterator();
+            value = it.hasNext() ? it.next() : null;
+        }
+        try {
+            metadata.setPropertyValue(entity, propertyName, value);
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException(
+                    "Could not set lazy loaded value for entity.", e);
         }
-        return null;
     }
 
 }
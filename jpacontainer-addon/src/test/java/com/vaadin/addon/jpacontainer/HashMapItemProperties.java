@@ -0,0 +1,55 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The per-item property map that {@link JPAContainerItem} used before the
+ * properties were kept in slots indexed by ordinal. Only used by the
+ * benchmarks, to compare the two on the same items. Note that the wrapper
+ * itself is an extra allocation the old items did not have.
+ * 
+ * @since 3.1.1
+ */
+public final class HashMapItemProperties<T> {
+
+    private final JPAContainerItem<T> item;
+    private final Map<Object, JPAContainerItemProperty<T>> propertyMap = new HashMap<Object, JPAContainerItemProperty<T>>();
+
+    public HashMapItemProperties(EntityItem<T> item) {
+        assert item != null : "item must not be null";
+        this.item = (JPAContainerItem<T>) item;
+    }
+
+    /**
+     * Gets the property like {@link JPAContainerItem#getItemProperty(Object)}
+     * used to, without touching the slots of the item.
+     */
+    public EntityItemProperty getItemProperty(Object id) {
+        assert id != null : "id must not be null";
+        JPAContainerItemProperty<T> p = propertyMap.get(id);
+        if (p == null) {
+            if (!item.getItemPropertyIds().contains(id.toString())) {
+                return null;
+            }
+            p = new JPAContainerItemProperty<T>(item, id.toString());
+            propertyMap.put(id, p);
+        }
+        return p;
+    }
+}
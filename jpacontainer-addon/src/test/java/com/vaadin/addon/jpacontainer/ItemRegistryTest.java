@@ -0,0 +1,111 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.testdata.Person;
+
+/**
+ * Test case for {@link ItemRegistry}.
+ * 
+ * @since 3.1.1
+ */
+public class ItemRegistryTest {
+
+    private JPAContainer<Person> container;
+
+    @Before
+    public void setUp() {
+        container = new JPAContainer<Person>(Person.class);
+    }
+
+    private JPAContainerItem<Person> createItem(Long id) {
+        Person p = new Person();
+        p.setId(id);
+        return new JPAContainerItem<Person>(container, p);
+    }
+
+    @Test
+    public void testRegisterItem() {
+        EntityItem<Person> item1 = createItem(1l);
+        EntityItem<Person> item2 = createItem(1l);
+        EntityItem<Person> item3 = createItem(2l);
+
+        ItemRegistry<Person> registry = container.getRegistry();
+        assertEquals(2, registry.size());
+        assertEquals(2, registry.getItems(1l).size());
+        assertTrue(registry.getItems(1l).contains(item1));
+        assertTrue(registry.getItems(1l).contains(item2));
+        assertEquals(1, registry.getItems(2l).size());
+        assertSame(item3, registry.getItems(2l).get(0));
+        assertTrue(registry.getItems(3l).isEmpty());
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void testItemRegistrySnapshot() {
+        EntityItem<Person> item1 = createItem(1l);
+        EntityItem<Person> item2 = createItem(2l);
+
+        Map<Object, LinkedList<WeakReference<JPAContainerItem<Person>>>> snapshot = container
+                .getItemRegistry();
+        assertEquals(2, snapshot.size());
+        assertSame(item1, snapshot.get(1l).get(0).get());
+        assertSame(item2, snapshot.get(2l).get(0).get());
+        // Changing the snapshot does not change the registry
+        snapshot.clear();
+        assertEquals(2, container.getRegistry().size());
+    }
+
+    @Test
+    public void testItemsWithoutIdAreIgnored() {
+        createItem(null);
+        assertEquals(0, container.getRegistry().size());
+    }
+
+    @Test
+    public void testCollectedItemsAreExpunged() throws Exception {
+        List<EntityItem<Person>> kept = new ArrayList<EntityItem<Person>>();
+        for (long i = 0; i < 1000; i++) {
+            EntityItem<Person> item = createItem(i);
+            if (i % 10 == 0) {
+                kept.add(item);
+            }
+        }
+        ItemRegistry<Person> registry = container.getRegistry();
+        // The garbage collector gives no guarantees, so try a few times
+        for (int i = 0; i < 50 && registry.size() > kept.size(); i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(kept.size(), registry.size());
+        for (EntityItem<Person> item : kept) {
+            assertSame(item, registry.getItems(item.getItemId()).get(0));
+        }
+    }
+}
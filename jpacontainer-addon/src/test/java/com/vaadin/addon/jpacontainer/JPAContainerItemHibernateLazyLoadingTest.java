@@ -19,13 +19,19 @@ import static org.easymock.EasyMock.createNiceMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.persistence.PersistenceUtil;
 
 import org.hibernate.LazyInitializationException;
 import org.hibernate.ejb.Ejb3Configuration;
@@ -41,6 +47,7 @@ import com.vaadin.addon.jpacontainer.testdata.Person;
 import com.vaadin.addon.jpacontainer.testdata.PersonSkill;
 import com.vaadin.addon.jpacontainer.testdata.Skill;
 import com.vaadin.addon.jpacontainer.util.HibernateLazyLoadingDelegate;
+import com.vaadin.data.util.filter.Compare.Equal;
 
 public class JPAContainerItemHibernateLazyLoadingTest {
     private static EntityManagerFactory emf;
@@ -213,4 +220,66 @@ public class JPAContainerItemHibernateLazyLoadingTest {
         assertEquals("Jimmy", firstItem.getItemProperty("manager.firstName")
                 .getValue());
     }
+
+    @Test
+    public void testEntityLazyLoading_batch() {
+        // A second subordinate of Jim, so that the cache contains a
+        // neighbour with an unloaded manager
+        EntityManager txEm = emf.createEntityManager();
+        txEm.getTransaction().begin();
+        Person ann = new Person();
+        ann.setFirstName("Ann");
+        ann.setLastName("Cat");
+        ann.setManager(txEm
+                .createQuery("SELECT p FROM Person p WHERE p.firstName = 'Jim'",
+                        Person.class).getSingleResult());
+        txEm.persist(ann);
+        txEm.getTransaction().commit();
+        txEm.close();
+
+        try {
+            em.close();
+            em = emf.createEntityManager();
+            JPAContainer<Person> cachedContainer = JPAContainerFactory.make(
+                    Person.class, em);
+            HibernateLazyLoadingDelegate delegate = new HibernateLazyLoadingDelegate();
+            delegate.setBatchSize(10);
+            cachedContainer.getEntityProvider().setLazyLoadingDelegate(
+                    delegate);
+            cachedContainer.addNestedContainerProperty("manager.firstName");
+            // Leave the managers out, so that they are not loaded as entities
+            cachedContainer.addContainerFilter(new Equal("lastName", "Cat"));
+
+            // Load the whole id window and all the entities into the cache
+            // before accessing any lazy properties
+            Map<String, EntityItem<Person>> items = new HashMap<String, EntityItem<Person>>();
+            for (Object id = cachedContainer.firstItemId(); id != null; id = cachedContainer
+                    .nextItemId(id)) {
+                EntityItem<Person> item = cachedContainer.getItem(id);
+                items.put(item.getEntity().getFirstName(), item);
+            }
+            assertEquals(2, items.size());
+            // Detach the entities, so that the delegate has to load the
+            // managers
+            em.clear();
+            PersistenceUtil persistenceUtil = Persistence.getPersistenceUtil();
+            Person bob = items.get("Bob").getEntity();
+            Person neighbour = items.get("Ann").getEntity();
+            assertFalse(persistenceUtil.isLoaded(bob, "manager"));
+            assertFalse(persistenceUtil.isLoaded(neighbour, "manager"));
+
+            assertEquals("Jim", items.get("Bob")
+                    .getItemProperty("manager.firstName").getValue());
+            // Loaded in the same batch as the manager of Bob
+            assertTrue(persistenceUtil.isLoaded(neighbour, "manager"));
+            assertEquals("Jim", items.get("Ann")
+                    .getItemProperty("manager.firstName").getValue());
+        } finally {
+            txEm = emf.createEntityManager();
+            txEm.getTransaction().begin();
+            txEm.remove(txEm.find(Person.class, ann.getId()));
+            txEm.getTransaction().commit();
+            txEm.close();
+        }
+    }
 }
@@ -167,6 +167,34 @@ public class JPAContainerItemTest {
         assertNull(item.getItemProperty("nonexistent"));
     }
 
+    @Test
+    public void testGetItemProperty_SameInstance() {
+        Property<?> firstName = item.getItemProperty("firstName");
+        assertSame(firstName, item.getItemProperty("firstName"));
+
+        // Adding a local nested property moves the item to its own property
+        // list, but the properties already created must be kept
+        item.addNestedContainerProperty("address.street");
+        assertSame(firstName, item.getItemProperty("firstName"));
+        Property<?> street = item.getItemProperty("address.street");
+        assertNotNull(street);
+        assertSame(street, item.getItemProperty("address.street"));
+    }
+
+    @Test
+    public void testSetValueClearsLazyPropertyInitialized() {
+        item.addNestedContainerProperty("manager.firstName");
+        item.setLazyPropertyInitialized("manager");
+        item.setLazyPropertyInitialized("manager.firstName");
+        item.setLazyPropertyInitialized("skills");
+
+        Person newManager = new Person();
+        item.setItemPropertyValue("manager", newManager);
+        assertFalse(item.isLazyPropertyInitialized("manager"));
+        assertFalse(item.isLazyPropertyInitialized("manager.firstName"));
+        assertTrue(item.isLazyPropertyInitialized("skills"));
+    }
+
     @Test
     public void testIsPersistent() {
         assertTrue(item.isPersistent());
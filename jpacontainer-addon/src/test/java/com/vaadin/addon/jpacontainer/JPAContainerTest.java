@@ -27,6 +27,7 @@ import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
@@ -40,8 +41,12 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
 import org.easymock.Capture;
 import org.easymock.EasyMock;
@@ -49,16 +54,24 @@ import org.easymock.IAnswer;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.vaadin.addon.jpacontainer.EntityProviderChangeEvent.EntityPropertiesUpdatedEvent;
 import com.vaadin.addon.jpacontainer.JPAContainer.AllItemsRefreshedEvent;
+import com.vaadin.addon.jpacontainer.provider.MutableLocalEntityProvider;
 import com.vaadin.addon.jpacontainer.testdata.Address;
+import com.vaadin.addon.jpacontainer.testdata.Department;
 import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.data.Buffered.SourceException;
 import com.vaadin.data.Container;
 import com.vaadin.data.Container.Filter;
 import com.vaadin.data.Container.ItemSetChangeEvent;
 import com.vaadin.data.Container.ItemSetChangeListener;
+import com.vaadin.data.Item;
+import com.vaadin.data.Property;
+import com.vaadin.data.Property.ValueChangeEvent;
 import com.vaadin.data.util.filter.And;
 import com.vaadin.data.util.filter.Compare.Equal;
 import com.vaadin.data.util.filter.IsNull;
+import com.vaadin.server.VaadinSession;
 
 /**
  * Test case for {@link JPAContainer}.
@@ -708,6 +721,99 @@ public class JPAContainerTest {
         verify(batchableEntityProviderMock);
     }
 
+    @Test
+    public void testGetItem_IdentityCache() {
+        Person p = new Person();
+        p.setId(123l);
+        p.setFirstName("Joe");
+        expect(entityProviderMock.getEntity(container, 123l)).andReturn(p)
+                .times(2);
+        replay(entityProviderMock);
+
+        container.setEntityProvider(entityProviderMock);
+        assertFalse(container.isItemIdentityCacheEnabled());
+        container.setItemIdentityCacheEnabled(true);
+
+        EntityItem<Person> item = container.getItem(123l);
+        assertSame(item, container.getItem(123l));
+
+        container.clearItemIdentityCache();
+        EntityItem<Person> item2 = container.getItem(123l);
+        assertNotSame(item, item2);
+        assertSame(item2, container.getItem(123l));
+
+        verify(entityProviderMock);
+    }
+
+    @Test
+    public void testGetItem_IdentityCache_ClearedAtEndOfRequest() {
+        Person p = new Person();
+        p.setId(123l);
+        p.setFirstName("Joe");
+        expect(entityProviderMock.getEntity(container, 123l)).andReturn(p)
+                .times(2);
+        replay(entityProviderMock);
+
+        container.setEntityProvider(entityProviderMock);
+        container.setItemIdentityCacheEnabled(true);
+
+        TestSession session = new TestSession();
+        session.locked = true;
+        VaadinSession.setCurrent(session);
+        try {
+            EntityItem<Person> item = container.getItem(123l);
+            assertSame(item, container.getItem(123l));
+            assertEquals(1, session.pendingAccessTasks.size());
+
+            session.runPendingAccessTasks();
+            assertNotSame(item, container.getItem(123l));
+        } finally {
+            VaadinSession.setCurrent(null);
+        }
+
+        verify(entityProviderMock);
+    }
+
+    @Test
+    public void testGetItem_IdentityCache_Buffered() {
+        final Person p = new Person();
+        p.setId(123l);
+        p.setFirstName("Joe");
+
+        expect(batchableEntityProviderMock.getEntity(container, 123l))
+                .andStubAnswer(new IAnswer<Person>() {
+
+                    public Person answer() throws Throwable {
+                        return p.clone();
+                    }
+                });
+        expect(batchableEntityProviderMock.containsEntity(container, 123l, null))
+                .andStubReturn(true);
+        replay(batchableEntityProviderMock);
+
+        container.setEntityProvider(batchableEntityProviderMock);
+        container.setFireContainerItemSetChangeEvents(false);
+        container.setItemIdentityCacheEnabled(true);
+
+        EntityItem<Person> item = container.getItem(123l);
+        assertSame(item, container.getItem(123l));
+        assertFalse(item.isDirty());
+
+        // Updating the entity replaces the cached item
+        item.getItemProperty("firstName").setValue("Jim");
+        EntityItem<Person> updated = container.getItem(123l);
+        assertTrue(updated.isDirty());
+        assertEquals("Jim", updated.getItemProperty("firstName").getValue());
+        assertSame(updated, container.getItem(123l));
+
+        // So does deleting it
+        container.removeItem(123l);
+        EntityItem<Person> deleted = container.getItem(123l);
+        assertNotSame(updated, deleted);
+        assertTrue(deleted.isDeleted());
+        assertSame(deleted, container.getItem(123l));
+    }
+
     @Test
     public void testGetContainerProperty() {
         Person p = new Person();
@@ -1090,6 +1196,391 @@ public class JPAContainerTest {
         verify(entityProviderMock);
     }
 
+    @Test
+    public void testItemSetChangeBatch() {
+        TestItemSetChangeListener listener = new TestItemSetChangeListener();
+        container.addListener(listener);
+        replay(entityProviderMock);
+        container.setEntityProvider(entityProviderMock);
+
+        container.beginItemSetChangeBatch();
+        assertTrue(container.isItemSetChangeBatchInProgress());
+        container.sort(new Object[] { "firstName" }, new boolean[] { true });
+        container.beginItemSetChangeBatch();
+        container.sort(new Object[] { "lastName" }, new boolean[] { true });
+        container.endItemSetChangeBatch();
+        assertEquals(0, listener.getCalled());
+        container.sort(new Object[] { "firstName" }, new boolean[] { false });
+        container.endItemSetChangeBatch();
+        assertFalse(container.isItemSetChangeBatchInProgress());
+
+        assertEquals(1, listener.getCalled());
+        assertTrue(listener.getLastEvent() instanceof JPAContainer.ItemSetChangesCoalescedEvent);
+        List<ItemSetChangeEvent> events = ((JPAContainer<?>.ItemSetChangesCoalescedEvent) listener
+                .getLastEvent()).getEvents();
+        assertEquals(3, events.size());
+        for (ItemSetChangeEvent event : events) {
+            assertTrue(event instanceof JPAContainer.ContainerSortedEvent);
+        }
+
+        // A single change is fired as it is
+        container.beginItemSetChangeBatch();
+        container.sort(new Object[] { "lastName" }, new boolean[] { false });
+        container.endItemSetChangeBatch();
+        assertEquals(2, listener.getCalled());
+        assertTrue(listener.getLastEvent() instanceof JPAContainer.ContainerSortedEvent);
+
+        // No changes, no event
+        container.beginItemSetChangeBatch();
+        container.endItemSetChangeBatch();
+        assertEquals(2, listener.getCalled());
+
+        verify(entityProviderMock);
+    }
+
+    /**
+     * Session whose lock state is controlled by the test, and which runs the
+     * tasks passed to {@link #access(Runnable)} only when told to, like a
+     * real session does when its lock is released.
+     */
+    static class TestSession extends VaadinSession {
+
+        boolean locked;
+        final List<Runnable> pendingAccessTasks = new LinkedList<Runnable>();
+
+        TestSession() {
+            super(null);
+        }
+
+        @Override
+        public boolean hasLock() {
+            return locked;
+        }
+
+        @Override
+        public Future<Void> access(Runnable runnable) {
+            pendingAccessTasks.add(runnable);
+            return null;
+        }
+
+        void runPendingAccessTasks() {
+            boolean wasLocked = locked;
+            locked = true;
+            try {
+                while (!pendingAccessTasks.isEmpty()) {
+                    pendingAccessTasks.remove(0).run();
+                }
+            } finally {
+                locked = wasLocked;
+            }
+        }
+    }
+
+    @Test
+    public void testItemSetChangesCoalescedPerRequest() {
+        TestItemSetChangeListener listener = new TestItemSetChangeListener();
+        container.addListener(listener);
+        replay(entityProviderMock);
+        container.setEntityProvider(entityProviderMock);
+        container.setItemSetChangesCoalescedPerRequest(true);
+
+        TestSession session = new TestSession();
+        session.locked = true;
+        VaadinSession.setCurrent(session);
+        try {
+            container.sort(new Object[] { "firstName" },
+                    new boolean[] { true });
+            container.sort(new Object[] { "lastName" }, new boolean[] { true });
+            // The batch is ended when the request releases the session lock
+            assertTrue(container.isItemSetChangeBatchInProgress());
+            assertEquals(0, listener.getCalled());
+            assertEquals(1, session.pendingAccessTasks.size());
+
+            session.runPendingAccessTasks();
+            assertFalse(container.isItemSetChangeBatchInProgress());
+            assertEquals(1, listener.getCalled());
+            assertEquals(2, ((JPAContainer<?>.ItemSetChangesCoalescedEvent) listener
+                    .getLastEvent()).getEvents().size());
+
+            // Without the lock, there is no request to coalesce the changes in
+            session.locked = false;
+            container.sort(new Object[] { "firstName" },
+                    new boolean[] { false });
+            assertEquals(2, listener.getCalled());
+            assertTrue(listener.getLastEvent() instanceof JPAContainer.ContainerSortedEvent);
+        } finally {
+            VaadinSession.setCurrent(null);
+        }
+
+        verify(entityProviderMock);
+    }
+
+    @Test
+    public void testFilterChangesCoalescedPerRequest() {
+        TestItemSetChangeListener listener = new TestItemSetChangeListener();
+        container.addListener(listener);
+        replay(entityProviderMock);
+        container.setEntityProvider(entityProviderMock);
+        assertFalse(container.isFilterChangesCoalescedPerRequest());
+        container.setFilterChangesCoalescedPerRequest(true);
+
+        TestSession session = new TestSession();
+        session.locked = true;
+        VaadinSession.setCurrent(session);
+        try {
+            container.addContainerFilter(new Equal("firstName", "Joe"));
+            container.addContainerFilter(new Equal("lastName", "Smith"));
+            // The filters are applied when the request releases the lock
+            assertTrue(container.getAppliedFilters().isEmpty());
+            assertEquals(0, listener.getCalled());
+            assertEquals(1, session.pendingAccessTasks.size());
+
+            session.runPendingAccessTasks();
+            assertEquals(2, container.getAppliedFilters().size());
+            assertEquals(1, listener.getCalled());
+
+            // Without the lock, the filters are applied immediately
+            session.locked = false;
+            container.removeAllContainerFilters();
+            assertTrue(container.getAppliedFilters().isEmpty());
+            assertEquals(2, listener.getCalled());
+        } finally {
+            VaadinSession.setCurrent(null);
+        }
+
+        verify(entityProviderMock);
+    }
+
+    static class TestEntityProvider extends MutableLocalEntityProvider<Person> {
+
+        private static final long serialVersionUID = 1L;
+
+        TestEntityProvider() {
+            super(Person.class);
+        }
+
+        void fireEvent(EntityProviderChangeEvent<Person> event) {
+            fireEntityProviderChangeEvent(event);
+        }
+    }
+
+    @Test
+    public void testEntityProviderChange_AsyncDispatch() {
+        TestEntityProvider provider = new TestEntityProvider();
+        final List<Runnable> dispatchTasks = new LinkedList<Runnable>();
+        provider.setEventDispatchExecutor(new Executor() {
+
+            @Override
+            public void execute(Runnable command) {
+                dispatchTasks.add(command);
+            }
+        });
+
+        TestSession session = new TestSession();
+        session.locked = true;
+        VaadinSession.setCurrent(session);
+        try {
+            container.setEntityProvider(provider);
+        } finally {
+            VaadinSession.setCurrent(null);
+        }
+        container.addContainerFilter(new Equal("firstName", "Hello"));
+        TestItemSetChangeListener listener = new TestItemSetChangeListener();
+        container.addListener(listener);
+
+        // The executor delivers the event without the session lock
+        session.locked = false;
+        provider.fireEvent(createPropertiesUpdatedEvent("firstName"));
+        assertEquals(1, dispatchTasks.size());
+        dispatchTasks.remove(0).run();
+        assertEquals(0, listener.getCalled());
+        assertEquals(1, session.pendingAccessTasks.size());
+
+        session.runPendingAccessTasks();
+        assertEquals(1, listener.getCalled());
+        assertTrue(listener.getLastEvent() instanceof JPAContainer.ProviderChangedEvent);
+
+        // Events delivered while holding the lock are handled immediately
+        session.locked = true;
+        container.entityProviderChange(createPropertiesUpdatedEvent("firstName"));
+        assertEquals(2, listener.getCalled());
+        assertTrue(session.pendingAccessTasks.isEmpty());
+    }
+
+    private EntityPropertiesUpdatedEvent<Person> createPropertiesUpdatedEvent(
+            String... propertyIds) {
+        return createPropertiesUpdatedEvent(Collections.<Person> emptyList(),
+                propertyIds);
+    }
+
+    @SuppressWarnings("unchecked")
+    private EntityPropertiesUpdatedEvent<Person> createPropertiesUpdatedEvent(
+            List<Person> affectedEntities, String... propertyIds) {
+        EntityPropertiesUpdatedEvent<Person> event = createMock(EntityPropertiesUpdatedEvent.class);
+        expect(event.getPropertyIds()).andStubReturn(Arrays.asList(propertyIds));
+        expect(event.getAffectedEntities()).andStubReturn(affectedEntities);
+        replay(event);
+        return event;
+    }
+
+    @Test
+    public void testEntityPropertiesUpdated() {
+        replay(entityProviderMock);
+        container.setEntityProvider(entityProviderMock);
+        container.addContainerFilter(new Equal("firstName", "Hello"));
+        container.sort(new Object[] { "lastName" }, new boolean[] { true });
+        TestItemSetChangeListener listener = new TestItemSetChangeListener();
+        container.addListener(listener);
+
+        // Neither filtered nor sorted by
+        container.entityProviderChange(createPropertiesUpdatedEvent(
+                "address.street", "address.postalCode"));
+        assertEquals(0, listener.getCalled());
+
+        container.entityProviderChange(createPropertiesUpdatedEvent(
+                "address.street", "firstName"));
+        assertEquals(1, listener.getCalled());
+        assertTrue(listener.getLastEvent() instanceof JPAContainer.ProviderChangedEvent);
+
+        container.entityProviderChange(createPropertiesUpdatedEvent("lastName"));
+        assertEquals(2, listener.getCalled());
+
+        verify(entityProviderMock);
+    }
+
+    @Test
+    public void testEntityPropertiesUpdated_NestedFilter() {
+        replay(entityProviderMock);
+        container.setEntityProvider(entityProviderMock);
+        container.addContainerFilter(new Equal("address.street", "Main St"));
+        TestItemSetChangeListener listener = new TestItemSetChangeListener();
+        container.addListener(listener);
+
+        container.entityProviderChange(createPropertiesUpdatedEvent("firstName"));
+        assertEquals(0, listener.getCalled());
+
+        // The whole embedded address has been replaced
+        container.entityProviderChange(createPropertiesUpdatedEvent("address"));
+        assertEquals(1, listener.getCalled());
+
+        verify(entityProviderMock);
+    }
+
+    @Test
+    public void testEntityPropertiesUpdated_UnknownFilter() {
+        replay(entityProviderMock);
+        container.setEntityProvider(entityProviderMock);
+        container.addNestedContainerProperty("address.street");
+        container.addContainerFilter(new Filter() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public boolean passesFilter(Object itemId, Item item) {
+                return true;
+            }
+
+            @Override
+            public boolean appliesToProperty(Object propertyId) {
+                return "address.street".equals(propertyId);
+            }
+        });
+        TestItemSetChangeListener listener = new TestItemSetChangeListener();
+        container.addListener(listener);
+
+        container.entityProviderChange(createPropertiesUpdatedEvent("lastName"));
+        assertEquals(0, listener.getCalled());
+
+        container.entityProviderChange(createPropertiesUpdatedEvent("address"));
+        assertEquals(1, listener.getCalled());
+
+        verify(entityProviderMock);
+    }
+
+    @Test
+    public void testEntityPropertiesUpdated_FiresValueChangeEvents() {
+        Person p = new Person();
+        p.setId(123l);
+        p.setFirstName("Joe");
+        expect(entityProviderMock.getEntity(container, 123l)).andReturn(p);
+        replay(entityProviderMock);
+        container.setEntityProvider(entityProviderMock);
+
+        EntityItem<Person> item = container.getItem(123l);
+        final List<Object> changed = new LinkedList<Object>();
+        for (final String propertyId : new String[] { "firstName",
+                "lastName", "address" }) {
+            item.getItemProperty(propertyId).addValueChangeListener(
+                    new Property.ValueChangeListener() {
+
+                        private static final long serialVersionUID = 1L;
+
+                        @Override
+                        public void valueChange(ValueChangeEvent event) {
+                            changed.add(propertyId);
+                        }
+                    });
+        }
+
+        container.entityProviderChange(createPropertiesUpdatedEvent(
+                Collections.singletonList(p), "firstName"));
+        assertEquals(Arrays.asList("firstName"), changed);
+
+        // A nested property that is not in the container notifies the
+        // listeners of its root property
+        changed.clear();
+        container.entityProviderChange(createPropertiesUpdatedEvent(
+                Collections.singletonList(p), "address.postalCode"));
+        assertEquals(Arrays.asList("address"), changed);
+
+        // Items of other entities are not notified
+        Person other = new Person();
+        other.setId(456l);
+        changed.clear();
+        container.entityProviderChange(createPropertiesUpdatedEvent(
+                Collections.singletonList(other), "firstName", "lastName"));
+        assertTrue(changed.isEmpty());
+
+        verify(entityProviderMock);
+    }
+
+    @Test
+    public void testEntityPropertiesUpdated_EvictsStaleCachedItem() {
+        Person p = new Person();
+        p.setId(123l);
+        p.setFirstName("Joe");
+        Person updated = new Person();
+        updated.setId(123l);
+        updated.setFirstName("John");
+        expect(entityProviderMock.getEntity(container, 123l)).andReturn(p);
+        expect(entityProviderMock.getEntity(container, 123l)).andReturn(
+                updated);
+        replay(entityProviderMock);
+        container.setEntityProvider(entityProviderMock);
+        container.setItemIdentityCacheEnabled(true);
+
+        EntityItem<Person> item = container.getItem(123l);
+
+        // The cached item already holds the updated instance
+        container.entityProviderChange(createPropertiesUpdatedEvent(
+                Collections.singletonList(p), "firstName"));
+        assertSame(item, container.getItem(123l));
+
+        // Updated through another instance, e.g. by another container
+        container.entityProviderChange(createPropertiesUpdatedEvent(
+                Collections.singletonList(updated), "firstName"));
+        EntityItem<Person> reloaded = container.getItem(123l);
+        assertNotSame(item, reloaded);
+        assertEquals("John", reloaded.getItemProperty("firstName").getValue());
+
+        verify(entityProviderMock);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testEndItemSetChangeBatchWithoutBegin() {
+        container.endItemSetChangeBatch();
+    }
+
     @Test
     public void testUnsupportedOperations() {
         try {
@@ -1620,6 +2111,214 @@ public class JPAContainerTest {
 
     }
 
+    @Test
+    public void testWriteBehind() {
+        Person p = new Person();
+        p.setId(123l);
+        p.setFirstName("Joe");
+        p.setLastName("Cool");
+        expect(mutableEntityProviderMock.getEntity(container, 123l)).andReturn(p);
+        expect(mutableEntityProviderMock.updateEntity(p)).andReturn(p);
+        replay(mutableEntityProviderMock);
+
+        container.setEntityProvider(mutableEntityProviderMock);
+        container.setWriteThrough(true);
+        container.setWriteBehindWindow(Long.MAX_VALUE);
+
+        EntityItem<Person> item = container.getItem(123l);
+        item.getItemProperty("firstName").setValue("John");
+        item.getItemProperty("lastName").setValue("Smith");
+        assertTrue(item.isDirty());
+        assertTrue(container.isModified());
+
+        // Both changes are written in one update
+        container.flushPendingUpdates();
+        assertFalse(item.isDirty());
+        assertFalse(container.isModified());
+        assertEquals("John", p.getFirstName());
+        assertEquals("Smith", p.getLastName());
+
+        verify(mutableEntityProviderMock);
+    }
+
+    @Test
+    public void testWriteBehind_FlushedAtEndOfRequest() {
+        Person p = new Person();
+        p.setId(123l);
+        p.setFirstName("Joe");
+        expect(mutableEntityProviderMock.getEntity(container, 123l)).andReturn(p);
+        mutableEntityProviderMock.updateEntityProperty(123l, "firstName",
+                "John");
+        replay(mutableEntityProviderMock);
+
+        container.setEntityProvider(mutableEntityProviderMock);
+        container.setWriteThrough(true);
+        container.setWriteBehindWindow(Long.MAX_VALUE);
+
+        TestSession session = new TestSession();
+        session.locked = true;
+        VaadinSession.setCurrent(session);
+        try {
+            EntityItem<Person> item = container.getItem(123l);
+            item.getItemProperty("firstName").setValue("John");
+            assertTrue(item.isDirty());
+            assertEquals(1, session.pendingAccessTasks.size());
+
+            // No further edits, the request ends
+            session.runPendingAccessTasks();
+            assertFalse(item.isDirty());
+            assertFalse(container.isModified());
+        } finally {
+            VaadinSession.setCurrent(null);
+        }
+
+        verify(mutableEntityProviderMock);
+    }
+
+    @Test
+    public void testWriteBehind_Failure() {
+        Person p = new Person();
+        p.setId(123l);
+        p.setFirstName("Joe");
+        RuntimeException failure = new RuntimeException("Failed");
+        expect(mutableEntityProviderMock.getEntity(container, 123l)).andReturn(p);
+        mutableEntityProviderMock.updateEntityProperty(123l, "firstName",
+                "John");
+        expectLastCall().andThrow(failure);
+        mutableEntityProviderMock.updateEntityProperty(123l, "firstName",
+                "John");
+        replay(mutableEntityProviderMock);
+
+        container.setEntityProvider(mutableEntityProviderMock);
+        container.setWriteThrough(true);
+        container.setWriteBehindWindow(Long.MAX_VALUE);
+
+        EntityItem<Person> item = container.getItem(123l);
+        item.getItemProperty("firstName").setValue("John");
+        try {
+            container.flushPendingUpdates();
+            fail("No exception thrown");
+        } catch (SourceException e) {
+            assertSame(container, e.getSource());
+            SourceException cause = (SourceException) e.getCauses()[0];
+            assertSame(item, cause.getSource());
+            assertSame(failure, cause.getCause());
+        }
+        assertTrue(item.isDirty());
+        assertTrue(container.isModified());
+
+        // The failed update is still queued and retried by the next flush
+        container.flushPendingUpdates();
+        assertFalse(item.isDirty());
+        assertFalse(container.isModified());
+
+        verify(mutableEntityProviderMock);
+    }
+
+    @Test
+    public void testWriteBehind_UpdatedEntityReplacesItemEntity() {
+        Person p = new Person();
+        p.setId(123l);
+        p.setFirstName("Joe");
+        p.setLastName("Cool");
+        Person merged = p.clone();
+        merged.setFirstName("John");
+        merged.setLastName("Smith");
+        expect(mutableEntityProviderMock.getEntity(container, 123l)).andReturn(p);
+        expect(mutableEntityProviderMock.updateEntity(p)).andReturn(merged);
+        replay(mutableEntityProviderMock);
+
+        container.setEntityProvider(mutableEntityProviderMock);
+        container.setWriteThrough(true);
+        container.setWriteBehindWindow(Long.MAX_VALUE);
+
+        EntityItem<Person> item = container.getItem(123l);
+        item.getItemProperty("firstName").setValue("John");
+        item.getItemProperty("lastName").setValue("Smith");
+        container.flushPendingUpdates();
+
+        // Further changes must be made to the entity returned by the provider,
+        // e.g. to keep its version
+        assertSame(merged, item.getEntity());
+        assertFalse(item.isDirty());
+
+        verify(mutableEntityProviderMock);
+    }
+
+    /**
+     * Named like the Hibernate exception, which is recognized by its name.
+     */
+    static class LazyInitializationException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * A collection that cannot be iterated until it has been initialized, like
+     * an uninitialized Hibernate collection of a detached entity.
+     */
+    static class LazySet<E> extends HashSet<E> {
+
+        private static final long serialVersionUID = 1L;
+        boolean initialized;
+
+        @Override
+        public Iterator<E> iterator() {
+            if (!initialized) {
+                throw new LazyInitializationException();
+            }
+            return super.iterator();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testWriteBehind_LazyLoadKeepsEarlierChanges() {
+        final Department d = new Department();
+        d.setId(1l);
+        d.setName("Sales");
+        final LazySet<Person> persons = new LazySet<Person>();
+        d.setPersons(persons);
+        LazyLoadingDelegate delegate = createMock(LazyLoadingDelegate.class);
+        expect(delegate.ensureLazyPropertyLoaded(d, "persons")).andAnswer(
+                new IAnswer<Department>() {
+
+                    @Override
+                    public Department answer() throws Throwable {
+                        // Initialized in place, the instance is kept
+                        persons.initialized = true;
+                        return d;
+                    }
+                });
+        JPAContainer<Department> departments = new JPAContainer<Department>(
+                Department.class);
+        PartialUpdateEntityProvider<Department> provider = createMock(PartialUpdateEntityProvider.class);
+        expect(provider.getLazyLoadingDelegate()).andStubReturn(delegate);
+        expect(provider.isPartialUpdateEnabled()).andStubReturn(true);
+        expect(provider.getEntity(departments, 1l)).andReturn(d);
+        Capture<Collection<String>> columns = new Capture<Collection<String>>();
+        expect(provider.updateEntityProperties(EasyMock.same(d),
+                capture(columns))).andReturn(d);
+        replay(delegate, provider);
+
+        departments.setEntityProvider(provider);
+        departments.setWriteThrough(true);
+        departments.setWriteBehindWindow(Long.MAX_VALUE);
+
+        EntityItem<Department> item = departments.getItem(1l);
+        item.getItemProperty("name").setValue("Marketing");
+        assertTrue(((Collection<?>) item.getItemProperty("persons").getValue())
+                .isEmpty());
+        item.getItemProperty("location").setValue("Turku");
+        departments.flushPendingUpdates();
+
+        assertEquals(new HashSet<String>(Arrays.asList("name", "location")),
+                new HashSet<String>(columns.getValue()));
+        assertFalse(item.isDirty());
+
+        verify(delegate, provider);
+    }
+
     public static class TestItemSetChangeListener implements
             Container.ItemSetChangeListener {
 
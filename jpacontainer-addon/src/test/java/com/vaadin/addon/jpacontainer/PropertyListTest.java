@@ -755,4 +755,49 @@ public class PropertyListTest {
         assertFalse(propertyList.isPropertyLazyLoaded("firstName"));
     }
 
+    @Test
+    public void testPropertyOrdinals() {
+        int firstName = propertyList.getPropertyOrdinal("firstName");
+        assertTrue(firstName >= 0);
+        assertEquals(-1, propertyList.getPropertyOrdinal("address.street"));
+
+        propertyList.addNestedProperty("address.street");
+        int street = propertyList.getPropertyOrdinal("address.street");
+        assertTrue(street >= 0);
+        assertTrue(street < propertyList.getOrdinalCount());
+        assertEquals(firstName, propertyList.getPropertyOrdinal("firstName"));
+
+        propertyList.removeProperty("address.street");
+        assertEquals(-1, propertyList.getPropertyOrdinal("address.street"));
+        propertyList.addNestedProperty("address.street");
+        assertEquals(street, propertyList.getPropertyOrdinal("address.street"));
+    }
+
+    @Test
+    public void testGetPropertyValueByOrdinal() {
+        Person p = new Person();
+        p.setFirstName("Joe");
+        p.setAddress(new Address());
+        p.getAddress().setStreet("Street");
+        propertyList.addNestedProperty("address.street");
+
+        assertEquals("Joe", childPropertyList.getPropertyValue(p,
+                childPropertyList.getPropertyOrdinal("firstName")));
+        assertEquals("Street", childPropertyList.getPropertyValue(p,
+                childPropertyList.getPropertyOrdinal("address.street")));
+    }
+
+    @Test
+    public void testChildListSeesChangesInParent() {
+        assertFalse(childPropertyList.getAllAvailablePropertyNames().contains(
+                "address.street"));
+        propertyList.addNestedProperty("address.street");
+        assertTrue(childPropertyList.getAllAvailablePropertyNames().contains(
+                "address.street"));
+        assertTrue(childPropertyList.isPropertyWritable("address.street"));
+        childPropertyList.setPropertyWriteable("address.street", false);
+        assertFalse(childPropertyList.isPropertyWritable("address.street"));
+        assertTrue(propertyList.isPropertyWritable("address.street"));
+    }
+
 }
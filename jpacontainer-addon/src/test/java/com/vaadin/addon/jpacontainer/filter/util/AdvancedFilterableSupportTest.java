@@ -236,4 +236,68 @@ public class AdvancedFilterableSupportTest {
 
         verify(listenerMock);
     }
+
+    @Test
+    public void testBatchFilterChanges_AppliedOnce() {
+        listenerMock.filtersApplied(testObject);
+        expectLastCall().once();
+        replay(listenerMock);
+
+        final Filter otherFilterMock = createMock(Filter.class);
+        testObject.batchFilterChanges(new Runnable() {
+            @Override
+            public void run() {
+                testObject.addFilter(filterMock);
+                testObject.addFilter(otherFilterMock);
+                assertTrue(testObject.isChangingFilters());
+                assertTrue(testObject.hasUnappliedFilters());
+                assertTrue(testObject.getAppliedFilters().isEmpty());
+            }
+        });
+        assertFalse(testObject.isChangingFilters());
+        assertFalse(testObject.hasUnappliedFilters());
+        assertEquals(2, testObject.getAppliedFilters().size());
+
+        verify(listenerMock);
+    }
+
+    @Test
+    public void testBatchFilterChanges_Nested() {
+        listenerMock.filtersApplied(testObject);
+        expectLastCall().once();
+        replay(listenerMock);
+
+        testObject.beginFilterChanges();
+        testObject.addFilter(filterMock);
+        testObject.beginFilterChanges();
+        testObject.removeAllFilters();
+        testObject.addFilter(filterMock);
+        testObject.endFilterChanges();
+        assertTrue(testObject.getAppliedFilters().isEmpty());
+        testObject.endFilterChanges();
+        assertTrue(testObject.getAppliedFilters().contains(filterMock));
+
+        verify(listenerMock);
+    }
+
+    @Test
+    public void testBatchFilterChanges_Unchanged() {
+        listenerMock.filtersApplied(testObject);
+        expectLastCall().once();
+        replay(listenerMock);
+
+        testObject.addFilter(filterMock);
+        testObject.beginFilterChanges();
+        testObject.removeAllFilters();
+        testObject.addFilter(filterMock);
+        testObject.endFilterChanges();
+        assertFalse(testObject.hasUnappliedFilters());
+
+        verify(listenerMock);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testEndFilterChanges_NotStarted() {
+        testObject.endFilterChanges();
+    }
 }
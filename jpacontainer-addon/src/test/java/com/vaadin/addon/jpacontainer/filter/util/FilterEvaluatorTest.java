@@ -0,0 +1,268 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.filter.util;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.filter.JoinFilter;
+import com.vaadin.addon.jpacontainer.filter.util.FilterEvaluator.CompiledFilter;
+import com.vaadin.addon.jpacontainer.metadata.EntityClassMetadata;
+import com.vaadin.addon.jpacontainer.metadata.MetadataFactory;
+import com.vaadin.addon.jpacontainer.testdata.Address;
+import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.addon.jpacontainer.testdata.Skill;
+import com.vaadin.data.Container.Filter;
+import com.vaadin.data.util.filter.And;
+import com.vaadin.data.util.filter.Between;
+import com.vaadin.data.util.filter.Compare;
+import com.vaadin.data.util.filter.In;
+import com.vaadin.data.util.filter.IsNull;
+import com.vaadin.data.util.filter.Like;
+import com.vaadin.data.util.filter.Not;
+import com.vaadin.data.util.filter.Or;
+import com.vaadin.data.util.filter.SimpleStringFilter;
+
+/**
+ * Test case for {@link FilterEvaluator}.
+ *
+ * @since 3.1.1
+ */
+public class FilterEvaluatorTest {
+
+    private EntityClassMetadata<Person> metadata;
+    private Person person;
+    private Skill java;
+
+    @Before
+    public void setUp() {
+        metadata = MetadataFactory.getInstance().getEntityClassMetadata(
+                Person.class);
+        person = new Person();
+        person.setId(1L);
+        person.setFirstName("Joe");
+        person.setLastName("Smith");
+        person.setPrimitiveDouble(42.5);
+        Address address = new Address();
+        address.setStreet("Main Street 1");
+        person.setAddress(address);
+
+        java = new Skill();
+        java.setSkillName("Java");
+        person.addSkill(java, 3);
+    }
+
+    private boolean evaluate(Filter filter) {
+        assertTrue(FilterEvaluator.isEvaluable(filter));
+        CompiledFilter compiled = FilterEvaluator.compileFilter(filter,
+                metadata);
+        return compiled.evaluate(person);
+    }
+
+    @Test
+    public void testCompare() {
+        assertTrue(evaluate(new Compare.Equal("firstName", "Joe")));
+        assertFalse(evaluate(new Compare.Equal("firstName", "joe")));
+        assertTrue(evaluate(new Compare.Greater("lastName", "Smi")));
+        assertTrue(evaluate(new Compare.LessOrEqual("lastName", "Smith")));
+        assertFalse(evaluate(new Compare.Less("lastName", "Smith")));
+        // Numbers of different types are compared by value
+        assertTrue(evaluate(new Compare.Equal("id", 1)));
+        assertTrue(evaluate(new Compare.GreaterOrEqual("primitiveDouble", 42)));
+        assertFalse(evaluate(new Compare.Greater("primitiveDouble", 42.5f)));
+        // "= null" is treated as IS NULL
+        assertTrue(evaluate(new Compare.Equal("dateOfBirth", null)));
+    }
+
+    @Test
+    public void testComparisonAgainstNullIsUnknown() {
+        assertFalse(evaluate(new Compare.Equal("dateOfBirth", 1)));
+        assertFalse(evaluate(new Not(new Compare.Equal("dateOfBirth", 1))));
+        assertFalse(evaluate(new Not(new Like("address.postOffice", "%"))));
+        assertTrue(evaluate(new Or(new Compare.Equal("dateOfBirth", 1),
+                new Compare.Equal("firstName", "Joe"))));
+    }
+
+    @Test
+    public void testIsNull() {
+        assertTrue(evaluate(new IsNull("dateOfBirth")));
+        assertFalse(evaluate(new IsNull("firstName")));
+        assertTrue(evaluate(new Not(new IsNull("firstName"))));
+    }
+
+    @Test
+    public void testSimpleStringFilter() {
+        assertTrue(evaluate(new SimpleStringFilter("lastName", "smi", true,
+                true)));
+        assertFalse(evaluate(new SimpleStringFilter("lastName", "smi", false,
+                true)));
+        assertTrue(evaluate(new SimpleStringFilter("lastName", "MIT", true,
+                false)));
+        assertFalse(evaluate(new SimpleStringFilter("lastName", "mit", true,
+                true)));
+        assertTrue(evaluate(new SimpleStringFilter("address.street",
+                "street", true, false)));
+    }
+
+    @Test
+    public void testLike() {
+        assertTrue(evaluate(new Like("lastName", "Sm_th")));
+        assertTrue(evaluate(new Like("lastName", "%ith")));
+        assertTrue(evaluate(new Like("lastName", "%")));
+        assertTrue(evaluate(new Like("lastName", "smith", false)));
+        assertFalse(evaluate(new Like("lastName", "smith")));
+        assertFalse(evaluate(new Like("lastName", "S_th")));
+        // Regular expression characters are matched literally
+        assertFalse(evaluate(new Like("lastName", "S.*")));
+    }
+
+    @Test
+    public void testBetween() {
+        assertTrue(evaluate(new Between("primitiveDouble", 42.5, 50.0)));
+        assertTrue(evaluate(new Between("primitiveDouble", 40, 42.5)));
+        assertFalse(evaluate(new Between("primitiveDouble", 43, 50)));
+    }
+
+    @Test
+    public void testIn() {
+        assertTrue(evaluate(new In("firstName", Arrays.asList("Joe",
+                "Maxwell"))));
+        assertFalse(evaluate(new In("firstName", Arrays.asList("Maxwell"))));
+    }
+
+    @Test
+    public void testJunctions() {
+        assertTrue(evaluate(new And(new Compare.Equal("firstName", "Joe"),
+                new Compare.Equal("lastName", "Smith"))));
+        assertFalse(evaluate(new And(new Compare.Equal("firstName", "Joe"),
+                new Compare.Equal("lastName", "Jones"))));
+        assertTrue(evaluate(new Or(new Compare.Equal("firstName", "Max"),
+                new Compare.Equal("lastName", "Smith"))));
+        assertFalse(evaluate(new Not(new Compare.Equal("firstName", "Joe"))));
+    }
+
+    @Test
+    public void testNullReferenceExcludesEntity() {
+        // The implicit inner join to manager does not produce any rows
+        assertFalse(evaluate(new IsNull("manager.firstName")));
+        assertFalse(evaluate(new Or(new Compare.Equal("firstName", "Joe"),
+                new IsNull("manager.firstName"))));
+
+        Person manager = new Person();
+        manager.setFirstName("Max");
+        person.setManager(manager);
+        assertTrue(evaluate(new Compare.Equal("manager.firstName", "Max")));
+    }
+
+    @Test
+    public void testJoinFilter() {
+        assertTrue(evaluate(new JoinFilter("skills", new Compare.Equal(
+                "skill", java), new Compare.Equal("level", 3))));
+        assertTrue(evaluate(new JoinFilter("skills", new Compare.Equal(
+                "skill.skillName", "Java"))));
+        assertFalse(evaluate(new JoinFilter("skills", new Compare.Greater(
+                "level", 3))));
+    }
+
+    @Test
+    public void testJoinFilterInsideNotIsNotEvaluable() {
+        assertFalse(FilterEvaluator.isEvaluable(new Not(new JoinFilter(
+                "skills", new Compare.Equal("level", 3)))));
+        assertFalse(FilterEvaluator.isEvaluable(new Or(new IsNull("id"),
+                new JoinFilter("skills", new Compare.Equal("level", 3)))));
+    }
+
+    @Test
+    public void testIsRefinementOf() {
+        Filter s = new SimpleStringFilter("lastName", "sm", true, true);
+        Filter smi = new SimpleStringFilter("lastName", "smi", true, true);
+        Filter containsMi = new SimpleStringFilter("lastName", "mi", true,
+                false);
+        assertTrue(FilterEvaluator.isRefinementOf(smi, s));
+        assertTrue(FilterEvaluator.isRefinementOf(smi, containsMi));
+        assertTrue(FilterEvaluator.isRefinementOf(smi, null));
+        assertFalse(FilterEvaluator.isRefinementOf(s, smi));
+        assertFalse(FilterEvaluator.isRefinementOf(containsMi, smi));
+        assertFalse(FilterEvaluator.isRefinementOf(null, smi));
+
+        Filter male = new Compare.Equal("male", true);
+        assertTrue(FilterEvaluator.isRefinementOf(new And(s, male), s));
+        assertTrue(FilterEvaluator.isRefinementOf(new And(smi, male),
+                new And(s, male)));
+        assertFalse(FilterEvaluator.isRefinementOf(s, new And(s, male)));
+        assertTrue(FilterEvaluator.isRefinementOf(s, new Or(s, male)));
+
+        assertTrue(FilterEvaluator.isRefinementOf(new Between(
+                "primitiveDouble", 10, 20), new Between("primitiveDouble",
+                5.0, 20.0)));
+        assertFalse(FilterEvaluator.isRefinementOf(new Between(
+                "primitiveDouble", 10, 21), new Between("primitiveDouble", 5,
+                20)));
+        assertTrue(FilterEvaluator.isRefinementOf(new Between(
+                "primitiveDouble", 10, 20), new Compare.Greater(
+                "primitiveDouble", 5)));
+        assertFalse(FilterEvaluator.isRefinementOf(new Compare.GreaterOrEqual(
+                "primitiveDouble", 5), new Compare.Greater("primitiveDouble",
+                5)));
+        assertTrue(FilterEvaluator.isRefinementOf(new Compare.Equal(
+                "firstName", "Joe"), new In("firstName", Arrays.asList("Joe",
+                "Max"))));
+    }
+
+    @Test
+    public void testComparesStrings() {
+        assertTrue(FilterEvaluator.comparesStrings(new SimpleStringFilter(
+                "lastName", "sm", true, true)));
+        assertTrue(FilterEvaluator.comparesStrings(new Like("lastName", "S%")));
+        assertTrue(FilterEvaluator.comparesStrings(new Compare.Equal(
+                "firstName", "Joe")));
+        assertTrue(FilterEvaluator.comparesStrings(new Between("lastName",
+                "A", "M")));
+        assertTrue(FilterEvaluator.comparesStrings(new In("firstName", Arrays
+                .asList("Joe", "Max"))));
+        assertTrue(FilterEvaluator.comparesStrings(new And(new Compare.Equal(
+                "male", true), new Not(new Compare.Greater("lastName", "M")))));
+        assertTrue(FilterEvaluator.comparesStrings(new JoinFilter("skills",
+                new Compare.Equal("skill.skillName", "Java"))));
+
+        assertFalse(FilterEvaluator.comparesStrings(new IsNull("lastName")));
+        assertFalse(FilterEvaluator.comparesStrings(new Or(new Compare.Equal(
+                "male", true), new Between("primitiveDouble", 5.0, 20.0))));
+        assertFalse(FilterEvaluator.comparesStrings(new JoinFilter("skills",
+                new Compare.Equal("level", 3))));
+    }
+
+    @Test
+    public void testUnsupportedFilterIsNotEvaluable() {
+        assertFalse(FilterEvaluator.isEvaluable(new Filter() {
+            @Override
+            public boolean passesFilter(Object itemId,
+                    com.vaadin.data.Item item) {
+                return true;
+            }
+
+            @Override
+            public boolean appliesToProperty(Object propertyId) {
+                return false;
+            }
+        }));
+    }
+}
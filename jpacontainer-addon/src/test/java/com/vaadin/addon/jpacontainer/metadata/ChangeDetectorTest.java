@@ -0,0 +1,91 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.metadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.addon.jpacontainer.testdata.PersonSkill;
+import com.vaadin.addon.jpacontainer.testdata.Skill;
+
+/**
+ * Test case for {@link ChangeDetector}.
+ * 
+ * @since 3.1.1
+ */
+public class ChangeDetectorTest {
+
+    private ChangeDetector<PersonSkill> detector = MetadataFactory
+            .getInstance().getEntityClassMetadata(PersonSkill.class)
+            .getChangeDetector();
+
+    private PersonSkill createPersonSkill() {
+        PersonSkill ps = new PersonSkill();
+        ps.setId(1l);
+        ps.setVersion(1l);
+        ps.setLevel(3);
+        ps.setSkill(new Skill());
+        return ps;
+    }
+
+    @Test
+    public void testColumns() {
+        assertTrue(detector.isSupported());
+        assertTrue(detector.isColumn("level"));
+        assertFalse(detector.isColumn("id"));
+        assertFalse(detector.isColumn("version"));
+        assertFalse(detector.isColumn("skill"));
+    }
+
+    @Test
+    public void testGetChangedColumns() {
+        PersonSkill ps = createPersonSkill();
+        Object[] snapshot = detector.takeSnapshot(ps);
+        assertEquals(Collections.emptyList(),
+                detector.getChangedColumns(ps, snapshot));
+
+        ps.setLevel(5);
+        // The version is not a column
+        ps.setVersion(2l);
+        assertEquals(Arrays.asList("level"),
+                detector.getChangedColumns(ps, snapshot));
+    }
+
+    @Test
+    public void testGetChangedColumns_Relationship() {
+        PersonSkill ps = createPersonSkill();
+        Object[] snapshot = detector.takeSnapshot(ps);
+        ps.setSkill(new Skill());
+        assertNull(detector.getChangedColumns(ps, snapshot));
+        assertNull(detector.getChangedColumns(ps, null));
+    }
+
+    @Test
+    public void testCascadedMergeIsNotSupported() {
+        ChangeDetector<Person> personDetector = MetadataFactory.getInstance()
+                .getEntityClassMetadata(Person.class).getChangeDetector();
+        assertFalse(personDetector.isSupported());
+        assertNull(personDetector.takeSnapshot(new Person()));
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.metadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.testdata.Address;
+import com.vaadin.addon.jpacontainer.testdata.Person;
+
+/**
+ * Test case for {@link EntityCopier}.
+ * 
+ * @since 3.1.1
+ */
+public class EntityCopierTest {
+
+    private EntityClassMetadata<Person> metadata = MetadataFactory
+            .getInstance().getEntityClassMetadata(Person.class);
+
+    private Person createPerson() {
+        Person manager = new Person();
+        manager.setId(1l);
+        Person p = new Person();
+        p.setId(2l);
+        p.setFirstName("Joe");
+        p.setLastName("Cool");
+        p.setTempData("temp");
+        p.setManager(manager);
+        p.setAddress(new Address());
+        p.getAddress().setStreet("Street");
+        return p;
+    }
+
+    @Test
+    public void testCopy() {
+        Person p = createPerson();
+        Person copy = new EntityCopier<Person>(metadata, true).copy(p);
+
+        assertNotSame(p, copy);
+        assertEquals(p.getId(), copy.getId());
+        assertEquals("Joe", copy.getFirstName());
+        assertEquals("Cool", copy.getLastName());
+        assertEquals("temp", copy.getTempData());
+        // References are shared
+        assertSame(p.getManager(), copy.getManager());
+        assertSame(p.getSkills(), copy.getSkills());
+        // Embedded objects are copied
+        assertNotSame(p.getAddress(), copy.getAddress());
+        assertEquals("Street", copy.getAddress().getStreet());
+
+        copy.getAddress().setStreet("Other street");
+        assertEquals("Street", p.getAddress().getStreet());
+    }
+
+    @Test
+    public void testCopy_SharedEmbedded() {
+        Person p = createPerson();
+        Person copy = new EntityCopier<Person>(metadata, false).copy(p);
+        assertSame(p.getAddress(), copy.getAddress());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCopy_Subclass() {
+        new EntityCopier<Person>(metadata, true).copy(new Person() {
+            private static final long serialVersionUID = 1L;
+        });
+    }
+}
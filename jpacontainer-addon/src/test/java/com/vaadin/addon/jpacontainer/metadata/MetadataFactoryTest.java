@@ -16,6 +16,9 @@
 
 package com.vaadin.addon.jpacontainer.metadata;
 
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -23,11 +26,25 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.persistence.EntityManagerFactory;
 import javax.persistence.Id;
 import javax.persistence.Version;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.Metamodel;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -40,7 +57,9 @@ import com.vaadin.addon.jpacontainer.metadata.TestClasses.EmbeddedIdEntity_M;
 import com.vaadin.addon.jpacontainer.metadata.TestClasses.Integer_ConcreteId_M;
 import com.vaadin.addon.jpacontainer.metadata.TestClasses.Person_F;
 import com.vaadin.addon.jpacontainer.metadata.TestClasses.Person_M;
+import com.vaadin.addon.jpacontainer.testdata.Address;
 import com.vaadin.addon.jpacontainer.testdata.Data;
+import com.vaadin.addon.jpacontainer.testdata.Person;
 
 /**
  * Test case for {@link MetadataFactory}.
@@ -362,4 +381,146 @@ public class MetadataFactoryTest {
         Class<?> type = metadata.getProperty("manyToMany").getType();
         assertEquals(Set.class, type);
     }
+
+    @Test
+    public void testConcurrentFirstRequests() throws Exception {
+        final MetadataFactory freshFactory = new MetadataFactory();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<EntityClassMetadata<Person>>> results = new ArrayList<Future<EntityClassMetadata<Person>>>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor
+                        .submit(new Callable<EntityClassMetadata<Person>>() {
+                            public EntityClassMetadata<Person> call() {
+                                return freshFactory
+                                        .getEntityClassMetadata(Person.class);
+                            }
+                        }));
+            }
+            EntityClassMetadata<Person> metadata = freshFactory
+                    .getEntityClassMetadata(Person.class);
+            for (Future<EntityClassMetadata<Person>> result : results) {
+                assertSame(metadata, result.get());
+            }
+            assertNotNull(metadata.getIdentifierProperty());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testConcurrentlyPublishedReference() throws Exception {
+        final AtomicBoolean published = new AtomicBoolean();
+        final MetadataFactory freshFactory = new MetadataFactory() {
+            @Override
+            protected void loadProperties(Class<?> type,
+                    ClassMetadata<?> metadata,
+                    PersistentPropertyMetadata.AccessType accessType) {
+                super.loadProperties(type, metadata, accessType);
+                if (type == Address.class
+                        && published.compareAndSet(false, true)) {
+                    // Another thread publishes the address while the person
+                    // is still being populated
+                    final MetadataFactory factory = this;
+                    Thread t = new Thread() {
+                        @Override
+                        public void run() {
+                            factory.getClassMetadata(Address.class,
+                                    PersistentPropertyMetadata.AccessType.FIELD);
+                        }
+                    };
+                    t.start();
+                    try {
+                        t.join();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+        };
+        EntityClassMetadata<Person> metadata = freshFactory
+                .getEntityClassMetadata(Person.class);
+        assertTrue(published.get());
+        assertSame(freshFactory.getClassMetadata(Address.class,
+                PersistentPropertyMetadata.AccessType.FIELD),
+                ((PersistentPropertyMetadata) metadata.getProperty("address"))
+                        .getTypeMetadata());
+        assertSame(metadata, freshFactory.getEntityClassMetadata(Person.class));
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Test
+    public void testPreloadMetadata() {
+        final AtomicInteger loadCount = new AtomicInteger();
+        MetadataFactory freshFactory = new MetadataFactory() {
+            @Override
+            protected void loadProperties(Class<?> type,
+                    ClassMetadata<?> metadata,
+                    PersistentPropertyMetadata.AccessType accessType) {
+                loadCount.incrementAndGet();
+                super.loadProperties(type, metadata, accessType);
+            }
+        };
+
+        Set<EntityType<?>> entities = new HashSet<EntityType<?>>();
+        for (Class<?> cls : new Class<?>[] { Person.class, Data.class }) {
+            EntityType entityType = createMock(EntityType.class);
+            expect(entityType.getJavaType()).andReturn(cls).anyTimes();
+            replay(entityType);
+            entities.add(entityType);
+        }
+        Metamodel metamodel = createMock(Metamodel.class);
+        expect(metamodel.getEntities()).andReturn(entities);
+        EntityManagerFactory emf = createMock(EntityManagerFactory.class);
+        expect(emf.getMetamodel()).andReturn(metamodel);
+        replay(metamodel, emf);
+
+        freshFactory.preloadMetadata(emf);
+        int loaded = loadCount.get();
+        assertTrue(loaded >= 2);
+
+        freshFactory.getEntityClassMetadata(Person.class);
+        freshFactory.getEntityClassMetadata(Data.class);
+        assertEquals(loaded, loadCount.get());
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        MetadataFactory original = new MetadataFactory();
+        EntityClassMetadata<Person> metadata = original
+                .getEntityClassMetadata(Person.class);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        original.writeSnapshot(out);
+
+        final AtomicInteger loadCount = new AtomicInteger();
+        MetadataFactory restoredFactory = new MetadataFactory() {
+            @Override
+            protected void loadProperties(Class<?> type,
+                    ClassMetadata<?> metadata,
+                    PersistentPropertyMetadata.AccessType accessType) {
+                loadCount.incrementAndGet();
+                super.loadProperties(type, metadata, accessType);
+            }
+        };
+        assertTrue(restoredFactory.readSnapshot(
+                new ByteArrayInputStream(out.toByteArray()), getClass()
+                        .getClassLoader()) > 0);
+        EntityClassMetadata<Person> restored = restoredFactory
+                .getEntityClassMetadata(Person.class);
+        assertEquals(0, loadCount.get());
+        assertEquals(metadata, restored);
+        assertEquals("id", restored.getIdentifierProperty().getName());
+    }
+
+    @Test
+    public void testClassHash() {
+        assertEquals(MetadataSnapshot.classHash(Person.class),
+                MetadataSnapshot.classHash(Person.class));
+        assertFalse(MetadataSnapshot.classHash(Person.class).equals(
+                MetadataSnapshot.classHash(Data.class)));
+        assertEquals(MetadataSnapshot.reflectiveClassHash(Person.class),
+                MetadataSnapshot.reflectiveClassHash(Person.class));
+        assertFalse(MetadataSnapshot.reflectiveClassHash(Person.class)
+                .equals(MetadataSnapshot.reflectiveClassHash(Data.class)));
+    }
 }
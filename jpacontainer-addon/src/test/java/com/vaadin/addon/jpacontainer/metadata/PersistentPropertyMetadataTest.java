@@ -18,10 +18,15 @@ package com.vaadin.addon.jpacontainer.metadata;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.util.EnumSet;
+import javax.persistence.CascadeType;
+import javax.persistence.FetchType;
 import javax.persistence.Version;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import com.vaadin.addon.jpacontainer.testdata.Person;
+
 /**
  * Test case for {@link PersistentPropertyMetadata}.
  * 
@@ -137,5 +142,37 @@ public class PersistentPropertyMetadataTest {
 		assertNotNull(prop.getAnnotation(Version.class));
 	}
 
+	@Test
+	public void testFetchType() {
+		EntityClassMetadata<Person> metadata = MetadataFactory.getInstance()
+				.getEntityClassMetadata(Person.class);
+		PersistentPropertyMetadata manager = (PersistentPropertyMetadata) metadata
+				.getProperty("manager");
+		assertEquals(FetchType.LAZY, manager.getFetchType());
+		assertTrue(manager.isLazyLoaded());
+		PersistentPropertyMetadata skills = (PersistentPropertyMetadata) metadata
+				.getProperty("skills");
+		assertEquals(FetchType.LAZY, skills.getFetchType());
+		PersistentPropertyMetadata firstName = (PersistentPropertyMetadata) metadata
+				.getProperty("firstName");
+		assertNull(firstName.getFetchType());
+		assertFalse(firstName.isLazyLoaded());
+	}
+
+	@Test
+	public void testCascadeTypes() {
+		EntityClassMetadata<Person> metadata = MetadataFactory.getInstance()
+				.getEntityClassMetadata(Person.class);
+		PersistentPropertyMetadata skills = (PersistentPropertyMetadata) metadata
+				.getProperty("skills");
+		assertEquals(EnumSet.of(CascadeType.ALL), skills.getCascadeTypes());
+		PersistentPropertyMetadata manager = (PersistentPropertyMetadata) metadata
+				.getProperty("manager");
+		assertTrue(manager.getCascadeTypes().isEmpty());
+		PersistentPropertyMetadata firstName = (PersistentPropertyMetadata) metadata
+				.getProperty("firstName");
+		assertTrue(firstName.getCascadeTypes().isEmpty());
+	}
+
 	// TODO Add test for equals() and hashCode() + serialization
 }
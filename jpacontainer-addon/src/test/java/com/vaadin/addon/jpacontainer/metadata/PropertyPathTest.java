@@ -0,0 +1,118 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.metadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import javax.persistence.FetchType;
+
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.testdata.Address;
+import com.vaadin.addon.jpacontainer.testdata.Person;
+
+/**
+ * Test case for {@link PropertyPath}.
+ * 
+ * @since 3.1.1
+ */
+public class PropertyPathTest {
+
+    private EntityClassMetadata<Person> metadata = MetadataFactory
+            .getInstance().getEntityClassMetadata(Person.class);
+
+    @Test
+    public void testPathIsCompiledOnce() {
+        assertSame(metadata.getPropertyPath("address.street"),
+                metadata.getPropertyPath("address.street"));
+    }
+
+    @Test
+    public void testPathCacheIsBounded() {
+        EntityClassMetadata<Person> fresh = new MetadataFactory()
+                .getEntityClassMetadata(Person.class);
+        StringBuilder name = new StringBuilder("firstName");
+        for (int i = 0; i < ClassMetadata.MAX_CACHED_PROPERTY_PATHS; i++) {
+            fresh.getPropertyPath(name.toString());
+            name.insert(0, "manager.");
+        }
+        // The cache is full, so new paths are compiled on every request
+        String overflow = name.toString();
+        PropertyPath path = fresh.getPropertyPath(overflow);
+        assertEquals(overflow, path.getName());
+        assertNotSame(path, fresh.getPropertyPath(overflow));
+        // while the cached ones are still reused
+        assertSame(fresh.getPropertyPath("firstName"),
+                fresh.getPropertyPath("firstName"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPropertyName() {
+        metadata.getPropertyPath("address.nonExistent");
+    }
+
+    @Test
+    public void testGetAndSetNestedValue() {
+        PropertyPath path = metadata.getPropertyPath("address.street");
+        assertTrue(path.isNested());
+        assertTrue(path.isPersistent());
+        assertTrue(path.isWritable());
+        assertEquals(String.class, path.getType());
+
+        Person p = new Person();
+        p.setAddress(new Address());
+        path.setValue(p, "Street");
+        assertEquals("Street", p.getAddress().getStreet());
+        assertEquals("Street", path.getValue(p));
+    }
+
+    @Test
+    public void testGetValue_NullInChain() {
+        assertNull(metadata.getPropertyPath("address.street").getValue(
+                new Person()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSetValue_NullInChain() {
+        metadata.getPropertyPath("address.street").setValue(new Person(),
+                "Street");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetValue_ReadOnly() {
+        Person p = new Person();
+        p.setAddress(new Address());
+        PropertyPath path = metadata.getPropertyPath("address.fullAddress");
+        assertFalse(path.isWritable());
+        path.setValue(p, "Street");
+    }
+
+    @Test
+    public void testLazyLoaded() {
+        assertTrue(metadata.getPropertyPath("skills").isLazyLoaded());
+        assertEquals(FetchType.LAZY, metadata.getPropertyPath("manager")
+                .getFetchType());
+        assertTrue(metadata.getPropertyPath("manager.firstName")
+                .isLazyLoaded());
+        assertFalse(metadata.getPropertyPath("address.street").isLazyLoaded());
+        assertFalse(metadata.getPropertyPath("firstName").isLazyLoaded());
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.performance;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.carrotsearch.junitbenchmarks.AbstractBenchmark;
+import com.carrotsearch.junitbenchmarks.BenchmarkOptions;
+import com.vaadin.addon.jpacontainer.provider.MutableLocalEntityProvider;
+import com.vaadin.addon.jpacontainer.testdata.Skill;
+
+/**
+ * Compares the insert throughput of merging every new entity, like
+ * {@link MutableLocalEntityProvider#addEntity(Object) } used to do, with
+ * persisting them and with adding them all in one transaction using
+ * {@link MutableLocalEntityProvider#addEntities(java.util.Collection) }. Uses
+ * the in-memory HSQLDB database. Run it manually; the benchmark rule prints
+ * the time of each method.
+ */
+@BenchmarkOptions(warmupRounds = 3, benchmarkRounds = 10)
+public class AddEntityBenchmark extends AbstractBenchmark {
+
+    private static final int ENTITIES = 500;
+
+    private static EntityManagerFactory emf = Persistence
+            .createEntityManagerFactory("eclipselink-in-memory");
+    // Skill names are unique, so every round needs new ones
+    private static int counter;
+
+    private EntityManager em;
+    private MutableLocalEntityProvider<Skill> provider;
+
+    @Before
+    public void setUp() {
+        em = emf.createEntityManager();
+        provider = new MutableLocalEntityProvider<Skill>(Skill.class, em);
+    }
+
+    @After
+    public void tearDown() {
+        em.close();
+    }
+
+    private List<Skill> createSkills() {
+        List<Skill> skills = new ArrayList<Skill>(ENTITIES);
+        for (int i = 0; i < ENTITIES; i++) {
+            Skill s = new Skill();
+            s.setSkillName("Benchmark skill " + counter++);
+            skills.add(s);
+        }
+        return skills;
+    }
+
+    @Test
+    public void mergeEach() {
+        for (Skill s : createSkills()) {
+            EntityTransaction t = em.getTransaction();
+            t.begin();
+            Skill merged = em.merge(s);
+            em.flush();
+            t.commit();
+            em.detach(merged);
+        }
+    }
+
+    @Test
+    public void addEntityEach() {
+        for (Skill s : createSkills()) {
+            provider.addEntity(s);
+        }
+    }
+
+    @Test
+    public void addEntities() {
+        provider.addEntities(createSkills());
+    }
+}
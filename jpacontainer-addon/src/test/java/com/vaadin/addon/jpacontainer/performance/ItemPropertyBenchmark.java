@@ -0,0 +1,142 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.performance;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.carrotsearch.junitbenchmarks.AbstractBenchmark;
+import com.carrotsearch.junitbenchmarks.BenchmarkOptions;
+import com.vaadin.addon.jpacontainer.EntityItem;
+import com.vaadin.addon.jpacontainer.HashMapItemProperties;
+import com.vaadin.addon.jpacontainer.JPAContainer;
+import com.vaadin.addon.jpacontainer.testdata.Address;
+import com.vaadin.addon.jpacontainer.testdata.Person;
+
+/**
+ * Measures the cost of rendering a page of rows, i.e. creating an item for
+ * every row and reading all of its properties. The items keep their properties
+ * in slots indexed by the property ordinal; the second method reads the same
+ * items through {@link HashMapItemProperties}, the per-item map the items used
+ * before. Besides the time printed by the benchmark rule, the bytes allocated
+ * by each method are measured with the thread allocation counter of the JVM
+ * (where supported) and printed after the run. Run it manually.
+ * <p>
+ * The items of the second method are created the current way, so it measures
+ * the old lookup on top of the current item construction rather than a copy
+ * of the old item. As the slot array is only allocated when a property is
+ * first requested through the item, that construction differs from the old
+ * one only by the reference to the unused array, while the wrapper adds one
+ * small object per item. The second method may thus appear slightly more
+ * expensive than the old items were.
+ */
+@BenchmarkOptions(warmupRounds = 5, benchmarkRounds = 20)
+public class ItemPropertyBenchmark extends AbstractBenchmark {
+
+    private static final int ROWS = 50;
+    private static final int REPAINTS = 200;
+
+    // Bytes allocated by the last round of each method
+    private static final Map<String, Long> allocatedBytes = new TreeMap<String, Long>();
+
+    private JPAContainer<Person> container;
+    private List<Person> rows;
+    private Collection<String> propertyIds;
+
+    @Before
+    public void setUp() {
+        container = new JPAContainer<Person>(Person.class);
+        container.addNestedContainerProperty("address.*");
+        rows = new ArrayList<Person>();
+        for (int i = 0; i < ROWS; i++) {
+            Person p = new Person();
+            p.setId((long) i);
+            p.setFirstName("First " + i);
+            p.setLastName("Last " + i);
+            p.setAddress(new Address());
+            rows.add(p);
+        }
+        propertyIds = container.getContainerPropertyIds();
+    }
+
+    @AfterClass
+    public static void printAllocatedBytes() {
+        for (Map.Entry<String, Long> entry : allocatedBytes.entrySet()) {
+            System.out.println(entry.getKey() + ": " + entry.getValue()
+                    + " bytes allocated per round");
+        }
+    }
+
+    @Test
+    public void arraySlots() {
+        long before = getAllocatedBytes();
+        for (int repaint = 0; repaint < REPAINTS; repaint++) {
+            for (Person p : rows) {
+                EntityItem<Person> item = container.createEntityItem(p);
+                for (String id : propertyIds) {
+                    item.getItemProperty(id).getValue();
+                }
+            }
+        }
+        recordAllocatedBytes("arraySlots", before);
+    }
+
+    @Test
+    public void hashMapPerItem() {
+        long before = getAllocatedBytes();
+        for (int repaint = 0; repaint < REPAINTS; repaint++) {
+            for (Person p : rows) {
+                HashMapItemProperties<Person> item = new HashMapItemProperties<Person>(
+                        container.createEntityItem(p));
+                for (String id : propertyIds) {
+                    item.getItemProperty(id).getValue();
+                }
+            }
+        }
+        recordAllocatedBytes("hashMapPerItem", before);
+    }
+
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if (sunBean.isThreadAllocatedMemorySupported()
+                    && sunBean.isThreadAllocatedMemoryEnabled()) {
+                return sunBean.getThreadAllocatedBytes(Thread.currentThread()
+                        .getId());
+            }
+        }
+        return -1;
+    }
+
+    private static void recordAllocatedBytes(String method, long before) {
+        long after = getAllocatedBytes();
+        if (before != -1 && after != -1) {
+            synchronized (allocatedBytes) {
+                allocatedBytes.put(method, after - before);
+            }
+        }
+    }
+}
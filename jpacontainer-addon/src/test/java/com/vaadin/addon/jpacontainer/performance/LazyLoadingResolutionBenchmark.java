@@ -0,0 +1,192 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.performance;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Id;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+
+import org.hibernate.ejb.Ejb3Configuration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.carrotsearch.junitbenchmarks.AbstractBenchmark;
+import com.carrotsearch.junitbenchmarks.BenchmarkOptions;
+import com.vaadin.addon.jpacontainer.provider.LocalEntityProvider;
+import com.vaadin.addon.jpacontainer.testdata.Address;
+import com.vaadin.addon.jpacontainer.testdata.EmbeddedIdPerson;
+import com.vaadin.addon.jpacontainer.testdata.Name;
+import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.addon.jpacontainer.testdata.PersonSkill;
+import com.vaadin.addon.jpacontainer.testdata.Skill;
+import com.vaadin.addon.jpacontainer.util.HibernateLazyLoadingDelegate;
+
+/**
+ * Measures {@link HibernateLazyLoadingDelegate#ensureLazyPropertyLoaded(Object, String)}
+ * loading the manager of every row of a page, one row at a time. The same
+ * queries are run by {@link ReflectiveLazyLoadingDelegate}, which resolves the
+ * identifier and the setter by scanning the entity class on every call like
+ * the delegate used to do, so the difference between the two methods is the
+ * resolution overhead. Both use Hibernate and an in-memory HSQLDB database.
+ * Run it manually; the benchmark rule prints the time of each method.
+ */
+@BenchmarkOptions(warmupRounds = 5, benchmarkRounds = 20)
+public class LazyLoadingResolutionBenchmark extends AbstractBenchmark {
+
+    private static final int ROWS = 100;
+
+    private static EntityManagerFactory emf;
+
+    private EntityManager em;
+    private List<Person> rows;
+
+    @BeforeClass
+    public static void buildEntityManagerFactory() {
+        emf = new Ejb3Configuration()
+                .setProperty("hibernate.dialect",
+                        "org.hibernate.dialect.HSQLDialect")
+                .setProperty("hibernate.connection.driver_class",
+                        "org.hsqldb.jdbcDriver")
+                .setProperty("hibernate.connection.url",
+                        "jdbc:hsqldb:mem:lazyloadingbenchmark")
+                .setProperty("hibernate.connection.username", "sa")
+                .setProperty("hibernate.connection.password", "")
+                .setProperty("hibernate.connection.pool_size", "1")
+                .setProperty("hibernate.hbm2ddl.auto", "create")
+                .setProperty("hibernate.show_sql", "false")
+                .addAnnotatedClass(Person.class)
+                .addAnnotatedClass(Address.class)
+                .addAnnotatedClass(EmbeddedIdPerson.class)
+                .addAnnotatedClass(Name.class)
+                .addAnnotatedClass(PersonSkill.class)
+                .addAnnotatedClass(Skill.class).buildEntityManagerFactory();
+
+        EntityManager em = emf.createEntityManager();
+        em.getTransaction().begin();
+        Person manager = new Person();
+        manager.setFirstName("Jim");
+        manager.setLastName("Manager");
+        em.persist(manager);
+        for (int i = 0; i < ROWS; i++) {
+            Person p = new Person();
+            p.setFirstName("Employee");
+            p.setLastName("Number " + i);
+            p.setManager(manager);
+            em.persist(p);
+        }
+        em.getTransaction().commit();
+        em.close();
+    }
+
+    @Before
+    public void setUp() {
+        em = emf.createEntityManager();
+        rows = em.createQuery(
+                "SELECT p FROM Person p WHERE p.manager IS NOT NULL",
+                Person.class).getResultList();
+    }
+
+    @After
+    public void tearDown() {
+        em.close();
+    }
+
+    @Test
+    public void metadataResolution() {
+        HibernateLazyLoadingDelegate delegate = new HibernateLazyLoadingDelegate();
+        delegate.setEntityProvider(new LocalEntityProvider<Person>(
+                Person.class, em));
+        for (Person p : rows) {
+            delegate.ensureLazyPropertyLoaded(p, "manager");
+        }
+    }
+
+    @Test
+    public void reflectiveResolutionPerCall() throws Exception {
+        ReflectiveLazyLoadingDelegate delegate = new ReflectiveLazyLoadingDelegate(
+                em);
+        for (Person p : rows) {
+            delegate.ensureLazyPropertyLoaded(p, "manager");
+        }
+    }
+
+    /**
+     * The loading of a non-nested property as done by
+     * {@link HibernateLazyLoadingDelegate} before it used the entity metadata.
+     */
+    private static class ReflectiveLazyLoadingDelegate {
+
+        private final EntityManager em;
+
+        ReflectiveLazyLoadingDelegate(EntityManager em) {
+            this.em = em;
+        }
+
+        void ensureLazyPropertyLoaded(Object entity, String prop)
+                throws Exception {
+            CriteriaBuilder cb = em.getCriteriaBuilder();
+            CriteriaQuery<Object> q = cb.createQuery();
+            Root<? extends Object> root = q.from(entity.getClass());
+            q.select(root.get(prop));
+            q.where(cb.equal(root.get("id"), cb.literal(getEntityId(entity))));
+            Object value = em.createQuery(q).getResultList();
+            Method setter = findSetterFor(entity, prop);
+            if (!Collection.class.isAssignableFrom(setter.getParameterTypes()[0])
+                    && value instanceof Collection) {
+                value = ((Collection<?>) value).iterator().next();
+            }
+            setter.invoke(entity, value);
+        }
+
+        private static Object getEntityId(Object entity) throws Exception {
+            for (Field f : entity.getClass().getDeclaredFields()) {
+                if (f.isAnnotationPresent(Id.class)) {
+                    try {
+                        f.setAccessible(true);
+                        return f.get(entity);
+                    } finally {
+                        f.setAccessible(false);
+                    }
+                }
+            }
+            for (Method m : entity.getClass().getMethods()) {
+                if (m.isAnnotationPresent(Id.class)) {
+                    return m.invoke(entity);
+                }
+            }
+            return null;
+        }
+
+        private static Method findSetterFor(Object entity, String propertyName) {
+            for (Method m : entity.getClass().getMethods()) {
+                if (m.getName().equalsIgnoreCase("set" + propertyName)) {
+                    return m;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.performance;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.carrotsearch.junitbenchmarks.AbstractBenchmark;
+import com.carrotsearch.junitbenchmarks.BenchmarkOptions;
+import com.vaadin.addon.jpacontainer.metadata.MetadataFactory;
+import com.vaadin.addon.jpacontainer.testdata.Data;
+import com.vaadin.addon.jpacontainer.testdata.Department;
+import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.addon.jpacontainer.testdata.PersonSkill;
+import com.vaadin.addon.jpacontainer.testdata.Skill;
+
+/**
+ * Compares creating the metadata of a set of entity classes using reflection
+ * with restoring it from a snapshot written by
+ * {@link MetadataFactory#writeSnapshot(java.io.OutputStream)}. Restoring
+ * includes validating the classes against the snapshot and resolving the
+ * fields and methods of the deserialized properties. Every round uses a new
+ * factory, so nothing is cached between rounds. Run it manually; the benchmark
+ * rule prints the time of each method.
+ */
+@BenchmarkOptions(warmupRounds = 5, benchmarkRounds = 20)
+public class MetadataSnapshotBenchmark extends AbstractBenchmark {
+
+    private static final int STARTS = 50;
+    private static final Class<?>[] ENTITY_CLASSES = { Person.class,
+            Skill.class, PersonSkill.class, Department.class, Data.class };
+
+    private static byte[] snapshot;
+
+    @BeforeClass
+    public static void writeSnapshot() throws IOException {
+        MetadataFactory factory = newFactory();
+        for (Class<?> entityClass : ENTITY_CLASSES) {
+            factory.getEntityClassMetadata(entityClass);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        factory.writeSnapshot(out);
+        snapshot = out.toByteArray();
+    }
+
+    private static MetadataFactory newFactory() {
+        return new MetadataFactory() {
+        };
+    }
+
+    @Test
+    public void coldBuild() {
+        for (int i = 0; i < STARTS; i++) {
+            MetadataFactory factory = newFactory();
+            for (Class<?> entityClass : ENTITY_CLASSES) {
+                factory.getEntityClassMetadata(entityClass);
+            }
+        }
+    }
+
+    @Test
+    public void snapshotRestore() throws IOException {
+        for (int i = 0; i < STARTS; i++) {
+            MetadataFactory factory = newFactory();
+            factory.readSnapshot(new ByteArrayInputStream(snapshot),
+                    getClass().getClassLoader());
+            for (Class<?> entityClass : ENTITY_CLASSES) {
+                factory.getEntityClassMetadata(entityClass);
+            }
+        }
+    }
+}
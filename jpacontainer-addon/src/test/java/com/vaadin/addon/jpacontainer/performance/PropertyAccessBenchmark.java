@@ -0,0 +1,118 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.performance;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.carrotsearch.junitbenchmarks.AbstractBenchmark;
+import com.carrotsearch.junitbenchmarks.BenchmarkOptions;
+import com.vaadin.addon.jpacontainer.metadata.EntityClassMetadata;
+import com.vaadin.addon.jpacontainer.metadata.MetadataFactory;
+import com.vaadin.addon.jpacontainer.testdata.Address;
+import com.vaadin.addon.jpacontainer.testdata.Person;
+
+/**
+ * Compares reading entity properties through the accessors resolved once by
+ * the metadata with looking up the accessors reflectively on every read, like
+ * JPAContainer used to do. Run it manually; the benchmark rule prints the time
+ * of each method.
+ */
+@BenchmarkOptions(warmupRounds = 5, benchmarkRounds = 20)
+public class PropertyAccessBenchmark extends AbstractBenchmark {
+
+    private static final int ROWS = 100;
+    private static final int REPAINTS = 200;
+
+    private EntityClassMetadata<Person> metadata;
+    private List<Person> rows;
+    private List<String> propertyNames;
+    private List<Field> fields;
+
+    @Before
+    public void setUp() throws Exception {
+        metadata = MetadataFactory.getInstance().getEntityClassMetadata(
+                Person.class);
+        rows = new ArrayList<Person>();
+        for (int i = 0; i < ROWS; i++) {
+            Person p = new Person();
+            p.setId((long) i);
+            p.setFirstName("First " + i);
+            p.setLastName("Last " + i);
+            p.setDateOfBirth(new Date());
+            p.setAddress(new Address());
+            rows.add(p);
+        }
+        propertyNames = new ArrayList<String>(
+                metadata.getPersistentPropertyNames());
+        fields = new ArrayList<Field>();
+        for (String name : propertyNames) {
+            fields.add(Person.class.getDeclaredField(name));
+        }
+    }
+
+    @Test
+    public void precompiledAccessors() {
+        for (int repaint = 0; repaint < REPAINTS; repaint++) {
+            for (Person p : rows) {
+                for (String name : propertyNames) {
+                    metadata.getPropertyValue(p, name);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void reflectiveLookupPerAccess() throws Exception {
+        for (int repaint = 0; repaint < REPAINTS; repaint++) {
+            for (Person p : rows) {
+                for (Field field : fields) {
+                    readReflectively(p, field);
+                }
+            }
+        }
+    }
+
+    private static Object readReflectively(Object object, Field field)
+            throws Exception {
+        String name = field.getName().substring(0, 1).toUpperCase()
+                + field.getName().substring(1);
+        Method getter = null;
+        try {
+            getter = field.getDeclaringClass().getMethod("get" + name);
+        } catch (Exception e) {
+            try {
+                getter = field.getDeclaringClass().getMethod("is" + name);
+            } catch (Exception e1) {
+            }
+        }
+        if (getter == null) {
+            try {
+                field.setAccessible(true);
+                return field.get(object);
+            } finally {
+                field.setAccessible(false);
+            }
+        }
+        return getter.invoke(object);
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.performance;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.hibernate.ejb.Ejb3Configuration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.carrotsearch.junitbenchmarks.AbstractBenchmark;
+import com.carrotsearch.junitbenchmarks.BenchmarkOptions;
+import com.vaadin.addon.jpacontainer.BatchableEntityProvider;
+import com.vaadin.addon.jpacontainer.BatchableEntityProvider.BatchUpdateCallback;
+import com.vaadin.addon.jpacontainer.MutableEntityProvider;
+import com.vaadin.addon.jpacontainer.provider.BatchableLocalEntityProvider;
+import com.vaadin.addon.jpacontainer.provider.HibernateStatelessEntityProvider;
+import com.vaadin.addon.jpacontainer.testdata.Address;
+import com.vaadin.addon.jpacontainer.testdata.EmbeddedIdPerson;
+import com.vaadin.addon.jpacontainer.testdata.Name;
+import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.addon.jpacontainer.testdata.PersonSkill;
+import com.vaadin.addon.jpacontainer.testdata.Skill;
+
+/**
+ * Compares the throughput of a large insert committed through
+ * {@link BatchableLocalEntityProvider}, which persists every entity in the
+ * persistence context of the entity manager, with
+ * {@link HibernateStatelessEntityProvider}, which inserts them using a
+ * stateless session and JDBC batching. Both use Hibernate and an in-memory
+ * HSQLDB database. Run it manually; the benchmark rule prints the time of each
+ * method.
+ */
+@BenchmarkOptions(warmupRounds = 3, benchmarkRounds = 10)
+public class StatelessImportBenchmark extends AbstractBenchmark {
+
+    private static final int ENTITIES = 5000;
+
+    private static EntityManagerFactory emf = new Ejb3Configuration()
+            .setProperty("hibernate.dialect",
+                    "org.hibernate.dialect.HSQLDialect")
+            .setProperty("hibernate.connection.driver_class",
+                    "org.hsqldb.jdbcDriver")
+            .setProperty("hibernate.connection.url",
+                    "jdbc:hsqldb:mem:statelessbenchmark")
+            .setProperty("hibernate.connection.username", "sa")
+            .setProperty("hibernate.connection.password", "")
+            .setProperty("hibernate.connection.pool_size", "1")
+            .setProperty("hibernate.hbm2ddl.auto", "create")
+            .setProperty("hibernate.jdbc.batch_size", "50")
+            .setProperty("hibernate.show_sql", "false")
+            .addAnnotatedClass(Person.class).addAnnotatedClass(Address.class)
+            .addAnnotatedClass(EmbeddedIdPerson.class)
+            .addAnnotatedClass(Name.class)
+            .addAnnotatedClass(PersonSkill.class)
+            .addAnnotatedClass(Skill.class).buildEntityManagerFactory();
+    // Skill names are unique, so every round needs new ones
+    private static int counter;
+
+    private EntityManager em;
+
+    @Before
+    public void setUp() {
+        em = emf.createEntityManager();
+    }
+
+    @After
+    public void tearDown() {
+        em.close();
+    }
+
+    private void importSkills(BatchableEntityProvider<Skill> provider) {
+        provider.batchUpdate(new BatchUpdateCallback<Skill>() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void batchUpdate(
+                    MutableEntityProvider<Skill> batchEnabledEntityProvider) {
+                for (int i = 0; i < ENTITIES; i++) {
+                    Skill s = new Skill();
+                    s.setSkillName("Benchmark skill " + counter++);
+                    batchEnabledEntityProvider.addEntity(s);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void batchableLocalEntityProvider() {
+        importSkills(new BatchableLocalEntityProvider<Skill>(Skill.class, em));
+    }
+
+    @Test
+    public void hibernateStatelessEntityProvider() {
+        importSkills(new HibernateStatelessEntityProvider<Skill>(Skill.class,
+                em));
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.hibernate.ejb.Ejb3Configuration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.BatchableEntityProvider.BatchUpdateCallback;
+import com.vaadin.addon.jpacontainer.EntityProviderChangeEvent;
+import com.vaadin.addon.jpacontainer.EntityProviderChangeListener;
+import com.vaadin.addon.jpacontainer.MutableEntityProvider;
+import com.vaadin.addon.jpacontainer.testdata.Address;
+import com.vaadin.addon.jpacontainer.testdata.EmbeddedIdPerson;
+import com.vaadin.addon.jpacontainer.testdata.Name;
+import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.addon.jpacontainer.testdata.PersonSkill;
+import com.vaadin.addon.jpacontainer.testdata.Skill;
+
+/**
+ * Test case for {@link HibernateStatelessEntityProvider}.
+ * 
+ * @since 3.1.1
+ */
+public class HibernateStatelessEntityProviderTest {
+
+    private static EntityManagerFactory emf;
+    private EntityManager em;
+    private HibernateStatelessEntityProvider<Skill> provider;
+    private List<EntityProviderChangeEvent<Skill>> events = new ArrayList<EntityProviderChangeEvent<Skill>>();
+    // The provider only keeps a weak reference to its listeners
+    private EntityProviderChangeListener<Skill> listener = new EntityProviderChangeListener<Skill>() {
+
+        @Override
+        public void entityProviderChange(EntityProviderChangeEvent<Skill> event) {
+            events.add(event);
+        }
+    };
+
+    @BeforeClass
+    public static void buildEntityManagerFactory() {
+        Ejb3Configuration cfg = new Ejb3Configuration()
+                .setProperty("hibernate.dialect",
+                        "org.hibernate.dialect.HSQLDialect")
+                .setProperty("hibernate.connection.driver_class",
+                        "org.hsqldb.jdbcDriver")
+                .setProperty("hibernate.connection.url",
+                        "jdbc:hsqldb:mem:stateless")
+                .setProperty("hibernate.connection.username", "sa")
+                .setProperty("hibernate.connection.password", "")
+                .setProperty("hibernate.connection.pool_size", "1")
+                .setProperty("hibernate.hbm2ddl.auto", "create")
+                .setProperty("hibernate.jdbc.batch_size", "50")
+                .setProperty("hibernate.show_sql", "false")
+                .addAnnotatedClass(Person.class)
+                .addAnnotatedClass(Address.class)
+                .addAnnotatedClass(EmbeddedIdPerson.class)
+                .addAnnotatedClass(Name.class)
+                .addAnnotatedClass(PersonSkill.class)
+                .addAnnotatedClass(Skill.class);
+        emf = cfg.buildEntityManagerFactory();
+    }
+
+    @Before
+    public void setUp() {
+        em = emf.createEntityManager();
+        provider = new HibernateStatelessEntityProvider<Skill>(Skill.class, em);
+        provider.addListener(listener);
+    }
+
+    @After
+    public void tearDown() {
+        em.getTransaction().begin();
+        em.createQuery("DELETE FROM Skill s").executeUpdate();
+        em.getTransaction().commit();
+        em.close();
+    }
+
+    private long countSkills() {
+        return em.createQuery("SELECT COUNT(s) FROM Skill s", Long.class)
+                .getSingleResult();
+    }
+
+    @Test
+    public void testStatelessSessionSupported() {
+        assertTrue(provider.isStatelessSessionSupported());
+    }
+
+    @Test
+    public void testBatchUpdate() {
+        provider.batchUpdate(new BatchUpdateCallback<Skill>() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void batchUpdate(
+                    MutableEntityProvider<Skill> batchEnabledEntityProvider) {
+                for (int i = 0; i < 200; i++) {
+                    Skill s = new Skill();
+                    s.setSkillName("Skill " + i);
+                    batchEnabledEntityProvider.addEntity(s);
+                }
+            }
+        });
+        assertEquals(200, countSkills());
+        assertEquals(1, events.size());
+        assertTrue(events.get(0) instanceof BatchUpdatePerformedEvent);
+    }
+
+    @Test
+    public void testAddAndUpdateEntity() {
+        Skill s = new Skill();
+        s.setSkillName("Juggling");
+        assertSame(s, provider.addEntity(s));
+        assertNotNull(s.getId());
+        Long version = s.getVersion();
+
+        s.setSkillName("Advanced juggling");
+        provider.updateEntity(s);
+        assertEquals(Long.valueOf(version + 1), s.getVersion());
+        assertEquals("Advanced juggling",
+                provider.getEntity(null, s.getId()).getSkillName());
+
+        provider.removeEntity(s.getId());
+        assertEquals(0, countSkills());
+        assertEquals(3, events.size());
+    }
+
+    @Test
+    public void testExternalTransactionsNotSupported() {
+        provider.setTransactionsHandledByProvider(false);
+        Skill s = new Skill();
+        s.setSkillName("Juggling");
+        try {
+            provider.addEntity(s);
+            fail("No exception thrown");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(0, countSkills());
+        assertTrue(events.isEmpty());
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.EntityProviderChangeEvent;
+import com.vaadin.addon.jpacontainer.EntityProviderChangeListener;
+import com.vaadin.addon.jpacontainer.testdata.Person;
+
+/**
+ * Test case for {@link ListenerRegistry}.
+ * 
+ * @since 3.1.1
+ */
+public class ListenerRegistryTest {
+
+    private ListenerRegistry<Person> registry;
+    private MutableLocalEntityProvider<Person> provider;
+
+    private static class RecordingListener implements
+            EntityProviderChangeListener<Person> {
+
+        final List<EntityProviderChangeEvent<Person>> events = new ArrayList<EntityProviderChangeEvent<Person>>();
+
+        @Override
+        public void entityProviderChange(EntityProviderChangeEvent<Person> event) {
+            synchronized (events) {
+                events.add(event);
+            }
+        }
+    }
+
+    @Before
+    public void setUp() {
+        registry = new ListenerRegistry<Person>();
+        provider = new MutableLocalEntityProvider<Person>(Person.class);
+    }
+
+    private EntityProviderChangeEvent<Person> createEvent() {
+        return new EntitiesUpdatedEvent<Person>(provider, new Person());
+    }
+
+    @Test
+    public void testFireEventSynchronously() {
+        RecordingListener l1 = new RecordingListener();
+        RecordingListener l2 = new RecordingListener();
+        registry.addListener(l1);
+        registry.addListener(l2);
+
+        EntityProviderChangeEvent<Person> event = createEvent();
+        registry.fireEvent(event);
+        assertEquals(1, l1.events.size());
+        assertSame(event, l1.events.get(0));
+        assertEquals(1, l2.events.size());
+        assertEquals(2, registry.getDispatchedEventCount());
+        assertEquals(0, registry.getPendingEventCount());
+
+        registry.removeListener(l1);
+        registry.fireEvent(createEvent());
+        assertEquals(1, l1.events.size());
+        assertEquals(2, l2.events.size());
+    }
+
+    @Test
+    public void testListenerMayRemoveItselfWhileNotified() {
+        final RecordingListener l2 = new RecordingListener();
+        EntityProviderChangeListener<Person> l1 = new EntityProviderChangeListener<Person>() {
+
+            @Override
+            public void entityProviderChange(
+                    EntityProviderChangeEvent<Person> event) {
+                registry.removeListener(this);
+            }
+        };
+        registry.addListener(l1);
+        registry.addListener(l2);
+        registry.fireEvent(createEvent());
+        assertEquals(1, l2.events.size());
+        registry.fireEvent(createEvent());
+        assertEquals(2, l2.events.size());
+        assertEquals(3, registry.getDispatchedEventCount());
+    }
+
+    @Test
+    public void testFireEventAsynchronouslyKeepsOrder() throws Exception {
+        RecordingListener l1 = new RecordingListener();
+        RecordingListener l2 = new RecordingListener();
+        registry.addListener(l1);
+        registry.addListener(l2);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        registry.setExecutor(executor);
+
+        List<EntityProviderChangeEvent<Person>> fired = new ArrayList<EntityProviderChangeEvent<Person>>();
+        for (int i = 0; i < 1000; i++) {
+            EntityProviderChangeEvent<Person> event = createEvent();
+            fired.add(event);
+            registry.fireEvent(event);
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(fired, l1.events);
+        assertEquals(fired, l2.events);
+        assertEquals(0, registry.getPendingEventCount());
+        assertTrue(registry.getPeakPendingEventCount() > 0);
+        assertEquals(2000, registry.getDispatchedEventCount());
+    }
+
+    @Test
+    public void testRejectedEventsAreDeliveredSynchronously() {
+        RecordingListener l = new RecordingListener();
+        registry.addListener(l);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        registry.setExecutor(executor);
+
+        registry.fireEvent(createEvent());
+        assertEquals(1, l.events.size());
+        assertEquals(0, registry.getPendingEventCount());
+    }
+}
@@ -16,10 +16,31 @@
 
 package com.vaadin.addon.jpacontainer.provider.emtests;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.Aggregate;
 import com.vaadin.addon.jpacontainer.EntityProvider;
+import com.vaadin.addon.jpacontainer.SortBy;
 import com.vaadin.addon.jpacontainer.provider.CachingLocalEntityProvider;
+import com.vaadin.addon.jpacontainer.provider.LocalEntityProvider;
+import com.vaadin.addon.jpacontainer.testdata.DataGenerator;
 import com.vaadin.addon.jpacontainer.testdata.EmbeddedIdPerson;
 import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.data.Container.Filter;
+import com.vaadin.data.util.filter.And;
+import com.vaadin.data.util.filter.Compare;
+import com.vaadin.data.util.filter.SimpleStringFilter;
 
 /**
  * Base class for the {@link CachingLocalEntityProvider} Entity Manager tests.
@@ -49,5 +70,129 @@ public abstract class AbstractCachingLocalEntityProviderEMTest extends
 		return provider;
 	}
 
-	// TODO Add some test cases that try out the caching features as well
+	@Test
+	public void testRefinedFilterIsAnsweredFromCachedSuperset()
+			throws Exception {
+		Object maxId = DataGenerator.getTestDataSortedByPrimaryKey().get(250)
+				.getId();
+		Filter all = new Compare.Equal("male", false);
+		Filter refined = new And(all, new Compare.LessOrEqual("id", maxId));
+		List<SortBy> sortBy = DataGenerator.getSortByName();
+
+		List<Object> expected = new LocalEntityProvider<Person>(Person.class,
+				getEntityManager()).getAllEntityIdentifiers(container, refined,
+				sortBy);
+		assertFalse(expected.isEmpty());
+
+		// Load the superset and all of its entities into the cache
+		for (Object id : entityProvider.getAllEntityIdentifiers(container, all,
+				sortBy)) {
+			entityProvider.getEntity(container, id);
+		}
+
+		// Change the database behind the back of the provider to make sure
+		// the refined filter is not sent to the database
+		getEntityManager().getTransaction().begin();
+		getEntityManager().createQuery("UPDATE Person p SET p.male = true")
+				.executeUpdate();
+		getEntityManager().getTransaction().commit();
+
+		assertEquals(expected, entityProvider.getAllEntityIdentifiers(
+				container, refined, sortBy));
+		assertEquals(expected.size(),
+				entityProvider.getEntityCount(container, refined));
+	}
+
+	@Test
+	public void testStringFilterIsNotRefinedInMemory() throws Exception {
+		Filter s = new SimpleStringFilter("lastName", "s", true, true);
+		Filter smi = new SimpleStringFilter("lastName", "smi", true, true);
+		List<SortBy> sortBy = DataGenerator.getSortByName();
+
+		// Load the superset and all of its entities into the cache
+		for (Object id : entityProvider.getAllEntityIdentifiers(container, s,
+				sortBy)) {
+			entityProvider.getEntity(container, id);
+		}
+
+		// The database may compare strings differently, so the refined
+		// filter has to be sent to the database
+		getEntityManager().getTransaction().begin();
+		getEntityManager().createQuery(
+				"UPDATE Person p SET p.lastName = 'Nobody'").executeUpdate();
+		getEntityManager().getTransaction().commit();
+
+		assertTrue(entityProvider.getAllEntityIdentifiers(container, smi,
+				sortBy).isEmpty());
+	}
+
+	@Test
+	public void testValueCountsAreCachedUntilFlushed() throws Exception {
+		CachingLocalEntityProvider<Person> provider = (CachingLocalEntityProvider<Person>) entityProvider;
+		Filter filter = DataGenerator.getTestFilter();
+		Map<Object, Long> counts = provider.getValueCounts(container,
+				"lastName", filter, 0);
+		assertFalse(counts.isEmpty());
+
+		getEntityManager().getTransaction().begin();
+		getEntityManager().createQuery(
+				"UPDATE Person p SET p.lastName = 'Smith'").executeUpdate();
+		getEntityManager().getTransaction().commit();
+
+		assertEquals(counts,
+				provider.getValueCounts(container, "lastName", filter, 0));
+
+		provider.flush();
+		assertEquals(Collections.singletonMap("Smith", (long) DataGenerator
+				.getTestDataSortedByPrimaryKey().size()),
+				provider.getValueCounts(container, "lastName", filter, 0));
+	}
+
+	@Test
+	public void testAggregatesAreCachedUntilFlushed() throws Exception {
+		CachingLocalEntityProvider<Person> provider = (CachingLocalEntityProvider<Person>) entityProvider;
+		List<Aggregate> max = Arrays.asList(Aggregate.max("lastName"));
+		Object cached = provider.getAggregates(container, null, max).get(
+				max.get(0));
+
+		getEntityManager().getTransaction().begin();
+		getEntityManager().createQuery(
+				"UPDATE Person p SET p.lastName = 'Zorro'").executeUpdate();
+		getEntityManager().getTransaction().commit();
+
+		assertEquals(cached, provider.getAggregates(container, null, max)
+				.get(max.get(0)));
+
+		provider.flush();
+		assertEquals("Zorro", provider.getAggregates(container, null, max)
+				.get(max.get(0)));
+	}
+
+	@Test
+	public void testMoreAggregatesThanCacheSize() throws Exception {
+		CachingLocalEntityProvider<Person> provider = (CachingLocalEntityProvider<Person>) entityProvider;
+		List<Aggregate> aggregates = new ArrayList<Aggregate>();
+		for (String propertyId : new String[] { "id", "version",
+				"primitiveDouble" }) {
+			aggregates.add(Aggregate.sum(propertyId));
+			aggregates.add(Aggregate.avg(propertyId));
+		}
+		for (String propertyId : new String[] { "id", "version",
+				"primitiveDouble", "firstName", "lastName", "dateOfBirth" }) {
+			aggregates.add(Aggregate.min(propertyId));
+			aggregates.add(Aggregate.max(propertyId));
+			aggregates.add(Aggregate.count(propertyId));
+		}
+
+		// 24 aggregates, more than the cache of a filter holds. Neither the first call, which caches all the values, nor the second
+		// one, which mixes cache hits and evicted values, may lose any
+		for (int i = 0; i < 2; i++) {
+			Map<Aggregate, Object> values = provider.getAggregates(container,
+					null, aggregates);
+			assertEquals(aggregates, new ArrayList<Aggregate>(values.keySet()));
+			for (Aggregate aggregate : aggregates) {
+				assertNotNull(aggregate.toString(), values.get(aggregate));
+			}
+		}
+	}
 }
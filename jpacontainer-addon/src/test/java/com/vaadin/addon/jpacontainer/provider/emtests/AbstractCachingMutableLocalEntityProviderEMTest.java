@@ -16,10 +16,26 @@
 
 package com.vaadin.addon.jpacontainer.provider.emtests;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.OptimisticLockException;
+
+import org.junit.Test;
+
 import com.vaadin.addon.jpacontainer.EntityProvider;
+import com.vaadin.addon.jpacontainer.SortBy;
 import com.vaadin.addon.jpacontainer.provider.CachingMutableLocalEntityProvider;
+import com.vaadin.addon.jpacontainer.testdata.DataGenerator;
 import com.vaadin.addon.jpacontainer.testdata.EmbeddedIdPerson;
 import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.data.Container.Filter;
+import com.vaadin.data.util.filter.Compare;
 
 /**
  * Base class for the {@link CachingMutableLocalEntityProvider} Entity Manager tests.
@@ -51,5 +67,74 @@ public abstract class AbstractCachingMutableLocalEntityProviderEMTest extends
 		return provider;
 	}
 
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testUpdateEntityProperty_Direct() {
+		CachingMutableLocalEntityProvider<Person> provider = (CachingMutableLocalEntityProvider<Person>) entityProvider;
+		provider.setDirectPropertyUpdatesEnabled(true);
+		Person p = DataGenerator.getTestDataSortedByName().get(1);
+
+		// Puts the entity in the cache
+		Long version = provider.getEntity(container, p.getId()).getVersion();
+		provider.updateEntityProperty(p.getId(), "firstName",
+				"A directly changed first name");
+
+		Person returned = provider.getEntity(container, p.getId());
+		assertEquals("A directly changed first name", returned.getFirstName());
+		assertEquals(Long.valueOf(version + 1), returned.getVersion());
+
+		provider.flush();
+		returned = provider.getEntity(container, p.getId());
+		assertEquals("A directly changed first name", returned.getFirstName());
+		assertEquals(Long.valueOf(version + 1), returned.getVersion());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test(expected = OptimisticLockException.class)
+	public void testUpdateEntityProperty_Direct_Stale() throws Exception {
+		CachingMutableLocalEntityProvider<Person> provider = (CachingMutableLocalEntityProvider<Person>) entityProvider;
+		provider.setDirectPropertyUpdatesEnabled(true);
+		Person p = DataGenerator.getTestDataSortedByName().get(2);
+		provider.getEntity(container, p.getId());
+
+		// Someone else updates the entity
+		EntityManager em = getEntityManager();
+		em.getTransaction().begin();
+		em.createQuery(
+				"UPDATE Person p SET p.version = p.version + 1 WHERE p.id = :id")
+				.setParameter("id", p.getId()).executeUpdate();
+		em.getTransaction().commit();
+
+		provider.updateEntityProperty(p.getId(), "firstName", "Too late");
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testUpdateEntityProperty_Direct_CachedFilterResults() {
+		CachingMutableLocalEntityProvider<Person> provider = (CachingMutableLocalEntityProvider<Person>) entityProvider;
+		provider.setDirectPropertyUpdatesEnabled(true);
+		Person p = DataGenerator.getTestDataSortedByName().get(5);
+		Filter byFirstName = new Compare.Equal("firstName", "Aaron");
+		Filter byLastName = new Compare.Equal("lastName", p.getLastName());
+		List<SortBy> sortByFirstName = Arrays.asList(new SortBy("firstName",
+				true));
+
+		// Populate the filter cache
+		assertEquals(0, provider.getEntityCount(container, byFirstName));
+		List<Object> before = new ArrayList<Object>(
+				provider.getAllEntityIdentifiers(container, byLastName,
+						sortByFirstName));
+		assertFalse(p.getId().equals(before.get(0)));
+		provider.getEntity(container, p.getId());
+
+		provider.updateEntityProperty(p.getId(), "firstName", "Aaron");
+
+		assertEquals(1, provider.getEntityCount(container, byFirstName));
+		List<Object> after = provider.getAllEntityIdentifiers(container,
+				byLastName, sortByFirstName);
+		assertEquals(before.size(), after.size());
+		assertEquals(p.getId(), after.get(0));
+	}
+
 	// TODO Add some test cases that try out the caching features as well
 }
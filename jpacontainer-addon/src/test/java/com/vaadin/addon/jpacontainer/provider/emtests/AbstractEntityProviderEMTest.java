@@ -23,6 +23,7 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -44,6 +45,8 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.vaadin.addon.jpacontainer.Aggregate;
+import com.vaadin.addon.jpacontainer.AggregatingEntityProvider;
 import com.vaadin.addon.jpacontainer.EntityContainer;
 import com.vaadin.addon.jpacontainer.EntityProvider;
 import com.vaadin.addon.jpacontainer.SortBy;
@@ -744,5 +747,79 @@ public abstract class AbstractEntityProviderEMTest {
         entityProvider.setQueryModifierDelegate(null);
     }
 
+    @Test
+    public void testGetValueCounts() {
+        System.out.println("testGetValueCounts");
+        Map<Object, Long> expected = new HashMap<Object, Long>();
+        for (Person p : DataGenerator.getFilteredTestDataSortedByName()) {
+            String postOffice = p.getAddress().getPostOffice();
+            Long count = expected.get(postOffice);
+            expected.put(postOffice, count == null ? 1L : count + 1);
+        }
+
+        Map<Object, Long> counts = ((AggregatingEntityProvider<Person>) entityProvider)
+                .getValueCounts(container, "address.postOffice",
+                        DataGenerator.getTestFilter(), 0);
+        assertEquals(expected, counts);
+        // Most common value first
+        long previous = Long.MAX_VALUE;
+        for (Long count : counts.values()) {
+            assertTrue(count <= previous);
+            previous = count;
+        }
+
+        Map<Object, Long> limited = ((AggregatingEntityProvider<Person>) entityProvider)
+                .getValueCounts(container, "address.postOffice",
+                        DataGenerator.getTestFilter(), 2);
+        assertEquals(2, limited.size());
+        assertEquals(counts.values().iterator().next(), limited.values()
+                .iterator().next());
+    }
+
+    @Test
+    public void testGetAggregates() {
+        System.out.println("testGetAggregates");
+        long sum = 0;
+        String min = null;
+        String max = null;
+        List<Person> testData = DataGenerator.getFilteredTestDataSortedByName();
+        for (Person p : testData) {
+            sum += p.getId();
+            if (min == null || p.getLastName().compareTo(min) < 0) {
+                min = p.getLastName();
+            }
+            if (max == null || p.getLastName().compareTo(max) > 0) {
+                max = p.getLastName();
+            }
+        }
+
+        Map<Aggregate, Object> aggregates = ((AggregatingEntityProvider<Person>) entityProvider)
+                .getAggregates(container, DataGenerator.getTestFilter(), Arrays
+                        .asList(Aggregate.sum("id"), Aggregate.avg("id"),
+                                Aggregate.min("lastName"),
+                                Aggregate.max("lastName"),
+                                Aggregate.count("address.street")));
+        assertEquals(sum, ((Number) aggregates.get(Aggregate.sum("id")))
+                .longValue());
+        // Some databases (e.g. HSQLDB) truncate the average of an integral
+        // column to an integer
+        double expectedAvg = (double) sum / testData.size();
+        double avg = ((Number) aggregates.get(Aggregate.avg("id")))
+                .doubleValue();
+        if (Math.abs(expectedAvg - avg) > 1e-9) {
+            assertEquals(Math.floor(expectedAvg), avg, 1e-9);
+        }
+        assertEquals(min, aggregates.get(Aggregate.min("lastName")));
+        assertEquals(max, aggregates.get(Aggregate.max("lastName")));
+        assertEquals((long) testData.size(),
+                aggregates.get(Aggregate.count("address.street")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetAggregates_NotNumeric() {
+        ((AggregatingEntityProvider<Person>) entityProvider).getAggregates(
+                container, null, Arrays.asList(Aggregate.sum("lastName")));
+    }
+
     // TODO Add test for getAllEntityIdentifiers
 }
@@ -16,10 +16,32 @@
 
 package com.vaadin.addon.jpacontainer.provider.emtests;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.OptimisticLockException;
+
+import org.junit.Test;
+
 import com.vaadin.addon.jpacontainer.EntityProvider;
+import com.vaadin.addon.jpacontainer.EntityProviderChangeEvent;
+import com.vaadin.addon.jpacontainer.EntityProviderChangeListener;
 import com.vaadin.addon.jpacontainer.provider.MutableLocalEntityProvider;
+import com.vaadin.addon.jpacontainer.testdata.Address;
+import com.vaadin.addon.jpacontainer.testdata.DataGenerator;
 import com.vaadin.addon.jpacontainer.testdata.EmbeddedIdPerson;
 import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.addon.jpacontainer.testdata.Skill;
 
 /**
  * Base class for the {@link MutableLocalEntityProvider} Entity Manager tests.
@@ -45,5 +67,155 @@ public abstract class AbstractMutableLocalEntityProviderEMTest extends
 		provider.setTransactionsHandledByProvider(true);
 		return provider;
 	}
-	
+
+	private MutableLocalEntityProvider<Skill> createSkillProvider() {
+		MutableLocalEntityProvider<Skill> provider = new MutableLocalEntityProvider<Skill>(
+				Skill.class, getEntityManager());
+		provider.setTransactionsHandledByProvider(true);
+		provider.setDirectPropertyUpdatesEnabled(true);
+		return provider;
+	}
+
+	@Test
+	public void testUpdateEntityProperties() {
+		MutableLocalEntityProvider<Skill> provider = createSkillProvider();
+		Skill s = provider.getEntity(null, DataGenerator.getSkills().get(0)
+				.getId());
+		Long version = s.getVersion();
+
+		s.setSkillName("A partially updated skill");
+		Skill returned = provider.updateEntityProperties(s,
+				Arrays.asList("skillName"));
+		assertSame(s, returned);
+		assertEquals(Long.valueOf(version + 1), s.getVersion());
+
+		Skill reloaded = provider.getEntity(null, s.getId());
+		assertEquals("A partially updated skill", reloaded.getSkillName());
+		assertEquals(Long.valueOf(version + 1), reloaded.getVersion());
+	}
+
+	@Test
+	public void testIsPartialUpdateEnabled() {
+		MutableLocalEntityProvider<Skill> provider = createSkillProvider();
+		assertTrue(provider.isPartialUpdateEnabled());
+		provider.setEntitiesDetached(false);
+		assertFalse(provider.isPartialUpdateEnabled());
+		provider.setEntitiesDetached(true);
+		provider.setDirectPropertyUpdatesEnabled(false);
+		assertFalse(provider.isPartialUpdateEnabled());
+	}
+
+	@Test(expected = OptimisticLockException.class)
+	public void testUpdateEntityProperties_Stale() {
+		MutableLocalEntityProvider<Skill> provider = createSkillProvider();
+		Skill s = provider.getEntity(null, DataGenerator.getSkills().get(1)
+				.getId());
+
+		// Someone else updates the entity
+		EntityManager em = getEntityManager();
+		em.getTransaction().begin();
+		em.createQuery(
+				"UPDATE Skill s SET s.version = s.version + 1 WHERE s.id = :id")
+				.setParameter("id", s.getId()).executeUpdate();
+		em.getTransaction().commit();
+
+		s.setSkillName("Too late");
+		provider.updateEntityProperties(s, Arrays.asList("skillName"));
+	}
+
+	@Test
+	public void testAddEntity_NewEntityIsPersisted() {
+		MutableLocalEntityProvider<Skill> provider = createSkillProvider();
+		Skill s = new Skill();
+		s.setSkillName("A persisted skill");
+
+		Skill returned = provider.addEntity(s);
+		assertSame(s, returned);
+		assertNotNull(s.getId());
+		assertEquals("A persisted skill", provider.getEntity(null, s.getId())
+				.getSkillName());
+	}
+
+	@Test
+	public void testAddEntity_PersistCascadeIsMerged() {
+		// Person cascades all operations to its skills
+		MutableLocalEntityProvider<Person> provider = new MutableLocalEntityProvider<Person>(
+				Person.class, getEntityManager());
+		provider.setTransactionsHandledByProvider(true);
+		Person p = new Person();
+		p.setFirstName("Merged");
+		p.setLastName("Person");
+		p.setDateOfBirth(java.sql.Date.valueOf("2000-06-02"));
+		p.setAddress(new Address());
+		p.getAddress().setStreet("Street");
+		p.getAddress().setPostalCode("Postal Code");
+		p.getAddress().setPostOffice("Post Office");
+
+		Person returned = provider.addEntity(p);
+		assertNotSame(p, returned);
+		assertNull(p.getId());
+		assertNotNull(returned.getId());
+		assertEquals("Merged", provider.getEntity(null, returned.getId())
+				.getFirstName());
+	}
+
+	@Test
+	public void testAddEntities_FiresOneEvent() {
+		MutableLocalEntityProvider<Skill> provider = createSkillProvider();
+		final List<EntityProviderChangeEvent<Skill>> events = new ArrayList<EntityProviderChangeEvent<Skill>>();
+		EntityProviderChangeListener<Skill> listener = new EntityProviderChangeListener<Skill>() {
+
+			@Override
+			public void entityProviderChange(
+					EntityProviderChangeEvent<Skill> event) {
+				events.add(event);
+			}
+		};
+		provider.addListener(listener);
+
+		List<Skill> skills = new ArrayList<Skill>();
+		for (int i = 0; i < 3; i++) {
+			Skill s = new Skill();
+			s.setSkillName("Imported skill " + i);
+			skills.add(s);
+		}
+		provider.addEntities(skills);
+
+		assertEquals(1, events.size());
+		assertTrue(events.get(0) instanceof
+				EntityProviderChangeEvent.EntitiesAddedEvent);
+		assertEquals(3, events.get(0).getAffectedEntities().size());
+		for (Skill s : skills) {
+			assertNotNull(s.getId());
+		}
+		provider.removeListener(listener);
+	}
+
+	@Test
+	public void testFireEntityProviderChangeEventsDisabled() {
+		MutableLocalEntityProvider<Skill> provider = createSkillProvider();
+		final List<EntityProviderChangeEvent<Skill>> events = new ArrayList<EntityProviderChangeEvent<Skill>>();
+		EntityProviderChangeListener<Skill> listener = new EntityProviderChangeListener<Skill>() {
+
+			@Override
+			public void entityProviderChange(
+					EntityProviderChangeEvent<Skill> event) {
+				events.add(event);
+			}
+		};
+		provider.addListener(listener);
+		provider.setFireEntityProviderChangeEvents(false);
+
+		Skill s = new Skill();
+		s.setSkillName("Silent skill");
+		provider.addEntity(s);
+		assertTrue(events.isEmpty());
+
+		provider.setFireEntityProviderChangeEvents(true);
+		s = new Skill();
+		s.setSkillName("Noisy skill");
+		provider.addEntity(s);
+		assertEquals(1, events.size());
+		provider.removeListener(listener);
+	}
 }
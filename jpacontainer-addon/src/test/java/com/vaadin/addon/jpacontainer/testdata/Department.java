@@ -83,6 +83,8 @@ public class Department implements Serializable {
     @ManyToMany
     private Set<Person> persons;
 
+    private String location;
+
     public String getName() {
         return name;
     }
@@ -99,4 +101,12 @@ public class Department implements Serializable {
         this.persons = persons;
     }
 
+    public String getLocation() {
+        return location;
+    }
+
+    public void setLocation(String location) {
+        this.location = location;
+    }
+
 }